@@ -0,0 +1,172 @@
+package jive.java;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * BorderScanner finds the content of an image surrounded by a uniform border,
+ * such as the margins of a scanned document or the background around a screenshot.
+ * <br><br>
+ * The color of the top-left pixel is taken as the border color. Rows are scanned inward from the
+ * top and bottom edges at the same time, stopping at the first row containing a pixel that differs
+ * from the border color by more than the tolerance. The remaining rows are then scanned in parallel
+ * bands for the left and right edges. Each row only has to be scanned up to the edge found so far,
+ * so the cost depends on the size of the border rather than the size of the image.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class BorderScanner
+{
+	static final int BAND_HEIGHT = 256;
+
+	/**
+	 * Finds the bounding box of the content inside a uniform border
+	 *
+	 * @param bufferedImage - the image to scan
+	 * @param tolerance - the largest difference in any channel (0 to 255) that is still considered border
+	 * @return the bounds of the content, or the bounds of the whole image if it is entirely border
+	 */
+	public static Rectangle findContent(BufferedImage bufferedImage, int tolerance)
+	{
+		int width = bufferedImage.getWidth();
+		int height = bufferedImage.getHeight();
+		Rows rows = new Rows(bufferedImage);
+
+		//The alpha byte of TYPE_INT_RGB pixels is undefined, so it is ignored for opaque images
+		int mask = bufferedImage.getColorModel().hasAlpha() ? 0xFFFFFFFF : 0xFFFFFF;
+		int border = rows.get(0, new int[width])[rows.offset(0)] & mask;
+
+		CompletableFuture<Integer> bottomScan = CompletableFuture.supplyAsync(() ->
+		{
+			int[] buffer = new int[width];
+			for (int y = height - 1; y >= 0; --y)
+				if (findFirst(rows.get(y, buffer), rows.offset(y), width, border, mask, tolerance) >= 0)
+					return y;
+			return -1;
+		});
+
+		int top = -1;
+		int[] buffer = new int[width];
+		for (int y = 0; y < height && top < 0; ++y)
+			if (findFirst(rows.get(y, buffer), rows.offset(y), width, border, mask, tolerance) >= 0)
+				top = y;
+
+		int bottom = bottomScan.join();
+
+		if (top < 0)
+			return new Rectangle(width, height);
+
+		AtomicInteger left = new AtomicInteger(width);
+		AtomicInteger right = new AtomicInteger(-1);
+		int firstRow = top;
+
+		IntStream.range(0, (bottom - top + BAND_HEIGHT) / BAND_HEIGHT).parallel().forEach(band ->
+		{
+			int[] row = new int[width];
+			int end = Math.min(bottom + 1, firstRow + (band + 1) * BAND_HEIGHT);
+
+			for (int y = firstRow + band * BAND_HEIGHT; y < end; ++y)
+			{
+				int[] pixels = rows.get(y, row);
+				int offset = rows.offset(y);
+
+				int first = findFirst(pixels, offset, left.get(), border, mask, tolerance);
+				if (first >= 0)
+					left.accumulateAndGet(first, Math::min);
+
+				int last = findLast(pixels, offset, width, right.get() + 1, border, mask, tolerance);
+				if (last >= 0)
+					right.accumulateAndGet(last, Math::max);
+			}
+		});
+
+		return new Rectangle(left.get(), top, right.get() - left.get() + 1, bottom - top + 1);
+	}
+
+	/**
+	 * @return the x coordinate of the first pixel before end that isn't border, or -1 if there isn't one
+	 */
+	private static int findFirst(int[] pixels, int offset, int end, int border, int mask, int tolerance)
+	{
+		for (int x = 0; x < end; ++x)
+			if (differs(pixels[offset + x] & mask, border, tolerance))
+				return x;
+		return -1;
+	}
+
+	/**
+	 * @return the x coordinate of the last pixel at or after start that isn't border, or -1 if there isn't one
+	 */
+	private static int findLast(int[] pixels, int offset, int width, int start, int border, int mask, int tolerance)
+	{
+		for (int x = width - 1; x >= start; --x)
+			if (differs(pixels[offset + x] & mask, border, tolerance))
+				return x;
+		return -1;
+	}
+
+	private static boolean differs(int pixel, int border, int tolerance)
+	{
+		if (pixel == border)
+			return false;
+
+		for (int shift = 0; shift < 32; shift += 8)
+			if (Math.abs(((pixel >>> shift) & 0xFF) - ((border >>> shift) & 0xFF)) > tolerance)
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Reads rows of an image as ARGB pixels. Canonical images (including cropped subimages)
+	 * are read in place, other images are copied into the caller's buffer one row at a time.
+	 * Pixels of row y start at offset(y) of the returned array.
+	 */
+	private static class Rows
+	{
+		private final BufferedImage bufferedImage;
+		private final int[] data;
+		private final int base;
+		private final int stride;
+
+		Rows(BufferedImage bufferedImage)
+		{
+			this.bufferedImage = bufferedImage;
+
+			if (PixelFormats.isCanonical(bufferedImage))
+			{
+				WritableRaster raster = bufferedImage.getRaster();
+				stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+				base = raster.getDataBuffer().getOffset() - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX();
+				data = ((DataBufferInt) raster.getDataBuffer()).getData();
+			}
+			else
+			{
+				stride = 0;
+				base = 0;
+				data = null;
+			}
+		}
+
+		int[] get(int y, int[] buffer)
+		{
+			if (data != null)
+				return data;
+
+			bufferedImage.getRGB(0, y, buffer.length, 1, buffer, 0, buffer.length);
+			return buffer;
+		}
+
+		int offset(int y)
+		{
+			return data != null ? base + y * stride : 0;
+		}
+	}
+}
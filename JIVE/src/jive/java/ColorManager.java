@@ -0,0 +1,767 @@
+package jive.java;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.color.CMMException;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * ColorManager converts images with embedded ICC color profiles, such as Adobe RGB photos and CMYK JPEGs,
+ * to sRGB as they are loaded, so they are shown and edited with the colors they were meant to have.
+ * <br><br>
+ * ImageIO ignores the profiles of PNG files, and converts JPEG files with ColorConvertOp, which runs the
+ * color management module for every pixel. Instead, the profile is used once to convert a grid of GRID_SIZE
+ * values per channel, giving a 3D lookup table from the colors of the file to sRGB (4D for CMYK), and each
+ * pixel is converted by tetrahedral interpolation between the four grid points around its color, in bands
+ * of rows on all cores. Lookup tables are kept for the last MAX_CACHED_TABLES profiles, so the photos of one
+ * camera only build theirs once. Profiles that turn out to be sRGB by another name leave the pixels as they are.
+ * <br><br>
+ * The profile is found by scan(), which reads the iCCP chunk of a PNG file, or the ICC_PROFILE and Adobe
+ * segments of a JPEG file, before the file is handed to an ImageReader. The image is then read with read().
+ * CMYK JPEGs without a profile are converted with the usual formula. JavaFX shows images as sRGB,
+ * so sRGB is the only color space images are converted to.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class ColorManager
+{
+	static final int GRID_SIZE = 33;
+	static final int CMYK_GRID_SIZE = 17;
+	static final int MAX_CACHED_TABLES = 8;
+
+	private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	private static final int ICC_HEADER_LENGTH = 14;		//"ICC_PROFILE", a null, the chunk number and the chunk count
+	private static final int ONE = 255 << 8;				//Table values are fixed point with 8 fractional bits
+
+	private static final Map<ByteBuffer, ColorTable> tables = new LinkedHashMap<ByteBuffer, ColorTable>(16, 0.75f, true);
+	private static ColorTable defaultCMYKTable;
+
+	/**
+	 * The color information of an image file that ImageIO doesn't apply itself
+	 */
+	public static final class SourceColor
+	{
+		final ICC_Profile profile;
+		final int components;
+		final int adobeTransform;
+
+		/**
+		 * @param profile - the embedded profile, or null if there is none
+		 * @param components - the number of color components of a JPEG file, 0 for other formats
+		 * @param adobeTransform - the color transform of the Adobe segment of a JPEG file, or -1 if there is none
+		 */
+		SourceColor(ICC_Profile profile, int components, int adobeTransform)
+		{
+			this.profile = profile;
+			this.components = components;
+			this.adobeTransform = adobeTransform;
+		}
+
+		boolean isCMYK()
+		{
+			return components == 4;
+		}
+	}
+
+	/**
+	 * Reads the embedded color profile of a PNG or JPEG file. The stream is left where it was,
+	 * so this can be called before the stream is handed to an ImageReader.
+	 *
+	 * @param stream - the image file, positioned at its start
+	 * @return the color information of the file, or null if there is nothing to convert
+	 * @throws IOException if the stream can't be read
+	 */
+	public static SourceColor scan(ImageInputStream stream) throws IOException
+	{
+		long start = stream.getStreamPosition();
+
+		try
+		{
+			byte[] signature = new byte[PNG_SIGNATURE.length];
+			stream.readFully(signature);
+
+			if (Arrays.equals(signature, PNG_SIGNATURE))
+			{
+				ICC_Profile profile = scanPng(stream);
+				return profile != null ? new SourceColor(profile, 0, -1) : null;
+			}
+
+			if ((signature[0] & 0xFF) == 0xFF && (signature[1] & 0xFF) == 0xD8)
+			{
+				stream.seek(start + 2);
+				return scanJpeg(stream);
+			}
+
+			return null;
+		}
+		catch (EOFException | IllegalArgumentException e)
+		{
+			//A truncated file is left for the reader to report, a broken profile is ignored
+			return null;
+		}
+		finally
+		{
+			stream.seek(start);
+		}
+	}
+
+	/**
+	 * Reads the first image of a file and converts it to sRGB
+	 *
+	 * @param reader - the reader, with its input set to the file
+	 * @param param - the read parameters, or null for the defaults
+	 * @param color - the color information found by scan(), or null if there was none
+	 * @return the image as it was decoded if no conversion was needed, otherwise TYPE_INT_RGB or TYPE_INT_ARGB in sRGB
+	 * @throws IOException if the image can't be read
+	 */
+	public static BufferedImage read(ImageReader reader, ImageReadParam param, SourceColor color) throws IOException
+	{
+		if (color == null)
+			return reader.read(0, param);
+
+		if (color.isCMYK())
+			return readCMYK(reader, param, color);
+
+		ColorTable table = getTable(color.profile);
+
+		if (table == null)
+			return reader.read(0, param);
+
+		//The JPEG reader converts images with a profile itself unless it reads into an image in the profile's color space
+		ImageTypeSpecifier rawType = findProfileType(reader);
+		BufferedImage decoded;
+
+		if (rawType != null)
+		{
+			if (param == null)
+				param = reader.getDefaultReadParam();
+
+			//A destination type would be checked against a fresh list of types, which never holds the same color space
+			Dimension size = getDestinationSize(reader, param);
+			param.setDestination(rawType.createBufferedImage(size.width, size.height));
+
+			try
+			{
+				decoded = reader.read(0, param);
+			}
+			finally
+			{
+				param.setDestination(null);
+			}
+		}
+		else
+		{
+			decoded = reader.read(0, param);
+		}
+
+		BufferedImage image = copySamples(decoded);
+
+		if (table.identity)
+			return image;
+
+		int[] pixels = PixelFormats.getData(image);
+		int bands = (pixels.length + PixelFormats.BAND_PIXELS - 1) / PixelFormats.BAND_PIXELS;
+
+		IntStream.range(0, bands).parallel().forEach(band ->
+				table.convertRGB(pixels, band * PixelFormats.BAND_PIXELS, Math.min(pixels.length, (band + 1) * PixelFormats.BAND_PIXELS)));
+
+		return image;
+	}
+
+	/*
+	 * CMYK JPEGs are read as rasters, since ImageIO only converts them with a formula or with ColorConvertOp
+	 */
+	private static BufferedImage readCMYK(ImageReader reader, ImageReadParam param, SourceColor color) throws IOException
+	{
+		boolean cmykProfile = color.profile != null && color.profile.getColorSpaceType() == ColorSpace.TYPE_CMYK;
+		ColorTable table = cmykProfile ? getTable(color.profile) : null;
+		if (table == null)
+			table = getDefaultCMYKTable();
+
+		Raster raster = reader.readRaster(0, param);
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = PixelFormats.getData(image);
+		int bandHeight = PixelFormats.getBandHeight(width);
+		ColorTable cmykTable = table;
+
+		IntStream.range(0, (height + bandHeight - 1) / bandHeight).parallel().forEach(band ->
+		{
+			int y = band * bandHeight;
+			int rows = Math.min(bandHeight, height - y);
+			int[] samples = raster.getPixels(raster.getMinX(), raster.getMinY() + y, width, rows, (int[]) null);
+			int start = y * width;
+
+			for (int i = 0; i < width * rows; ++i)
+				pixels[start + i] = toInk(samples, i * 4, color.adobeTransform);
+
+			cmykTable.convertCMYK(pixels, start, start + width * rows);
+		});
+
+		return image;
+	}
+
+	/*
+	 * Packs the ink amounts of a CMYK or YCCK pixel into an int, C in the highest byte.
+	 * Files with an Adobe segment store inverted values, 255 being no ink, as Photoshop writes them.
+	 */
+	private static int toInk(int[] samples, int offset, int adobeTransform)
+	{
+		int c = samples[offset];
+		int m = samples[offset + 1];
+		int y = samples[offset + 2];
+		int k = samples[offset + 3];
+
+		if (adobeTransform == 2)
+		{
+			//YCCK: the first three components are YCbCr of the inverted CMY values
+			double luma = c;
+			double blueDifference = m - 128;
+			double redDifference = y - 128;
+			c = 255 - clamp((int) Math.round(luma + 1.402 * redDifference));
+			m = 255 - clamp((int) Math.round(luma - 0.344136 * blueDifference - 0.714136 * redDifference));
+			y = 255 - clamp((int) Math.round(luma + 1.772 * blueDifference));
+		}
+
+		if (adobeTransform >= 0)
+		{
+			c = 255 - c;
+			m = 255 - m;
+			y = 255 - y;
+			k = 255 - k;
+		}
+
+		return c << 24 | m << 16 | y << 8 | k;
+	}
+
+	/*
+	 * The size of the image read with a param, as ImageReader works it out from the source region and subsampling
+	 */
+	private static Dimension getDestinationSize(ImageReader reader, ImageReadParam param) throws IOException
+	{
+		Rectangle region = new Rectangle(reader.getWidth(0), reader.getHeight(0));
+
+		if (param.getSourceRegion() != null)
+			region = region.intersection(param.getSourceRegion());
+
+		int width = Math.max(1, region.width - param.getSubsamplingXOffset());
+		int height = Math.max(1, region.height - param.getSubsamplingYOffset());
+
+		return new Dimension((width + param.getSourceXSubsampling() - 1) / param.getSourceXSubsampling(),
+				(height + param.getSourceYSubsampling() - 1) / param.getSourceYSubsampling());
+	}
+
+	/*
+	 * Finds the image type the reader offers in the color space of the embedded profile
+	 */
+	private static ImageTypeSpecifier findProfileType(ImageReader reader) throws IOException
+	{
+		Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+
+		while (types.hasNext())
+		{
+			ImageTypeSpecifier type = types.next();
+			ColorSpace colorSpace = type.getColorModel().getColorSpace();
+
+			if (colorSpace instanceof ICC_ColorSpace && !colorSpace.isCS_sRGB() && colorSpace.getType() == ColorSpace.TYPE_RGB
+					&& type.getSampleModel().getDataType() == DataBuffer.TYPE_BYTE)
+				return type;
+		}
+
+		return null;
+	}
+
+	/*
+	 * Copies the samples of an image to TYPE_INT_RGB or TYPE_INT_ARGB without converting its colors.
+	 * Images that are labeled as sRGB although their pixels aren't, such as PNGs with a profile, are normalized as usual.
+	 */
+	private static BufferedImage copySamples(BufferedImage source)
+	{
+		if (source.getColorModel().getColorSpace().isCS_sRGB())
+			return PixelFormats.toPacked(source);
+
+		int width = source.getWidth();
+		int height = source.getHeight();
+		boolean hasAlpha = source.getColorModel().hasAlpha();
+		BufferedImage image = new BufferedImage(width, height, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		int[] pixels = PixelFormats.getData(image);
+		Raster raster = source.getRaster();
+		int bands = raster.getNumBands();
+
+		byte[] bytes = null;
+		int[] offsets = null;
+		int pixelStride = 0;
+		int scanlineStride = 0;
+
+		if (raster.getParent() == null && raster.getDataBuffer() instanceof DataBufferByte
+				&& raster.getSampleModel() instanceof PixelInterleavedSampleModel)
+		{
+			PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster.getSampleModel();
+			bytes = ((DataBufferByte) raster.getDataBuffer()).getData();
+			offsets = sampleModel.getBandOffsets();
+			pixelStride = sampleModel.getPixelStride();
+			scanlineStride = sampleModel.getScanlineStride();
+		}
+
+		byte[] sourceBytes = bytes;
+		int[] bandOffsets = offsets;
+		int stride = pixelStride;
+		int rowStride = scanlineStride;
+		int bandHeight = PixelFormats.getBandHeight(width);
+
+		IntStream.range(0, (height + bandHeight - 1) / bandHeight).parallel().forEach(band ->
+		{
+			int y = band * bandHeight;
+			int rows = Math.min(bandHeight, height - y);
+			int[] samples = sourceBytes == null ? raster.getPixels(0, y, width, rows, (int[]) null) : null;
+
+			for (int row = 0; row < rows; ++row)
+			{
+				for (int x = 0; x < width; ++x)
+				{
+					int red, green, blue, alpha = 0xFF;
+
+					if (sourceBytes != null)
+					{
+						int s = (y + row) * rowStride + x * stride;
+						red = sourceBytes[s + bandOffsets[0]] & 0xFF;
+						green = sourceBytes[s + bandOffsets[1]] & 0xFF;
+						blue = sourceBytes[s + bandOffsets[2]] & 0xFF;
+
+						if (hasAlpha)
+							alpha = sourceBytes[s + bandOffsets[3]] & 0xFF;
+					}
+					else
+					{
+						int s = (row * width + x) * bands;
+						red = samples[s];
+						green = samples[s + 1];
+						blue = samples[s + 2];
+
+						if (hasAlpha)
+							alpha = samples[s + 3];
+					}
+
+					pixels[(y + row) * width + x] = alpha << 24 | red << 16 | green << 8 | blue;
+				}
+			}
+		});
+
+		return image;
+	}
+
+	/*
+	 * Gets the lookup table of a profile, building it if it isn't cached.
+	 * Returns null for profiles that aren't RGB or CMYK, or that the color management module can't use.
+	 */
+	private static ColorTable getTable(ICC_Profile profile)
+	{
+		int type = profile.getColorSpaceType();
+		if (type != ColorSpace.TYPE_RGB && type != ColorSpace.TYPE_CMYK)
+			return null;
+
+		ByteBuffer key = ByteBuffer.wrap(profile.getData());
+
+		synchronized (tables)
+		{
+			ColorTable table = tables.get(key);
+
+			if (table == null)
+			{
+				try
+				{
+					table = ColorTable.build(profile);
+				}
+				catch (CMMException | IllegalArgumentException e)
+				{
+					return null;
+				}
+
+				tables.put(key, table);
+
+				if (tables.size() > MAX_CACHED_TABLES)
+					tables.remove(tables.keySet().iterator().next());
+			}
+
+			return table;
+		}
+	}
+
+	private static synchronized ColorTable getDefaultCMYKTable()
+	{
+		if (defaultCMYKTable == null)
+			defaultCMYKTable = ColorTable.buildDefaultCMYK();
+
+		return defaultCMYKTable;
+	}
+
+	/*
+	 * Reads the iCCP chunk of a PNG file, which must come before the image data
+	 */
+	private static ICC_Profile scanPng(ImageInputStream stream) throws IOException
+	{
+		while (true)
+		{
+			int length = stream.readInt();
+			String type = readString(stream, 4);
+
+			if (type.equals("IDAT") || type.equals("IEND") || length < 0)
+				return null;
+
+			if (!type.equals("iCCP"))
+			{
+				stream.seek(stream.getStreamPosition() + length + 4);
+				continue;
+			}
+
+			byte[] data = new byte[length];
+			stream.readFully(data);
+
+			//The profile name is followed by a null and the compression method
+			int nameEnd = 0;
+			while (nameEnd < data.length && data[nameEnd] != 0)
+				++nameEnd;
+
+			Inflater inflater = new Inflater();
+
+			try
+			{
+				inflater.setInput(data, nameEnd + 2, Math.max(0, data.length - nameEnd - 2));
+				ByteArrayOutputStream profile = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+
+				while (!inflater.finished())
+				{
+					int inflated = inflater.inflate(buffer);
+
+					if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						return null;
+
+					profile.write(buffer, 0, inflated);
+				}
+
+				return ICC_Profile.getInstance(profile.toByteArray());
+			}
+			catch (DataFormatException e)
+			{
+				return null;
+			}
+			finally
+			{
+				inflater.end();
+			}
+		}
+	}
+
+	/*
+	 * Walks the JPEG marker segments up to the start of scan, collecting the chunks of the ICC profile,
+	 * the Adobe color transform and the number of components of the frame
+	 */
+	private static SourceColor scanJpeg(ImageInputStream stream) throws IOException
+	{
+		byte[][] chunks = null;
+		int components = 0;
+		int adobeTransform = -1;
+
+		while (true)
+		{
+			int marker = stream.readUnsignedShort();
+
+			if ((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA || marker == 0xFFD9)
+				break;
+
+			int length = stream.readUnsignedShort() - 2;
+			long next = stream.getStreamPosition() + length;
+
+			if (marker == 0xFFE2 && length > ICC_HEADER_LENGTH && readString(stream, 12).equals("ICC_PROFILE\0"))
+			{
+				int number = stream.readUnsignedByte();
+				int count = stream.readUnsignedByte();
+
+				if (chunks == null)
+					chunks = new byte[count][];
+
+				if (number >= 1 && number <= chunks.length)
+				{
+					chunks[number - 1] = new byte[length - ICC_HEADER_LENGTH];
+					stream.readFully(chunks[number - 1]);
+				}
+			}
+			else if (marker == 0xFFEE && length >= 12 && readString(stream, 5).equals("Adobe"))
+			{
+				stream.skipBytes(6);
+				adobeTransform = stream.readUnsignedByte();
+			}
+			else if (marker >= 0xFFC0 && marker <= 0xFFCF && marker != 0xFFC4 && marker != 0xFFC8 && marker != 0xFFCC && length >= 6)
+			{
+				//Start of frame: precision, height, width, then the number of components
+				stream.skipBytes(5);
+				components = stream.readUnsignedByte();
+			}
+
+			stream.seek(next);
+		}
+
+		ICC_Profile profile = null;
+
+		if (chunks != null)
+		{
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+			for (byte[] chunk : chunks)
+			{
+				if (chunk == null)
+					return components == 4 ? new SourceColor(null, components, adobeTransform) : null;
+
+				data.write(chunk);
+			}
+
+			profile = ICC_Profile.getInstance(data.toByteArray());
+		}
+
+		if (components == 4 || profile != null && components == 3 && profile.getColorSpaceType() == ColorSpace.TYPE_RGB)
+			return new SourceColor(profile, components, adobeTransform);
+
+		return null;
+	}
+
+	private static String readString(ImageInputStream stream, int length) throws IOException
+	{
+		byte[] bytes = new byte[length];
+		stream.readFully(bytes);
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	private static int clamp(int value)
+	{
+		return Math.max(0, Math.min(255, value));
+	}
+
+	/**
+	 * A lookup table from the colors of a profile to sRGB, holding the red, green and blue
+	 * of each grid point as fixed point numbers from 0 to ONE
+	 */
+	private static final class ColorTable
+	{
+		final int gridSize;
+		final int[] values;
+		final int[] base = new int[256];		//The grid point below each 8-bit value
+		final int[] fraction = new int[256];	//The distance from it, from 0 to 256
+		boolean identity;
+
+		ColorTable(int gridSize, int inputs)
+		{
+			this.gridSize = gridSize;
+			values = new int[(int) Math.pow(gridSize, inputs) * 3];
+
+			for (int value = 0; value < 256; ++value)
+			{
+				int position = value * (gridSize - 1) * 256 / 255;
+				base[value] = Math.min(gridSize - 2, position >> 8);
+				fraction[value] = position - base[value] * 256;
+			}
+		}
+
+		/*
+		 * Converts the grid points from the profile to sRGB with the color management module in one call
+		 */
+		static ColorTable build(ICC_Profile profile)
+		{
+			int inputs = profile.getNumComponents();
+			int gridSize = inputs == 4 ? CMYK_GRID_SIZE : GRID_SIZE;
+			ColorTable table = new ColorTable(gridSize, inputs);
+			int points = table.values.length / 3;
+
+			WritableRaster source = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, points, 1, inputs, null);
+			WritableRaster target = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, points, 1, 3, null);
+			int[] samples = new int[points * inputs];
+
+			for (int point = 0; point < points; ++point)
+			{
+				//The first component varies slowest
+				for (int i = inputs - 1, remainder = point; i >= 0; --i, remainder /= gridSize)
+					samples[point * inputs + i] = remainder % gridSize * 0xFFFF / (gridSize - 1);
+			}
+
+			source.setPixels(0, 0, points, 1, samples);
+			ICC_Profile sRGB = ICC_Profile.getInstance(ColorSpace.CS_sRGB);
+			new ColorConvertOp(new ICC_Profile[] {profile, sRGB}, null).filter(source, target);
+
+			int[] converted = target.getPixels(0, 0, points, 1, (int[]) null);
+			table.identity = inputs == 3;
+
+			for (int i = 0; i < converted.length; ++i)
+			{
+				table.values[i] = (int) (((long) converted[i] * ONE + 0x7FFF) / 0xFFFF);
+
+				//An RGB profile whose table is within one level of the grid everywhere is sRGB in all but name
+				if (table.identity && Math.abs(table.values[i] - samples[i] * (long) ONE / 0xFFFF) > 256)
+					table.identity = false;
+			}
+
+			return table;
+		}
+
+		/*
+		 * The usual conversion for CMYK without a profile: each ink takes away its share of the light
+		 */
+		static ColorTable buildDefaultCMYK()
+		{
+			ColorTable table = new ColorTable(CMYK_GRID_SIZE, 4);
+			int gridSize = table.gridSize;
+
+			for (int point = 0; point < table.values.length / 3; ++point)
+			{
+				double k = 1 - (double) (point % gridSize) / (gridSize - 1);
+
+				for (int channel = 2, remainder = point / gridSize; channel >= 0; --channel, remainder /= gridSize)
+					table.values[point * 3 + channel] = (int) Math.round((1 - (double) (remainder % gridSize) / (gridSize - 1)) * k * ONE);
+			}
+
+			return table;
+		}
+
+		/*
+		 * Converts RGB pixels in place, keeping their alpha
+		 */
+		void convertRGB(int[] pixels, int start, int end)
+		{
+			int greenStride = gridSize * 3;
+			int redStride = gridSize * greenStride;
+
+			for (int i = start; i < end; ++i)
+			{
+				int pixel = pixels[i];
+				int red = (pixel >> 16) & 0xFF;
+				int green = (pixel >> 8) & 0xFF;
+				int blue = pixel & 0xFF;
+				int point = base[red] * redStride + base[green] * greenStride + base[blue] * 3;
+
+				pixels[i] = pixel & 0xFF000000 | interpolate(point, fraction[red], fraction[green], fraction[blue], redStride, greenStride, 3);
+			}
+		}
+
+		/*
+		 * Converts CMYK pixels, packed with C in the highest byte, to opaque RGB pixels in place.
+		 * Each pixel is interpolated in the CMY cubes of the grid points below and above its K, which are then blended.
+		 */
+		void convertCMYK(int[] pixels, int start, int end)
+		{
+			int yellowStride = gridSize * 3;
+			int magentaStride = gridSize * yellowStride;
+			int cyanStride = gridSize * magentaStride;
+
+			for (int i = start; i < end; ++i)
+			{
+				int pixel = pixels[i];
+				int cyan = pixel >>> 24;
+				int magenta = (pixel >> 16) & 0xFF;
+				int yellow = (pixel >> 8) & 0xFF;
+				int black = pixel & 0xFF;
+				int point = base[cyan] * cyanStride + base[magenta] * magentaStride + base[yellow] * yellowStride + base[black] * 3;
+
+				int below = interpolate(point, fraction[cyan], fraction[magenta], fraction[yellow], cyanStride, magentaStride, yellowStride);
+				int above = interpolate(point + 3, fraction[cyan], fraction[magenta], fraction[yellow], cyanStride, magentaStride, yellowStride);
+				int weight = fraction[black];
+				int rgb = 0;
+
+				for (int shift = 16; shift >= 0; shift -= 8)
+				{
+					int low = (below >> shift) & 0xFF;
+					int high = (above >> shift) & 0xFF;
+					rgb |= (low * (256 - weight) + high * weight + 128) >> 8 << shift;
+				}
+
+				pixels[i] = 0xFF000000 | rgb;
+			}
+		}
+
+		/*
+		 * Interpolates in the tetrahedron of the grid cube at point that contains the fractions. The path from the
+		 * first corner to the opposite corner follows the axes in order of decreasing fraction, and each corner on
+		 * it is weighted by the difference between the fractions before and after it.
+		 */
+		private int interpolate(int point, int first, int second, int third, int firstStride, int secondStride, int thirdStride)
+		{
+			int f1, f2, f3, corner1, corner2;
+
+			if (first >= second)
+			{
+				if (second >= third)
+				{
+					f1 = first; f2 = second; f3 = third;
+					corner1 = firstStride; corner2 = firstStride + secondStride;
+				}
+				else if (first >= third)
+				{
+					f1 = first; f2 = third; f3 = second;
+					corner1 = firstStride; corner2 = firstStride + thirdStride;
+				}
+				else
+				{
+					f1 = third; f2 = first; f3 = second;
+					corner1 = thirdStride; corner2 = firstStride + thirdStride;
+				}
+			}
+			else
+			{
+				if (first >= third)
+				{
+					f1 = second; f2 = first; f3 = third;
+					corner1 = secondStride; corner2 = firstStride + secondStride;
+				}
+				else if (second >= third)
+				{
+					f1 = second; f2 = third; f3 = first;
+					corner1 = secondStride; corner2 = secondStride + thirdStride;
+				}
+				else
+				{
+					f1 = third; f2 = second; f3 = first;
+					corner1 = thirdStride; corner2 = secondStride + thirdStride;
+				}
+			}
+
+			int corner3 = firstStride + secondStride + thirdStride;
+			int w0 = 256 - f1, w1 = f1 - f2, w2 = f2 - f3, w3 = f3;
+			int rgb = 0;
+
+			for (int channel = 0; channel < 3; ++channel)
+			{
+				int p = point + channel;
+				int value = values[p] * w0 + values[p + corner1] * w1 + values[p + corner2] * w2 + values[p + corner3] * w3;
+				rgb = rgb << 8 | (value + (1 << 15)) >> 16;
+			}
+
+			return rgb;
+		}
+	}
+}
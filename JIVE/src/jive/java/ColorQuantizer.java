@@ -0,0 +1,670 @@
+package jive.java;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.RenderedImage;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * ColorQuantizer reduces an image to a palette of at most 256 colors, for GIF files and palette PNGs.
+ * <br><br>
+ * The palette is built from a histogram of the image with HISTOGRAM_BITS bits per channel. Large images
+ * are sampled every few rows so that the histogram is built from about MAX_SAMPLES pixels, and the rows are
+ * counted on all cores. Images with no more distinct colors than the palette holds, such as most graphics,
+ * keep their exact colors and aren't dithered. Other images are split into boxes of similar colors by median cut, and the
+ * colors of the boxes are then refined with a few passes of k-means over the histogram, in parallel.
+ * <br><br>
+ * Each pixel is mapped to the nearest palette color, with a cache of the colors that were already looked up
+ * so each distinct color is only searched for once per thread. Pixels can be dithered with Floyd-Steinberg
+ * error diffusion, which gives the smoothest gradients, or with an 8 x 8 ordered dither, which gives a regular
+ * pattern that compresses better. Floyd-Steinberg carries the error of each row into the next one, so it maps
+ * the image one row after another, while the other modes map bands of rows in parallel.
+ * <br><br>
+ * GIF and palette PNG transparency is all or nothing, so pixels that are less than half opaque become a
+ * transparent palette entry and all other pixels become opaque.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class ColorQuantizer
+{
+	static final int HISTOGRAM_BITS = 5;
+	static final int MAX_SAMPLES = 1 << 20;
+	static final int REFINE_PASSES = 3;
+	static final int CACHE_BITS = 14;
+
+	private static final int HISTOGRAM_SIZE = 1 << (3 * HISTOGRAM_BITS);
+	private static final int OPAQUE_ALPHA = 128;
+	private static final int[] WEIGHTS = {3, 4, 2};		//Red, green and blue differences, as perceived
+	private static final int[] BAYER_MATRIX =
+		{
+			 0, 32,  8, 40,  2, 34, 10, 42,
+			48, 16, 56, 24, 50, 18, 58, 26,
+			12, 44,  4, 36, 14, 46,  6, 38,
+			60, 28, 52, 20, 62, 30, 54, 22,
+			 3, 35, 11, 43,  1, 33,  9, 41,
+			51, 19, 59, 27, 49, 17, 57, 25,
+			15, 47,  7, 39, 13, 45,  5, 37,
+			63, 31, 55, 23, 61, 29, 53, 21
+		};
+
+	/**
+	 * How the error of mapping a pixel to the nearest palette color is spread over neighboring pixels
+	 */
+	public enum Dithering
+	{
+		NONE("None"),
+		FLOYD_STEINBERG("Floyd-Steinberg"),
+		ORDERED("Ordered");
+
+		private final String name;
+
+		Dithering(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	/**
+	 * Reduces an image to a palette
+	 *
+	 * @param image - the image to reduce, with or without an alpha channel
+	 * @param colors - the most colors the palette may have, from 2 to 256, including the transparent entry if one is needed
+	 * @param dithering - how to dither the pixels
+	 * @return an image of TYPE_BYTE_INDEXED
+	 */
+	public static BufferedImage quantize(RenderedImage image, int colors, Dithering dithering)
+	{
+		if (colors < 2 || colors > 256)
+			throw new IllegalArgumentException("The palette must have between 2 and 256 colors: " + colors);
+
+		Histogram histogram = sample(image);
+		int opaqueColors = histogram.transparent ? colors - 1 : colors;
+		int[] palette = buildPalette(histogram, opaqueColors);
+		Palette lookup = new Palette(palette, histogram.transparent);
+
+		//Images that keep their exact colors have no error to spread
+		if (histogram.distinctCount <= opaqueColors)
+			dithering = Dithering.NONE;
+
+		BufferedImage indexed = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_INDEXED, lookup.colorModel);
+		byte[] indices = ((DataBufferByte) indexed.getRaster().getDataBuffer()).getData();
+
+		if (dithering == Dithering.FLOYD_STEINBERG)
+			mapDiffused(image, lookup, indices);
+		else
+			mapBands(image, lookup, indices, dithering == Dithering.ORDERED);
+
+		return indexed;
+	}
+
+	/*
+	 * Counts the colors of every few rows of the image in parallel
+	 */
+	private static Histogram sample(RenderedImage image)
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int rowStep = (int) Math.max(1, ((long) width * height + MAX_SAMPLES - 1) / MAX_SAMPLES);
+		int sampledRows = (height + rowStep - 1) / rowStep;
+		int bandRows = PixelFormats.getBandHeight(width);
+		int bands = (sampledRows + bandRows - 1) / bandRows;
+
+		return IntStream.range(0, bands).parallel().collect(Histogram::new, (histogram, band) ->
+		{
+			for (int row = band * bandRows; row < Math.min(sampledRows, (band + 1) * bandRows); ++row)
+				histogram.add(PixelFormats.readRGB(image, row * rowStep, 1));
+		}, Histogram::merge);
+	}
+
+	/*
+	 * Chooses up to the given number of colors for the pixels counted in the histogram
+	 */
+	private static int[] buildPalette(Histogram histogram, int colors)
+	{
+		//An image whose pixels are all transparent still needs a color to list before the transparent entry
+		if (histogram.distinctCount == 0)
+			return new int[1];
+
+		if (histogram.distinctCount <= colors)
+			return histogram.getDistinct();
+
+		int[] bins = IntStream.range(0, HISTOGRAM_SIZE).filter(bin -> histogram.counts[bin] > 0).toArray();
+		int[] palette = medianCut(histogram, bins, colors);
+
+		for (int pass = 0; pass < REFINE_PASSES; ++pass)
+			palette = refine(histogram, bins, palette);
+
+		return palette;
+	}
+
+	/*
+	 * Splits the occupied bins into boxes, splitting the box with the largest population times volume
+	 * at the median of its longest side until there are enough boxes, and returns their average colors
+	 */
+	private static int[] medianCut(Histogram histogram, int[] bins, int colors)
+	{
+		int[] starts = new int[colors];
+		int[] ends = new int[colors];
+		int boxes = 1;
+		ends[0] = bins.length;
+
+		while (boxes < colors)
+		{
+			int best = -1;
+			long bestScore = 0;
+			int bestChannel = 0;
+
+			for (int box = 0; box < boxes; ++box)
+			{
+				if (ends[box] - starts[box] < 2)
+					continue;
+
+				long population = 0;
+				int[] minimums = {255, 255, 255};
+				int[] maximums = {0, 0, 0};
+
+				for (int i = starts[box]; i < ends[box]; ++i)
+				{
+					population += histogram.counts[bins[i]];
+
+					for (int channel = 0; channel < 3; ++channel)
+					{
+						int value = getBinChannel(bins[i], channel);
+						minimums[channel] = Math.min(minimums[channel], value);
+						maximums[channel] = Math.max(maximums[channel], value);
+					}
+				}
+
+				long volume = 1;
+				int channel = 0;
+
+				for (int c = 0; c < 3; ++c)
+				{
+					int length = maximums[c] - minimums[c] + 1;
+					volume *= length;
+
+					if (length * WEIGHTS[c] > (maximums[channel] - minimums[channel] + 1) * WEIGHTS[channel])
+						channel = c;
+				}
+
+				if (population * volume > bestScore)
+				{
+					best = box;
+					bestScore = population * volume;
+					bestChannel = channel;
+				}
+			}
+
+			//Every box holds a single bin
+			if (best < 0)
+				break;
+
+			int start = starts[best];
+			int end = ends[best];
+			int channel = bestChannel;
+			int[] sorted = Arrays.stream(bins, start, end).boxed()
+					.sorted((a, b) -> Integer.compare(getBinChannel(a, channel), getBinChannel(b, channel)))
+					.mapToInt(Integer::intValue).toArray();
+			System.arraycopy(sorted, 0, bins, start, sorted.length);
+
+			long population = 0;
+			for (int i = start; i < end; ++i)
+				population += histogram.counts[bins[i]];
+
+			//Both halves keep at least one bin
+			int split = start + 1;
+			for (long half = histogram.counts[bins[start]]; split < end - 1 && half * 2 < population; ++split)
+				half += histogram.counts[bins[split]];
+
+			ends[best] = split;
+			starts[boxes] = split;
+			ends[boxes] = end;
+			++boxes;
+		}
+
+		int[] palette = new int[boxes];
+		for (int box = 0; box < boxes; ++box)
+			palette[box] = histogram.average(bins, starts[box], ends[box]);
+
+		return palette;
+	}
+
+	/*
+	 * Moves each palette color to the average of the bins it is the nearest color to, in parallel
+	 */
+	private static int[] refine(Histogram histogram, int[] bins, int[] palette)
+	{
+		int size = palette.length;
+		int chunk = Math.max(1, bins.length / (4 * Runtime.getRuntime().availableProcessors()));
+
+		long[] sums = IntStream.range(0, (bins.length + chunk - 1) / chunk).parallel().mapToObj(part ->
+		{
+			long[] partSums = new long[size * 4];
+
+			for (int i = part * chunk; i < Math.min(bins.length, (part + 1) * chunk); ++i)
+			{
+				int bin = bins[i];
+				int count = histogram.counts[bin];
+				int nearest = findNearest(palette, histogram.average(bin));
+
+				partSums[nearest * 4] += count;
+				partSums[nearest * 4 + 1] += histogram.redSums[bin];
+				partSums[nearest * 4 + 2] += histogram.greenSums[bin];
+				partSums[nearest * 4 + 3] += histogram.blueSums[bin];
+			}
+
+			return partSums;
+		}).reduce(new long[size * 4], (a, b) ->
+		{
+			long[] total = new long[a.length];
+			Arrays.setAll(total, i -> a[i] + b[i]);
+			return total;
+		});
+
+		int[] refined = new int[size];
+
+		for (int i = 0; i < size; ++i)
+		{
+			long count = sums[i * 4];
+
+			//A color that no bin is nearest to is kept as it is
+			refined[i] = count == 0 ? palette[i] : (int) ((sums[i * 4 + 1] + count / 2) / count) << 16
+					| (int) ((sums[i * 4 + 2] + count / 2) / count) << 8 | (int) ((sums[i * 4 + 3] + count / 2) / count);
+		}
+
+		return refined;
+	}
+
+	/*
+	 * Maps bands of rows in parallel, optionally adding an ordered dither to each pixel first
+	 */
+	private static void mapBands(RenderedImage image, Palette palette, byte[] indices, boolean ordered)
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int bandRows = PixelFormats.getBandHeight(width);
+
+		//The dither spreads pixels over about half the distance between neighboring colors of an evenly spaced
+		//palette, since an adaptive palette has its colors closer together where the image has most of its pixels
+		int spread = (int) Math.round(128 / Math.cbrt(palette.colors.length));
+
+		IntStream.range(0, (height + bandRows - 1) / bandRows).parallel().forEach(band ->
+		{
+			int y = band * bandRows;
+			int rows = Math.min(bandRows, height - y);
+			int[] pixels = PixelFormats.readRGB(image, y, rows);
+			Cache cache = palette.caches.get();
+
+			for (int row = 0; row < rows; ++row)
+			{
+				for (int x = 0, i = row * width; x < width; ++x, ++i)
+				{
+					int pixel = pixels[i];
+
+					if (ordered)
+					{
+						int offset = ((BAYER_MATRIX[((y + row) & 7) * 8 + (x & 7)] * 2 + 1) * spread) / 128 - spread / 2;
+						pixel = pixel & 0xFF000000 | clamp(((pixel >> 16) & 0xFF) + offset) << 16
+								| clamp(((pixel >> 8) & 0xFF) + offset) << 8 | clamp((pixel & 0xFF) + offset);
+					}
+
+					indices[(int) ((long) (y + row) * width + x)] = palette.map(pixel, cache);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Maps the rows in order, spreading the error of each pixel over the pixels after it and below it.
+	 * Rows are processed in alternating directions (serpentine scanning) so the error doesn't drift to one side.
+	 */
+	private static void mapDiffused(RenderedImage image, Palette palette, byte[] indices)
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int bandRows = PixelFormats.getBandHeight(width);
+		Cache cache = palette.caches.get();
+
+		//Errors of the current and the next row, in sixteenths, with a pixel of padding on both sides
+		int[] errors = new int[(width + 2) * 3];
+		int[] nextErrors = new int[(width + 2) * 3];
+
+		for (int y = 0; y < height; y += bandRows)
+		{
+			int rows = Math.min(bandRows, height - y);
+			int[] pixels = PixelFormats.readRGB(image, y, rows);
+
+			for (int row = 0; row < rows; ++row)
+			{
+				boolean reverse = ((y + row) & 1) == 1;
+				int step = reverse ? -1 : 1;
+				long rowOffset = (long) (y + row) * width;
+
+				for (int n = 0, x = reverse ? width - 1 : 0; n < width; ++n, x += step)
+				{
+					int pixel = pixels[row * width + x];
+					int e = (x + 1) * 3;
+
+					if (pixel >>> 24 < OPAQUE_ALPHA)
+					{
+						indices[(int) (rowOffset + x)] = palette.map(pixel, cache);
+						continue;
+					}
+
+					int red = clamp(((pixel >> 16) & 0xFF) + (errors[e] + 8 >> 4));
+					int green = clamp(((pixel >> 8) & 0xFF) + (errors[e + 1] + 8 >> 4));
+					int blue = clamp((pixel & 0xFF) + (errors[e + 2] + 8 >> 4));
+
+					byte index = palette.map(0xFF000000 | red << 16 | green << 8 | blue, cache);
+					indices[(int) (rowOffset + x)] = index;
+
+					int color = palette.colors[index & 0xFF];
+					int[] error = {red - ((color >> 16) & 0xFF), green - ((color >> 8) & 0xFF), blue - (color & 0xFF)};
+
+					for (int c = 0; c < 3; ++c)
+					{
+						errors[e + step * 3 + c] += error[c] * 7;
+						nextErrors[e - step * 3 + c] += error[c] * 3;
+						nextErrors[e + c] += error[c] * 5;
+						nextErrors[e + step * 3 + c] += error[c];
+					}
+				}
+
+				int[] swap = errors;
+				errors = nextErrors;
+				nextErrors = swap;
+				Arrays.fill(nextErrors, 0);
+			}
+		}
+	}
+
+	/*
+	 * Finds the palette color with the smallest weighted squared distance to a color
+	 */
+	private static int findNearest(int[] palette, int color)
+	{
+		int nearest = 0;
+		int nearestDistance = Integer.MAX_VALUE;
+
+		for (int i = 0; i < palette.length; ++i)
+		{
+			int distance = getDistance(palette[i], color);
+
+			if (distance < nearestDistance)
+			{
+				nearest = i;
+				nearestDistance = distance;
+			}
+		}
+
+		return nearest;
+	}
+
+	/*
+	 * The weighted squared distance between two RGB colors
+	 */
+	private static int getDistance(int color, int other)
+	{
+		int dr = ((color >> 16) & 0xFF) - ((other >> 16) & 0xFF);
+		int dg = ((color >> 8) & 0xFF) - ((other >> 8) & 0xFF);
+		int db = (color & 0xFF) - (other & 0xFF);
+		return WEIGHTS[0] * dr * dr + WEIGHTS[1] * dg * dg + WEIGHTS[2] * db * db;
+	}
+
+	private static int getBin(int red, int green, int blue)
+	{
+		int shift = 8 - HISTOGRAM_BITS;
+		return (red >> shift) << (2 * HISTOGRAM_BITS) | (green >> shift) << HISTOGRAM_BITS | (blue >> shift);
+	}
+
+	private static int getBinChannel(int bin, int channel)
+	{
+		return (bin >> (HISTOGRAM_BITS * (2 - channel))) & ((1 << HISTOGRAM_BITS) - 1);
+	}
+
+	private static int clamp(int value)
+	{
+		return Math.max(0, Math.min(255, value));
+	}
+
+	/**
+	 * The counts and color sums of the bins of the sampled pixels, and their distinct colors
+	 * while there are no more than 256 of them
+	 */
+	private static final class Histogram
+	{
+		final int[] counts = new int[HISTOGRAM_SIZE];
+		final long[] redSums = new long[HISTOGRAM_SIZE];
+		final long[] greenSums = new long[HISTOGRAM_SIZE];
+		final long[] blueSums = new long[HISTOGRAM_SIZE];
+		final int[] distinct = new int[1024];		//A hash set of colors, with -1 in empty slots
+		int distinctCount;
+		boolean transparent;
+
+		Histogram()
+		{
+			Arrays.fill(distinct, -1);
+		}
+
+		void add(int[] pixels)
+		{
+			for (int pixel : pixels)
+			{
+				if (pixel >>> 24 < OPAQUE_ALPHA)
+				{
+					transparent = true;
+					continue;
+				}
+
+				int red = (pixel >> 16) & 0xFF;
+				int green = (pixel >> 8) & 0xFF;
+				int blue = pixel & 0xFF;
+				int bin = getBin(red, green, blue);
+
+				++counts[bin];
+				redSums[bin] += red;
+				greenSums[bin] += green;
+				blueSums[bin] += blue;
+				addDistinct(pixel & 0xFFFFFF);
+			}
+		}
+
+		void merge(Histogram other)
+		{
+			for (int bin = 0; bin < HISTOGRAM_SIZE; ++bin)
+			{
+				counts[bin] += other.counts[bin];
+				redSums[bin] += other.redSums[bin];
+				greenSums[bin] += other.greenSums[bin];
+				blueSums[bin] += other.blueSums[bin];
+			}
+
+			for (int color : other.distinct)
+			{
+				if (color != -1)
+					addDistinct(color);
+			}
+
+			transparent |= other.transparent;
+		}
+
+		/*
+		 * Counting stops at 257 colors, which is enough to know there are too many to keep
+		 */
+		private void addDistinct(int color)
+		{
+			if (distinctCount > 256)
+				return;
+
+			int slot = (color * 0x9E3779B1) >>> 22;
+
+			while (distinct[slot] != -1)
+			{
+				if (distinct[slot] == color)
+					return;
+
+				slot = (slot + 1) & (distinct.length - 1);
+			}
+
+			distinct[slot] = color;
+			++distinctCount;
+		}
+
+		int[] getDistinct()
+		{
+			return Arrays.stream(distinct).filter(color -> color != -1).toArray();
+		}
+
+		int average(int bin)
+		{
+			return average(new int[] {bin}, 0, 1);
+		}
+
+		int average(int[] bins, int start, int end)
+		{
+			long count = 0, red = 0, green = 0, blue = 0;
+
+			for (int i = start; i < end; ++i)
+			{
+				count += counts[bins[i]];
+				red += redSums[bins[i]];
+				green += greenSums[bins[i]];
+				blue += blueSums[bins[i]];
+			}
+
+			return (int) ((red + count / 2) / count) << 16 | (int) ((green + count / 2) / count) << 8 | (int) ((blue + count / 2) / count);
+		}
+	}
+
+	/**
+	 * A palette, with a transparent entry after the colors if the image has transparent pixels
+	 */
+	private static final class Palette
+	{
+		final int[] colors;
+		final IndexColorModel colorModel;
+		final byte transparentIndex;
+		final ThreadLocal<Cache> caches = ThreadLocal.withInitial(Cache::new);
+
+		Palette(int[] colors, boolean transparent)
+		{
+			this.colors = colors;
+			int size = colors.length + (transparent ? 1 : 0);
+			byte[] reds = new byte[size];
+			byte[] greens = new byte[size];
+			byte[] blues = new byte[size];
+
+			for (int i = 0; i < colors.length; ++i)
+			{
+				reds[i] = (byte) (colors[i] >> 16);
+				greens[i] = (byte) (colors[i] >> 8);
+				blues[i] = (byte) colors[i];
+			}
+
+			transparentIndex = (byte) colors.length;
+			colorModel = transparent ? new IndexColorModel(8, size, reds, greens, blues, colors.length)
+					: new IndexColorModel(8, size, reds, greens, blues);
+		}
+
+		/*
+		 * Finds the index of the nearest color, looking in the cache before searching the palette
+		 */
+		byte map(int pixel, Cache cache)
+		{
+			if (pixel >>> 24 < OPAQUE_ALPHA)
+				return transparentIndex;
+
+			int color = pixel & 0xFFFFFF;
+			int slot = (color * 0x9E3779B1) >>> (32 - CACHE_BITS);
+
+			if (cache.keys[slot] != color)
+			{
+				int bin = getBin(color >> 16, (color >> 8) & 0xFF, color & 0xFF);
+
+				if (cache.candidates[bin] == null)
+					cache.candidates[bin] = findCandidates(bin);
+
+				int nearest = 0;
+				int nearestDistance = Integer.MAX_VALUE;
+
+				for (int index : cache.candidates[bin])
+				{
+					int distance = getDistance(colors[index], color);
+
+					if (distance < nearestDistance)
+					{
+						nearest = index;
+						nearestDistance = distance;
+					}
+				}
+
+				cache.keys[slot] = color;
+				cache.values[slot] = (byte) nearest;
+			}
+
+			return cache.values[slot];
+		}
+
+		/*
+		 * Finds the palette colors that can be the nearest color to some color in a histogram bin: those whose
+		 * distance to the nearest corner of the bin is no larger than the smallest distance of any palette color
+		 * to the farthest corner of the bin.
+		 */
+		private int[] findCandidates(int bin)
+		{
+			int binSize = 1 << (8 - HISTOGRAM_BITS);
+			long[] nearestDistances = new long[colors.length];
+			long limit = Long.MAX_VALUE;
+
+			for (int i = 0; i < colors.length; ++i)
+			{
+				long nearest = 0;
+				long farthest = 0;
+
+				for (int channel = 0; channel < 3; ++channel)
+				{
+					int low = getBinChannel(bin, channel) * binSize;
+					int value = (colors[i] >> (8 * (2 - channel))) & 0xFF;
+					int inside = value < low ? low - value : value > low + binSize - 1 ? value - low - binSize + 1 : 0;
+					int outside = Math.max(Math.abs(value - low), Math.abs(value - low - binSize + 1));
+
+					nearest += (long) WEIGHTS[channel] * inside * inside;
+					farthest += (long) WEIGHTS[channel] * outside * outside;
+				}
+
+				nearestDistances[i] = nearest;
+				limit = Math.min(limit, farthest);
+			}
+
+			final long farthest = limit;
+			return IntStream.range(0, colors.length).filter(i -> nearestDistances[i] <= farthest).toArray();
+		}
+	}
+
+	/**
+	 * The palette indices of recently mapped colors, indexed by a hash of the color, and the palette colors
+	 * that can be nearest to the colors of each histogram bin, found when a color of the bin is first mapped.
+	 * Each thread has its own.
+	 */
+	private static final class Cache
+	{
+		final int[] keys = new int[1 << CACHE_BITS];
+		final byte[] values = new byte[1 << CACHE_BITS];
+		final int[][] candidates = new int[HISTOGRAM_SIZE][];
+
+		Cache()
+		{
+			//No color has all of its top bits set, so no color matches an empty slot
+			Arrays.fill(keys, -1);
+		}
+	}
+}
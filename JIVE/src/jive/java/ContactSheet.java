@@ -0,0 +1,730 @@
+package jive.java;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.DoubleConsumer;
+import java.util.stream.IntStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * ContactSheet lays out a set of pictures, such as a photo reel, as thumbnails on one large image,
+ * optionally with the file name of each picture under it.
+ * <br><br>
+ * The GRID layout puts each picture in a square cell of the same size. The JUSTIFIED layout gives every
+ * picture in a row the same height and fills the rows edge to edge, keeping each picture's aspect ratio.
+ * It reads the size of every picture from its header when the sheet is created.
+ * <br><br>
+ * The sheet is never held in memory as a whole. It is handed to the ImageEncoder as a RenderedImage that
+ * composes rows of thumbnails as the encoder reads them. Pictures are decoded subsampled close to the size
+ * of their cell (see RegionReader.readThumbnail()) on a pool of THREADS threads, a few rows ahead of the
+ * encoder, and a row is dropped once the encoder has read all of it. Memory is bounded by the rows being
+ * decoded, so sheets of thousands of pictures can be made. Pictures that can't be read are shown as gray cells.
+ * <br><br>
+ * ContactSheet doesn't need the GUI and can be run from the command line:
+ * <br>
+ * <code>java jive.java.ContactSheet directory output [grid|justified [width [cellSize]]]</code>
+ *
+ * @author Devon Hunter
+ *
+ */
+public class ContactSheet
+{
+	static final int SPACING = 10;
+	static final int CAPTION_HEIGHT = 20;
+	static final int THREADS = Runtime.getRuntime().availableProcessors();
+	static final int CELLS_AHEAD = 4 * THREADS;		//Cells decoded ahead of the encoder, so the pool is kept busy
+	static final int DEFAULT_WIDTH = 2400;
+	static final int DEFAULT_CELL_SIZE = 220;
+	private static final Color PLACEHOLDER_COLOR = new Color(0xDDDDDD);
+	private static final Color CAPTION_COLOR = new Color(0x333333);
+	private static final Font CAPTION_FONT = new Font(Font.SANS_SERIF, Font.PLAIN, 12);
+
+	private final int width;
+	private final int height;
+	private final boolean captions;
+	private final List<Row> rows = new ArrayList<Row>();
+
+	/**
+	 * How the pictures are arranged on the sheet
+	 */
+	public enum Layout
+	{
+		/** Square cells of the same size */
+		GRID("Grid"),
+		/** Rows of pictures with the same height that fill the width of the sheet */
+		JUSTIFIED("Justified");
+
+		private final String name;
+
+		Layout(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	/**
+	 * A picture and the box it is fitted into, relative to the top of its row
+	 */
+	private static final class Cell
+	{
+		final File file;
+		final int x;
+		final int width;
+		final int height;
+
+		Cell(File file, int x, int width, int height)
+		{
+			this.file = file;
+			this.x = x;
+			this.width = width;
+			this.height = height;
+		}
+	}
+
+	/**
+	 * A row of cells, with the spacing above it and its captions
+	 */
+	private static final class Row
+	{
+		final List<Cell> cells;
+		int y;
+		int height;
+
+		Row(List<Cell> cells, int height)
+		{
+			this.cells = cells;
+			this.height = height;
+		}
+	}
+
+	/**
+	 * Lays out a contact sheet
+	 *
+	 * @param files - the pictures to show, in order
+	 * @param layout - how the pictures are arranged
+	 * @param width - the width of the sheet in pixels
+	 * @param cellSize - the size of a grid cell, or the height the rows of a justified layout aim for
+	 * @param captions - true to write the file name under each picture
+	 */
+	public ContactSheet(List<File> files, Layout layout, int width, int cellSize, boolean captions)
+	{
+		if (files.isEmpty())
+			throw new IllegalArgumentException("There are no pictures to lay out");
+		if (cellSize < 1 || width < cellSize + 2 * SPACING)
+			throw new IllegalArgumentException("A " + cellSize + " pixel cell doesn't fit on a sheet " + width + " pixels wide");
+
+		this.width = width;
+		this.captions = captions;
+
+		if (layout == Layout.GRID)
+			layOutGrid(files, cellSize);
+		else
+			layOutJustified(files, cellSize);
+
+		//The last row also holds the spacing below the sheet
+		rows.get(rows.size() - 1).height += SPACING;
+
+		long y = 0;
+		for (Row row : rows)
+		{
+			row.y = (int) y;
+			y += row.height;
+
+			if (y > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("The contact sheet is too tall, use a wider sheet or smaller cells");
+		}
+
+		height = (int) y;
+	}
+
+	private void layOutGrid(List<File> files, int cellSize)
+	{
+		int columns = Math.max(1, (width - SPACING) / (cellSize + SPACING));
+		int left = (width - columns * (cellSize + SPACING) + SPACING) / 2;
+
+		for (int first = 0; first < files.size(); first += columns)
+		{
+			List<Cell> cells = new ArrayList<Cell>();
+
+			for (int i = first; i < Math.min(files.size(), first + columns); ++i)
+				cells.add(new Cell(files.get(i), left + (i - first) * (cellSize + SPACING), cellSize, cellSize));
+
+			rows.add(new Row(cells, SPACING + cellSize + getCaptionHeight()));
+		}
+	}
+
+	/*
+	 * Adds pictures to a row until it is at least as wide as the sheet at the target height,
+	 * then scales the row down to fit. The last row is left at the target height.
+	 */
+	private void layOutJustified(List<File> files, int targetHeight)
+	{
+		double[] aspectRatios = IntStream.range(0, files.size()).parallel().mapToDouble(i ->
+		{
+			try
+			{
+				Dimension size = RegionReader.readSize(files.get(i));
+				return (double) size.width / size.height;
+			}
+			catch (IOException | RuntimeException e)
+			{
+				//Unreadable pictures get a square placeholder
+				return 1;
+			}
+		}).toArray();
+
+		int available = width - SPACING;
+		int first = 0;
+		double sum = 0;
+
+		for (int i = 0; i < files.size(); ++i)
+		{
+			sum += aspectRatios[i];
+			int count = i - first + 1;
+
+			if (sum * targetHeight + count * SPACING >= available)
+			{
+				int rowHeight = (int) Math.max(1, Math.round((available - count * SPACING) / sum));
+				addJustifiedRow(files, aspectRatios, first, i + 1, rowHeight, true);
+				first = i + 1;
+				sum = 0;
+			}
+		}
+
+		if (first < files.size())
+			addJustifiedRow(files, aspectRatios, first, files.size(), targetHeight, false);
+	}
+
+	private void addJustifiedRow(List<File> files, double[] aspectRatios, int first, int end, int rowHeight, boolean full)
+	{
+		List<Cell> cells = new ArrayList<Cell>();
+		int x = SPACING;
+
+		for (int i = first; i < end; ++i)
+		{
+			int cellWidth = (int) Math.max(1, Math.round(aspectRatios[i] * rowHeight));
+
+			//The last picture of a full row takes up the rounding, so the row ends at the margin
+			if (full && i == end - 1)
+				cellWidth = Math.max(1, width - SPACING - x);
+
+			cells.add(new Cell(files.get(i), x, cellWidth, rowHeight));
+			x += cellWidth + SPACING;
+		}
+
+		rows.add(new Row(cells, SPACING + rowHeight + getCaptionHeight()));
+	}
+
+	private int getCaptionHeight()
+	{
+		return captions ? CAPTION_HEIGHT : 0;
+	}
+
+	/**
+	 * Composes the sheet and writes it to a file
+	 *
+	 * @param output - the file to write, a JPEG or PNG image
+	 * @param settings - the options to encode the sheet with
+	 * @param progress - receives the fraction of the rows that have been written, from 0 to 1, or null
+	 * @throws IOException if the file can't be written
+	 */
+	public void write(File output, EncoderSettings settings, DoubleConsumer progress) throws IOException
+	{
+		String name = output.getName().toLowerCase();
+		boolean jpeg = name.endsWith(".jpg") || name.endsWith(".jpeg");
+
+		if (!jpeg && !name.endsWith(".png"))
+			throw new IllegalArgumentException("Contact sheets must be jpg or png: " + output.getName());
+		if (jpeg && Math.max(width, height) > 65535)
+			throw new IOException("JPEG images can't be larger than 65535 pixels, save the " + width + " x " + height + " sheet as PNG");
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS, runnable ->
+		{
+			Thread thread = new Thread(runnable, "JIVE contact sheet");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		try
+		{
+			ImageEncoder.write(new SheetView(executor, progress), jpeg ? "jpg" : "png", output, settings);
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the width of the sheet in pixels
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * @return the height of the sheet in pixels
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * A read-only RenderedImage of the sheet with one tile per band of rows, whose pixels are composed
+	 * as they are read. Different rows may be read from several threads at once.
+	 */
+	private class SheetView implements RenderedImage
+	{
+		private final ExecutorService executor;
+		private final DoubleConsumer progress;
+		private final DirectColorModel colorModel = new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+		private final int tileHeight = PixelFormats.getBandHeight(width);
+		private final Map<Integer, CompletableFuture<int[]>> composed = new ConcurrentHashMap<Integer, CompletableFuture<int[]>>();
+		private final boolean[] linesRead = new boolean[height];
+		private final int[] rowLinesRead = new int[rows.size()];
+		private final boolean[] rowsDone = new boolean[rows.size()];
+		private int doneCount;
+
+		SheetView(ExecutorService executor, DoubleConsumer progress)
+		{
+			this.executor = executor;
+			this.progress = progress;
+		}
+
+		/*
+		 * Copies rows of the sheet into an array, width pixels per row
+		 */
+		void readLines(int y, int count, int[] pixels)
+		{
+			int index = findRow(y);
+
+			for (int line = y; line < y + count; ++index)
+			{
+				Row row = rows.get(index);
+				int end = Math.min(y + count, row.y + row.height);
+				int[] rowPixels = getComposed(index).join();
+
+				System.arraycopy(rowPixels, (line - row.y) * width, pixels, (line - y) * width, (end - line) * width);
+				markRead(index, line, end);
+				line = end;
+			}
+		}
+
+		private int findRow(int y)
+		{
+			int low = 0;
+			int high = rows.size() - 1;
+
+			while (low < high)
+			{
+				int middle = (low + high + 1) >>> 1;
+				if (rows.get(middle).y <= y)
+					low = middle;
+				else
+					high = middle - 1;
+			}
+
+			return low;
+		}
+
+		/*
+		 * Gets a row, composing it if it isn't already, and starts decoding the rows after it
+		 */
+		private CompletableFuture<int[]> getComposed(int index)
+		{
+			CompletableFuture<int[]> row = composed.computeIfAbsent(index, this::compose);
+			int cellsAhead = 0;
+
+			for (int next = index + 1; next < rows.size() && cellsAhead < CELLS_AHEAD; ++next)
+			{
+				synchronized (this)
+				{
+					if (rowsDone[next])
+						continue;
+				}
+
+				composed.computeIfAbsent(next, this::compose);
+				cellsAhead += rows.get(next).cells.size();
+			}
+
+			return row;
+		}
+
+		/*
+		 * Keeps track of the lines that have been read. Once all of a row has been read, the rows above it that
+		 * have been read too are dropped. The row itself is kept a little longer, since the PNG writer reads
+		 * a few lines above each block again.
+		 */
+		private synchronized void markRead(int index, int start, int end)
+		{
+			for (int line = start; line < end; ++line)
+			{
+				if (!linesRead[line])
+				{
+					linesRead[line] = true;
+					++rowLinesRead[index];
+				}
+			}
+
+			if (rowsDone[index] || rowLinesRead[index] < rows.get(index).height)
+				return;
+
+			rowsDone[index] = true;
+
+			for (int previous = index - 1; previous >= 0; --previous)
+			{
+				if (rowsDone[previous])
+					composed.remove(previous);
+			}
+
+			if (progress != null)
+				progress.accept((double) ++doneCount / rows.size());
+		}
+
+		/*
+		 * Decodes the pictures of a row in parallel and draws the row once they have all been decoded
+		 */
+		private CompletableFuture<int[]> compose(int index)
+		{
+			Row row = rows.get(index);
+			List<CompletableFuture<BufferedImage>> thumbnails = new ArrayList<CompletableFuture<BufferedImage>>();
+
+			for (Cell cell : row.cells)
+				thumbnails.add(CompletableFuture.supplyAsync(() -> decode(cell), executor));
+
+			return CompletableFuture.allOf(thumbnails.toArray(new CompletableFuture<?>[0]))
+					.thenApplyAsync(ignored -> draw(row, thumbnails), executor);
+		}
+
+		private BufferedImage decode(Cell cell)
+		{
+			try
+			{
+				return RegionReader.readThumbnail(cell.file, cell.width, cell.height);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		private int[] draw(Row row, List<CompletableFuture<BufferedImage>> thumbnails)
+		{
+			BufferedImage image = new BufferedImage(width, row.height, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = image.createGraphics();
+
+			try
+			{
+				g.setColor(Color.WHITE);
+				g.fillRect(0, 0, width, row.height);
+				g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+				g.setFont(CAPTION_FONT);
+				FontMetrics metrics = g.getFontMetrics();
+
+				for (int i = 0; i < row.cells.size(); ++i)
+				{
+					Cell cell = row.cells.get(i);
+					BufferedImage thumbnail = thumbnails.get(i).join();
+
+					if (thumbnail == null)
+					{
+						g.setColor(PLACEHOLDER_COLOR);
+						g.fillRect(cell.x, SPACING, cell.width, cell.height);
+					}
+					else
+					{
+						double scale = Math.min((double) cell.width / thumbnail.getWidth(), (double) cell.height / thumbnail.getHeight());
+						int thumbnailWidth = (int) Math.max(1, Math.round(thumbnail.getWidth() * scale));
+						int thumbnailHeight = (int) Math.max(1, Math.round(thumbnail.getHeight() * scale));
+						g.drawImage(thumbnail, cell.x + (cell.width - thumbnailWidth) / 2, SPACING + (cell.height - thumbnailHeight) / 2,
+								thumbnailWidth, thumbnailHeight, null);
+					}
+
+					if (captions)
+					{
+						String caption = fitCaption(cell.file.getName(), metrics, cell.width);
+						g.setColor(CAPTION_COLOR);
+						g.drawString(caption, cell.x + (cell.width - metrics.stringWidth(caption)) / 2,
+								SPACING + cell.height + (CAPTION_HEIGHT + metrics.getAscent() - metrics.getDescent()) / 2);
+					}
+				}
+			}
+			finally
+			{
+				g.dispose();
+			}
+
+			return PixelFormats.getData(image);
+		}
+
+		@Override
+		public Raster getData(Rectangle region)
+		{
+			Rectangle bounds = region.intersection(new Rectangle(width, height));
+			int[] lines = new int[bounds.height * width];
+			readLines(bounds.y, bounds.height, lines);
+
+			Raster raster = Raster.createPackedRaster(new DataBufferInt(lines, lines.length), width, bounds.height,
+					width, colorModel.getMasks(), new Point(0, bounds.y));
+			return bounds.width == width ? raster : raster.createChild(bounds.x, bounds.y, bounds.width, bounds.height, bounds.x, bounds.y, null);
+		}
+
+		/**
+		 * Gets the whole sheet for writers that don't request it by region, such as JPEG.
+		 * The raster composes the sheet a band at a time as the writer reads its rows.
+		 */
+		@Override
+		public Raster getData()
+		{
+			if ((long) width * height > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("The sheet is too large to be written as a single raster");
+
+			return Raster.createWritableRaster(new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height, colorModel.getMasks()),
+					new SheetDataBuffer(this), new Point(0, 0));
+		}
+
+		@Override
+		public Raster getTile(int tileX, int tileY)
+		{
+			return getData(new Rectangle(0, tileY * tileHeight, width, tileHeight));
+		}
+
+		@Override
+		public WritableRaster copyData(WritableRaster raster)
+		{
+			if (raster == null)
+				raster = colorModel.createCompatibleWritableRaster(width, height);
+
+			raster.setRect(getData(raster.getBounds()));
+			return raster;
+		}
+
+		@Override
+		public SampleModel getSampleModel()
+		{
+			return new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, tileHeight, colorModel.getMasks());
+		}
+
+		@Override
+		public ColorModel getColorModel()
+		{
+			return colorModel;
+		}
+
+		@Override
+		public Vector<RenderedImage> getSources()
+		{
+			return null;
+		}
+
+		@Override
+		public Object getProperty(String name)
+		{
+			return Image.UndefinedProperty;
+		}
+
+		@Override
+		public String[] getPropertyNames()
+		{
+			return null;
+		}
+
+		@Override
+		public int getWidth()
+		{
+			return width;
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return height;
+		}
+
+		@Override
+		public int getMinX()
+		{
+			return 0;
+		}
+
+		@Override
+		public int getMinY()
+		{
+			return 0;
+		}
+
+		@Override
+		public int getNumXTiles()
+		{
+			return 1;
+		}
+
+		@Override
+		public int getNumYTiles()
+		{
+			return (height + tileHeight - 1) / tileHeight;
+		}
+
+		@Override
+		public int getMinTileX()
+		{
+			return 0;
+		}
+
+		@Override
+		public int getMinTileY()
+		{
+			return 0;
+		}
+
+		@Override
+		public int getTileWidth()
+		{
+			return width;
+		}
+
+		@Override
+		public int getTileHeight()
+		{
+			return tileHeight;
+		}
+
+		@Override
+		public int getTileGridXOffset()
+		{
+			return 0;
+		}
+
+		@Override
+		public int getTileGridYOffset()
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * A DataBuffer with one element per pixel that composes the sheet one band of rows at a time
+	 */
+	private class SheetDataBuffer extends DataBuffer
+	{
+		private final SheetView view;
+		private final int bandHeight = PixelFormats.getBandHeight(width);
+		private final int[] band = new int[bandHeight * width];
+		private int bandStart = -1;
+		private int bandEnd = -1;
+
+		SheetDataBuffer(SheetView view)
+		{
+			super(DataBuffer.TYPE_INT, width * height);
+			this.view = view;
+		}
+
+		@Override
+		public int getElem(int bank, int i)
+		{
+			int row = i / width;
+
+			if (row < bandStart || row >= bandEnd)
+				loadBand(row);
+
+			return band[i - bandStart * width];
+		}
+
+		@Override
+		public void setElem(int bank, int i, int val)
+		{
+			throw new UnsupportedOperationException("The contact sheet is read-only");
+		}
+
+		/*
+		 * Loads the band containing a row, ending at the row if it is above the current band (see FlatteningImage)
+		 */
+		private void loadBand(int row)
+		{
+			int start = row < bandStart ? Math.max(0, row - bandHeight + 1) : row;
+			int rows = Math.min(bandHeight, height - start);
+			view.readLines(start, rows, band);
+
+			bandStart = start;
+			bandEnd = start + rows;
+		}
+	}
+
+	/*
+	 * Shortens a file name with an ellipsis until it fits under its picture
+	 */
+	private static String fitCaption(String caption, FontMetrics metrics, int width)
+	{
+		if (metrics.stringWidth(caption) <= width)
+			return caption;
+
+		int end = caption.length();
+		while (end > 0 && metrics.stringWidth(caption.substring(0, end) + "\u2026") > width)
+			--end;
+
+		return caption.substring(0, end) + "\u2026";
+	}
+
+	/**
+	 * Makes a contact sheet of the pictures in a directory
+	 *
+	 * @param args - directory output [grid|justified [width [cellSize]]]
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2 || args.length > 5)
+		{
+			System.err.println("Usage: java jive.java.ContactSheet directory output [grid|justified [width [cellSize]]]");
+			System.exit(1);
+		}
+
+		ImageIO.setUseCache(false);
+		Layout layout = args.length > 2 ? Layout.valueOf(args[2].toUpperCase()) : Layout.GRID;
+		int width = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_WIDTH;
+		int cellSize = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_CELL_SIZE;
+
+		//A PhotoReel lists the pictures in the directory of the file it is given
+		List<File> files = new PhotoReel(new File(args[0], ".")).getFiles();
+		File output = new File(args[1]);
+
+		new ContactSheet(files, layout, width, cellSize, true).write(output, EncoderSettings.DEFAULT, null);
+	}
+}
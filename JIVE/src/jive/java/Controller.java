@@ -1,29 +1,43 @@
 package jive.java;
 
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.function.Function;
 
+import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
-import javafx.embed.swing.SwingFXUtils;
+import javafx.concurrent.Task;
 import javafx.fxml.FXML;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonBar;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.ChoiceBox;
+import javafx.scene.control.Dialog;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.ProgressIndicator;
 import javafx.scene.control.Slider;
+import javafx.scene.control.TextField;
 import javafx.scene.effect.GaussianBlur;
 import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
 import javafx.scene.input.KeyCode;
 import javafx.scene.layout.AnchorPane;
+import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.StackPane;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
@@ -39,6 +53,11 @@ import javafx.stage.Stage;
 public class Controller
 {	
 	private final List<String> COMPATIBLE_FORMATS = Arrays.asList("*.jpg", "*.jpeg", "*.png", "*.bmp", "*.gif");
+	private final int AUTO_TRIM_TOLERANCE = 24;
+	private final int UNSHARP_MASK_THRESHOLD = 3;	//Keeps film grain and sensor noise from being sharpened
+	private final String SHARPEN = "Sharpen";
+	private final String BLUR = "Blur";
+	private final String UNSHARP_MASK = "Unsharp Mask";
 	
 	Stage stage;
 	ImageViewer imageViewer;
@@ -46,6 +65,25 @@ public class Controller
 	CropSelector cropSelector;
 	PhotoReel photoReel;
 	UserManual userManual;
+	ProgressiveImageLoader imageLoader;
+	EditExecutor editExecutor;
+	boolean updatingHistoryList;
+	File regionFile;
+	int regionSourceWidth;
+	int regionSourceHeight;
+	HashCache hashCache;
+	List<List<File>> duplicateGroups;
+	int duplicateGroup;
+	int duplicateIndex;
+	File pendingFile;
+	Macro macro;
+	MacroBatch macroBatch;
+	Task<Void> contactSheetTask;
+	DuplicateFinder duplicateFinder;
+	WritableImage previewFXImage;
+	Function<Project, BufferedImage> pendingPreview;
+	boolean previewRendering;
+	int previewGeneration;
 	
 	@FXML private AnchorPane mainPane;	
 	@FXML private AnchorPane viewerPane;
@@ -54,7 +92,24 @@ public class Controller
 	@FXML private HBox cropBox;
 	@FXML private HBox resizeBox;
 	@FXML private HBox brightnessBox;
+	@FXML private HBox straightenBox;
+	@FXML private HBox taskBox;
+	@FXML private HBox duplicatesBox;
+	@FXML private HBox slideshowBox;
+	@FXML private HBox filterBox;
+	@FXML private MenuItem openFileItem;
+	@FXML private MenuItem openRegionItem;
+	@FXML private MenuItem historyItem;
+	@FXML private MenuItem findDuplicatesItem;
+	@FXML private MenuItem slideshowItem;
+	@FXML private MenuItem contactSheetItem;
+	@FXML private MenuItem recordMacroItem;
+	@FXML private MenuItem applyMacroItem;
+	@FXML private MenuItem batchItem;
+	@FXML private ListView<String> historyList;
+	@FXML private ListView<String> batchList;
 	@FXML private MenuItem saveAsItem;
+	@FXML private MenuItem exportTilesItem;
 	@FXML private Button saveButton;
 	@FXML private Button undoButton;
 	@FXML private Button redoButton;
@@ -62,30 +117,54 @@ public class Controller
 	@FXML private Button nextButton;
 	@FXML private Button rotateRightButton;
 	@FXML private Button rotateLeftButton;
+	@FXML private Button straightenButton;
 	@FXML private Button flipHorizontalButton;
 	@FXML private Button flipVerticalButton;
 	@FXML private Button cropButton;
 	@FXML private Button resizeButton;
 	@FXML private Button editBrightnessButton;
+	@FXML private Button filtersButton;
+	@FXML private Button confirmFilterButton;
+	@FXML private Button cancelFilterButton;
 	@FXML private Button confirmCropButton;
 	@FXML private Button cancelCropButton;
+	@FXML private Button autoTrimButton;
 	@FXML private Button confirmResizeButton;
 	@FXML private Button cancelResizeButton;
 	@FXML private Button confirmBrightnessButton;
 	@FXML private Button cancelBrightnessButton;
+	@FXML private Button confirmStraightenButton;
+	@FXML private Button cancelStraightenButton;
+	@FXML private Button closeDuplicatesButton;
+	@FXML private Button previousDuplicateButton;
+	@FXML private Button nextDuplicateButton;
 	@FXML private Slider brightnessSlider;
 	@FXML private Slider contrastSlider;
 	@FXML private Slider resizeSlider;
+	@FXML private Slider straightenSlider;
+	@FXML private Slider slideshowIntervalSlider;
+	@FXML private Slider filterRadiusSlider;
+	@FXML private Slider filterAmountSlider;
+	@FXML private ChoiceBox<String> filterChoiceBox;
+	@FXML private ChoiceBox<Slideshow.Transition> transitionChoiceBox;
+	@FXML private CheckBox autoCropCheckBox;
 	@FXML private Label nameLabel;
 	@FXML private Label sizeLabel;
 	@FXML private Label resizePercentLabel;
 	@FXML private Label newDimensionsLabel;
 	@FXML private Label brightnessLabel;
 	@FXML private Label contrastLabel;
+	@FXML private Label straightenAngleLabel;
+	@FXML private Label taskLabel;
+	@FXML private Label duplicatesLabel;
+	@FXML private Label slideshowIntervalLabel;
+	@FXML private Label filterRadiusLabel;
+	@FXML private Label filterAmountLabel;
+	@FXML private ProgressIndicator taskProgressIndicator;
 	
 	public void initialize()
 	{		
-		userManual = new UserManual();
+		editExecutor = new EditExecutor();
 		imageViewer = new ImageViewer();
 		viewerPane.getChildren().add(imageViewer);
 		
@@ -98,6 +177,21 @@ public class Controller
 		resizeSlider.valueProperty().addListener(resizeSliderListener);
 		brightnessSlider.valueProperty().addListener(brightnessSliderListener);
 		contrastSlider.valueProperty().addListener(contrastSliderListener);
+		straightenSlider.valueProperty().addListener(straightenListener);
+		autoCropCheckBox.selectedProperty().addListener(straightenListener);
+		
+		taskLabel.textProperty().bind(editExecutor.titleProperty());
+		taskProgressIndicator.progressProperty().bind(editExecutor.progressProperty());
+		editExecutor.busyProperty().addListener(busyListener);
+		historyList.getSelectionModel().selectedIndexProperty().addListener(historyListener);
+		
+		slideshowIntervalSlider.valueProperty().addListener(slideshowIntervalListener);
+		transitionChoiceBox.getItems().setAll(Slideshow.Transition.values());
+		transitionChoiceBox.setValue(Slideshow.Transition.FADE);
+		filterChoiceBox.getItems().setAll(SHARPEN, BLUR, UNSHARP_MASK);
+		filterChoiceBox.valueProperty().addListener(filterListener);
+		filterRadiusSlider.valueProperty().addListener(filterListener);
+		filterAmountSlider.valueProperty().addListener(filterListener);
 	}
 		
 	/**
@@ -109,6 +203,18 @@ public class Controller
 		openFile();
 	}
 	
+	/**
+	 * Opens a low resolution preview of a file so the user can select a region of it to open.
+	 * Only the selected region is decoded at full resolution, see openRegion().
+	 */
+	@FXML void openRegionAction()
+	{
+		File imageFile = chooseImageFile("JIVE - Open a Region of an Image");
+		
+		if (imageFile != null)
+			loadRegionPreview(imageFile);
+	}
+	
 	/**
 	 * Provides a native file explorer for the 'Save As' feature to collect
 	 * the necessary input from the user.
@@ -138,13 +244,116 @@ public class Controller
 		
 		File savedFile = fileChooser.showSaveDialog(stage);
 		
-		if (savedFile != null)
-		{	
-			if (project.saveAs(savedFile))
-				updateGUI();
-			else
-				createErrorAlert("Error: could not save image");
-		}		
+		if (savedFile != null && showSaveOptions(savedFile))
+		{
+			Project target = project;
+			Task<Boolean> saveTask = new Task<Boolean>()
+			{
+				{ updateTitle("Saving " + savedFile.getName()); }
+				
+				@Override
+				protected Boolean call()
+				{
+					return target.saveAs(savedFile);
+				}
+			};
+			
+			saveTask.setOnSucceeded(event ->
+			{
+				if (!saveTask.getValue())
+					createErrorAlert("Error: could not save image");
+			});
+			
+			editExecutor.submit(saveTask);
+		}
+	}
+	
+	/**
+	 * Asks how to cut the image into tiles and where to write them,
+	 * then writes the tile pyramid in the background
+	 */
+	@FXML void exportTilesAction()
+	{
+		GridPane grid = new GridPane();
+		grid.setHgap(10);
+		grid.setVgap(10);
+		
+		ChoiceBox<TilePyramidWriter.Layout> layoutChoiceBox = new ChoiceBox<TilePyramidWriter.Layout>();
+		layoutChoiceBox.getItems().addAll(TilePyramidWriter.Layout.values());
+		layoutChoiceBox.setValue(TilePyramidWriter.Layout.DEEP_ZOOM);
+		ChoiceBox<String> formatChoiceBox = new ChoiceBox<String>();
+		formatChoiceBox.getItems().addAll("jpg", "png");
+		formatChoiceBox.setValue(project.getFileExtension().equals("png") ? "png" : "jpg");
+		CheckBox zipCheckBox = new CheckBox("Write to a single zip file");
+		
+		grid.addRow(0, new Label("Layout"), layoutChoiceBox);
+		grid.addRow(1, new Label("Tile format"), formatChoiceBox);
+		grid.add(zipCheckBox, 1, 2);
+		
+		Dialog<ButtonType> dialog = new Dialog<ButtonType>();
+		dialog.setTitle("JIVE - Export Tiles");
+		dialog.initOwner(stage);
+		dialog.getDialogPane().setContent(grid);
+		dialog.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
+		
+		GaussianBlur blur = new GaussianBlur(5);
+		mainPane.setEffect(blur);
+		Optional<ButtonType> response = dialog.showAndWait();
+		mainPane.setEffect(null);
+		
+		if (!response.isPresent() || response.get() != ButtonType.OK)
+			return;
+		
+		String name = project.getName();
+		if (name.contains("."))
+			name = name.substring(0, name.lastIndexOf('.'));
+		
+		File output;
+		if (zipCheckBox.isSelected())
+		{
+			FileChooser fileChooser = new FileChooser();
+			fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("*.zip", "*.zip"));
+			fileChooser.setTitle("JIVE - Export Tiles");
+			fileChooser.setInitialFileName(name + ".zip");
+			output = fileChooser.showSaveDialog(stage);
+			
+			if (output != null && !output.getName().toLowerCase().endsWith(".zip"))
+				output = new File(output.getParentFile(), output.getName() + ".zip");
+		}
+		else
+		{
+			//The tiles go into a new folder named after the image, inside the chosen folder
+			DirectoryChooser directoryChooser = new DirectoryChooser();
+			directoryChooser.setTitle("JIVE - Choose a Folder for the Tiles");
+			File directory = directoryChooser.showDialog(stage);
+			output = directory == null ? null : new File(directory, name);
+		}
+		
+		if (output == null)
+			return;
+		
+		Project target = project;
+		File tilesFile = output;
+		TilePyramidWriter.Layout layout = layoutChoiceBox.getValue();
+		String format = formatChoiceBox.getValue();
+		Task<Boolean> exportTask = new Task<Boolean>()
+		{
+			{ updateTitle("Exporting tiles to " + tilesFile.getName()); }
+			
+			@Override
+			protected Boolean call()
+			{
+				return target.exportTiles(tilesFile, layout, format, fraction -> updateProgress(fraction, 1));
+			}
+		};
+		
+		exportTask.setOnSucceeded(event ->
+		{
+			if (!exportTask.getValue())
+				createErrorAlert("Error: could not export tiles");
+		});
+		
+		editExecutor.submit(exportTask);
 	}
 	
 	/**
@@ -152,6 +361,10 @@ public class Controller
 	 */
 	@FXML void helpAction() 
 	{
+		//The manual's WebView is slow to create and rarely needed, so it is only created when first opened
+		if (userManual == null)
+			userManual = new UserManual();
+		
 		userManual.openUserManual();
 	}
 	
@@ -161,10 +374,43 @@ public class Controller
 	 */
 	@FXML void saveButtonAction() 
 	{
-		if (project.save())
-			updateGUI();
-		else
+		saveProject(null);
+	}
+	
+	/**
+	 * Overwrites the current project's file in the background, after any edits that are still running
+	 * 
+	 * @param onSaved Runs once the image has been saved, or null. It doesn't run if saving fails.
+	 */
+	private void saveProject(Runnable onSaved)
+	{
+		Project target = project;
+		Task<Boolean> saveTask = new Task<Boolean>()
+		{
+			{ updateTitle("Saving " + target.getName()); }
+			
+			@Override
+			protected Boolean call()
+			{
+				return target.save();
+			}
+		};
+		
+		saveTask.setOnSucceeded(event ->
+		{
+			if (!saveTask.getValue())
+				createErrorAlert("Error: could not save image");
+			else if (onSaved != null)
+				onSaved.run();
+		});
+		
+		saveTask.setOnFailed(event ->
+		{
+			saveTask.getException().printStackTrace();
 			createErrorAlert("Error: could not save image");
+		});
+		
+		editExecutor.submit(saveTask);
 	}
 	
 	/**
@@ -173,9 +419,7 @@ public class Controller
 	 */
 	@FXML void undoButtonAction() 
 	{
-		project.undo();
-		imageViewer.update(SwingFXUtils.toFXImage(project.getImage(), null));
-		updateGUI();
+		restoreHistoryState(project.getHistoryPosition() - 1);
 	}
 	
 	/**
@@ -184,9 +428,383 @@ public class Controller
 	 */
 	@FXML void redoButtonAction() 
 	{
-		project.redo();
-		imageViewer.update(SwingFXUtils.toFXImage(project.getImage(), null));
-		updateGUI();
+		restoreHistoryState(project.getHistoryPosition() + 1);
+	}
+	
+	/**
+	 * Shows or hides the editing history panel
+	 */
+	@FXML void historyAction()
+	{
+		boolean showHistory = !historyList.isVisible();
+		historyList.setVisible(showHistory);
+		historyItem.setText(showHistory ? "Hide History" : "Show History");
+		
+		//Make room for the history panel on the right side of the viewer
+		double offset = showHistory ? historyList.getPrefWidth() + 10 : 0;
+		AnchorPane.setRightAnchor(viewerPane, 10 + offset);
+		AnchorPane.setRightAnchor(nextButton, 50 + offset);
+	}
+	
+	/**
+	 * Searches the photo reel's directory for duplicate and near-duplicate images in the background.
+	 * If any are found the duplicates panel is opened on the first group.
+	 * While a search is running this cancels it instead.
+	 */
+	@FXML void findDuplicatesAction()
+	{
+		if (duplicateFinder != null && !duplicateFinder.isDone())
+		{
+			duplicateFinder.cancel();
+			return;
+		}
+		
+		if (hashCache == null)
+			hashCache = new HashCache();
+		
+		DuplicateFinder finder = new DuplicateFinder(photoReel.getFiles(), hashCache);
+		
+		//Hashing a large directory takes minutes, so like a contact sheet it runs on its own thread
+		//and editing carries on. The menu item shows its progress and cancels it.
+		duplicateFinder = finder;
+		findDuplicatesItem.setText("Cancel Find Duplicates");
+		finder.progressProperty().addListener((observable, oldValue, newValue) ->
+		{
+			if (!finder.isDone())
+				findDuplicatesItem.setText(String.format("Cancel Find Duplicates (%.0f%%)", Math.max(0, newValue.doubleValue()) * 100));
+		});
+		
+		finder.setOnSucceeded(event ->
+		{
+			findDuplicatesItem.setText("Find Duplicates");
+			
+			if (finder.getValue().isEmpty())
+			{
+				createInformationAlert("No duplicate images were found.");
+				return;
+			}
+			
+			duplicateGroups = finder.getValue();
+			duplicateGroup = 0;
+			duplicateIndex = 0;
+			showDuplicate();
+		});
+		
+		finder.setOnFailed(event ->
+		{
+			finder.getException().printStackTrace();
+			findDuplicatesItem.setText("Find Duplicates");
+			createErrorAlert("Error: could not search for duplicates");
+		});
+		
+		finder.setOnCancelled(event -> findDuplicatesItem.setText("Find Duplicates"));
+		
+		Thread finderThread = new Thread(finder, "JIVE duplicate finder");
+		finderThread.setDaemon(true);
+		finderThread.start();
+	}
+	
+	/**
+	 * Asks how to lay out the pictures of the photo reel, or those whose names contain some text,
+	 * and makes a contact sheet of them in the background. While a sheet is being made this cancels it instead.
+	 */
+	@FXML void contactSheetAction()
+	{
+		if (contactSheetTask != null && !contactSheetTask.isDone())
+		{
+			contactSheetTask.cancel();
+			return;
+		}
+		
+		GridPane grid = new GridPane();
+		grid.setHgap(10);
+		grid.setVgap(10);
+		
+		ChoiceBox<ContactSheet.Layout> layoutChoiceBox = new ChoiceBox<ContactSheet.Layout>();
+		layoutChoiceBox.getItems().addAll(ContactSheet.Layout.values());
+		layoutChoiceBox.setValue(ContactSheet.Layout.GRID);
+		Slider widthSlider = new Slider(1000, 10000, ContactSheet.DEFAULT_WIDTH);
+		Label widthLabel = new Label();
+		widthLabel.textProperty().bind(widthSlider.valueProperty().asString("%.0f"));
+		Slider cellSlider = new Slider(50, 600, ContactSheet.DEFAULT_CELL_SIZE);
+		Label cellLabel = new Label();
+		cellLabel.textProperty().bind(cellSlider.valueProperty().asString("%.0f"));
+		TextField filterField = new TextField();
+		filterField.setPromptText("All pictures");
+		CheckBox captionsCheckBox = new CheckBox("Show file names");
+		captionsCheckBox.setSelected(true);
+		
+		grid.addRow(0, new Label("Layout"), layoutChoiceBox);
+		grid.addRow(1, new Label("Sheet width"), widthSlider, widthLabel);
+		grid.addRow(2, new Label("Picture size"), cellSlider, cellLabel);
+		grid.addRow(3, new Label("Names containing"), filterField);
+		grid.add(captionsCheckBox, 1, 4);
+		
+		Dialog<ButtonType> dialog = new Dialog<ButtonType>();
+		dialog.setTitle("JIVE - Contact Sheet");
+		dialog.initOwner(stage);
+		dialog.getDialogPane().setContent(grid);
+		dialog.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
+		
+		GaussianBlur blur = new GaussianBlur(5);
+		mainPane.setEffect(blur);
+		Optional<ButtonType> response = dialog.showAndWait();
+		mainPane.setEffect(null);
+		
+		if (!response.isPresent() || response.get() != ButtonType.OK)
+			return;
+		
+		String filter = filterField.getText().trim().toLowerCase();
+		List<File> files = new ArrayList<File>();
+		
+		for (File file : photoReel.getFiles())
+		{
+			if (file.getName().toLowerCase().contains(filter))
+				files.add(file);
+		}
+		
+		if (files.isEmpty())
+		{
+			createInformationAlert("No pictures in the photo reel have names containing \"" + filter + "\".");
+			return;
+		}
+		
+		FileChooser fileChooser = new FileChooser();
+		fileChooser.getExtensionFilters().addAll(new FileChooser.ExtensionFilter("*.jpg", "*.jpg"), new FileChooser.ExtensionFilter("*.png", "*.png"));
+		fileChooser.setTitle("JIVE - Save Contact Sheet");
+		fileChooser.setInitialFileName("contact sheet.jpg");
+		File sheetFile = fileChooser.showSaveDialog(stage);
+		
+		if (sheetFile == null)
+			return;
+		
+		ContactSheet.Layout layout = layoutChoiceBox.getValue();
+		int width = (int) Math.round(widthSlider.getValue());
+		int cellSize = (int) Math.round(cellSlider.getValue());
+		boolean captions = captionsCheckBox.isSelected();
+		EncoderSettings settings = project.getEncoderSettings();
+		Task<Void> sheetTask = new Task<Void>()
+		{
+			{ updateTitle("Making a contact sheet of " + files.size() + " pictures"); }
+			
+			@Override
+			protected Void call() throws Exception
+			{
+				ContactSheet sheet = new ContactSheet(files, layout, width, cellSize, captions);
+				
+				try
+				{
+					sheet.write(sheetFile, settings, fraction ->
+					{
+						if (isCancelled())
+							throw new CancellationException();
+						
+						updateProgress(fraction, 1);
+					});
+				}
+				catch (Exception e)
+				{
+					//Don't leave half a sheet behind
+					if (isCancelled())
+						sheetFile.delete();
+					
+					throw e;
+				}
+				return null;
+			}
+		};
+		
+		//A sheet of a large reel takes minutes, so it runs on its own thread like a MacroBatch
+		//and editing carries on. The menu item shows its progress and cancels it.
+		contactSheetTask = sheetTask;
+		contactSheetItem.setText("Cancel Contact Sheet");
+		sheetTask.progressProperty().addListener((observable, oldValue, newValue) ->
+		{
+			if (!sheetTask.isDone())
+				contactSheetItem.setText(String.format("Cancel Contact Sheet (%.0f%%)", Math.max(0, newValue.doubleValue()) * 100));
+		});
+		
+		sheetTask.setOnSucceeded(event ->
+		{
+			contactSheetItem.setText("Contact Sheet");
+			createInformationAlert("The contact sheet of " + files.size() + " pictures was saved to " + sheetFile.getName() + ".");
+		});
+		
+		sheetTask.setOnFailed(event ->
+		{
+			sheetTask.getException().printStackTrace();
+			contactSheetItem.setText("Contact Sheet");
+			createErrorAlert("Error: could not make the contact sheet\n" + sheetTask.getException().getMessage());
+		});
+		
+		sheetTask.setOnCancelled(event -> contactSheetItem.setText("Contact Sheet"));
+		
+		Thread sheetThread = new Thread(sheetTask, "JIVE contact sheet");
+		sheetThread.setDaemon(true);
+		sheetThread.start();
+	}
+	
+	/**
+	 * Opens the previous image in the duplicate groups
+	 */
+	@FXML void previousDuplicateAction()
+	{
+		if (--duplicateIndex < 0)
+		{
+			--duplicateGroup;
+			duplicateIndex = duplicateGroups.get(duplicateGroup).size() - 1;
+		}
+		
+		showDuplicate();
+	}
+	
+	/**
+	 * Opens the next image in the duplicate groups
+	 */
+	@FXML void nextDuplicateAction()
+	{
+		if (++duplicateIndex >= duplicateGroups.get(duplicateGroup).size())
+		{
+			++duplicateGroup;
+			duplicateIndex = 0;
+		}
+		
+		showDuplicate();
+	}
+	
+	/**
+	 * Closes the duplicates panel and returns to the main editing panel
+	 */
+	@FXML void closeDuplicatesAction()
+	{
+		duplicateGroups = null;
+		editingBox.toFront();
+	}
+	
+	/**
+	 * Starts recording the edits made to the current image as a macro, or stops recording
+	 * and keeps the macro for applyMacroAction()
+	 */
+	@FXML void recordMacroAction()
+	{
+		if (!project.isRecording())
+		{
+			project.startRecording();
+			recordMacroItem.setText("Stop Recording");
+			return;
+		}
+		
+		if (!stopRecording())
+			createInformationAlert("No edits were recorded.");
+	}
+	
+	/**
+	 * Shows the recorded edits, then applies the macro to every image on the photo reel in the background
+	 * and saves the results to a directory chosen by the user. While the batch runs, this cancels it instead.
+	 */
+	@FXML void applyMacroAction()
+	{
+		if (macroBatch != null && !macroBatch.isDone())
+		{
+			macroBatch.cancel();
+			return;
+		}
+		
+		List<File> files = photoReel.getFiles();
+		StringBuilder steps = new StringBuilder("Apply these edits to the " + files.size() + " images of the photo reel?\n");
+		List<String> descriptions = macro.getDescriptions();
+		for (int i = 0; i < descriptions.size(); ++i)
+			steps.append("\n").append(i + 1).append(". ").append(descriptions.get(i));
+		
+		Alert alert = new Alert(AlertType.CONFIRMATION, steps.toString(), ButtonType.OK, ButtonType.CANCEL);
+		alert.setHeaderText(null);
+		alert.setTitle("JIVE - Apply Macro");
+		alert.initOwner(stage);
+		GaussianBlur blur = new GaussianBlur(5);
+		mainPane.setEffect(blur);
+		Optional<ButtonType> response = alert.showAndWait();
+		mainPane.setEffect(null);
+		
+		if (!response.isPresent() || response.get() != ButtonType.OK)
+			return;
+		
+		DirectoryChooser directoryChooser = new DirectoryChooser();
+		directoryChooser.setTitle("JIVE - Save Edited Images To");
+		File outputDirectory = directoryChooser.showDialog(stage);
+		
+		if (outputDirectory == null)
+			return;
+		
+		//Files are saved under their own names, so the reel's directory would lose its originals
+		if (outputDirectory.getAbsoluteFile().equals(files.get(0).getAbsoluteFile().getParentFile()))
+		{
+			createErrorAlert("Choose a different folder, the original images are not overwritten.");
+			return;
+		}
+		
+		MacroBatch batch = new MacroBatch(files, outputDirectory, macro, project.getEncoderSettings());
+		macroBatch = batch;
+		batchList.setItems(batch.getStatusList());
+		batchItem.setDisable(false);
+		applyMacroItem.setText("Cancel Batch");
+		showBatchList(true);
+		
+		batch.setOnSucceeded(event ->
+		{
+			applyMacroItem.setText("Apply Macro to Reel");
+			
+			if (batch.getValue() > 0)
+				createErrorAlert(batch.getValue() + " of " + files.size() + " images could not be edited, see the batch progress list.");
+		});
+		
+		batch.setOnFailed(event ->
+		{
+			batch.getException().printStackTrace();
+			applyMacroItem.setText("Apply Macro to Reel");
+			createErrorAlert("Error: could not apply the macro");
+		});
+		
+		batch.setOnCancelled(event -> applyMacroItem.setText("Apply Macro to Reel"));
+		
+		Thread batchThread = new Thread(batch, "JIVE macro batch");
+		batchThread.setDaemon(true);
+		batchThread.start();
+	}
+	
+	/**
+	 * Shows or hides the batch progress list
+	 */
+	@FXML void batchAction()
+	{
+		showBatchList(!batchList.isVisible());
+	}
+	
+	/**
+	 * Opens the slideshow panel
+	 */
+	@FXML void slideshowAction()
+	{
+		slideshowBox.toFront();
+	}
+	
+	/**
+	 * Starts a full-screen slideshow of the photo reel's directory at the current image
+	 */
+	@FXML void confirmSlideshowAction()
+	{
+		editingBox.toFront();
+		
+		Slideshow slideshow = new Slideshow(photoReel.getFiles(), photoReel.getPosition(),
+				Math.round(slideshowIntervalSlider.getValue()), transitionChoiceBox.getValue(), stage);
+		slideshow.show();
+	}
+	
+	/**
+	 * Closes the slideshow panel
+	 */
+	@FXML void cancelSlideshowAction()
+	{
+		editingBox.toFront();
 	}
 	
 	/**
@@ -195,10 +813,11 @@ public class Controller
 	 */
 	@FXML void previousButtonAction()
 	{
+		//The photo reel only moves once the changes are saved, so it stays on this image if saving fails
 		if (project.hasUnsavedChanges())
-			createUnsavedChangesAlert();
-		
-		loadFile(photoReel.getPrevious());
+			createUnsavedChangesAlert(() -> loadFile(photoReel.getPrevious()));
+		else
+			loadFile(photoReel.getPrevious());
 	}
 	
 	/**
@@ -208,9 +827,9 @@ public class Controller
 	@FXML void nextButtonAction()
 	{
 		if (project.hasUnsavedChanges())
-			createUnsavedChangesAlert();
-		
-		loadFile(photoReel.getNext());
+			createUnsavedChangesAlert(() -> loadFile(photoReel.getNext()));
+		else
+			loadFile(photoReel.getNext());
 	}
 	
 	/**
@@ -219,9 +838,7 @@ public class Controller
 	 */
 	@FXML void rotateRightAction() 
 	{
-		project.rotateRight();
-		imageViewer.update(SwingFXUtils.toFXImage(project.getImage(), null));
-		updateGUI();
+		runEdit(Operation.rotateRight());
 	}
 	
 	/**
@@ -230,9 +847,35 @@ public class Controller
 	 */
 	@FXML void rotateLeftAction() 
 	{
-		project.rotateLeft();
-		imageViewer.update(SwingFXUtils.toFXImage(project.getImage(), null));
-		updateGUI();
+		runEdit(Operation.rotateLeft());
+	}
+	
+	/**
+	 * Opens the straighten tool
+	 */
+	@FXML void straightenAction()
+	{
+		straightenSlider.setValue(0);
+		confirmStraightenButton.setDisable(true);
+		straightenBox.toFront();
+	}
+	
+	/**
+	 * Rotates the image by the angle selected in the straighten tool
+	 */
+	@FXML void confirmStraightenAction()
+	{
+		editingBox.toFront();
+		runEdit(Operation.rotate(straightenSlider.getValue(), autoCropCheckBox.isSelected()));
+	}
+	
+	/**
+	 * Closes the straighten tool
+	 */
+	@FXML void cancelStraightenAction()
+	{
+		editingBox.toFront();
+		displayProjectImage();
 	}
 	
 	/**
@@ -241,9 +884,7 @@ public class Controller
 	 */
 	@FXML void flipHorizontalAction() 
 	{
-		project.flipHorizontal();
-		imageViewer.update(SwingFXUtils.toFXImage(project.getImage(), null));
-		updateGUI();
+		runEdit(Operation.flipHorizontal());
 	}
 	
 	/**
@@ -252,9 +893,7 @@ public class Controller
 	 */
 	@FXML void flipVerticalAction() 
 	{
-		project.flipVertical();
-		imageViewer.update(SwingFXUtils.toFXImage(project.getImage(), null));
-		updateGUI();
+		runEdit(Operation.flipVertical());
 	}
 	
 	/**
@@ -263,10 +902,21 @@ public class Controller
 	 */
 	@FXML void cropAction() 
 	{
+		autoTrimButton.setDisable(false);
 		cropBox.toFront();
 		cropSelector = new CropSelector(imageViewer, imageViewer.getImageView(), confirmCropButton);
 	}
 	
+	/**
+	 * Finds the content inside the uniform border of the image and selects it
+	 * with the crop tool, so it can be checked before the crop is confirmed.
+	 */
+	@FXML void autoTrimAction()
+	{
+		Rectangle content = BorderScanner.findContent(project.getImage(), AUTO_TRIM_TOLERANCE);
+		cropSelector.setSelection(content.x, content.y, content.width, content.height);
+	}
+	
 	/**
 	 * Commences the crop operation
 	 * (Requirements 2.3.4/2.3.5/2.3.6)
@@ -277,12 +927,14 @@ public class Controller
 		int y = cropSelector.getCropY();
 		int width = cropSelector.getCropWidth();
 		int height = cropSelector.getCropHeight();
-		project.crop(x, y, width, height);
-		imageViewer.update(SwingFXUtils.toFXImage(project.getImage(), null));
-		updateGUI();
 		cropSelector.remove();
 		editingBox.toFront();
-	}
+		
+		if (regionFile != null)
+			openRegion(x, y, width, height);
+		else
+			runEdit(Operation.crop(x, y, width, height));
+	}
 
 	/**
 	 * Closes the crop tool
@@ -292,186 +944,766 @@ public class Controller
 	{
 		editingBox.toFront();
 		cropSelector.remove();
+		
+		if (regionFile != null)
+			cancelRegion();
+	}
+	
+	/**
+	 * Opens the resize tool
+	 * (Requirements 2.4.1/2.4.2)
+	 */
+	@FXML void resizeAction() 
+	{
+		resizeSlider.setValue(resizeSlider.getMax());
+		confirmResizeButton.setDisable(true);
+		resizeBox.toFront();
+	}
+	
+	/**
+	 * Commences the resize operation
+	 * (Requirement 2.4.4)
+	 */
+	@FXML void confirmResizeAction()
+	{
+		double percentage = Math.round(resizeSlider.getValue());
+		double scaleFactor = percentage / 100;
+		editingBox.toFront();
+		runEdit(Operation.resize(scaleFactor));
+	}
+	
+	/**
+	 * Closes the resize tool
+	 * (Requirement 2.4.3)
+	 */
+	@FXML void cancelResizeAction()
+	{
+		editingBox.toFront();
+	}
+	
+	/**
+	 * Opens the brightness/contrast tool
+	 * (Requirement 2.5.0)
+	 */
+	@FXML void editBrightnessAction() 
+	{
+		brightnessSlider.setValue(100);
+		contrastSlider.setValue(100);
+		brightnessBox.toFront();
+	}
+	
+	/**
+	 * Commences the brightness/contrast adjustment
+	 * (Requirements 2.5.1/2.5.2)
+	 */
+	@FXML void confirmBrightnessAction()
+	{
+		double brightness = brightnessSlider.getValue() - 100;
+		double contrast = contrastSlider.getValue() / 100;
+		editingBox.toFront();
+		runEdit(Operation.adjustBrightnessContrast(brightness, contrast));
+	}
+	
+	/**
+	 * Closes the brightness/contrast tool
+	 */
+	@FXML void cancelBrightnessAction()
+	{
+		editingBox.toFront();
+		displayProjectImage();
+	}
+	
+	/**
+	 * Opens the sharpen and blur tool and previews its default filter
+	 */
+	@FXML void filtersAction()
+	{
+		filterChoiceBox.setValue(SHARPEN);
+		filterRadiusSlider.setValue(2);
+		filterAmountSlider.setValue(100);
+		filterListener.changed(null, null, null);
+		filterBox.toFront();
+	}
+	
+	/**
+	 * Applies the filter selected in the sharpen and blur tool to the full resolution image
+	 */
+	@FXML void confirmFilterAction()
+	{
+		editingBox.toFront();
+		runEdit(getFilterOperation());
+	}
+	
+	/**
+	 * Closes the sharpen and blur tool
+	 */
+	@FXML void cancelFilterAction()
+	{
+		editingBox.toFront();
+		displayProjectImage();
+	}
+	
+	/**
+	 * @return The Operation selected in the sharpen and blur tool
+	 */
+	private Operation getFilterOperation()
+	{
+		double radius = Math.round(filterRadiusSlider.getValue() * 2) / 2.0;
+		double amount = filterAmountSlider.getValue() / 100;
+		
+		if (BLUR.equals(filterChoiceBox.getValue()))
+			return Operation.gaussianBlur(radius);
+		else if (UNSHARP_MASK.equals(filterChoiceBox.getValue()))
+			return Operation.unsharpMask(radius, amount, UNSHARP_MASK_THRESHOLD);
+		else
+			return Operation.sharpen(amount);
+	}
+	
+	/**
+	 * Cancels the running editing task.
+	 * The project is left unchanged.
+	 */
+	@FXML void cancelTaskAction()
+	{
+		editExecutor.cancelAll();
+	}
+	
+	/**
+	 * Cancels background work and releases the current project.
+	 * This is called by the Main class when the application exits.
+	 */
+	public void shutDown()
+	{
+		editExecutor.cancelAll();
+		
+		if (macroBatch != null)
+			macroBatch.cancel();
+		
+		if (contactSheetTask != null)
+			contactSheetTask.cancel();
+		
+		if (duplicateFinder != null)
+			duplicateFinder.cancel();
+		
+		if (imageLoader != null)
+			imageLoader.cancel();
+		
+		if (project != null)
+			project.close();
+	}
+	
+	/**
+	 * Sets a reference to the stage from the Main class
+	 * and adds keyboard shortcuts and exit event logic.
+	 */
+	public void setUp(Stage stage)
+	{
+		this.stage = stage;
+		
+		stage.getScene().setOnKeyPressed(event ->
+		{
+			if (event.isControlDown())
+			{
+				KeyCode key = event.getCode();
+				if (key == KeyCode.O && !openFileItem.isDisable())
+					openFile();
+				if (key == KeyCode.S && !saveButton.isDisable())
+					saveButtonAction();
+				if (key == KeyCode.Z && !undoButton.isDisable())
+					undoButtonAction();
+				if (key == KeyCode.Y && !redoButton.isDisable())
+					redoButtonAction();
+				if (key == KeyCode.LEFT && !previousButton.isDisable())
+					previousButtonAction();
+				if (key == KeyCode.RIGHT && !nextButton.isDisable())
+					nextButtonAction();
+			}
+		});
+				
+		stage.setOnCloseRequest(event ->
+		{
+			//The window is closed again once the changes are saved, since closing it stops the save
+			if (project != null && project.hasUnsavedChanges())
+			{
+				event.consume();
+				createUnsavedChangesAlert(() -> stage.close());
+			}
+		});
+	}
+		
+	/*
+	 * Provides a file chooser to allow the user to select an image file for viewing and editing.
+	 * Creates a new project and resets the GUI.
+	 * (Requirements 1.1.1/1.1.2)
+	 */
+	private void openFile()
+	{
+		File imageFile = chooseImageFile("JIVE - Open an Image");
+		
+		if (imageFile != null)
+		{
+			duplicateGroups = null;
+			loadFile(imageFile);
+		}
+	}
+	
+	/**
+	 * Provides a file chooser that only accepts the image formats supported by JIVE.
+	 * 
+	 * @param title The title of the file chooser
+	 * @return The selected file, or null if no supported file was selected
+	 */
+	private File chooseImageFile(String title)
+	{
+		FileChooser fileChooser = new FileChooser();		
+		FileChooser.ExtensionFilter filter = new FileChooser.ExtensionFilter("Image Files", COMPATIBLE_FORMATS);
+		fileChooser.getExtensionFilters().add(filter);
+		
+		for (String ext : COMPATIBLE_FORMATS)
+		{
+			filter = new FileChooser.ExtensionFilter(ext, ext);
+			fileChooser.getExtensionFilters().add(filter);
+		}
+		
+		fileChooser.setTitle(title);
+		File imageFile = fileChooser.showOpenDialog(stage);
+				
+		if (imageFile != null)
+		{			
+			//Users can enter non-image files manually, so additional validation is done here
+			String extension = getExtension(imageFile);
+			
+			if (!(COMPATIBLE_FORMATS.contains("*." + extension)))
+			{
+				createErrorAlert("JIVE does not support ." + extension + " files.");
+				return null;
+			}
+		}
+		
+		return imageFile;
+	}
+	
+	/**
+	 * @param file A file
+	 * @return The lower case extension of the file's name
+	 */
+	private String getExtension(File file)
+	{
+		String fileName = file.getName();
+		int extensionIndex = fileName.lastIndexOf(".");
+		return fileName.substring(extensionIndex + 1).toLowerCase();
+	}
+	
+	/**
+	 * Opens the first of the given files that JIVE supports. This is used for files given
+	 * on the command line, including files handed over by later launches (see SingleInstance).
+	 * If an editing task is running the file is opened once it finishes. Since a handed over file
+	 * arrives without anything being done in this window, unsaved changes are offered for saving first.
+	 * 
+	 * @param files The files to open
+	 */
+	public void openFiles(List<File> files)
+	{
+		File imageFile = null;
+		
+		for (File file : files)
+		{
+			if (file.isFile() && COMPATIBLE_FORMATS.contains("*." + getExtension(file)))
+			{
+				imageFile = file;
+				break;
+			}
+		}
+		
+		if (imageFile == null)
+		{
+			createErrorAlert(files.size() == 1 ? "JIVE could not open " + files.get(0).getName() + "."
+					: "JIVE could not open any of the files.");
+			return;
+		}
+		
+		if (editExecutor.busyProperty().get())
+		{
+			pendingFile = imageFile;
+			return;
+		}
+		
+		File openedFile = imageFile;
+		Runnable open = () ->
+		{
+			duplicateGroups = null;
+			loadFile(openedFile);
+		};
+		
+		if (project != null && project.hasUnsavedChanges())
+			createUnsavedChangesAlert(open);
+		else
+			open.run();
+	}
+	
+	/**
+	 * Loads the file into JIVE.
+	 * The file is decoded in the background by a ProgressiveImageLoader and previews are shown
+	 * in the imageViewer as they become available. Once decoding finishes a new Project and PhotoReel
+	 * are created and the GUI is updated. Loading a new file cancels a load that is still in progress.
+	 * (Requirement 1.4.5)
+	 * 
+	 * @param imageFile The file to load
+	 */
+	private void loadFile(File imageFile)
+	{
+		if (imageLoader != null)
+			imageLoader.cancel();
+		
+		editExecutor.cancelAll();
+		
+		setEditingDisabled(true);
+		
+		if (cropSelector != null)
+			cropSelector.remove();
+		
+		regionFile = null;
+		
+		ProgressiveImageLoader loader = new ProgressiveImageLoader(imageFile, imageViewer.getWidth(), imageViewer.getHeight());
+		imageLoader = loader;
+		
+		loader.previewProperty().addListener((observable, oldValue, newValue) ->
+		{
+			if (newValue != null && !loader.isDone())
+				imageViewer.update(newValue);
+		});
+		
+		loader.setOnSucceeded(event ->
+		{
+			imageViewer.update(loader.getFXImage());
+			
+			//A macro recorded up to here is kept, it can't be recorded across images
+			if (project != null && project.isRecording())
+				stopRecording();
+			
+			if (project != null)
+				project.close();
+			
+			if (loader.getOffHeapImage() != null)
+				project = new Project(imageFile, loader.getOffHeapImage(), loader.getValue());
+			else
+				project = new Project(imageFile, loader.getValue());
+			
+			photoReel = new PhotoReel(imageFile);
+			updateGUI();
+			setEditingDisabled(false);
+			
+			if (duplicateGroups != null)
+				duplicatesBox.toFront();
+			else
+				editingBox.toFront();
+		});
+		
+		loader.setOnFailed(event ->
+		{
+			loader.getException().printStackTrace();
+			imageViewer.update(null);
+			
+			if (project != null)
+				project.close();
+			
+			project = null;
+			createErrorAlert("Error: could not read image file.");
+		});
+		
+		Thread loaderThread = new Thread(loader, "JIVE image loader");
+		loaderThread.setDaemon(true);
+		loaderThread.start();
+	}
+	
+	/**
+	 * Shows the current image of the duplicate groups in the duplicates panel and loads it.
+	 */
+	private void showDuplicate()
+	{
+		List<File> group = duplicateGroups.get(duplicateGroup);
+		File imageFile = group.get(duplicateIndex);
+		
+		duplicatesLabel.setText("Group " + (duplicateGroup + 1) + " of " + duplicateGroups.size() + ":  "
+				+ (duplicateIndex + 1) + " of " + group.size() + "  (" + imageFile.getName() + ")");
+		previousDuplicateButton.setDisable(duplicateGroup == 0 && duplicateIndex == 0);
+		nextDuplicateButton.setDisable(duplicateGroup == duplicateGroups.size() - 1 && duplicateIndex == group.size() - 1);
+		duplicatesBox.toFront();
+		
+		if (project != null && project.hasUnsavedChanges())
+			createUnsavedChangesAlert(() -> loadFile(imageFile));
+		else
+			loadFile(imageFile);
+	}
+	
+	/**
+	 * Reads a subsampled preview of a file in the background and opens the crop tool on it,
+	 * so a region can be selected without decoding the full image.
+	 * The current project is left open until a region is confirmed.
+	 * 
+	 * @param imageFile The file to select a region from
+	 */
+	private void loadRegionPreview(File imageFile)
+	{
+		if (imageLoader != null)
+			imageLoader.cancel();
+		
+		editExecutor.cancelAll();
+		
+		if (cropSelector != null)
+			cropSelector.remove();
+		
+		duplicateGroups = null;
+		regionFile = imageFile;
+		int previewWidth = (int) imageViewer.getWidth();
+		int previewHeight = (int) imageViewer.getHeight();
+		
+		Task<Image> previewTask = new Task<Image>()
+		{
+			{ updateTitle("Reading " + imageFile.getName()); }
+			
+			@Override
+			protected Image call() throws Exception
+			{
+				Dimension size = RegionReader.readSize(imageFile);
+				regionSourceWidth = size.width;
+				regionSourceHeight = size.height;
+				return PixelFormats.toFXImage(RegionReader.readPreview(imageFile, previewWidth, previewHeight));
+			}
+		};
+		
+		previewTask.setOnSucceeded(event ->
+		{
+			if (regionFile != imageFile)
+				return;
+			
+			imageViewer.update(previewTask.getValue());
+			autoTrimButton.setDisable(true);
+			cropBox.toFront();
+			cropSelector = new CropSelector(imageViewer, imageViewer.getImageView(), confirmCropButton);
+		});
+		
+		previewTask.setOnFailed(event ->
+		{
+			previewTask.getException().printStackTrace();
+			
+			if (regionFile == imageFile)
+				cancelRegion();
+			
+			createErrorAlert("Error: could not read image file.");
+		});
+		
+		previewTask.setOnCancelled(event ->
+		{
+			if (regionFile == imageFile)
+				cancelRegion();
+		});
+		
+		editExecutor.submit(previewTask);
+	}
+	
+	/**
+	 * Decodes the selected region of the previewed file in the background and opens it as a new project.
+	 * The selection is scaled from the preview to the full resolution image.
+	 * 
+	 * @param x The X coordinate of the selection in the preview
+	 * @param y The Y coordinate of the selection in the preview
+	 * @param width The width of the selection in the preview
+	 * @param height The height of the selection in the preview
+	 */
+	private void openRegion(int x, int y, int width, int height)
+	{
+		File imageFile = regionFile;
+		Image preview = imageViewer.getImageView().getImage();
+		double scaleX = regionSourceWidth / preview.getWidth();
+		double scaleY = regionSourceHeight / preview.getHeight();
+		Rectangle region = new Rectangle((int) (x * scaleX), (int) (y * scaleY),
+				(int) Math.ceil(width * scaleX), (int) Math.ceil(height * scaleY));
+		regionFile = null;
+		
+		Task<BufferedImage> regionTask = new Task<BufferedImage>()
+		{
+			{ updateTitle("Reading region of " + imageFile.getName()); }
+			
+			@Override
+			protected BufferedImage call() throws Exception
+			{
+				return PixelFormats.normalize(RegionReader.readRegion(imageFile, region));
+			}
+		};
+		
+		regionTask.setOnSucceeded(event ->
+		{
+			if (project != null && project.isRecording())
+				stopRecording();
+			
+			if (project != null)
+				project.close();
+			
+			project = Project.fromRegion(imageFile, regionTask.getValue());
+			photoReel = new PhotoReel(imageFile);
+			displayProjectImage();
+			updateGUI();
+			setEditingDisabled(false);
+			historyList.setDisable(false);
+		});
+		
+		regionTask.setOnFailed(event ->
+		{
+			regionTask.getException().printStackTrace();
+			cancelRegion();
+			createErrorAlert("Error: could not read image file.");
+		});
+		
+		editExecutor.submit(regionTask);
 	}
 	
 	/**
-	 * Opens the resize tool
-	 * (Requirements 2.4.1/2.4.2)
+	 * Leaves region selection and returns to the current project, if there is one.
 	 */
-	@FXML void resizeAction() 
+	private void cancelRegion()
 	{
-		resizeSlider.setValue(resizeSlider.getMax());
-		confirmResizeButton.setDisable(true);
-		resizeBox.toFront();
+		regionFile = null;
+		
+		if (project == null)
+		{
+			imageViewer.update(null);
+			return;
+		}
+		
+		displayProjectImage();
+		
+		if (!editExecutor.busyProperty().get())
+		{
+			updateGUI();
+			setEditingDisabled(false);
+			historyList.setDisable(false);
+		}
 	}
 	
 	/**
-	 * Commences the resize operation
-	 * (Requirement 2.4.4)
+	 * Renders an editing operation in the background against a snapshot of the project.
+	 * The result is committed to the project and shown in the imageViewer when the
+	 * task finishes, unless the task was cancelled or a different project was opened.
+	 * 
+	 * @param operation The edit to perform
 	 */
-	@FXML void confirmResizeAction()
+	private void runEdit(Operation operation)
 	{
-		double percentage = Math.round(resizeSlider.getValue());
-		double scaleFactor = percentage / 100;
-		project.resize(scaleFactor);
-		imageViewer.update(SwingFXUtils.toFXImage(project.getImage(), null));
-		updateGUI();
-		editingBox.toFront();
+		discardPreviews();
+		EditTask editTask = new EditTask(project, operation);
+		
+		editTask.setOnSucceeded(event ->
+		{
+			if (editTask.getProject() == project && editTask.commit())
+			{
+				imageViewer.update(editTask.getFXImage());
+				updateGUI();
+			}
+		});
+		
+		editTask.setOnFailed(event ->
+		{
+			editTask.getException().printStackTrace();
+			createErrorAlert("Error: could not edit image");
+		});
+		
+		editExecutor.submit(editTask);
 	}
 	
 	/**
-	 * Closes the resize tool
-	 * (Requirement 2.4.3)
+	 * Restores a state of the project's editing history in the background and shows it
+	 * in the imageViewer. This is used by undo, redo and the history panel.
+	 * 
+	 * @param index The history state to restore
 	 */
-	@FXML void cancelResizeAction()
+	private void restoreHistoryState(int index)
 	{
-		editingBox.toFront();
+		discardPreviews();
+		HistoryTask historyTask = new HistoryTask(project, index);
+		
+		historyTask.setOnSucceeded(event ->
+		{
+			if (historyTask.getProject() == project && historyTask.commit())
+			{
+				imageViewer.update(historyTask.getFXImage());
+				updateGUI();
+			}
+		});
+		
+		historyTask.setOnFailed(event ->
+		{
+			historyTask.getException().printStackTrace();
+			createErrorAlert("Error: could not restore image");
+		});
+		
+		editExecutor.submit(historyTask);
 	}
 	
 	/**
-	 * Opens the brightness/contrast tool
-	 * (Requirement 2.5.0)
+	 * Converts the project's current image for display in the background
+	 * and shows it in the imageViewer, unless the project has changed in the meantime.
 	 */
-	@FXML void editBrightnessAction() 
+	private void displayProjectImage()
 	{
-		brightnessSlider.setValue(100);
-		contrastSlider.setValue(100);
-		brightnessBox.toFront();
+		discardPreviews();
+		Project target = project;
+		BufferedImage snapshot = project.getImage();
+		Task<Image> displayTask = new Task<Image>()
+		{
+			@Override
+			protected Image call()
+			{
+				return PixelFormats.toFXImage(snapshot);
+			}
+		};
+		
+		displayTask.setOnSucceeded(event ->
+		{
+			if (project == target && project.getImage() == snapshot)
+				imageViewer.update(displayTask.getValue());
+		});
+		
+		editExecutor.execute(displayTask);
 	}
 	
 	/**
-	 * Commences the brightness/contrast adjustment
-	 * (Requirements 2.5.1/2.5.2)
+	 * Shows a preview rendered by the project and hands it back to the project's pool once it is converted.
+	 * Previews of the same size are written into the same JavaFX image, so dragging a slider allocates
+	 * next to nothing once the first preview has been shown.
 	 */
-	@FXML void confirmBrightnessAction()
+	private void showPreview(BufferedImage previewImage)
 	{
-		double brightness = brightnessSlider.getValue() - 100;
-		double contrast = contrastSlider.getValue() / 100;
-		project.adjustBrightnessContrast(brightness, contrast);
-		imageViewer.update(SwingFXUtils.toFXImage(project.getImage(), null));
-		updateGUI();
-		editingBox.toFront();
+		previewFXImage = PixelFormats.toFXImage(previewImage, previewFXImage);
+		project.releasePreview(previewImage);
+		imageViewer.update(previewFXImage);
 	}
 	
 	/**
-	 * Closes the brightness/contrast tool
+	 * Renders a preview of the project in the background and shows it when it is done.
+	 * Previews run on the editExecutor in order with the edits, but don't make it busy.
+	 * Only one preview is rendered at a time: requests made while one is rendering replace each other,
+	 * so dragging a slider only renders the latest position once the previous preview is shown.
+	 * 
+	 * @param renderer Renders the preview of the project it is given
 	 */
-	@FXML void cancelBrightnessAction()
+	private void requestPreview(Function<Project, BufferedImage> renderer)
 	{
-		editingBox.toFront();
-		imageViewer.update(SwingFXUtils.toFXImage(project.getImage(), null));
+		pendingPreview = renderer;
+		
+		if (!previewRendering)
+			renderNextPreview();
 	}
 	
 	/**
-	 * Sets a reference to the stage from the Main class
-	 * and adds keyboard shortcuts and exit event logic.
+	 * Starts rendering the latest requested preview, if there is one
 	 */
-	public void setUp(Stage stage)
+	private void renderNextPreview()
 	{
-		this.stage = stage;
+		Function<Project, BufferedImage> renderer = pendingPreview;
+		pendingPreview = null;
+		previewRendering = renderer != null;
 		
-		stage.getScene().setOnKeyPressed(event ->
+		if (renderer == null)
+			return;
+		
+		Project target = project;
+		int generation = previewGeneration;
+		Task<BufferedImage> previewTask = new Task<BufferedImage>()
 		{
-			if (event.isControlDown())
+			@Override
+			protected BufferedImage call()
 			{
-				KeyCode key = event.getCode();
-				if (key == KeyCode.O)
-					openFile();
-				if (key == KeyCode.S && !saveButton.isDisable())
-					saveButtonAction();
-				if (key == KeyCode.Z && !undoButton.isDisable())
-					undoButtonAction();
-				if (key == KeyCode.Y && !redoButton.isDisable())
-					redoButtonAction();
-				if (key == KeyCode.LEFT && !previousButton.isDisable())
-					previousButtonAction();
-				if (key == KeyCode.RIGHT && !nextButton.isDisable())
-					nextButtonAction();
+				return renderer.apply(target);
 			}
+		};
+		
+		previewTask.setOnSucceeded(event ->
+		{
+			//Previews that finish after an edit, undo or tool change are stale, so they aren't shown
+			if (project == target && generation == previewGeneration)
+				showPreview(previewTask.getValue());
+			else
+				target.releasePreview(previewTask.getValue());
+			
+			renderNextPreview();
 		});
-				
-		stage.setOnCloseRequest(event ->
+		
+		previewTask.setOnFailed(event ->
 		{
-			if (project != null && project.hasUnsavedChanges())
-				createUnsavedChangesAlert();
+			previewTask.getException().printStackTrace();
+			renderNextPreview();
 		});
+		
+		editExecutor.execute(previewTask);
+	}
+	
+	/**
+	 * Drops the requested preview and keeps the one being rendered from being shown.
+	 * This is called before anything else is shown in the imageViewer.
+	 */
+	private void discardPreviews()
+	{
+		pendingPreview = null;
+		++previewGeneration;
 	}
+	
+	/**
+	 * Enables or disables the controls that operate on the current project.
+	 * Edits that can't be applied to images too large for the heap stay disabled for those projects.
+	 * @param disabled true to disable the controls, false to enable them
+	 */
+	private void setEditingDisabled(boolean disabled)
+	{
+		boolean offHeap = project != null && project.isOffHeap();
 		
-	/*
-	 * Provides a file chooser to allow the user to select an image file for viewing and editing.
-	 * Creates a new project and resets the GUI.
-	 * (Requirements 1.1.1/1.1.2)
+		saveAsItem.setDisable(disabled);
+		exportTilesItem.setDisable(disabled);
+		findDuplicatesItem.setDisable(duplicateFinder != null && !duplicateFinder.isDone() ? false : disabled);
+		slideshowItem.setDisable(disabled);
+		contactSheetItem.setDisable(contactSheetTask != null && !contactSheetTask.isDone() ? false : disabled);
+		recordMacroItem.setDisable(disabled);
+		applyMacroItem.setDisable(macroBatch != null && !macroBatch.isDone() ? false : disabled || macro == null);
+		rotateRightButton.setDisable(disabled);
+		rotateLeftButton.setDisable(disabled);
+		straightenButton.setDisable(disabled || offHeap);
+		flipHorizontalButton.setDisable(disabled);
+		flipVerticalButton.setDisable(disabled);
+		cropButton.setDisable(disabled);
+		resizeButton.setDisable(disabled || offHeap);
+		editBrightnessButton.setDisable(disabled);
+		filtersButton.setDisable(disabled || offHeap);
+	}
+	
+	/**
+	 * Stops recording a macro and keeps it for applyMacroAction() if any edits were recorded
+	 * @return false if no edits were recorded
 	 */
-	private void openFile()
+	private boolean stopRecording()
 	{
-		FileChooser fileChooser = new FileChooser();		
-		FileChooser.ExtensionFilter filter = new FileChooser.ExtensionFilter("Image Files", COMPATIBLE_FORMATS);
-		fileChooser.getExtensionFilters().add(filter);
+		Macro recorded = project.stopRecording();
+		recordMacroItem.setText("Record Macro");
 		
-		for (String ext : COMPATIBLE_FORMATS)
-		{
-			filter = new FileChooser.ExtensionFilter(ext, ext);
-			fileChooser.getExtensionFilters().add(filter);
-		}
+		if (recorded.isEmpty())
+			return false;
 		
-		fileChooser.setTitle("JIVE - Open an Image");
-		File imageFile = fileChooser.showOpenDialog(stage);
-				
-		if (imageFile != null)
-		{			
-			//Users can enter non-image files manually, so additional validation is done here
-			String fileName = imageFile.getName();
-			int extensionIndex = fileName.lastIndexOf(".");
-			String extension = fileName.substring(extensionIndex + 1).toLowerCase();
-			
-			if (!(COMPATIBLE_FORMATS.contains("*." + extension)))
-			{
-				createErrorAlert("JIVE does not support ." + extension + " files.");
-				return;
-			}
-			
-			loadFile(imageFile);
-		}
+		macro = recorded;
+		applyMacroItem.setDisable(false);
+		return true;
 	}
 	
 	/**
-	 * Loads the file into JIVE.
-	 * Creates a new Project and PhotoReel and updates the GUI.
-	 * (Requirement 1.4.5)
-	 * 
-	 * @param imageFile The file to load
+	 * Shows or hides the batch progress list on the left side of the viewer
+	 * @param show true to show the list
 	 */
-	private void loadFile(File imageFile)
+	private void showBatchList(boolean show)
 	{
-		try
-		{
-			Image image = new Image(imageFile.toURI().toURL().toExternalForm());
-			imageViewer.update(image);
-			project = new Project(imageFile);
-			photoReel = new PhotoReel(imageFile);
-			updateGUI();
-		}
-		catch (IOException e)
-		{
-			e.printStackTrace();
-			imageViewer.update(null);
-			project = null;
-			createErrorAlert("Error: could not read image file.");
-			return;				
-		}
+		batchList.setVisible(show);
+		batchItem.setText(show ? "Hide Batch Progress" : "Show Batch Progress");
 		
-		saveAsItem.setDisable(false);
-		rotateRightButton.setDisable(false);
-		rotateLeftButton.setDisable(false);
-		flipHorizontalButton.setDisable(false);
-		flipVerticalButton.setDisable(false);
-		cropButton.setDisable(false);
-		resizeButton.setDisable(false);
-		editBrightnessButton.setDisable(false);
-		editingBox.toFront();
-		
-		if (cropSelector != null)
-			cropSelector.remove();
+		double offset = show ? batchList.getPrefWidth() + 10 : 0;
+		AnchorPane.setLeftAnchor(viewerPane, 10 + offset);
+		AnchorPane.setLeftAnchor(previousButton, 50 + offset);
 	}
 	
 	/**
@@ -517,6 +1749,12 @@ public class Controller
 			previousButton.setDisable(false);
 		else
 			previousButton.setDisable(true);
+		
+		updatingHistoryList = true;
+		historyList.getItems().setAll(project.getHistory());
+		historyList.getSelectionModel().select(project.getHistoryPosition());
+		historyList.scrollTo(project.getHistoryPosition());
+		updatingHistoryList = false;
 	}
 	
 	/**
@@ -535,11 +1773,120 @@ public class Controller
 		mainPane.setEffect(null);
 	}
 	
+	/**
+	 * Displays an information alert in the GUI.
+	 * @param message The text to be shown in the alert
+	 */
+	private void createInformationAlert(String message)
+	{
+		Alert alert = new Alert(AlertType.INFORMATION, message);
+		alert.setHeaderText(null);
+		alert.setTitle("JIVE");
+		alert.initOwner(stage);
+		GaussianBlur blur = new GaussianBlur(5);
+		mainPane.setEffect(blur);
+		alert.showAndWait();
+		mainPane.setEffect(null);
+	}
+	
+	/**
+	 * Displays the options for saving a JPEG, PNG or GIF file, such as the JPEG quality.
+	 * The chosen options are kept by the project for later saves.
+	 * @param savedFile The file the image is about to be saved to
+	 * @return false if the user cancelled the save, true otherwise
+	 */
+	private boolean showSaveOptions(File savedFile)
+	{
+		String name = savedFile.getName().toLowerCase();
+		boolean jpeg = name.endsWith(".jpg") || name.endsWith(".jpeg");
+		boolean png = name.endsWith(".png");
+		
+		if (!jpeg && !png && !name.endsWith(".gif"))
+			return true;
+		
+		EncoderSettings settings = project.getEncoderSettings();
+		GridPane grid = new GridPane();
+		grid.setHgap(10);
+		grid.setVgap(10);
+		
+		Slider qualitySlider = new Slider(0, 100, Math.round(settings.getJpegQuality() * 100));
+		Label qualityLabel = new Label();
+		qualityLabel.textProperty().bind(qualitySlider.valueProperty().asString("%.0f"));
+		CheckBox progressiveCheckBox = new CheckBox("Progressive");
+		progressiveCheckBox.setSelected(settings.isProgressive());
+		CheckBox optimizeCheckBox = new CheckBox("Optimize Huffman tables");
+		optimizeCheckBox.setSelected(settings.isOptimizeHuffman());
+		ChoiceBox<EncoderSettings.Subsampling> subsamplingChoiceBox = new ChoiceBox<EncoderSettings.Subsampling>();
+		subsamplingChoiceBox.getItems().addAll(EncoderSettings.Subsampling.values());
+		subsamplingChoiceBox.setValue(settings.getSubsampling());
+		
+		Slider levelSlider = new Slider(0, 9, settings.getPngLevel());
+		levelSlider.setMajorTickUnit(1);
+		levelSlider.setMinorTickCount(0);
+		levelSlider.setSnapToTicks(true);
+		Label levelLabel = new Label();
+		levelLabel.textProperty().bind(levelSlider.valueProperty().asString("%.0f"));
+		
+		CheckBox indexedCheckBox = new CheckBox("Reduce to a palette");
+		indexedCheckBox.setSelected(settings.isIndexedPng());
+		Slider paletteSlider = new Slider(2, 256, settings.getPaletteSize());
+		Label paletteLabel = new Label();
+		paletteLabel.textProperty().bind(paletteSlider.valueProperty().asString("%.0f"));
+		ChoiceBox<ColorQuantizer.Dithering> ditheringChoiceBox = new ChoiceBox<ColorQuantizer.Dithering>();
+		ditheringChoiceBox.getItems().addAll(ColorQuantizer.Dithering.values());
+		ditheringChoiceBox.setValue(settings.getDithering());
+		
+		if (jpeg)
+		{
+			grid.addRow(0, new Label("Quality"), qualitySlider, qualityLabel);
+			grid.addRow(1, new Label("Chroma subsampling"), subsamplingChoiceBox);
+			grid.add(progressiveCheckBox, 1, 2);
+			grid.add(optimizeCheckBox, 1, 3);
+		}
+		else
+		{
+			if (png)
+			{
+				grid.addRow(0, new Label("Compression level"), levelSlider, levelLabel);
+				grid.add(indexedCheckBox, 1, 1);
+				paletteSlider.disableProperty().bind(indexedCheckBox.selectedProperty().not());
+				ditheringChoiceBox.disableProperty().bind(indexedCheckBox.selectedProperty().not());
+			}
+			
+			grid.addRow(2, new Label("Colors"), paletteSlider, paletteLabel);
+			grid.addRow(3, new Label("Dithering"), ditheringChoiceBox);
+		}
+		
+		Dialog<EncoderSettings> dialog = new Dialog<EncoderSettings>();
+		dialog.setTitle("JIVE - Save Options");
+		dialog.initOwner(stage);
+		dialog.getDialogPane().setContent(grid);
+		dialog.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
+		dialog.setResultConverter(button -> button != ButtonType.OK ? null : new EncoderSettings(
+				(float) (Math.round(qualitySlider.getValue()) / 100.0), progressiveCheckBox.isSelected(), optimizeCheckBox.isSelected(),
+				subsamplingChoiceBox.getValue(), (int) Math.round(levelSlider.getValue()), indexedCheckBox.isSelected(),
+				(int) Math.round(paletteSlider.getValue()), ditheringChoiceBox.getValue()));
+		
+		GaussianBlur blur = new GaussianBlur(5);
+		mainPane.setEffect(blur);
+		Optional<EncoderSettings> response = dialog.showAndWait();
+		mainPane.setEffect(null);
+		
+		if (!response.isPresent())
+			return false;
+		
+		project.setEncoderSettings(response.get());
+		return true;
+	}
+	
 	/**
 	 * Displays an alert prompting the user to save unsaved changes.
-	 * The changes are saved if the user responds 'yes'
+	 * The changes are saved in the background if the user responds 'yes'. Opening another
+	 * file cancels running tasks, so whatever the user was doing only carries on once the save succeeds.
+	 * 
+	 * @param next Runs after the changes are saved, or straight away if the user responds 'no'
 	 */
-	private void createUnsavedChangesAlert()
+	private void createUnsavedChangesAlert(Runnable next)
 	{
 		ButtonType yesButton = new ButtonType("Yes", ButtonBar.ButtonData.OK_DONE);
 		ButtonType noButton = new ButtonType("No", ButtonBar.ButtonData.CANCEL_CLOSE);
@@ -556,8 +1903,10 @@ public class Controller
 		Optional<ButtonType> response = alert.showAndWait();
 		mainPane.setEffect(null);
 		
-		if (response.get() == yesButton)
-			project.save();
+		if (response.isPresent() && response.get() == yesButton)
+			saveProject(next);
+		else
+			next.run();
 	}
 	
 	/**
@@ -595,13 +1944,11 @@ public class Controller
 		double contrastValue = contrastSlider.getValue() / 100;
 		brightnessLabel.setText(String.valueOf((int) brightnessValue));
 		
-		//This method of previewing is CPU and RAM intensive.
-		//A better method would be to preview the adjustments on the JavaFX Image
-		//using ColorAdjust.setBrightness(), then implement a custom RescaleOp in the ImageEditor
-		//class that uses the ColorAdjust brightness algorithm to edit the underlying bufferedImage. 
-		//Oracle hasn't published the algorithm used in ColorAdjust.setBrightness().
-		BufferedImage previewImage = project.previewBrightnessContrast(brightnessValue, contrastValue);
-		imageViewer.update(SwingFXUtils.toFXImage(previewImage, null));
+		//Previews are rendered on a copy of the image scaled to fit the viewer (see Project.getPreviewProxy),
+		//so the cost of a slider tick doesn't depend on the size of the image.
+		double maxWidth = imageViewer.getWidth();
+		double maxHeight = imageViewer.getHeight();
+		requestPreview(target -> target.previewBrightnessContrast(brightnessValue, contrastValue, maxWidth, maxHeight));
 	};
 	
 	/**
@@ -614,7 +1961,117 @@ public class Controller
 		double brightnessValue = brightnessSlider.getValue() - 100;
 		contrastLabel.setText(String.valueOf((int) (contrastValue * 100 - 100)));
 
-		BufferedImage previewImage = project.previewBrightnessContrast(brightnessValue, contrastValue);
-		imageViewer.update(SwingFXUtils.toFXImage(previewImage, null));
+		double maxWidth = imageViewer.getWidth();
+		double maxHeight = imageViewer.getHeight();
+		requestPreview(target -> target.previewBrightnessContrast(brightnessValue, contrastValue, maxWidth, maxHeight));
+	};
+	
+	/**
+	 * This listener updates the straightenAngleLabel and previews the rotation on a
+	 * low resolution copy of the image while the slider is moving. The full resolution
+	 * image is only rotated when the rotation is confirmed.
+	 */
+	ChangeListener<Object> straightenListener = (observable, oldValue, newValue) ->
+	{
+		double angle = Math.round(straightenSlider.getValue() * 10) / 10.0;
+		straightenAngleLabel.setText(angle + "\u00B0");
+		confirmStraightenButton.setDisable(angle == 0);
+		
+		if (angle == 0)
+		{
+			displayProjectImage();
+			return;
+		}
+		
+		boolean autoCrop = autoCropCheckBox.isSelected();
+		double maxWidth = imageViewer.getWidth();
+		double maxHeight = imageViewer.getHeight();
+		requestPreview(target -> target.previewRotate(angle, autoCrop, maxWidth, maxHeight));
+	};
+	
+	/**
+	 * Shows the task progress panel and disables the controls that could conflict with
+	 * a running editing task. The controls are restored when the task finishes.
+	 */
+	ChangeListener<Boolean> busyListener = (observable, wasBusy, isBusy) ->
+	{
+		boolean loading = imageLoader != null && !imageLoader.isDone();
+		setEditingDisabled(isBusy || loading || project == null || regionFile != null);
+		openFileItem.setDisable(isBusy);
+		openRegionItem.setDisable(isBusy);
+		historyList.setDisable(isBusy || regionFile != null);
+		
+		if (isBusy)
+		{
+			saveButton.setDisable(true);
+			undoButton.setDisable(true);
+			redoButton.setDisable(true);
+			previousButton.setDisable(true);
+			nextButton.setDisable(true);
+			taskBox.toFront();
+		}
+		else
+		{
+			taskBox.toBack();
+			
+			if (project != null && regionFile == null)
+				updateGUI();
+			
+			//The finished task's own handlers run first, then the file handed over during it is opened
+			if (pendingFile != null)
+			{
+				File imageFile = pendingFile;
+				pendingFile = null;
+				Platform.runLater(() -> openFiles(Arrays.asList(imageFile)));
+			}
+		}
+	};
+	
+	/**
+	 * This listener updates the labels of the sharpen and blur tool, enables the sliders the selected
+	 * filter uses and previews the filter on a low resolution copy of the image (see Project.getPreviewProxy).
+	 */
+	ChangeListener<Object> filterListener = (observable, oldValue, newValue) ->
+	{
+		String filter = filterChoiceBox.getValue();
+		double radius = Math.round(filterRadiusSlider.getValue() * 2) / 2.0;
+		double amount = filterAmountSlider.getValue() / 100;
+		
+		filterRadiusSlider.setDisable(SHARPEN.equals(filter));
+		filterAmountSlider.setDisable(BLUR.equals(filter));
+		filterRadiusLabel.setText(radius + " px");
+		filterAmountLabel.setText(Math.round(amount * 100) + "%");
+		
+		double maxWidth = imageViewer.getWidth();
+		double maxHeight = imageViewer.getHeight();
+		
+		if (BLUR.equals(filter))
+			requestPreview(target -> target.previewGaussianBlur(radius, maxWidth, maxHeight));
+		else if (UNSHARP_MASK.equals(filter))
+			requestPreview(target -> target.previewUnsharpMask(radius, amount, UNSHARP_MASK_THRESHOLD, maxWidth, maxHeight));
+		else
+			requestPreview(target -> target.previewSharpen(amount, maxWidth, maxHeight));
+	};
+	
+	/**
+	 * Updates the slideshowIntervalLabel to the whole number of seconds selected on the slider
+	 */
+	ChangeListener<Number> slideshowIntervalListener = (observable, oldValue, newValue) ->
+	{
+		slideshowIntervalLabel.setText(Math.round(newValue.doubleValue()) + " s");
+	};
+	
+	/**
+	 * Restores the history state selected in the history panel.
+	 * Selections made by updateGUI() to follow the project are ignored.
+	 */
+	ChangeListener<Number> historyListener = (observable, oldValue, newValue) ->
+	{
+		int index = newValue.intValue();
+		
+		if (updatingHistoryList || project == null || index < 0 || index == project.getHistoryPosition())
+			return;
+		
+		restoreHistoryState(index);
 	};
 }
\ No newline at end of file
@@ -0,0 +1,543 @@
+package jive.java;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Convolver blurs and sharpens images with separable Gaussian filters.
+ * <br><br>
+ * A two-dimensional Gaussian is the product of a horizontal and a vertical one, so each pixel is
+ * filtered along its row and then along its column. Small radii use an exact Gaussian kernel. Larger
+ * radii use three box blurs in a row (see boxRadii()), which approximate a Gaussian closely. A box blur
+ * is computed as a running sum, so large blurs cost the same per pixel whatever their radius.
+ * <br><br>
+ * The image is processed in square tiles in parallel. Each tile reads a halo of pixels around it as
+ * wide as the filter reaches, with pixels beyond the edges of the image repeating the edge pixels,
+ * so tiles don't depend on each other and the memory used per tile stays small. The buffers a tile is
+ * filtered in are handed on to the next tile and kept for the next filter, up to one set per thread, so
+ * filtering previews over and over doesn't allocate them again.
+ * <br><br>
+ * Images with an alpha channel are filtered with premultiplied alpha, so transparent pixels
+ * don't bleed their color into their neighbours.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class Convolver
+{
+	static final int TILE_SIZE = 256;
+	static final double BOX_BLUR_RADIUS = 4;	//Radii above this use box blurs instead of an exact kernel
+	static final double MIN_RADIUS = 0.25;		//Radii below this leave the image unchanged
+	static final int MAX_SPARE_BUFFERS = Runtime.getRuntime().availableProcessors() + 1;
+	static final long MAX_SPARE_BUFFER_BYTES = 16 << 20;	//Buffers for larger halos aren't kept between filters
+
+	private static final ConcurrentLinkedQueue<TileBuffers> spareBuffers = new ConcurrentLinkedQueue<TileBuffers>();
+
+	/**
+	 * Blurs an image with a Gaussian filter
+	 *
+	 * @param bufferedImage - the image to blur, which is not modified
+	 * @param radius - the standard deviation of the Gaussian in pixels
+	 * @return a blurred copy of the image in a canonical layout (see PixelFormats)
+	 */
+	public static BufferedImage gaussianBlur(BufferedImage bufferedImage, double radius)
+	{
+		return filter(bufferedImage, radius, 0, 0, true, null);
+	}
+
+	/**
+	 * Blurs an image with a Gaussian filter into an image taken from a pool
+	 *
+	 * @param rasterPool - the pool to take the result and any temporary copy from, or null to allocate them
+	 * @see #gaussianBlur(BufferedImage, double)
+	 */
+	static BufferedImage gaussianBlur(BufferedImage bufferedImage, double radius, RasterPool rasterPool)
+	{
+		return filter(bufferedImage, radius, 0, 0, true, rasterPool);
+	}
+
+	/**
+	 * Sharpens an image by adding the difference between it and a blurred copy of it.
+	 * Differences no larger than the threshold are left out, so noise and smooth areas
+	 * such as skin aren't sharpened.
+	 *
+	 * @param bufferedImage - the image to sharpen, which is not modified
+	 * @param radius - the standard deviation of the blur in pixels, which sets the width of the edges that are sharpened
+	 * @param amount - the factor the difference is multiplied by, 1.0 adds the difference once
+	 * @param threshold - the smallest difference in a channel (0 to 255) that is sharpened
+	 * @return a sharpened copy of the image in a canonical layout (see PixelFormats)
+	 */
+	public static BufferedImage unsharpMask(BufferedImage bufferedImage, double radius, double amount, int threshold)
+	{
+		return filter(bufferedImage, radius, (float) amount, threshold, false, null);
+	}
+
+	/**
+	 * Sharpens an image with an unsharp mask into an image taken from a pool
+	 *
+	 * @param rasterPool - the pool to take the result and any temporary copy from, or null to allocate them
+	 * @see #unsharpMask(BufferedImage, double, double, int)
+	 */
+	static BufferedImage unsharpMask(BufferedImage bufferedImage, double radius, double amount, int threshold, RasterPool rasterPool)
+	{
+		return filter(bufferedImage, radius, (float) amount, threshold, false, rasterPool);
+	}
+
+	private static BufferedImage filter(BufferedImage bufferedImage, double radius, float amount, int threshold, boolean blur,
+			RasterPool rasterPool)
+	{
+		BufferedImage source = bufferedImage;
+
+		//Subimages are copied out of the array they share, into a pooled copy that is released once it has been read
+		if (rasterPool != null && PixelFormats.isCanonical(bufferedImage) && !PixelFormats.isPacked(bufferedImage))
+		{
+			source = rasterPool.acquire(bufferedImage.getWidth(), bufferedImage.getHeight(), bufferedImage.getType());
+			source.getRaster().setDataElements(0, 0, bufferedImage.getRaster());
+		}
+		else
+			source = PixelFormats.toPacked(bufferedImage);
+
+		int width = source.getWidth();
+		int height = source.getHeight();
+		BufferedImage newImage = rasterPool != null ? rasterPool.acquire(width, height, source.getType())
+				: new BufferedImage(width, height, source.getType());
+
+		if (radius < MIN_RADIUS || (!blur && amount == 0))
+		{
+			System.arraycopy(PixelFormats.getData(source), 0, PixelFormats.getData(newImage), 0, width * height);
+			releaseCopy(source, bufferedImage, rasterPool);
+			return newImage;
+		}
+
+		Kernel kernel = new Kernel(radius);
+		Tiles tiles = new Tiles(PixelFormats.getData(source), PixelFormats.getData(newImage), width, height,
+				source.getColorModel().hasAlpha(), kernel);
+
+		//Tiles are at least twice as wide as the halo, so the pixels read per pixel written don't grow with the radius
+		int tileSize = Math.max(TILE_SIZE, 2 * kernel.halo);
+		int tilesAcross = (width + tileSize - 1) / tileSize;
+		int tilesDown = (height + tileSize - 1) / tileSize;
+
+		IntStream.range(0, tilesAcross * tilesDown).parallel().forEach(tile ->
+		{
+			int x = (tile % tilesAcross) * tileSize;
+			int y = (tile / tilesAcross) * tileSize;
+			int tileWidth = Math.min(tileSize, width - x);
+			int tileHeight = Math.min(tileSize, height - y);
+
+			//Spare buffers that are too small for this filter are dropped and replaced
+			TileBuffers buffers = spareBuffers.poll();
+			if (buffers == null || !buffers.fits(tiles.channels, tileSize, kernel.halo))
+				buffers = new TileBuffers(tiles.channels, tileSize, kernel.halo);
+
+			float[][] blurred = tiles.blur(x, y, tileWidth, tileHeight, buffers);
+
+			if (blur)
+				tiles.writeBlurred(blurred, x, y, tileWidth, tileHeight);
+			else
+				tiles.writeSharpened(blurred, x, y, tileWidth, tileHeight, amount, threshold);
+
+			if (buffers.bytes <= MAX_SPARE_BUFFER_BYTES && spareBuffers.size() < MAX_SPARE_BUFFERS)
+				spareBuffers.add(buffers);
+		});
+
+		releaseCopy(source, bufferedImage, rasterPool);
+		return newImage;
+	}
+
+	/*
+	 * Hands a temporary copy of the source image back to the pool it was taken from
+	 */
+	private static void releaseCopy(BufferedImage source, BufferedImage bufferedImage, RasterPool rasterPool)
+	{
+		if (rasterPool != null && source != bufferedImage)
+			rasterPool.release(source);
+	}
+
+	/**
+	 * Finds the radii of three box blurs that together approximate a Gaussian. Box widths are odd,
+	 * the first boxes are one size and the rest two pixels wider, chosen so the variance of the three
+	 * boxes is as close as possible to the variance of the Gaussian.
+	 *
+	 * @param sigma - the standard deviation of the Gaussian
+	 * @return the radius of each box
+	 */
+	static int[] boxRadii(double sigma)
+	{
+		int boxes = 3;
+		double idealWidth = Math.sqrt(12 * sigma * sigma / boxes + 1);
+		int lowerWidth = (int) Math.floor(idealWidth);
+		if (lowerWidth % 2 == 0)
+			--lowerWidth;
+
+		double idealLower = (12 * sigma * sigma - boxes * lowerWidth * lowerWidth - 4 * boxes * lowerWidth - 3 * boxes) / (-4 * lowerWidth - 4);
+		long lowerCount = Math.round(idealLower);
+
+		int[] radii = new int[boxes];
+		for (int i = 0; i < boxes; ++i)
+			radii[i] = ((i < lowerCount ? lowerWidth : lowerWidth + 2) - 1) / 2;
+
+		return radii;
+	}
+
+	/**
+	 * A one-dimensional filter, either an exact Gaussian kernel or a series of box blurs.
+	 * A line of n + 2 * halo values is filtered into n values.
+	 */
+	static final class Kernel
+	{
+		final float[] weights;
+		final int[] boxRadii;
+		final int halo;
+
+		Kernel(double radius)
+		{
+			if (radius > BOX_BLUR_RADIUS)
+			{
+				weights = null;
+				boxRadii = boxRadii(radius);
+				halo = boxRadii[0] + boxRadii[1] + boxRadii[2];
+			}
+			else
+			{
+				int reach = Math.max(1, (int) Math.ceil(3 * radius));
+				weights = new float[2 * reach + 1];
+				boxRadii = null;
+				halo = reach;
+
+				double sum = 0;
+				for (int i = -reach; i <= reach; ++i)
+					sum += Math.exp(-i * i / (2 * radius * radius));
+				for (int i = -reach; i <= reach; ++i)
+					weights[i + reach] = (float) (Math.exp(-i * i / (2 * radius * radius)) / sum);
+			}
+		}
+
+		/**
+		 * Filters a block of rows either along its rows or down its columns. Rows are stride values apart.
+		 * Along rows, each of the rows holds length + 2 * halo values and the output of a row starts where
+		 * its input started. Down columns, the first count columns of length + 2 * halo rows are filtered
+		 * into the first length rows.
+		 *
+		 * @param input - the values to filter, which may be overwritten with intermediate results
+		 * @param scratch - an array the size of input
+		 * @param length - the number of output values per row or column
+		 * @param count - the number of rows or columns to filter
+		 * @param stride - the distance between the starts of two rows
+		 * @param alongRows - true to filter along rows, false to filter down columns
+		 * @return the array holding the output, either input or scratch
+		 */
+		float[] apply(float[] input, float[] scratch, int length, int count, int stride, boolean alongRows)
+		{
+			if (weights != null)
+			{
+				if (alongRows)
+					convolveRows(input, scratch, length, count, stride);
+				else
+					convolveColumns(input, scratch, length, count, stride);
+
+				return scratch;
+			}
+
+			float[] from = input;
+			float[] to = scratch;
+			int remaining = length + 2 * halo;
+
+			for (int radius : boxRadii)
+			{
+				remaining -= 2 * radius;
+
+				if (alongRows)
+					boxBlurRows(from, to, remaining, count, stride, radius);
+				else
+					boxBlurColumns(from, to, remaining, count, stride, radius);
+
+				float[] swap = from;
+				from = to;
+				to = swap;
+			}
+
+			return from;
+		}
+
+		/*
+		 * Output i of a row is the weighted sum of its inputs i to i + 2 * halo.
+		 * Each weight is applied to a whole row at a time, which the JIT can vectorize.
+		 */
+		private void convolveRows(float[] input, float[] output, int length, int rows, int stride)
+		{
+			for (int row = 0; row < rows; ++row)
+			{
+				int start = row * stride;
+				Arrays.fill(output, start, start + length, 0);
+
+				for (int k = 0; k < weights.length; ++k)
+				{
+					float weight = weights[k];
+					for (int i = 0; i < length; ++i)
+						output[start + i] += weight * input[start + k + i];
+				}
+			}
+		}
+
+		/*
+		 * Output row i is the weighted sum of input rows i to i + 2 * halo
+		 */
+		private void convolveColumns(float[] input, float[] output, int length, int columns, int stride)
+		{
+			for (int row = 0; row < length; ++row)
+			{
+				int out = row * stride;
+				Arrays.fill(output, out, out + columns, 0);
+
+				for (int k = 0; k < weights.length; ++k)
+				{
+					float weight = weights[k];
+					int in = (row + k) * stride;
+					for (int column = 0; column < columns; ++column)
+						output[out + column] += weight * input[in + column];
+				}
+			}
+		}
+
+		/*
+		 * Output i of a row is the mean of its inputs i to i + 2 * radius, kept as a running sum
+		 */
+		private static void boxBlurRows(float[] input, float[] output, int length, int rows, int stride, int radius)
+		{
+			int width = 2 * radius + 1;
+			float scale = 1f / width;
+
+			for (int row = 0; row < rows; ++row)
+			{
+				int start = row * stride;
+				float sum = 0;
+				for (int i = 0; i < width; ++i)
+					sum += input[start + i];
+
+				output[start] = sum * scale;
+				for (int i = 1; i < length; ++i)
+				{
+					sum += input[start + i + width - 1] - input[start + i - 1];
+					output[start + i] = sum * scale;
+				}
+			}
+		}
+
+		/*
+		 * Output row i is the mean of input rows i to i + 2 * radius, kept as a running sum per column
+		 */
+		private static void boxBlurColumns(float[] input, float[] output, int length, int columns, int stride, int radius)
+		{
+			int width = 2 * radius + 1;
+			float scale = 1f / width;
+			float[] sums = new float[columns];
+
+			for (int row = 0; row < width; ++row)
+				for (int column = 0; column < columns; ++column)
+					sums[column] += input[row * stride + column];
+
+			for (int column = 0; column < columns; ++column)
+				output[column] = sums[column] * scale;
+
+			for (int row = 1; row < length; ++row)
+			{
+				int added = (row + width - 1) * stride;
+				int removed = (row - 1) * stride;
+				int out = row * stride;
+
+				for (int column = 0; column < columns; ++column)
+				{
+					sums[column] += input[added + column] - input[removed + column];
+					output[out + column] = sums[column] * scale;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The arrays a tile is filtered in, large enough for the largest tile of a filter and its halo
+	 */
+	private static final class TileBuffers
+	{
+		final int tileSize;
+		final int lineLength;
+		final long bytes;
+		final int[] columns;
+		final float[][] lines;
+		final float[] scratch;
+		final float[][] blurred;
+
+		TileBuffers(int channels, int tileSize, int halo)
+		{
+			this.tileSize = tileSize;
+			lineLength = tileSize + 2 * halo;
+			bytes = 4L * (lineLength + (channels + 1L) * lineLength * lineLength + (long) channels * tileSize * tileSize);
+			columns = new int[lineLength];
+			lines = new float[channels][lineLength * lineLength];
+			scratch = new float[lineLength * lineLength];
+			blurred = new float[channels][tileSize * tileSize];
+		}
+
+		/**
+		 * @return true if the buffers can hold a tile of a filter with these dimensions
+		 */
+		boolean fits(int channels, int tileSize, int halo)
+		{
+			return lines.length >= channels && this.tileSize >= tileSize && lineLength >= tileSize + 2 * halo;
+		}
+	}
+
+	/**
+	 * Reads tiles of the source image with their halos and writes filtered tiles to the destination image
+	 */
+	private static final class Tiles
+	{
+		private final int[] source;
+		private final int[] destination;
+		private final int width;
+		private final int height;
+		private final boolean hasAlpha;
+		private final int channels;
+		private final Kernel kernel;
+
+		Tiles(int[] source, int[] destination, int width, int height, boolean hasAlpha, Kernel kernel)
+		{
+			this.source = source;
+			this.destination = destination;
+			this.width = width;
+			this.height = height;
+			this.hasAlpha = hasAlpha;
+			this.channels = hasAlpha ? 4 : 3;
+			this.kernel = kernel;
+		}
+
+		/**
+		 * Blurs one tile
+		 *
+		 * @param buffers - the arrays to filter the tile in, which are overwritten
+		 * @return the blurred channels of the tile (premultiplied if the image has alpha), each tileWidth
+		 * values per row with rows stride tileWidth apart, held in buffers until the next tile is blurred
+		 */
+		float[][] blur(int x, int y, int tileWidth, int tileHeight, TileBuffers buffers)
+		{
+			int halo = kernel.halo;
+			int lineLength = tileWidth + 2 * halo;
+			int rows = tileHeight + 2 * halo;
+			float[][] blurred = buffers.blurred;
+
+			//Columns of the tile and its halo, repeating the edge pixels beyond the image
+			int[] columns = buffers.columns;
+			for (int i = 0; i < lineLength; ++i)
+				columns[i] = Math.min(width - 1, Math.max(0, x - halo + i));
+
+			float[][] lines = buffers.lines;
+			float[] scratch = buffers.scratch;
+
+			for (int row = 0; row < rows; ++row)
+			{
+				int offset = Math.min(height - 1, Math.max(0, y - halo + row)) * width;
+				int line = row * lineLength;
+
+				for (int i = 0; i < lineLength; ++i)
+				{
+					int pixel = source[offset + columns[i]];
+					float red = (pixel >> 16) & 0xFF;
+					float green = (pixel >> 8) & 0xFF;
+					float blue = pixel & 0xFF;
+
+					if (hasAlpha)
+					{
+						float alpha = pixel >>> 24;
+						float scale = alpha / 255f;
+						red *= scale;
+						green *= scale;
+						blue *= scale;
+						lines[3][line + i] = alpha;
+					}
+
+					lines[0][line + i] = red;
+					lines[1][line + i] = green;
+					lines[2][line + i] = blue;
+				}
+			}
+
+			for (int channel = 0; channel < channels; ++channel)
+			{
+				float[] horizontal = kernel.apply(lines[channel], scratch, tileWidth, rows, lineLength, true);
+				float[] spare = horizontal == scratch ? lines[channel] : scratch;
+
+				//The rows are packed to tileWidth values so the columns are filtered from contiguous rows
+				for (int row = 0; row < rows; ++row)
+					System.arraycopy(horizontal, row * lineLength, spare, row * tileWidth, tileWidth);
+
+				float[] vertical = kernel.apply(spare, horizontal, tileHeight, tileWidth, tileWidth, false);
+				System.arraycopy(vertical, 0, blurred[channel], 0, tileWidth * tileHeight);
+			}
+
+			return blurred;
+		}
+
+		void writeBlurred(float[][] blurred, int x, int y, int tileWidth, int tileHeight)
+		{
+			for (int row = 0; row < tileHeight; ++row)
+			{
+				int out = (y + row) * width + x;
+
+				for (int i = 0, t = row * tileWidth; i < tileWidth; ++i, ++t)
+				{
+					float red = blurred[0][t];
+					float green = blurred[1][t];
+					float blue = blurred[2][t];
+					int alpha = 0xFF;
+
+					if (hasAlpha)
+					{
+						alpha = Math.round(blurred[3][t]);
+						float scale = alpha == 0 ? 0 : 255f / blurred[3][t];
+						red *= scale;
+						green *= scale;
+						blue *= scale;
+					}
+
+					destination[out + i] = alpha << 24 | clamp(red) << 16 | clamp(green) << 8 | clamp(blue);
+				}
+			}
+		}
+
+		void writeSharpened(float[][] blurred, int x, int y, int tileWidth, int tileHeight, float amount, int threshold)
+		{
+			for (int row = 0; row < tileHeight; ++row)
+			{
+				int offset = (y + row) * width + x;
+
+				for (int i = 0, t = row * tileWidth; i < tileWidth; ++i, ++t)
+				{
+					int pixel = source[offset + i];
+					int alpha = hasAlpha ? pixel >>> 24 : 0xFF;
+					float scale = alpha / 255f;
+					int color = pixel & (hasAlpha ? 0xFF000000 : 0);
+
+					//Channels are sharpened premultiplied to match the blur, the alpha channel is kept
+					for (int channel = 0, shift = 16; channel < 3; ++channel, shift -= 8)
+					{
+						float original = ((pixel >> shift) & 0xFF) * scale;
+						float difference = original - blurred[channel][t];
+						float sharpened = Math.abs(difference) > threshold ? original + amount * difference : original;
+						float value = alpha == 0 ? 0 : Math.min(alpha, Math.max(0, sharpened)) / scale;
+						color |= clamp(value) << shift;
+					}
+
+					destination[offset + i] = hasAlpha ? color : color | 0xFF000000;
+				}
+			}
+		}
+
+		private static int clamp(float value)
+		{
+			return Math.min(255, Math.max(0, (int) (value + 0.5f)));
+		}
+	}
+}
@@ -236,6 +236,42 @@ public class CropSelector
     	displayHeight = Math.min(image.getFitHeight(), image.getFitWidth() / aspectRatio);
 	};
     
+    /**
+     * Selects an area of the image as if it had been drawn by the user.
+     * This is used to preview the area found by the auto-trim tool.
+     * 
+     * @param x The X coordinate of the area in image pixels
+     * @param y The Y coordinate of the area in image pixels
+     * @param width The width of the area in image pixels
+     * @param height The height of the area in image pixels
+     */
+    public void setSelection(int x, int y, int width, int height)
+    {
+        bounds = image.getBoundsInParent();
+        rectangleMinBoundX = bounds.getMinX();
+        rectangleMaxBoundX = bounds.getMaxX();
+        rectangleMinBoundY = bounds.getMinY();
+        rectangleMaxBoundY = bounds.getMaxY();
+        
+        //Scale the area to the displayed size of the image
+        double scaleX = displayWidth < imageWidth ? displayWidth / imageWidth : 1;
+        double scaleY = displayHeight < imageHeight ? displayHeight / imageHeight : 1;
+        
+        rectangle.setX(rectangleMinBoundX + x * scaleX);
+        rectangle.setY(rectangleMinBoundY + y * scaleY);
+        rectangle.setWidth(width * scaleX);
+        rectangle.setHeight(height * scaleY);
+        
+        pane.getChildren().remove(rectangle);
+        pane.getChildren().add(rectangle);
+        
+        cropX = x;
+        cropY = y;
+        cropWidth = width;
+        cropHeight = height;
+        confirmButton.setDisable(false);
+    }
+    
 	/**
 	 * Removes all aspects of the CropSelector from the parent node
 	 * (Requirement 2.3.3)
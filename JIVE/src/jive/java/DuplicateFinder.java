@@ -0,0 +1,214 @@
+package jive.java;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import javafx.concurrent.Task;
+
+/**
+ * DuplicateFinder groups image files that are duplicates or near-duplicates of each other,
+ * such as the frames of a burst or several exports of the same photo.
+ * <br><br>
+ * Files are hashed in parallel with ImageHasher, reusing hashes from a HashCache where the
+ * file hasn't changed. The pHashes are then put in a BK-tree, a tree that is ordered by Hamming
+ * distance so that all hashes within a distance of a given hash can be found without comparing
+ * it to every other hash. Files are near-duplicates if both their pHashes and their dHashes are
+ * within the thresholds, and groups are formed from chains of near-duplicates.
+ * <br><br>
+ * The value of the task is the list of groups with more than one file, in the order
+ * of the files they start with. Files that can't be read are skipped.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class DuplicateFinder extends Task<List<List<File>>>
+{
+	static final int PHASH_THRESHOLD = 10;
+	static final int DHASH_THRESHOLD = 12;
+
+	private final List<File> files;
+	private final HashCache cache;
+
+	/**
+	 * @param files - the files to search, in the order groups should be listed in
+	 * @param cache - the cache to read and store hashes in, it is saved when the search finishes
+	 */
+	public DuplicateFinder(List<File> files, HashCache cache)
+	{
+		this.files = new ArrayList<File>(files);
+		this.cache = cache;
+		updateTitle("Finding duplicates");
+	}
+
+	@Override
+	protected List<List<File>> call() throws Exception
+	{
+		int count = files.size();
+		ImageHasher.Hashes[] hashes = new ImageHasher.Hashes[count];
+		AtomicInteger hashed = new AtomicInteger();
+
+		IntStream.range(0, count).parallel().forEach(i ->
+		{
+			if (isCancelled())
+				return;
+
+			File file = files.get(i);
+			hashes[i] = cache.get(file);
+
+			if (hashes[i] == null)
+			{
+				try
+				{
+					hashes[i] = ImageHasher.hash(file);
+					cache.put(file, hashes[i]);
+				}
+				catch (Exception e)
+				{
+					//Unreadable files can't be duplicates of anything
+				}
+			}
+
+			updateProgress(hashed.incrementAndGet(), count);
+		});
+
+		//The groups are still worth showing if the hashes can't be kept for next time
+		try
+		{
+			cache.save();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+
+		if (isCancelled())
+			return null;
+
+		return group(hashes);
+	}
+
+	/**
+	 * Joins every file with the files whose hashes are within the thresholds
+	 * and collects the groups that have more than one file.
+	 */
+	private List<List<File>> group(ImageHasher.Hashes[] hashes)
+	{
+		int[] parents = new int[hashes.length];
+		BKTree tree = new BKTree();
+
+		for (int i = 0; i < hashes.length; ++i)
+		{
+			parents[i] = i;
+
+			if (hashes[i] == null)
+				continue;
+
+			for (int match : tree.find(hashes[i].pHash, PHASH_THRESHOLD))
+				if (ImageHasher.distance(hashes[i].dHash, hashes[match].dHash) <= DHASH_THRESHOLD)
+					parents[findRoot(parents, i)] = findRoot(parents, match);
+
+			tree.add(hashes[i].pHash, i);
+		}
+
+		//Groups are created in the order of the first file in them
+		Map<Integer, List<File>> groups = new LinkedHashMap<Integer, List<File>>();
+		for (int i = 0; i < hashes.length; ++i)
+			if (hashes[i] != null)
+				groups.computeIfAbsent(findRoot(parents, i), root -> new ArrayList<File>()).add(files.get(i));
+
+		List<List<File>> duplicates = new ArrayList<List<File>>();
+		for (List<File> group : groups.values())
+			if (group.size() > 1)
+				duplicates.add(group);
+
+		return duplicates;
+	}
+
+	private static int findRoot(int[] parents, int i)
+	{
+		while (parents[i] != i)
+		{
+			parents[i] = parents[parents[i]];
+			i = parents[i];
+		}
+		return i;
+	}
+
+	/**
+	 * A BK-tree of 64-bit hashes. Every child of a node is stored under its distance to the node,
+	 * so by the triangle inequality a search only has to visit the children whose distance is
+	 * within the search radius of the query's distance to the node.
+	 */
+	private static class BKTree
+	{
+		private static class Node
+		{
+			final long hash;
+			final int index;
+			final Node[] children = new Node[Long.SIZE + 1];
+
+			Node(long hash, int index)
+			{
+				this.hash = hash;
+				this.index = index;
+			}
+		}
+
+		private Node root;
+
+		void add(long hash, int index)
+		{
+			Node node = new Node(hash, index);
+
+			if (root == null)
+			{
+				root = node;
+				return;
+			}
+
+			Node parent = root;
+			while (true)
+			{
+				int distance = ImageHasher.distance(hash, parent.hash);
+
+				if (parent.children[distance] == null)
+				{
+					parent.children[distance] = node;
+					return;
+				}
+
+				parent = parent.children[distance];
+			}
+		}
+
+		List<Integer> find(long hash, int radius)
+		{
+			List<Integer> matches = new ArrayList<Integer>();
+			List<Node> pending = new ArrayList<Node>();
+
+			if (root != null)
+				pending.add(root);
+
+			while (!pending.isEmpty())
+			{
+				Node node = pending.remove(pending.size() - 1);
+				int distance = ImageHasher.distance(hash, node.hash);
+
+				if (distance <= radius)
+					matches.add(node.index);
+
+				for (int d = Math.max(0, distance - radius); d <= Math.min(Long.SIZE, distance + radius); ++d)
+					if (node.children[d] != null)
+						pending.add(node.children[d]);
+			}
+
+			return matches;
+		}
+	}
+}
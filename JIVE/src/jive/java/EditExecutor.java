@@ -0,0 +1,127 @@
+package jive.java;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.concurrent.Task;
+import javafx.concurrent.WorkerStateEvent;
+
+/**
+ * EditExecutor runs editing tasks off the JavaFX thread.
+ * <br><br>
+ * Tasks run one at a time on a single background thread, in the order they were submitted,
+ * so every edit sees the result of the edits before it. While submitted tasks are waiting or
+ * running the executor is busy, and the GUI uses the busy, title and progress properties to
+ * show a progress indicator and disable conflicting controls.
+ * <br><br>
+ * All methods must be called from the JavaFX thread.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class EditExecutor
+{
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable ->
+	{
+		Thread thread = new Thread(runnable, "JIVE edit executor");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final List<Task<?>> pendingTasks = new ArrayList<Task<?>>();
+	private final ReadOnlyBooleanWrapper busy = new ReadOnlyBooleanWrapper(false);
+	private final ReadOnlyStringWrapper title = new ReadOnlyStringWrapper("");
+	private final ReadOnlyDoubleWrapper progress = new ReadOnlyDoubleWrapper(-1);
+
+	/**
+	 * Queues a task that the user has to wait for. The executor is busy until the task
+	 * has succeeded, failed or been cancelled.
+	 *
+	 * @param task - the task to run
+	 */
+	public void submit(Task<?> task)
+	{
+		pendingTasks.add(task);
+		busy.set(true);
+
+		task.addEventHandler(WorkerStateEvent.WORKER_STATE_RUNNING, event ->
+		{
+			title.bind(task.titleProperty());
+			progress.bind(task.progressProperty());
+		});
+		task.addEventHandler(WorkerStateEvent.WORKER_STATE_SUCCEEDED, event -> finished(task));
+		task.addEventHandler(WorkerStateEvent.WORKER_STATE_FAILED, event -> finished(task));
+		task.addEventHandler(WorkerStateEvent.WORKER_STATE_CANCELLED, event -> finished(task));
+
+		executor.execute(task);
+	}
+
+	/**
+	 * Queues a short task, such as converting an image for display, that runs in order with the
+	 * submitted tasks but doesn't make the executor busy.
+	 *
+	 * @param task - the task to run
+	 */
+	public void execute(Task<?> task)
+	{
+		executor.execute(task);
+	}
+
+	/**
+	 * Cancels every submitted task that hasn't finished yet.
+	 * Results of cancelled tasks are discarded. A task that is already running keeps
+	 * the background thread until its current edit returns, but the executor stops being
+	 * busy immediately.
+	 */
+	public void cancelAll()
+	{
+		for (Task<?> task : new ArrayList<Task<?>>(pendingTasks))
+			task.cancel();
+	}
+
+	/**
+	 * @return true while submitted tasks are waiting or running
+	 */
+	public ReadOnlyBooleanProperty busyProperty()
+	{
+		return busy.getReadOnlyProperty();
+	}
+
+	/**
+	 * @return the title of the running task
+	 */
+	public ReadOnlyStringProperty titleProperty()
+	{
+		return title.getReadOnlyProperty();
+	}
+
+	/**
+	 * @return the progress of the running task, or -1 if it is indeterminate
+	 */
+	public ReadOnlyDoubleProperty progressProperty()
+	{
+		return progress.getReadOnlyProperty();
+	}
+
+	private void finished(Task<?> task)
+	{
+		pendingTasks.remove(task);
+
+		if (pendingTasks.isEmpty())
+		{
+			title.unbind();
+			title.set("");
+			progress.unbind();
+			progress.set(-1);
+			busy.set(false);
+		}
+	}
+}
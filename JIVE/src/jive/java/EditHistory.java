@@ -0,0 +1,297 @@
+package jive.java;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * EditHistory records the editing history of a Project as a journal of Operations.
+ * <br><br>
+ * State 0 is the image as it was opened and state n is the result of applying the first n operations.
+ * Instead of storing every state, a full image (checkpoint) is kept for every CHECKPOINT_INTERVAL-th
+ * state. Any state can be rebuilt by replaying the operations that follow the nearest checkpoint,
+ * so moving to any point in the history costs at most CHECKPOINT_INTERVAL - 1 operations regardless
+ * of how long the history is, while memory grows with one image per CHECKPOINT_INTERVAL edits.
+ * <br><br>
+ * Operations recorded after an undo discard the states that were undone.
+ * <br><br>
+ * Checkpoints are kept in memory until they exceed the heap budget. The oldest checkpoints are
+ * then compressed and spilled to a SpillStore on disk, and paged back in when a replay needs them.
+ * Paged-in checkpoints are only softly reachable, so the garbage collector can drop them again.
+ * The store is deleted by close().
+ *
+ * @author Devon Hunter
+ *
+ */
+public class EditHistory
+{
+	static final int CHECKPOINT_INTERVAL = 8;
+	static final long DEFAULT_HEAP_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+
+	private final List<Operation> operations = new ArrayList<Operation>();
+	private final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+	private final long heapBudget;
+	private SpillStore spillStore;
+	private long checkpointBytes;
+	private int position;
+
+	/**
+	 * Creates a history that may keep up to a quarter of the maximum heap size in checkpoints
+	 * 
+	 * @param originalImage - the image the history starts from
+	 */
+	public EditHistory(BufferedImage originalImage)
+	{
+		this(originalImage, DEFAULT_HEAP_BUDGET);
+	}
+
+	/**
+	 * @param originalImage - the image the history starts from
+	 * @param heapBudget - the number of bytes of checkpoints to keep in memory before spilling to disk
+	 */
+	public EditHistory(BufferedImage originalImage, long heapBudget)
+	{
+		this.heapBudget = heapBudget;
+		operations.add(null);
+		checkpoints.add(new Checkpoint(originalImage));
+		checkpointBytes = checkpoints.get(0).bytes;
+		position = 0;
+	}
+
+	/**
+	 * Records an operation at the current position, discarding any states after it.
+	 *
+	 * @param operation - the operation that was applied
+	 * @param result - the image produced by the operation
+	 */
+	public void record(Operation operation, BufferedImage result)
+	{
+		truncate(position + 1);
+		operations.add(operation);
+		++position;
+
+		if (position % CHECKPOINT_INTERVAL == 0)
+		{
+			Checkpoint checkpoint = new Checkpoint(result);
+			checkpoints.add(checkpoint);
+			checkpointBytes += checkpoint.bytes;
+			enforceHeapBudget();
+		}
+		else
+		{
+			checkpoints.add(null);
+		}
+	}
+
+	/**
+	 * Rebuilds the image of a state in the history.
+	 * The replay starts at the closest checkpoint before the state, or at the current state if that is closer.
+	 * This doesn't change the history and can be called from a background thread as long as
+	 * the history isn't modified at the same time.
+	 *
+	 * @param index - the state to rebuild
+	 * @param currentImage - the image of the current state
+	 * @param imageEditor - the ImageEditor used to replay operations
+	 * @return the image of the requested state
+	 */
+	public BufferedImage renderState(int index, BufferedImage currentImage, ImageEditor imageEditor)
+	{
+		if (index < 0 || index >= operations.size())
+			throw new IndexOutOfBoundsException("No history state " + index);
+
+		int start = index;
+		while (checkpoints.get(start) == null)
+			--start;
+
+		BufferedImage image = checkpoints.get(start).getImage(spillStore);
+
+		if (position <= index && position > start)
+		{
+			start = position;
+			image = currentImage;
+		}
+
+		for (int i = start + 1; i <= index; ++i)
+			image = operations.get(i).apply(imageEditor, image);
+
+		return image;
+	}
+
+	/**
+	 * Moves the current position without changing the recorded operations
+	 *
+	 * @param index - the new current state
+	 */
+	public void setPosition(int index)
+	{
+		if (index < 0 || index >= operations.size())
+			throw new IndexOutOfBoundsException("No history state " + index);
+
+		position = index;
+	}
+
+	/**
+	 * @param index - a state in the history, from 1 to size() - 1
+	 * @return the operation that produced the state
+	 */
+	public Operation getOperation(int index)
+	{
+		return operations.get(index);
+	}
+
+	/**
+	 * @return the index of the current state
+	 */
+	public int getPosition()
+	{
+		return position;
+	}
+
+	/**
+	 * @return the number of states in the history, including the original image
+	 */
+	public int size()
+	{
+		return operations.size();
+	}
+
+	/**
+	 * Gets a description of every state in the history.
+	 * The first entry describes the original image.
+	 *
+	 * @return the names of the operations in the order they were applied
+	 */
+	public List<String> getDescriptions()
+	{
+		List<String> descriptions = new ArrayList<String>();
+		descriptions.add("Original");
+
+		for (int i = 1; i < operations.size(); ++i)
+			descriptions.add(operations.get(i).getName());
+
+		return descriptions;
+	}
+
+	/**
+	 * Deletes the spilled checkpoints. The history can't be used afterwards.
+	 */
+	public void close()
+	{
+		if (spillStore != null)
+			spillStore.close();
+	}
+
+	private void truncate(int size)
+	{
+		while (operations.size() > size)
+		{
+			operations.remove(operations.size() - 1);
+			Checkpoint checkpoint = checkpoints.remove(checkpoints.size() - 1);
+
+			if (checkpoint != null && checkpoint.image != null && !checkpoint.spilling)
+				checkpointBytes -= checkpoint.bytes;
+		}
+	}
+
+	/**
+	 * Spills the oldest checkpoints until the ones left in memory fit in the heap budget.
+	 * The most recent checkpoint is never spilled since it is the most likely to be needed.
+	 * Checkpoints whose spill failed are counted against the budget again and spilled again.
+	 */
+	private void enforceHeapBudget()
+	{
+		for (Checkpoint checkpoint : checkpoints)
+		{
+			if (checkpoint != null && checkpoint.spillFailed)
+			{
+				checkpoint.spillFailed = false;
+				checkpoint.spilling = false;
+				checkpointBytes += checkpoint.bytes;
+			}
+		}
+
+		for (int i = 0; i < checkpoints.size() - 1 && checkpointBytes > heapBudget; ++i)
+		{
+			Checkpoint checkpoint = checkpoints.get(i);
+
+			if (checkpoint == null || checkpoint.image == null || checkpoint.spilling)
+				continue;
+
+			if (spillStore == null)
+				spillStore = new SpillStore();
+
+			checkpoint.spill(spillStore);
+			checkpointBytes -= checkpoint.bytes;
+		}
+	}
+
+	/**
+	 * A full image in the history that is either held in memory or spilled to disk
+	 */
+	private static class Checkpoint
+	{
+		private final long bytes;
+		private volatile BufferedImage image;
+		private volatile SpillStore.Handle handle;
+		private volatile SoftReference<BufferedImage> pagedIn;
+		private volatile boolean spilling;
+		private volatile boolean spillFailed;		//Set by the spill, cleared once the history has counted the image again
+
+		Checkpoint(BufferedImage image)
+		{
+			this.image = image;
+			bytes = (long) image.getWidth() * image.getHeight() * image.getColorModel().getPixelSize() / 8;
+		}
+
+		/**
+		 * Writes the image to the store in the background and releases it once it is on disk.
+		 * If the write fails the image stays in memory and spillFailed is set, so that the history,
+		 * which isn't thread-safe, counts it again on its own thread.
+		 */
+		void spill(SpillStore spillStore)
+		{
+			spilling = true;
+			spillStore.write(image).whenComplete((spilledHandle, exception) ->
+			{
+				if (spilledHandle == null)
+				{
+					if (exception != null)
+						exception.printStackTrace();
+
+					spillFailed = true;
+					return;
+				}
+
+				//The handle has to be visible before the image is released, see getImage()
+				handle = spilledHandle;
+				image = null;
+			});
+		}
+
+		BufferedImage getImage(SpillStore spillStore)
+		{
+			BufferedImage inMemory = image;
+			if (inMemory != null)
+				return inMemory;
+
+			SoftReference<BufferedImage> reference = pagedIn;
+			BufferedImage cached = reference == null ? null : reference.get();
+			if (cached != null)
+				return cached;
+
+			try
+			{
+				BufferedImage loaded = spillStore.read(handle);
+				pagedIn = new SoftReference<BufferedImage>(loaded);
+				return loaded;
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
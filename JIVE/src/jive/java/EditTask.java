@@ -0,0 +1,90 @@
+package jive.java;
+
+import java.awt.image.BufferedImage;
+
+import javafx.concurrent.Task;
+import javafx.scene.image.Image;
+
+/**
+ * EditTask renders an Operation against a snapshot of a Project's image on a background thread.
+ * <br><br>
+ * The snapshot is taken when the task is created. The task doesn't modify the Project,
+ * the result is committed on the JavaFX thread once the task succeeds, and only if the Project
+ * still holds the snapshot (see isCurrent()). The JavaFX copy of the result is also prepared
+ * in the background so the GUI can show it without converting it.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class EditTask extends Task<BufferedImage>
+{
+	private final Project project;
+	private final Operation operation;
+	private final BufferedImage snapshot;
+	private volatile Image fxImage;
+
+	/**
+	 * Must be called on the JavaFX thread
+	 *
+	 * @param project - the project to edit
+	 * @param operation - the edit to perform
+	 */
+	public EditTask(Project project, Operation operation)
+	{
+		this.project = project;
+		this.operation = operation;
+		snapshot = project.getImage();
+		updateTitle(operation.getName());
+	}
+
+	@Override
+	protected BufferedImage call() throws Exception
+	{
+		BufferedImage editedImage = project.render(operation, snapshot);
+
+		if (isCancelled())
+			return null;
+
+		fxImage = PixelFormats.toFXImage(editedImage);
+		return editedImage;
+	}
+
+	/**
+	 * Commits the result to the project if it is still current.
+	 * Must be called on the JavaFX thread after the task has succeeded.
+	 *
+	 * @return true if the result was committed
+	 */
+	public boolean commit()
+	{
+		if (!isCurrent())
+			return false;
+
+		project.commit(operation, getValue());
+		return true;
+	}
+
+	/**
+	 * @return true if the project hasn't changed since the snapshot was taken
+	 */
+	public boolean isCurrent()
+	{
+		return project.getImage() == snapshot;
+	}
+
+	/**
+	 * @return the edited image converted for display, or null if the task hasn't succeeded
+	 */
+	public Image getFXImage()
+	{
+		return fxImage;
+	}
+
+	/**
+	 * @return the project being edited
+	 */
+	public Project getProject()
+	{
+		return project;
+	}
+}
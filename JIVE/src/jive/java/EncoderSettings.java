@@ -0,0 +1,143 @@
+package jive.java;
+
+/**
+ * EncoderSettings holds the options images are saved with (see ImageEncoder).
+ * <br><br>
+ * JPEG images are saved with a quality, optionally as progressive JPEGs that show a coarse version of
+ * the whole image while they download, with Huffman tables optimized for the image, and with the chosen
+ * chroma subsampling. PNG images are saved with a deflate compression level, and optionally reduced to a
+ * palette, which makes graphics several times smaller. GIF images are always reduced to a palette, with the
+ * palette size and dithering of the settings (see ColorQuantizer). BMP images have no options.
+ * <br><br>
+ * Settings are immutable, so they can be handed to a save running on another thread.
+ * withJpegQuality() returns a copy with a different quality.
+ *
+ * @author Devon Hunter
+ *
+ */
+public final class EncoderSettings
+{
+	/**
+	 * The settings ImageIO writes with by default, except for optimized Huffman tables, which make JPEGs
+	 * a few percent smaller without losing anything
+	 */
+	public static final EncoderSettings DEFAULT = new EncoderSettings(0.75f, false, true, Subsampling.YUV_420, ParallelPngWriter.DEFAULT_LEVEL,
+			false, 256, ColorQuantizer.Dithering.NONE);
+
+	private final float jpegQuality;
+	private final boolean progressive;
+	private final boolean optimizeHuffman;
+	private final Subsampling subsampling;
+	private final int pngLevel;
+	private final boolean indexedPng;
+	private final int paletteSize;
+	private final ColorQuantizer.Dithering dithering;
+
+	/**
+	 * How much the color of a JPEG is sampled less often than its brightness.
+	 * Subsampling makes files smaller, but blurs sharp colored edges such as colored text.
+	 */
+	public enum Subsampling
+	{
+		/** Color at full resolution */
+		YUV_444("4:4:4", 1, 1),
+		/** Color at half the horizontal resolution */
+		YUV_422("4:2:2", 2, 1),
+		/** Color at half the horizontal and vertical resolution */
+		YUV_420("4:2:0", 2, 2);
+
+		private final String name;
+		final int horizontalFactor;
+		final int verticalFactor;
+
+		Subsampling(String name, int horizontalFactor, int verticalFactor)
+		{
+			this.name = name;
+			this.horizontalFactor = horizontalFactor;
+			this.verticalFactor = verticalFactor;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	/**
+	 * @param jpegQuality - the JPEG quality, from 0 (smallest) to 1 (best)
+	 * @param progressive - true to save progressive JPEGs
+	 * @param optimizeHuffman - true to compute Huffman tables for each JPEG instead of using the standard tables
+	 * @param subsampling - the JPEG chroma subsampling
+	 * @param pngLevel - the PNG compression level, from 0 (none) to 9 (smallest)
+	 * @param indexedPng - true to reduce PNG images to a palette
+	 * @param paletteSize - the most colors of a palette, from 2 to 256
+	 * @param dithering - how palette images are dithered
+	 */
+	public EncoderSettings(float jpegQuality, boolean progressive, boolean optimizeHuffman, Subsampling subsampling, int pngLevel,
+			boolean indexedPng, int paletteSize, ColorQuantizer.Dithering dithering)
+	{
+		if (!(jpegQuality >= 0 && jpegQuality <= 1))
+			throw new IllegalArgumentException("The JPEG quality must be between 0 and 1: " + jpegQuality);
+		if (pngLevel < 0 || pngLevel > 9)
+			throw new IllegalArgumentException("The compression level must be between 0 and 9: " + pngLevel);
+		if (paletteSize < 2 || paletteSize > 256)
+			throw new IllegalArgumentException("The palette must have between 2 and 256 colors: " + paletteSize);
+		if (subsampling == null || dithering == null)
+			throw new IllegalArgumentException("The subsampling and dithering must not be null");
+
+		this.jpegQuality = jpegQuality;
+		this.progressive = progressive;
+		this.optimizeHuffman = optimizeHuffman;
+		this.subsampling = subsampling;
+		this.pngLevel = pngLevel;
+		this.indexedPng = indexedPng;
+		this.paletteSize = paletteSize;
+		this.dithering = dithering;
+	}
+
+	public float getJpegQuality()
+	{
+		return jpegQuality;
+	}
+
+	public boolean isProgressive()
+	{
+		return progressive;
+	}
+
+	public boolean isOptimizeHuffman()
+	{
+		return optimizeHuffman;
+	}
+
+	public Subsampling getSubsampling()
+	{
+		return subsampling;
+	}
+
+	public int getPngLevel()
+	{
+		return pngLevel;
+	}
+
+	public boolean isIndexedPng()
+	{
+		return indexedPng;
+	}
+
+	public int getPaletteSize()
+	{
+		return paletteSize;
+	}
+
+	public ColorQuantizer.Dithering getDithering()
+	{
+		return dithering;
+	}
+
+	public EncoderSettings withJpegQuality(float jpegQuality)
+	{
+		return new EncoderSettings(jpegQuality, progressive, optimizeHuffman, subsampling, pngLevel, indexedPng, paletteSize, dithering);
+	}
+}
@@ -0,0 +1,98 @@
+package jive.java;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * FlatteningImage creates an opaque RGB view of an image with an alpha channel,
+ * as if the image had been drawn onto a white background.
+ * <br><br>
+ * The view is backed by a virtual DataBuffer that converts the source image in bands of rows
+ * as an ImageWriter reads them, so only one band is held in memory at a time instead of a full
+ * flattened copy of the image. Bands are sized to roughly BAND_BYTES regardless of the image size.
+ * <br><br>
+ * The view is read-only and is meant to be read from one thread, top to bottom.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class FlatteningImage
+{
+	static final int BAND_BYTES = 4 << 20;
+
+	/**
+	 * Creates an opaque view of an image for writing to formats that don't support transparency
+	 *
+	 * @param source - the image to flatten
+	 * @return a BufferedImage with the layout of TYPE_INT_RGB whose pixels are computed on demand
+	 */
+	public static BufferedImage create(BufferedImage source)
+	{
+		int width = source.getWidth();
+		int height = source.getHeight();
+		DirectColorModel colorModel = new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+		SinglePixelPackedSampleModel sampleModel = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height, colorModel.getMasks());
+		WritableRaster raster = Raster.createWritableRaster(sampleModel, new FlatteningDataBuffer(source), new Point(0, 0));
+
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	/**
+	 * A DataBuffer with one element per pixel that flattens the source image one band of rows at a time
+	 */
+	private static class FlatteningDataBuffer extends DataBuffer
+	{
+		private final BufferedImage source;
+		private final int width;
+		private final int bandHeight;
+		private final int[] band;
+		private int bandStart = -1;
+		private int bandEnd = -1;
+
+		FlatteningDataBuffer(BufferedImage source)
+		{
+			super(DataBuffer.TYPE_INT, source.getWidth() * source.getHeight());
+			this.source = source;
+			width = source.getWidth();
+			bandHeight = Math.max(1, Math.min(source.getHeight(), BAND_BYTES / 4 / width));
+			band = new int[width * bandHeight];
+		}
+
+		@Override
+		public int getElem(int bank, int i)
+		{
+			int row = i / width;
+
+			if (row < bandStart || row >= bandEnd)
+				loadBand(row);
+
+			return band[i - bandStart * width];
+		}
+
+		@Override
+		public void setElem(int bank, int i, int val)
+		{
+			throw new UnsupportedOperationException("FlatteningImage is read-only");
+		}
+
+		/**
+		 * Loads the band containing a row. Some writers (such as BMP) read from the bottom up,
+		 * so a band requested above the current one ends at the row instead of starting at it.
+		 */
+		private void loadBand(int row)
+		{
+			int start = row < bandStart ? Math.max(0, row - bandHeight + 1) : row;
+			int rows = Math.min(bandHeight, source.getHeight() - start);
+			source.getRGB(0, start, width, rows, band, 0, width);
+			PixelKernels.flatten(band, rows * width);
+
+			bandStart = start;
+			bandEnd = start + rows;
+		}
+	}
+}
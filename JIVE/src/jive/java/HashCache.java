@@ -0,0 +1,159 @@
+package jive.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * HashCache stores the perceptual hashes of image files on disk so they only have to be
+ * computed once. Entries are keyed by the absolute path of the file and are only used while
+ * the file's modification time and length are unchanged.
+ * <br><br>
+ * The cache can be read and updated from several threads at once. save() writes it to a
+ * temporary file first and moves it into place, so an interrupted save never corrupts the cache.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class HashCache
+{
+	private static final int VERSION = 2;		//Version 1 hashed EXIF thumbnails where files had them
+
+	private final File cacheFile;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private volatile boolean modified;
+
+	private static final class Entry
+	{
+		final long lastModified;
+		final long length;
+		final ImageHasher.Hashes hashes;
+
+		Entry(long lastModified, long length, ImageHasher.Hashes hashes)
+		{
+			this.lastModified = lastModified;
+			this.length = length;
+			this.hashes = hashes;
+		}
+	}
+
+	/**
+	 * Creates a cache in the .jive directory of the user's home directory
+	 */
+	public HashCache()
+	{
+		this(new File(System.getProperty("user.home"), ".jive" + File.separator + "hashes.cache"));
+	}
+
+	/**
+	 * Creates a cache backed by the given file. Existing entries are read from the file if it exists,
+	 * an unreadable file is treated as an empty cache.
+	 *
+	 * @param cacheFile - the file the cache is stored in
+	 */
+	public HashCache(File cacheFile)
+	{
+		this.cacheFile = cacheFile;
+
+		if (!cacheFile.isFile())
+			return;
+
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile.toPath()))))
+		{
+			if (input.readInt() != VERSION)
+				return;
+
+			int count = input.readInt();
+			for (int i = 0; i < count; ++i)
+			{
+				String path = input.readUTF();
+				long lastModified = input.readLong();
+				long length = input.readLong();
+				ImageHasher.Hashes hashes = new ImageHasher.Hashes(input.readLong(), input.readLong());
+				entries.put(path, new Entry(lastModified, length, hashes));
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @param imageFile - an image file
+	 * @return the cached hashes of the file, or null if they aren't cached or the file has changed
+	 */
+	public ImageHasher.Hashes get(File imageFile)
+	{
+		Entry entry = entries.get(imageFile.getAbsolutePath());
+
+		if (entry == null || entry.lastModified != imageFile.lastModified() || entry.length != imageFile.length())
+			return null;
+
+		return entry.hashes;
+	}
+
+	/**
+	 * Caches the hashes of a file
+	 *
+	 * @param imageFile - the file that was hashed
+	 * @param hashes - the hashes of the file
+	 */
+	public void put(File imageFile, ImageHasher.Hashes hashes)
+	{
+		entries.put(imageFile.getAbsolutePath(), new Entry(imageFile.lastModified(), imageFile.length(), hashes));
+		modified = true;
+	}
+
+	/**
+	 * Writes the cache to disk if it has changed since it was read.
+	 * Entries for files that no longer exist are dropped.
+	 *
+	 * @throws IOException if the cache can't be written
+	 */
+	public void save() throws IOException
+	{
+		if (!modified)
+			return;
+
+		entries.keySet().removeIf(path -> !new File(path).isFile());
+
+		File directory = cacheFile.getAbsoluteFile().getParentFile();
+		Files.createDirectories(directory.toPath());
+		File temporaryFile = File.createTempFile("hashes", ".tmp", directory);
+
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile.toPath()))))
+		{
+			Map<String, Entry> snapshot = new HashMap<String, Entry>(entries);
+			output.writeInt(VERSION);
+			output.writeInt(snapshot.size());
+
+			for (Map.Entry<String, Entry> mapping : snapshot.entrySet())
+			{
+				Entry entry = mapping.getValue();
+				output.writeUTF(mapping.getKey());
+				output.writeLong(entry.lastModified);
+				output.writeLong(entry.length);
+				output.writeLong(entry.hashes.dHash);
+				output.writeLong(entry.hashes.pHash);
+			}
+		}
+		catch (IOException e)
+		{
+			Files.deleteIfExists(temporaryFile.toPath());
+			throw e;
+		}
+
+		Files.move(temporaryFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		modified = false;
+	}
+}
@@ -0,0 +1,80 @@
+package jive.java;
+
+import java.awt.image.BufferedImage;
+
+import javafx.concurrent.Task;
+import javafx.scene.image.Image;
+
+/**
+ * HistoryTask rebuilds a state of a Project's editing history on a background thread.
+ * <br><br>
+ * Like EditTask, the Project isn't modified until the task has succeeded and commit()
+ * is called on the JavaFX thread, and the JavaFX copy of the image is prepared in the background.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class HistoryTask extends Task<BufferedImage>
+{
+	private final Project project;
+	private final int index;
+	private final BufferedImage snapshot;
+	private volatile Image fxImage;
+
+	/**
+	 * Must be called on the JavaFX thread
+	 *
+	 * @param project - the project whose history is restored
+	 * @param index - the history state to restore
+	 */
+	public HistoryTask(Project project, int index)
+	{
+		this.project = project;
+		this.index = index;
+		snapshot = project.getImage();
+		updateTitle("Restoring " + project.getHistory().get(index));
+	}
+
+	@Override
+	protected BufferedImage call() throws Exception
+	{
+		BufferedImage stateImage = project.renderHistoryState(index);
+
+		if (isCancelled())
+			return null;
+
+		fxImage = PixelFormats.toFXImage(stateImage);
+		return stateImage;
+	}
+
+	/**
+	 * Moves the project to the restored state if the project hasn't changed in the meantime.
+	 * Must be called on the JavaFX thread after the task has succeeded.
+	 *
+	 * @return true if the project was updated
+	 */
+	public boolean commit()
+	{
+		if (project.getImage() != snapshot)
+			return false;
+
+		project.jumpTo(index, getValue());
+		return true;
+	}
+
+	/**
+	 * @return the restored image converted for display, or null if the task hasn't succeeded
+	 */
+	public Image getFXImage()
+	{
+		return fxImage;
+	}
+
+	/**
+	 * @return the project whose history is restored
+	 */
+	public Project getProject()
+	{
+		return project;
+	}
+}
@@ -4,6 +4,8 @@ import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
 import java.awt.image.RescaleOp;
+import java.io.IOException;
+import java.util.stream.IntStream;
 
 /**
  * ImageEditor encompasses image editing functions. 
@@ -13,12 +15,44 @@ import java.awt.image.RescaleOp;
  * <br><br>
  * Images may be converted to different types as necessary to performing editing
  * operations. Colors and quality are preserved as much as possible.
+ * <br><br>
+ * Rotating, flipping and brightness/contrast adjustments have parallel fast paths for images
+ * in the canonical TYPE_INT_RGB and TYPE_INT_ARGB layouts (see PixelFormats) that work on the
+ * packed pixels directly. Other images use Java2D.
+ * <br><br>
+ * Images too large for the heap are edited as OffHeapImages. Rotating by 90 degrees, flipping, cropping
+ * and brightness/contrast adjustments have OffHeapImage versions that work on a band of rows at a time.
+ * <br><br>
+ * An ImageEditor created with a RasterPool takes the results of its fast paths, and of rotating by an
+ * arbitrary angle and filtering, from the pool. It is meant for results that are thrown away once they
+ * are shown, such as previews, which the caller hands back to the pool with RasterPool.release().
  * 
  * @author Devon Hunter
  *
  */
 public class ImageEditor
 {	
+	private static final int TILE_SIZE = 64;
+	static final double SHARPEN_RADIUS = 0.8;
+	
+	private final RasterPool rasterPool;
+	
+	/**
+	 * Creates an editor that allocates a new image for every result
+	 */
+	public ImageEditor()
+	{
+		this(null);
+	}
+	
+	/**
+	 * @param rasterPool - the pool to take results from, or null to allocate a new image for every result
+	 */
+	public ImageEditor(RasterPool rasterPool)
+	{
+		this.rasterPool = rasterPool;
+	}
+	
 	/**
 	 * Uses an AffineTransform to rotate a BufferedImage 90 degrees clockwise.
 	 * This function converts TYPE_BYTE_INDEXED images to TYPE_INT_ARGB
@@ -28,6 +62,9 @@ public class ImageEditor
 	 */
 	public BufferedImage rotateRight(BufferedImage bufferedImage)
 	{
+		if (PixelFormats.isPacked(bufferedImage))
+			return rotatePacked(bufferedImage, true);
+		
 		int width = bufferedImage.getWidth();
 		int height = bufferedImage.getHeight();
 		
@@ -60,6 +97,9 @@ public class ImageEditor
 	 */
 	public BufferedImage rotateLeft(BufferedImage bufferedImage)
 	{
+		if (PixelFormats.isPacked(bufferedImage))
+			return rotatePacked(bufferedImage, false);
+		
 		int width = bufferedImage.getWidth();
 		int height = bufferedImage.getHeight();
 		
@@ -83,6 +123,21 @@ public class ImageEditor
 		return newImage;
 	}
 	
+	/**
+	 * Rotates a BufferedImage by an arbitrary angle using a parallel bicubic resampler.
+	 * Opaque images are returned as TYPE_INT_RGB with any uncovered corners filled white,
+	 * images with an alpha channel are returned as TYPE_INT_ARGB with transparent corners.
+	 * 
+	 * @param degrees - the angle to rotate by, positive values rotate clockwise
+	 * @param autoCrop - true to crop the result to the largest rectangle inside the rotated image
+	 * @return A rotated BufferedImage
+	 * @see Resampler#rotate(BufferedImage, double, boolean)
+	 */
+	public BufferedImage rotate(BufferedImage bufferedImage, double degrees, boolean autoCrop)
+	{
+		return Resampler.rotate(bufferedImage, degrees, autoCrop, rasterPool);
+	}
+	
 	/**
 	 * Mirrors a BufferedImage horizontally using an AffineTransform
 	 * (Requirement 2.2.1)
@@ -91,6 +146,23 @@ public class ImageEditor
 	 */
 	public BufferedImage flipHorizontal(BufferedImage bufferedImage)
 	{
+		if (PixelFormats.isPacked(bufferedImage))
+		{
+			int width = bufferedImage.getWidth();
+			int[] source = PixelFormats.getData(bufferedImage);
+			BufferedImage newImage = createImage(width, bufferedImage.getHeight(), bufferedImage.getType());
+			int[] destination = PixelFormats.getData(newImage);
+			
+			IntStream.range(0, bufferedImage.getHeight()).parallel().forEach(y ->
+			{
+				int row = y * width;
+				for (int x = 0; x < width; ++x)
+					destination[row + x] = source[row + width - 1 - x];
+			});
+			
+			return newImage;
+		}
+		
 		AffineTransform flipTransform = AffineTransform.getScaleInstance(-1, 1);
 		flipTransform.translate(-bufferedImage.getWidth(), 0);
 		
@@ -108,6 +180,20 @@ public class ImageEditor
 	 */
 	public BufferedImage flipVertical(BufferedImage bufferedImage)
 	{
+		if (PixelFormats.isPacked(bufferedImage))
+		{
+			int width = bufferedImage.getWidth();
+			int height = bufferedImage.getHeight();
+			int[] source = PixelFormats.getData(bufferedImage);
+			BufferedImage newImage = createImage(width, height, bufferedImage.getType());
+			int[] destination = PixelFormats.getData(newImage);
+			
+			IntStream.range(0, height).parallel().forEach(y ->
+				System.arraycopy(source, (height - 1 - y) * width, destination, y * width, width));
+			
+			return newImage;
+		}
+		
 		AffineTransform flipTransform = AffineTransform.getScaleInstance(1, -1);
 		flipTransform.translate(0, -bufferedImage.getHeight());
 		
@@ -179,6 +265,9 @@ public class ImageEditor
 	 */
 	public BufferedImage adjustBrightnessContrast(BufferedImage bufferedImage, double brightnessAdjustment, double contrastAdjustment)
 	{			
+		if (PixelFormats.isPacked(bufferedImage))
+			return adjustPacked(bufferedImage, (float) brightnessAdjustment, (float) contrastAdjustment);
+		
 		//RescaleOp doesn't support images with indexed color
 		//Images with indexed color (PNGs and GIFs, typically) are converted to ARGB
 		if (bufferedImage.getType() == BufferedImage.TYPE_BYTE_INDEXED)
@@ -207,4 +296,307 @@ public class ImageEditor
 		
 		return bufferedImage;
 	}
+	
+	/**
+	 * Blurs a BufferedImage with a Gaussian filter
+	 * 
+	 * @param bufferedImage - the image to blur
+	 * @param radius - the radius of the blur in pixels
+	 * @return a blurred BufferedImage
+	 * @see Convolver#gaussianBlur(BufferedImage, double)
+	 */
+	public BufferedImage gaussianBlur(BufferedImage bufferedImage, double radius)
+	{
+		return Convolver.gaussianBlur(bufferedImage, radius, rasterPool);
+	}
+	
+	/**
+	 * Sharpens the fine detail of a BufferedImage
+	 * 
+	 * @param bufferedImage - the image to sharpen
+	 * @param amount - the strength of the sharpening, 1.0 is a moderate amount
+	 * @return a sharpened BufferedImage
+	 * @see Convolver#unsharpMask(BufferedImage, double, double, int)
+	 */
+	public BufferedImage sharpen(BufferedImage bufferedImage, double amount)
+	{
+		return Convolver.unsharpMask(bufferedImage, SHARPEN_RADIUS, amount, 0, rasterPool);
+	}
+	
+	/**
+	 * Sharpens the edges of a BufferedImage with an unsharp mask
+	 * 
+	 * @param bufferedImage - the image to sharpen
+	 * @param radius - the radius of the blur the image is compared to, in pixels
+	 * @param amount - the strength of the sharpening, 1.0 is a moderate amount
+	 * @param threshold - the smallest difference from the blurred image (0 to 255) that is sharpened
+	 * @return a sharpened BufferedImage
+	 * @see Convolver#unsharpMask(BufferedImage, double, double, int)
+	 */
+	public BufferedImage unsharpMask(BufferedImage bufferedImage, double radius, double amount, int threshold)
+	{
+		return Convolver.unsharpMask(bufferedImage, radius, amount, threshold, rasterPool);
+	}
+	
+	/**
+	 * Rotates an OffHeapImage 90 degrees clockwise
+	 * 
+	 * @return a new rotated OffHeapImage
+	 * @throws IOException if either image's file can't be read or written
+	 */
+	public OffHeapImage rotateRight(OffHeapImage image) throws IOException
+	{
+		return rotateOffHeap(image, true);
+	}
+	
+	/**
+	 * Rotates an OffHeapImage 90 degrees counter-clockwise
+	 * 
+	 * @return a new rotated OffHeapImage
+	 * @throws IOException if either image's file can't be read or written
+	 */
+	public OffHeapImage rotateLeft(OffHeapImage image) throws IOException
+	{
+		return rotateOffHeap(image, false);
+	}
+	
+	/**
+	 * Mirrors an OffHeapImage horizontally
+	 * 
+	 * @return a new flipped OffHeapImage
+	 * @throws IOException if either image's file can't be read or written
+	 */
+	public OffHeapImage flipHorizontal(OffHeapImage image) throws IOException
+	{
+		int width = image.getWidth();
+		
+		return OffHeapImage.create(width, image.getHeight(), image.hasAlpha(), flipped -> image.forEachBand((y, rows, pixels) ->
+		{
+			for (int row = 0; row < rows * width; row += width)
+			{
+				for (int left = row, right = row + width - 1; left < right; ++left, --right)
+				{
+					int pixel = pixels[left];
+					pixels[left] = pixels[right];
+					pixels[right] = pixel;
+				}
+			}
+			
+			flipped.write(0, y, width, rows, pixels);
+		}));
+	}
+	
+	/**
+	 * Mirrors an OffHeapImage vertically
+	 * 
+	 * @return a new flipped OffHeapImage
+	 * @throws IOException if either image's file can't be read or written
+	 */
+	public OffHeapImage flipVertical(OffHeapImage image) throws IOException
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		
+		return OffHeapImage.create(width, height, image.hasAlpha(), flipped -> image.forEachBand((y, rows, pixels) ->
+		{
+			int[] row = new int[width];
+			
+			for (int top = 0, bottom = rows - 1; top < bottom; ++top, --bottom)
+			{
+				System.arraycopy(pixels, top * width, row, 0, width);
+				System.arraycopy(pixels, bottom * width, pixels, top * width, width);
+				System.arraycopy(row, 0, pixels, bottom * width, width);
+			}
+			
+			flipped.write(0, height - y - rows, width, rows, pixels);
+		}));
+	}
+	
+	/**
+	 * Crops an OffHeapImage using the specified coordinates and dimensions
+	 * 
+	 * @param x - The X coordinate of the upper-left corner of the crop area
+	 * @param y - The Y coordinate of the upper-left corner of the crop area
+	 * @param width - The width of the crop area
+	 * @param height - The height of the crop area
+	 * @return a new cropped OffHeapImage
+	 * @throws IOException if either image's file can't be read or written
+	 */
+	public OffHeapImage crop(OffHeapImage image, int x, int y, int width, int height) throws IOException
+	{
+		return OffHeapImage.create(width, height, image.hasAlpha(), cropped ->
+		{
+			int bandHeight = cropped.getBandHeight();
+			int[] pixels = new int[bandHeight * width];
+			
+			for (int row = 0; row < height; row += bandHeight)
+			{
+				int rows = Math.min(bandHeight, height - row);
+				image.read(x, y + row, width, rows, pixels);
+				cropped.write(0, row, width, rows, pixels);
+			}
+		});
+	}
+	
+	/**
+	 * Adjusts the brightness and contrast of an OffHeapImage.
+	 * The results are the same as adjusting a BufferedImage with the same pixels.
+	 * 
+	 * @param brightnessAdjustment - the offset to apply to each pixel (-100.0 to 100.0)
+	 * @param contrastAdjustment - the value to scale each pixel by (0.0 to 2.0)
+	 * @return a new adjusted OffHeapImage
+	 * @throws IOException if either image's file can't be read or written
+	 * @see #adjustBrightnessContrast(BufferedImage, double, double)
+	 */
+	public OffHeapImage adjustBrightnessContrast(OffHeapImage image, double brightnessAdjustment, double contrastAdjustment) throws IOException
+	{
+		int width = image.getWidth();
+		int[] table = createLevelsTable((float) brightnessAdjustment, (float) contrastAdjustment);
+		
+		return OffHeapImage.create(width, image.getHeight(), image.hasAlpha(), adjusted -> image.forEachBand((y, rows, pixels) ->
+		{
+			applyLevelsTable(table, pixels, pixels, 0, pixels.length);
+			adjusted.write(0, y, width, rows, pixels);
+		}));
+	}
+	
+	/**
+	 * Rotates a packed image by 90 degrees. The image is processed in square tiles
+	 * so the column-wise reads of the source image stay in the cache.
+	 * 
+	 * @param clockwise - true to rotate clockwise, false to rotate counter-clockwise
+	 */
+	private BufferedImage rotatePacked(BufferedImage bufferedImage, boolean clockwise)
+	{
+		int width = bufferedImage.getWidth();
+		int height = bufferedImage.getHeight();
+		int[] source = PixelFormats.getData(bufferedImage);
+		BufferedImage newImage = createImage(height, width, bufferedImage.getType());
+		int[] destination = PixelFormats.getData(newImage);
+		
+		//The rotated image is height pixels wide and width pixels tall
+		IntStream.range(0, (width + TILE_SIZE - 1) / TILE_SIZE).parallel().forEach(band ->
+		{
+			int bandEnd = Math.min(width, (band + 1) * TILE_SIZE);
+			
+			for (int tileX = 0; tileX < height; tileX += TILE_SIZE)
+			{
+				int tileEnd = Math.min(height, tileX + TILE_SIZE);
+				
+				for (int y = band * TILE_SIZE; y < bandEnd; ++y)
+				{
+					int row = y * height;
+					
+					for (int x = tileX; x < tileEnd; ++x)
+					{
+						if (clockwise)
+							destination[row + x] = source[(height - 1 - x) * width + y];
+						else
+							destination[row + x] = source[x * width + width - 1 - y];
+					}
+				}
+			}
+		});
+		
+		return newImage;
+	}
+	
+	/**
+	 * Rotates an OffHeapImage by 90 degrees. Each band of rows of the rotated image is a band of
+	 * columns of the source image, which is read in one pass down the image.
+	 * 
+	 * @param clockwise - true to rotate clockwise, false to rotate counter-clockwise
+	 */
+	private static OffHeapImage rotateOffHeap(OffHeapImage image, boolean clockwise) throws IOException
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int bandHeight = Math.max(1, Math.min(width, OffHeapImage.TRANSPOSE_BYTES / 4 / height));
+		
+		//The rotated image is height pixels wide and width pixels tall
+		return OffHeapImage.create(height, width, image.hasAlpha(), rotated ->
+		{
+			int[] source = new int[bandHeight * height];
+			int[] destination = new int[bandHeight * height];
+			
+			for (int band = 0; band < width; band += bandHeight)
+			{
+				int rows = Math.min(bandHeight, width - band);
+				image.read(clockwise ? band : width - band - rows, 0, rows, height, source);
+				
+				for (int y = 0; y < rows; ++y)
+				{
+					int row = y * height;
+					
+					for (int x = 0; x < height; ++x)
+					{
+						if (clockwise)
+							destination[row + x] = source[(height - 1 - x) * rows + y];
+						else
+							destination[row + x] = source[x * rows + rows - 1 - y];
+					}
+				}
+				
+				rotated.write(0, band, height, rows, destination);
+			}
+		});
+	}
+	
+	/**
+	 * Builds a lookup table for a brightness and contrast adjustment.
+	 * The table is built the same way RescaleOp builds one for 8-bit images,
+	 * so the results match the RescaleOp path.
+	 */
+	private static int[] createLevelsTable(float offset, float scaleFactor)
+	{
+		int[] table = new int[256];
+		
+		for (int i = 0; i < 256; ++i)
+			table[i] = Math.max(0, Math.min(255, (int) (i * scaleFactor + offset)));
+		
+		return table;
+	}
+	
+	/**
+	 * Applies a levels table to the color channels of packed pixels. The alpha channel is not adjusted.
+	 */
+	private static void applyLevelsTable(int[] table, int[] source, int[] destination, int start, int end)
+	{
+		for (int i = start; i < end; ++i)
+		{
+			int pixel = source[i];
+			destination[i] = (pixel & 0xFF000000) | table[(pixel >> 16) & 0xFF] << 16 | table[(pixel >> 8) & 0xFF] << 8 | table[pixel & 0xFF];
+		}
+	}
+	
+	/**
+	 * Adjusts the brightness and contrast of a packed image with a lookup table.
+	 * The alpha channel is not adjusted.
+	 */
+	private BufferedImage adjustPacked(BufferedImage bufferedImage, float offset, float scaleFactor)
+	{
+		int[] table = createLevelsTable(offset, scaleFactor);
+		int[] source = PixelFormats.getData(bufferedImage);
+		BufferedImage newImage = createImage(bufferedImage.getWidth(), bufferedImage.getHeight(), bufferedImage.getType());
+		int[] destination = PixelFormats.getData(newImage);
+		int bandHeight = PixelFormats.getBandHeight(bufferedImage.getWidth());
+		int bandPixels = bandHeight * bufferedImage.getWidth();
+		
+		IntStream.range(0, (source.length + bandPixels - 1) / bandPixels).parallel().forEach(band ->
+			applyLevelsTable(table, source, destination, band * bandPixels, Math.min(source.length, (band + 1) * bandPixels)));
+		
+		return newImage;
+	}
+	
+	/**
+	 * Creates the image a fast path writes its result into, taking it from the pool if there is one.
+	 * Pooled images may hold old pixels, so every pixel of the result must be written.
+	 */
+	private BufferedImage createImage(int width, int height, int type)
+	{
+		if (rasterPool != null)
+			return rasterPool.acquire(width, height, type);
+		
+		return new BufferedImage(width, height, type);
+	}
 }
@@ -0,0 +1,192 @@
+package jive.java;
+
+import java.awt.image.IndexColorModel;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.w3c.dom.Node;
+
+/**
+ * ImageEncoder writes images to files with the options in EncoderSettings.
+ * <br><br>
+ * PNG files are written by ParallelPngWriter, which compresses the image on all cores.
+ * Images are reduced to a palette by ColorQuantizer before they are written as GIF, or as PNG
+ * if the settings ask for palette PNGs, unless they already have one.
+ * JPEG files are written by the ImageIO JPEG writer with the quality, progressive mode, Huffman table
+ * optimization and chroma subsampling of the settings. The subsampling is set through the writer's
+ * native metadata, which is the only place the ImageIO JPEG writer reads it from.
+ * Other formats are written by ImageIO with its default options.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class ImageEncoder
+{
+	private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+	/**
+	 * Writes an image to a file
+	 *
+	 * @param image - the image to write, which must not have an alpha channel if the format doesn't support one
+	 * @param format - the informal name of the format, such as "png"
+	 * @param imageFile - the file to write
+	 * @param settings - the options to write the image with
+	 * @throws IOException if there is no writer for the format or the file can't be written
+	 */
+	public static void write(RenderedImage image, String format, File imageFile, EncoderSettings settings) throws IOException
+	{
+		format = format.toLowerCase();
+		image = reduceColors(image, format, settings);
+
+		if (format.equals("png"))
+		{
+			ParallelPngWriter.write(image, imageFile, settings.getPngLevel());
+		}
+		else if (format.equals("jpg") || format.equals("jpeg"))
+		{
+			//ImageIO.write() deletes the file first too, so a longer old file doesn't leave bytes after the new one
+			if (imageFile.exists() && !imageFile.delete())
+				throw new IOException("Could not replace " + imageFile);
+
+			try (ImageOutputStream output = ImageIO.createImageOutputStream(imageFile))
+			{
+				if (output == null)
+					throw new IOException("Could not create " + imageFile);
+
+				writeJpeg(image, output, settings);
+			}
+		}
+		else if (!ImageIO.write(image, format, imageFile))
+		{
+			throw new IOException("No image writer available for " + format);
+		}
+	}
+
+	/**
+	 * Writes an image to a stream, which is left open
+	 *
+	 * @param image - the image to write, which must not have an alpha channel if the format doesn't support one
+	 * @param format - the informal name of the format, such as "png"
+	 * @param output - the stream to write to
+	 * @param settings - the options to write the image with
+	 * @throws IOException if there is no writer for the format or the stream can't be written
+	 */
+	public static void write(RenderedImage image, String format, OutputStream output, EncoderSettings settings) throws IOException
+	{
+		format = format.toLowerCase();
+		image = reduceColors(image, format, settings);
+
+		if (format.equals("png"))
+		{
+			ParallelPngWriter.write(image, output, settings.getPngLevel());
+		}
+		else if (format.equals("jpg") || format.equals("jpeg"))
+		{
+			//Closing the ImageOutputStream flushes it without closing the stream underneath
+			try (ImageOutputStream imageOutput = ImageIO.createImageOutputStream(output))
+			{
+				writeJpeg(image, imageOutput, settings);
+			}
+		}
+		else if (!ImageIO.write(image, format, output))
+		{
+			throw new IOException("No image writer available for " + format);
+		}
+	}
+
+	/*
+	 * The stock GIF writer builds a palette of its own without dithering
+	 */
+	private static RenderedImage reduceColors(RenderedImage image, String format, EncoderSettings settings)
+	{
+		if (format.equals("gif") || format.equals("png") && settings.isIndexedPng())
+		{
+			if (!(image.getColorModel() instanceof IndexColorModel))
+				return ColorQuantizer.quantize(image, settings.getPaletteSize(), settings.getDithering());
+		}
+
+		return image;
+	}
+
+	private static void writeJpeg(RenderedImage image, ImageOutputStream output, EncoderSettings settings) throws IOException
+	{
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+		if (!writers.hasNext())
+			throw new IOException("No image writer available for jpeg");
+
+		ImageWriter writer = writers.next();
+
+		try
+		{
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(settings.getJpegQuality());
+			param.setProgressiveMode(settings.isProgressive() ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+
+			if (param instanceof JPEGImageWriteParam)
+				((JPEGImageWriteParam) param).setOptimizeHuffmanTables(settings.isOptimizeHuffman());
+
+			IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+			setSubsampling(metadata, settings.getSubsampling());
+
+			writer.setOutput(output);
+			writer.write(null, new IIOImage(image, null, metadata), param);
+		}
+		finally
+		{
+			writer.dispose();
+		}
+	}
+
+	/*
+	 * Sets the sampling factors of the brightness component in the start of frame segment.
+	 * The color components keep factors of 1, so they are sampled that many times less often.
+	 */
+	private static void setSubsampling(IIOMetadata metadata, EncoderSettings.Subsampling subsampling) throws IOException
+	{
+		Node tree = metadata.getAsTree(JPEG_METADATA_FORMAT);
+		IIOMetadataNode frame = findNode(tree, "sof");
+
+		//Grayscale images have a single component and nothing to subsample
+		if (frame == null || frame.getLength() < 3)
+			return;
+
+		for (int i = 0; i < frame.getLength(); ++i)
+		{
+			IIOMetadataNode component = (IIOMetadataNode) frame.item(i);
+			boolean brightness = i == 0;
+			component.setAttribute("HsamplingFactor", Integer.toString(brightness ? subsampling.horizontalFactor : 1));
+			component.setAttribute("VsamplingFactor", Integer.toString(brightness ? subsampling.verticalFactor : 1));
+		}
+
+		metadata.setFromTree(JPEG_METADATA_FORMAT, tree);
+	}
+
+	private static IIOMetadataNode findNode(Node node, String name)
+	{
+		if (node.getNodeName().equals(name))
+			return (IIOMetadataNode) node;
+
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+		{
+			IIOMetadataNode found = findNode(child, name);
+			if (found != null)
+				return found;
+		}
+
+		return null;
+	}
+}
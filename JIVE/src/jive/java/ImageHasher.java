@@ -0,0 +1,165 @@
+package jive.java;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * ImageHasher computes 64-bit perceptual hashes of images.
+ * <br><br>
+ * Perceptual hashes of images that look alike differ in only a few bits, even if the images
+ * have been resized, recompressed or slightly adjusted, so the number of differing bits
+ * (the Hamming distance) measures how similar two images are.
+ * <br><br>
+ * dHash compares the brightness of neighbouring cells in a 9 x 8 grid. pHash compares the
+ * lowest frequencies of a discrete cosine transform of a 32 x 32 grid to their median, which
+ * is more robust against changes to brightness and contrast.
+ * <br><br>
+ * Hashes only need a very small version of the image, so files are read through a subsampled decode.
+ * Embedded EXIF thumbnails aren't used even though they are faster to read: they are often left over from
+ * before a crop or edit, or letterboxed to a fixed size, so an original and a re-export without a thumbnail
+ * would be hashed from different pixels.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class ImageHasher
+{
+	private static final int PHASH_SIZE = 32;
+	private static final int PHASH_FREQUENCIES = 8;
+	private static final int PREVIEW_SIZE = 128;
+	private static final double[][] COSINES = new double[PHASH_FREQUENCIES][PHASH_SIZE];
+
+	static
+	{
+		for (int u = 0; u < PHASH_FREQUENCIES; ++u)
+			for (int x = 0; x < PHASH_SIZE; ++x)
+				COSINES[u][x] = Math.cos((2 * x + 1) * u * Math.PI / (2 * PHASH_SIZE));
+	}
+
+	/**
+	 * The hashes of one image
+	 */
+	public static final class Hashes
+	{
+		public final long dHash;
+		public final long pHash;
+
+		public Hashes(long dHash, long pHash)
+		{
+			this.dHash = dHash;
+			this.pHash = pHash;
+		}
+	}
+
+	/**
+	 * Reads a small version of an image file and hashes it
+	 *
+	 * @param imageFile - the file to hash
+	 * @return the hashes of the image
+	 * @throws IOException if the file can't be read
+	 */
+	public static Hashes hash(File imageFile) throws IOException
+	{
+		return hash(RegionReader.readPreview(imageFile, PREVIEW_SIZE, PREVIEW_SIZE));
+	}
+
+	/**
+	 * @param bufferedImage - the image to hash
+	 * @return the hashes of the image
+	 */
+	public static Hashes hash(BufferedImage bufferedImage)
+	{
+		int width = bufferedImage.getWidth();
+		int height = bufferedImage.getHeight();
+		int[] pixels = bufferedImage.getRGB(0, 0, width, height, null, 0, width);
+
+		return new Hashes(dHash(pixels, width, height), pHash(pixels, width, height));
+	}
+
+	/**
+	 * @return the number of bits that differ between two hashes
+	 */
+	public static int distance(long hash1, long hash2)
+	{
+		return Long.bitCount(hash1 ^ hash2);
+	}
+
+	private static long dHash(int[] pixels, int width, int height)
+	{
+		double[] grid = shrink(pixels, width, height, 9, 8);
+		long hash = 0;
+
+		for (int y = 0; y < 8; ++y)
+			for (int x = 0; x < 8; ++x)
+				hash = (hash << 1) | (grid[y * 9 + x] < grid[y * 9 + x + 1] ? 1 : 0);
+
+		return hash;
+	}
+
+	private static long pHash(int[] pixels, int width, int height)
+	{
+		double[] grid = shrink(pixels, width, height, PHASH_SIZE, PHASH_SIZE);
+
+		//Transform the rows, then the columns, keeping only the lowest frequencies
+		double[] rows = new double[PHASH_SIZE * PHASH_FREQUENCIES];
+		for (int y = 0; y < PHASH_SIZE; ++y)
+			for (int u = 0; u < PHASH_FREQUENCIES; ++u)
+			{
+				double sum = 0;
+				for (int x = 0; x < PHASH_SIZE; ++x)
+					sum += grid[y * PHASH_SIZE + x] * COSINES[u][x];
+				rows[y * PHASH_FREQUENCIES + u] = sum;
+			}
+
+		double[] coefficients = new double[PHASH_FREQUENCIES * PHASH_FREQUENCIES];
+		for (int v = 0; v < PHASH_FREQUENCIES; ++v)
+			for (int u = 0; u < PHASH_FREQUENCIES; ++u)
+			{
+				double sum = 0;
+				for (int y = 0; y < PHASH_SIZE; ++y)
+					sum += rows[y * PHASH_FREQUENCIES + u] * COSINES[v][y];
+				coefficients[v * PHASH_FREQUENCIES + u] = sum;
+			}
+
+		//The DC coefficient is the average brightness, so it is left out of the median
+		double[] sorted = Arrays.copyOfRange(coefficients, 1, coefficients.length);
+		Arrays.sort(sorted);
+		double median = sorted[sorted.length / 2];
+
+		long hash = 0;
+		for (double coefficient : coefficients)
+			hash = (hash << 1) | (coefficient > median ? 1 : 0);
+
+		return hash;
+	}
+
+	/**
+	 * Averages the luminance of an image into a grid of cells
+	 */
+	private static double[] shrink(int[] pixels, int width, int height, int gridWidth, int gridHeight)
+	{
+		double[] sums = new double[gridWidth * gridHeight];
+		int[] counts = new int[gridWidth * gridHeight];
+
+		for (int y = 0; y < height; ++y)
+		{
+			int row = (int) ((long) y * gridHeight / height) * gridWidth;
+
+			for (int x = 0; x < width; ++x)
+			{
+				int pixel = pixels[y * width + x];
+				int cell = row + (int) ((long) x * gridWidth / width);
+				sums[cell] += 0.299 * ((pixel >> 16) & 0xFF) + 0.587 * ((pixel >> 8) & 0xFF) + 0.114 * (pixel & 0xFF);
+				++counts[cell];
+			}
+		}
+
+		//Images smaller than the grid leave some cells empty, they take the value of the previous cell
+		for (int i = 0; i < sums.length; ++i)
+			sums[i] = counts[i] > 0 ? sums[i] / counts[i] : i > 0 ? sums[i - 1] : 0;
+
+		return sums;
+	}
+}
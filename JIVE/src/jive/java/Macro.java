@@ -0,0 +1,90 @@
+package jive.java;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A Macro is a sequence of Operations recorded on one image (see Project.startRecording()),
+ * which can be replayed on other images, such as every image on a PhotoReel (see MacroBatch).
+ * <br><br>
+ * Each operation is stored with the size of the image it was applied to. When the macro is replayed
+ * on an image of another size, the operation is scaled to it with Operation.scale(), so a crop
+ * removes the same part of every image rather than the same pixels.
+ * <br><br>
+ * Macros are immutable and can be replayed on several images at once.
+ *
+ * @author Devon Hunter
+ *
+ */
+public final class Macro
+{
+	private final List<Operation> operations;
+	private final int[] widths;
+	private final int[] heights;
+
+	/**
+	 * @param operations - the operations in the order they were applied
+	 * @param widths - the width of the image each operation was applied to
+	 * @param heights - the height of the image each operation was applied to
+	 */
+	Macro(List<Operation> operations, int[] widths, int[] heights)
+	{
+		if (widths.length != operations.size() || heights.length != operations.size())
+			throw new IllegalArgumentException("Every operation needs the size of the image it was applied to");
+
+		this.operations = Collections.unmodifiableList(new ArrayList<Operation>(operations));
+		this.widths = widths.clone();
+		this.heights = heights.clone();
+	}
+
+	/**
+	 * Applies every operation of the macro in order
+	 *
+	 * @param imageEditor - the ImageEditor that performs the edits
+	 * @param bufferedImage - the image to edit, which is not modified
+	 * @return the edited image
+	 */
+	public BufferedImage apply(ImageEditor imageEditor, BufferedImage bufferedImage)
+	{
+		BufferedImage image = bufferedImage;
+
+		for (int i = 0; i < operations.size(); ++i)
+		{
+			Operation operation = operations.get(i).scale((double) image.getWidth() / widths[i], (double) image.getHeight() / heights[i]);
+			image = operation.apply(imageEditor, image);
+		}
+
+		return image;
+	}
+
+	/**
+	 * @return the number of operations in the macro
+	 */
+	public int size()
+	{
+		return operations.size();
+	}
+
+	/**
+	 * @return true if no operations were recorded
+	 */
+	public boolean isEmpty()
+	{
+		return operations.isEmpty();
+	}
+
+	/**
+	 * @return the names of the operations in the order they are applied
+	 */
+	public List<String> getDescriptions()
+	{
+		List<String> descriptions = new ArrayList<String>();
+
+		for (Operation operation : operations)
+			descriptions.add(operation.getName());
+
+		return descriptions;
+	}
+}
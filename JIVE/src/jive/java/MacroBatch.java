@@ -0,0 +1,201 @@
+package jive.java;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
+
+/**
+ * MacroBatch applies a Macro to a list of image files, such as every file on a PhotoReel,
+ * and saves the results under the same names in an output directory.
+ * <br><br>
+ * Files are edited on a pool of THREADS background threads. Each file is opened as a Project, so it is
+ * decoded, color managed and saved the same way as a file edited by hand. Before a file is decoded its size
+ * is read from the header, and it has to reserve the memory its image and the copies made while editing it
+ * will take from a budget of HEAP_BUDGET. Small images are edited on all threads at once, while large images
+ * wait for each other, so the batch runs alongside the GUI without running out of memory. Images too large
+ * for the heap (see OffHeapImage.isNeeded()) are skipped.
+ * <br><br>
+ * The status of every file is shown in getStatusList(), including the reason a file failed.
+ * The value of the task is the number of files that failed.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class MacroBatch extends Task<Integer>
+{
+	static final int THREADS = Runtime.getRuntime().availableProcessors();
+	static final long HEAP_BUDGET = Runtime.getRuntime().maxMemory() / 2;
+	private static final int IMAGE_COPIES = 3;		//The decoded image, the result, and the intermediate result of an edit
+
+	private final List<File> files;
+	private final File outputDirectory;
+	private final Macro macro;
+	private final EncoderSettings encoderSettings;
+	private final ObservableList<String> statusList = FXCollections.observableArrayList();
+
+	/**
+	 * Must be called on the JavaFX thread
+	 *
+	 * @param files - the files to edit
+	 * @param outputDirectory - the directory the edited files are saved in
+	 * @param macro - the edits to apply
+	 * @param encoderSettings - the options the edited files are saved with
+	 */
+	public MacroBatch(List<File> files, File outputDirectory, Macro macro, EncoderSettings encoderSettings)
+	{
+		this.files = new ArrayList<File>(files);
+		this.outputDirectory = outputDirectory;
+		this.macro = macro;
+		this.encoderSettings = encoderSettings;
+
+		for (File file : this.files)
+			statusList.add(file.getName() + " - Waiting");
+
+		updateTitle("Applying macro");
+	}
+
+	/**
+	 * The status of every file, in the order of the files.
+	 * This list is only updated on the JavaFX thread.
+	 *
+	 * @return the status list
+	 */
+	public ObservableList<String> getStatusList()
+	{
+		return statusList;
+	}
+
+	@Override
+	protected Integer call() throws Exception
+	{
+		int count = files.size();
+		int budget = (int) Math.max(1, HEAP_BUDGET >> 20);
+		Semaphore memory = new Semaphore(budget);
+		AtomicInteger finished = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS, runnable ->
+		{
+			Thread thread = new Thread(runnable, "JIVE macro batch");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		for (int i = 0; i < count; ++i)
+		{
+			int index = i;
+
+			executor.execute(() ->
+			{
+				if (!edit(index, memory, budget))
+					failed.incrementAndGet();
+
+				updateProgress(finished.incrementAndGet(), count);
+			});
+		}
+
+		executor.shutdown();
+
+		try
+		{
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			//Cancelled, the files that haven't started yet mark themselves as cancelled
+			return null;
+		}
+
+		return failed.get();
+	}
+
+	/*
+	 * Edits and saves one file
+	 * Returns false if the file failed
+	 */
+	private boolean edit(int index, Semaphore memory, int budget)
+	{
+		File file = files.get(index);
+
+		if (isCancelled())
+		{
+			setStatus(index, "Cancelled");
+			return true;
+		}
+
+		setStatus(index, "Working");
+
+		try
+		{
+			Dimension size = RegionReader.readSize(file);
+
+			if (OffHeapImage.isNeeded(size.width, size.height))
+				throw new IOException("too large to edit in a batch");
+
+			//Reservations are in megabytes, an image larger than the budget waits until it is the only one
+			long bytes = (long) size.width * size.height * 4 * IMAGE_COPIES;
+			int megabytes = (int) Math.min(budget, (bytes >> 20) + 1);
+			memory.acquire(megabytes);
+
+			try
+			{
+				if (isCancelled())
+				{
+					setStatus(index, "Cancelled");
+					return true;
+				}
+
+				Project project = new Project(file);
+
+				try
+				{
+					project.setEncoderSettings(encoderSettings);
+					project.apply(Operation.macro(macro));
+
+					if (!project.saveAs(new File(outputDirectory, file.getName())))
+						throw new IOException("could not be saved");
+				}
+				finally
+				{
+					project.close();
+				}
+			}
+			finally
+			{
+				memory.release(megabytes);
+			}
+
+			setStatus(index, "Done");
+			return true;
+		}
+		catch (InterruptedException e)
+		{
+			setStatus(index, "Cancelled");
+			return true;
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			setStatus(index, "Failed: " + (e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()));
+			return false;
+		}
+	}
+
+	private void setStatus(int index, String status)
+	{
+		String entry = files.get(index).getName() + " - " + status;
+		Platform.runLater(() -> statusList.set(index, entry));
+	}
+}
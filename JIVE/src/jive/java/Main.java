@@ -1,6 +1,15 @@
 package jive.java;
 	
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
@@ -10,28 +19,72 @@ import javafx.stage.Stage;
 /**
  * This is the entry-point of the Java Image Viewer and Editor application
  * 
+ * Startup can be timed with -Djive.startupTiming=true (see StartupTimer).
+ * With -Djive.exitAfterStartup=true JIVE exits as soon as its window is shown,
+ * which is used to record a class data sharing archive (see README.md).
+ * 
+ * ImageIO's disk cache is turned off. Image files are read from memory-mapped files (see MappedImageInputStream)
+ * and other streams, such as embedded thumbnails, are small enough to buffer in memory.
+ * 
+ * Image files given as arguments are opened on startup. If JIVE is already running
+ * they are handed to the running instance instead (see SingleInstance).
+ * 
+ * With --serve as the first argument, JIVE runs as a headless RenditionServer instead of opening a window,
+ * and the remaining arguments are passed to it.
+ * 
  * @author Devon Hunter
  * @author Craig Vandeventer
  * @author Casey Brown
  *
  */
 public class Main extends Application {
+	private Controller gui;
+	
 	@Override
 	public void start(Stage primaryStage) {
 		try 
 		{
+			StartupTimer.mark("JavaFX toolkit");
 			FXMLLoader loader = new FXMLLoader(getClass().getResource("/jive/resources/view.fxml"));
 			Parent root = (Parent)loader.load();
-			Controller gui = (Controller) loader.getController();
+			gui = (Controller) loader.getController();
+			StartupTimer.mark("FXML and icons");
 			Scene scene = new Scene(root);
 			scene.getStylesheets().add(getClass().getResource("/jive/resources/view.css").toExternalForm());
 			primaryStage.setTitle("JIVE");
 			primaryStage.getIcons().add(new Image(getClass().getResourceAsStream("/jive/resources/icons/JiveIcon.png")));
 			primaryStage.setScene(scene);
-			primaryStage.setMinWidth(800);
+			primaryStage.setMinWidth(880);
 			primaryStage.setMinHeight(325);
 			gui.setUp(primaryStage);
+			StartupTimer.mark("Scene and stage");
 			primaryStage.show();
+			
+			List<File> files = new ArrayList<File>();
+			for (String path : getParameters().getRaw())
+				files.add(new File(path));
+			
+			if (!files.isEmpty())
+				gui.openFiles(files);
+			
+			SingleInstance.setHandler(receivedFiles -> Platform.runLater(() ->
+			{
+				primaryStage.setIconified(false);
+				primaryStage.toFront();
+				
+				if (!receivedFiles.isEmpty())
+					gui.openFiles(receivedFiles);
+			}));
+			
+			//Runs once the JavaFX thread has finished showing the window
+			Platform.runLater(() ->
+			{
+				StartupTimer.mark("First window shown");
+				StartupTimer.report();
+				
+				if (Boolean.getBoolean("jive.exitAfterStartup"))
+					Platform.exit();
+			});
 		} 
 		catch(Exception e) 
 		{
@@ -39,7 +92,29 @@ public class Main extends Application {
 		}
 	}
 	
-	public static void main(String[] args) {
+	@Override
+	public void stop() {
+		if (gui != null)
+			gui.shutDown();
+		
+		SingleInstance.release();
+	}
+	
+	public static void main(String[] args) throws IOException {
+		StartupTimer.mark("JVM startup");
+		
+		if (args.length > 0 && args[0].equals("--serve"))
+		{
+			RenditionServer.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		
+		//Later launches only pass their files on, without starting JavaFX
+		if (SingleInstance.handOff(args))
+			return;
+		
+		//Streams that don't come from a file are buffered in memory rather than in a temporary file
+		ImageIO.setUseCache(false);
 		launch(args);
 	}
 }
@@ -0,0 +1,174 @@
+package jive.java;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * MappedImageInputStream reads an image file through a memory-mapped FileChannel.
+ * <br><br>
+ * Image readers get the bytes of the file straight from the operating system's page cache, without a
+ * read() call per buffer or a copy into a stream buffer, and seeking anywhere in the file is free. A file
+ * that was opened recently is already in the page cache, so reading it again costs no disk access at all.
+ * Files are mapped in chunks of up to CHUNK_SIZE bytes, so files larger than 2 GB can be read too.
+ * <br><br>
+ * The mapping is released by close(). On Windows a mapped file can't be overwritten, so the file must
+ * be closed before it is saved over.
+ * <br><br>
+ * JIVE turns off ImageIO's disk cache at startup (see Main), so streams that aren't backed by a file,
+ * such as the embedded thumbnail of a JPEG, are buffered in memory instead of spooled to a temporary file.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class MappedImageInputStream extends ImageInputStreamImpl
+{
+	static final int CHUNK_SHIFT = 30;
+	static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	private static final Method invokeCleaner;
+	private static final Object unsafe;
+
+	private final long length;
+	private final MappedByteBuffer[] chunks;
+	private boolean closed;
+
+	static
+	{
+		//Mappings are otherwise only released when the garbage collector runs
+		Method cleaner = null;
+		Object instance = null;
+
+		try
+		{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			instance = field.get(null);
+			cleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		}
+		catch (ReflectiveOperationException | RuntimeException e)
+		{
+			cleaner = null;
+			instance = null;
+		}
+
+		invokeCleaner = cleaner;
+		unsafe = instance;
+	}
+
+	/**
+	 * Maps a file for reading
+	 *
+	 * @param imageFile - the file to read
+	 * @throws IOException if the file can't be opened or mapped
+	 */
+	public MappedImageInputStream(File imageFile) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(imageFile.toPath(), StandardOpenOption.READ))
+		{
+			length = channel.size();
+			chunks = new MappedByteBuffer[(int) ((length + CHUNK_SIZE - 1) >>> CHUNK_SHIFT)];
+
+			//The mappings stay valid after the channel is closed
+			for (int i = 0; i < chunks.length; ++i)
+			{
+				long start = (long) i << CHUNK_SHIFT;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, length - start));
+			}
+		}
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		checkClosed();
+		bitOffset = 0;
+
+		if (streamPos >= length)
+			return -1;
+
+		int value = chunks[(int) (streamPos >>> CHUNK_SHIFT)].get((int) (streamPos & (CHUNK_SIZE - 1)));
+		++streamPos;
+		return value & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int count) throws IOException
+	{
+		checkClosed();
+		if (offset < 0 || count < 0 || count > bytes.length - offset)
+			throw new IndexOutOfBoundsException("Range [" + offset + ", " + offset + " + " + count + ") out of bounds for length " + bytes.length);
+		bitOffset = 0;
+
+		if (count == 0)
+			return 0;
+
+		if (streamPos >= length)
+			return -1;
+
+		int total = (int) Math.min(count, length - streamPos);
+
+		//Copies up to the end of each chunk the read spans
+		for (int copied = 0; copied < total; )
+		{
+			MappedByteBuffer chunk = chunks[(int) (streamPos >>> CHUNK_SHIFT)];
+			int position = (int) (streamPos & (CHUNK_SIZE - 1));
+			int bytesToCopy = Math.min(total - copied, chunk.capacity() - position);
+
+			//Reads through a duplicate so the chunk's own position is left alone, as an absolute get would
+			((ByteBuffer) chunk.duplicate().position(position)).get(bytes, offset + copied, bytesToCopy);
+			copied += bytesToCopy;
+			streamPos += bytesToCopy;
+		}
+
+		return total;
+	}
+
+	/**
+	 * @return the length of the file in bytes
+	 */
+	@Override
+	public long length()
+	{
+		return length;
+	}
+
+	/**
+	 * Releases the mapping. Closing the stream again has no effect.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+
+		closed = true;
+		super.close();
+
+		for (int i = 0; i < chunks.length; ++i)
+		{
+			MappedByteBuffer chunk = chunks[i];
+			chunks[i] = null;
+
+			if (invokeCleaner != null)
+			{
+				try
+				{
+					invokeCleaner.invoke(unsafe, chunk);
+				}
+				catch (ReflectiveOperationException | RuntimeException e)
+				{
+					//The mapping is released by the garbage collector instead
+				}
+			}
+		}
+	}
+}
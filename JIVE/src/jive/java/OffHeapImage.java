@@ -0,0 +1,618 @@
+package jive.java;
+
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Vector;
+import java.util.stream.IntStream;
+
+/**
+ * OffHeapImage stores the pixels of an image outside the Java heap, for images too large to be held in a BufferedImage.
+ * <br><br>
+ * The pixels are packed ints in the layout of TYPE_INT_RGB or TYPE_INT_ARGB, stored row by row in a temporary file.
+ * Pixel offsets are longs, so an image isn't limited to the 2^31 elements of a Java array, only to 2^31 pixels per side.
+ * The file is read and written with positional FileChannel calls in bands of rows, so the only pixels on the heap
+ * are the band being worked on. The rest of the image is held in the operating system's file cache, where the
+ * garbage collector never scans or copies it. The cache is backed by the file, so images larger than physical memory
+ * still work, only more slowly.
+ * <br><br>
+ * close() deletes the file and releases the cache straight away rather than when the garbage collector runs.
+ * Any number of threads may read and write different rows at the same time.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class OffHeapImage implements Closeable
+{
+	static final int BAND_BYTES = 4 << 20;
+	static final int TRANSPOSE_BYTES = 32 << 20;
+	private static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+	private final int width;
+	private final int height;
+	private final boolean hasAlpha;
+	private final Path file;
+	private final FileChannel channel;
+
+	/**
+	 * Processes one band of rows of an image
+	 */
+	@FunctionalInterface
+	public interface BandVisitor
+	{
+		/**
+		 * @param y - the first row of the band
+		 * @param rows - the number of rows in the band
+		 * @param pixels - the pixels of the band, which the visitor may modify
+		 */
+		void visit(int y, int rows, int[] pixels) throws IOException;
+	}
+
+	/**
+	 * Writes the pixels of a new image
+	 */
+	@FunctionalInterface
+	public interface Filler
+	{
+		void fill(OffHeapImage image) throws IOException;
+	}
+
+	/**
+	 * Creates an image with every pixel set to 0
+	 *
+	 * @param width - the width of the image
+	 * @param height - the height of the image
+	 * @param hasAlpha - true for the layout of TYPE_INT_ARGB, false for TYPE_INT_RGB
+	 * @throws IOException if the temporary file can't be created
+	 */
+	public OffHeapImage(int width, int height, boolean hasAlpha) throws IOException
+	{
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("Invalid image size " + width + " x " + height);
+
+		this.width = width;
+		this.height = height;
+		this.hasAlpha = hasAlpha;
+
+		file = Files.createTempFile("jive-pixels", ".raw");
+		file.toFile().deleteOnExit();
+		channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		//Extends the file without writing the pixels, unwritten parts of a file read as zeros
+		transfer(ByteBuffer.allocate(1), (long) width * height * 4 - 1, false);
+	}
+
+	/**
+	 * Creates an image and fills it in. If the filler fails the image is closed before the exception is passed on.
+	 *
+	 * @param width - the width of the image
+	 * @param height - the height of the image
+	 * @param hasAlpha - true for the layout of TYPE_INT_ARGB, false for TYPE_INT_RGB
+	 * @param filler - the function that writes the pixels
+	 * @return the filled image
+	 * @throws IOException if the image can't be created or the filler throws one
+	 */
+	public static OffHeapImage create(int width, int height, boolean hasAlpha, Filler filler) throws IOException
+	{
+		OffHeapImage image = new OffHeapImage(width, height, hasAlpha);
+
+		try
+		{
+			filler.fill(image);
+			return image;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			image.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks if an image is too large to edit on the heap. This is the case when its pixels don't fit in one Java array,
+	 * or would take up more than the heap budget of the EditHistory, since editing needs several copies of the image.
+	 *
+	 * @param width - the width of the image
+	 * @param height - the height of the image
+	 * @return true if the image should be stored in an OffHeapImage
+	 */
+	public static boolean isNeeded(int width, int height)
+	{
+		long pixels = (long) width * height;
+		return pixels > MAX_ARRAY_LENGTH || pixels * 4 > EditHistory.DEFAULT_HEAP_BUDGET;
+	}
+
+	/**
+	 * Reads a rectangle of pixels
+	 *
+	 * @param x - the left edge of the rectangle
+	 * @param y - the top edge of the rectangle
+	 * @param width - the width of the rectangle
+	 * @param height - the height of the rectangle
+	 * @param pixels - receives the pixels row by row, starting at index 0
+	 * @throws IOException if the file can't be read, or the image has been closed
+	 */
+	public void read(int x, int y, int width, int height, int[] pixels) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(width * height * 4).order(ByteOrder.nativeOrder());
+		transferRectangle(buffer, x, y, width, height, true);
+		buffer.clear();
+		buffer.asIntBuffer().get(pixels, 0, width * height);
+	}
+
+	/**
+	 * Writes a rectangle of pixels
+	 *
+	 * @param x - the left edge of the rectangle
+	 * @param y - the top edge of the rectangle
+	 * @param width - the width of the rectangle
+	 * @param height - the height of the rectangle
+	 * @param pixels - the pixels row by row, starting at index 0
+	 * @throws IOException if the file can't be written, or the image has been closed
+	 */
+	public void write(int x, int y, int width, int height, int[] pixels) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(width * height * 4).order(ByteOrder.nativeOrder());
+		buffer.asIntBuffer().put(pixels, 0, width * height);
+		transferRectangle(buffer, x, y, width, height, false);
+	}
+
+	/**
+	 * Reads every band of rows in parallel and passes it to a visitor
+	 *
+	 * @param visitor - the function that processes each band
+	 * @throws IOException if the file can't be read or the visitor throws one
+	 */
+	public void forEachBand(BandVisitor visitor) throws IOException
+	{
+		int bandHeight = getBandHeight();
+
+		try
+		{
+			IntStream.range(0, (height + bandHeight - 1) / bandHeight).parallel().forEach(band ->
+			{
+				int y = band * bandHeight;
+				int rows = Math.min(bandHeight, height - y);
+				int[] pixels = new int[rows * width];
+
+				try
+				{
+					read(0, y, width, rows, pixels);
+					visitor.visit(y, rows, pixels);
+				}
+				catch (IOException e)
+				{
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Creates a copy of the image scaled down to fit the given size, by averaging blocks of pixels.
+	 * Only a few rows of the image are read at a time. Pixels with an alpha channel are weighted by their alpha,
+	 * so transparent pixels don't darken the edges of opaque ones.
+	 *
+	 * @param maxWidth - the largest width of the copy
+	 * @param maxHeight - the largest height of the copy
+	 * @return the scaled copy, of TYPE_INT_ARGB or TYPE_INT_RGB
+	 * @throws IOException if the file can't be read
+	 */
+	public BufferedImage createPreview(int maxWidth, int maxHeight) throws IOException
+	{
+		int factor = (int) Math.max(1, Math.max(Math.ceil((double) width / maxWidth), Math.ceil((double) height / maxHeight)));
+		int previewWidth = (width + factor - 1) / factor;
+		int previewHeight = (height + factor - 1) / factor;
+		BufferedImage preview = new BufferedImage(previewWidth, previewHeight, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		int[] destination = PixelFormats.getData(preview);
+
+		try
+		{
+			IntStream.range(0, previewHeight).parallel().forEach(row ->
+			{
+				int rows = Math.min(factor, height - row * factor);
+				int[] pixels = new int[rows * width];
+
+				try
+				{
+					read(0, row * factor, width, rows, pixels);
+				}
+				catch (IOException e)
+				{
+					throw new UncheckedIOException(e);
+				}
+
+				for (int column = 0; column < previewWidth; ++column)
+				{
+					int left = column * factor;
+					int columns = Math.min(factor, width - left);
+					long alphaSum = 0, redSum = 0, greenSum = 0, blueSum = 0;
+
+					for (int y = 0; y < rows; ++y)
+					{
+						for (int i = y * width + left, end = i + columns; i < end; ++i)
+						{
+							int pixel = pixels[i];
+							int weight = hasAlpha ? pixel >>> 24 : 1;
+							alphaSum += weight;
+							redSum += ((pixel >> 16) & 0xFF) * weight;
+							greenSum += ((pixel >> 8) & 0xFF) * weight;
+							blueSum += (pixel & 0xFF) * weight;
+						}
+					}
+
+					int count = rows * columns;
+					int alpha = hasAlpha ? (int) ((alphaSum + count / 2) / count) : 0xFF;
+					long total = Math.max(1, alphaSum);
+					destination[row * previewWidth + column] = alpha << 24 | (int) ((redSum + total / 2) / total) << 16
+							| (int) ((greenSum + total / 2) / total) << 8 | (int) ((blueSum + total / 2) / total);
+				}
+			});
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+
+		return preview;
+	}
+
+	/**
+	 * Writes the image to a file. The writer is given a view of the image that is read a band of rows at a time,
+	 * so formats whose writers request the image in rows or tiles (such as PNG) are written without loading it onto the heap.
+	 *
+	 * @param imageFile - the file to write
+	 * @param format - the informal name of the format, such as "png"
+	 * @param flatten - true to blend the image onto white for formats that don't support transparency
+	 * @param settings - the options to write the image with
+	 * @throws IOException if there is no writer for the format or the file can't be written
+	 */
+	public void write(File imageFile, String format, boolean flatten, EncoderSettings settings) throws IOException
+	{
+		ImageEncoder.write(new BandedView(flatten && hasAlpha), format, imageFile, settings);
+	}
+
+	/**
+	 * @return a view of the image that is read a band of rows at a time, for code that reads RenderedImages
+	 * by region, such as PixelFormats.readRGB()
+	 */
+	RenderedImage asRenderedImage()
+	{
+		return new BandedView(false);
+	}
+
+	/**
+	 * Deletes the file holding the pixels. The image can't be used afterwards.
+	 */
+	@Override
+	public void close()
+	{
+		try
+		{
+			channel.close();
+			Files.deleteIfExists(file);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the number of rows in a band of about BAND_BYTES
+	 */
+	public int getBandHeight()
+	{
+		return Math.max(1, Math.min(height, BAND_BYTES / 4 / width));
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * @return true if the pixels are in the layout of TYPE_INT_ARGB, false for TYPE_INT_RGB
+	 */
+	public boolean hasAlpha()
+	{
+		return hasAlpha;
+	}
+
+	/*
+	 * Reads or writes a rectangle, in one call if it spans whole rows and one call per row otherwise
+	 */
+	private void transferRectangle(ByteBuffer buffer, int x, int y, int width, int height, boolean read) throws IOException
+	{
+		if (x < 0 || y < 0 || x + width > this.width || y + height > this.height)
+			throw new IndexOutOfBoundsException("Rectangle " + x + ", " + y + ", " + width + " x " + height + " is outside the image");
+
+		if (width == this.width)
+		{
+			transfer(buffer, offset(0, y), read);
+			return;
+		}
+
+		for (int row = 0; row < height; ++row)
+		{
+			buffer.limit((row + 1) * width * 4);
+			transfer(buffer, offset(x, y + row), read);
+		}
+	}
+
+	private void transfer(ByteBuffer buffer, long position, boolean read) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int count = read ? channel.read(buffer, position) : channel.write(buffer, position);
+			if (count < 0)
+				throw new EOFException("Unexpected end of " + file);
+			position += count;
+		}
+	}
+
+	private long offset(int x, int y)
+	{
+		return ((long) y * width + x) * 4;
+	}
+
+	/**
+	 * A read-only RenderedImage view of the OffHeapImage with one tile per band of rows.
+	 * Tiles and regions are read from the file when they are requested and aren't cached.
+	 */
+	private class BandedView implements RenderedImage
+	{
+		private final boolean flatten;
+		private final DirectColorModel colorModel;
+		private final int tileHeight = getBandHeight();
+
+		BandedView(boolean flatten)
+		{
+			this.flatten = flatten;
+			colorModel = hasAlpha && !flatten ? (DirectColorModel) ColorModel.getRGBdefault() : new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+		}
+
+		@Override
+		public Raster getData(Rectangle region)
+		{
+			Rectangle bounds = region.intersection(new Rectangle(width, height));
+			int[] pixels = new int[bounds.width * bounds.height];
+
+			try
+			{
+				read(bounds.x, bounds.y, bounds.width, bounds.height, pixels);
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+
+			if (flatten)
+				PixelKernels.flatten(pixels, pixels.length);
+
+			return Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length), bounds.width, bounds.height,
+					bounds.width, colorModel.getMasks(), new Point(bounds.x, bounds.y));
+		}
+
+		/**
+		 * Gets the whole image for writers that don't request it by region, such as JPEG.
+		 * The raster reads the file a band at a time as the writer reads its rows, like a FlatteningImage.
+		 */
+		@Override
+		public Raster getData()
+		{
+			if ((long) width * height > MAX_ARRAY_LENGTH)
+				throw new IllegalArgumentException("The image is too large to be written as a single raster");
+
+			return Raster.createWritableRaster(getSampleModel().createCompatibleSampleModel(width, height),
+					new BandDataBuffer(flatten), new Point(0, 0));
+		}
+
+		@Override
+		public Raster getTile(int tileX, int tileY)
+		{
+			return getData(new Rectangle(0, tileY * tileHeight, width, tileHeight));
+		}
+
+		@Override
+		public WritableRaster copyData(WritableRaster raster)
+		{
+			if (raster == null)
+				raster = colorModel.createCompatibleWritableRaster(width, height);
+
+			raster.setRect(getData(raster.getBounds()));
+			return raster;
+		}
+
+		@Override
+		public SampleModel getSampleModel()
+		{
+			return new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, tileHeight, colorModel.getMasks());
+		}
+
+		@Override
+		public ColorModel getColorModel()
+		{
+			return colorModel;
+		}
+
+		@Override
+		public Vector<RenderedImage> getSources()
+		{
+			return null;
+		}
+
+		@Override
+		public Object getProperty(String name)
+		{
+			return Image.UndefinedProperty;
+		}
+
+		@Override
+		public String[] getPropertyNames()
+		{
+			return null;
+		}
+
+		@Override
+		public int getWidth()
+		{
+			return width;
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return height;
+		}
+
+		@Override
+		public int getMinX()
+		{
+			return 0;
+		}
+
+		@Override
+		public int getMinY()
+		{
+			return 0;
+		}
+
+		@Override
+		public int getNumXTiles()
+		{
+			return 1;
+		}
+
+		@Override
+		public int getNumYTiles()
+		{
+			return (height + tileHeight - 1) / tileHeight;
+		}
+
+		@Override
+		public int getMinTileX()
+		{
+			return 0;
+		}
+
+		@Override
+		public int getMinTileY()
+		{
+			return 0;
+		}
+
+		@Override
+		public int getTileWidth()
+		{
+			return width;
+		}
+
+		@Override
+		public int getTileHeight()
+		{
+			return tileHeight;
+		}
+
+		@Override
+		public int getTileGridXOffset()
+		{
+			return 0;
+		}
+
+		@Override
+		public int getTileGridYOffset()
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * A DataBuffer with one element per pixel that reads the image one band of rows at a time
+	 */
+	private class BandDataBuffer extends DataBuffer
+	{
+		private final boolean flatten;
+		private final int bandHeight = getBandHeight();
+		private final int[] band = new int[bandHeight * width];
+		private int bandStart = -1;
+		private int bandEnd = -1;
+
+		BandDataBuffer(boolean flatten)
+		{
+			super(DataBuffer.TYPE_INT, width * height);
+			this.flatten = flatten;
+		}
+
+		@Override
+		public int getElem(int bank, int i)
+		{
+			int row = i / width;
+
+			if (row < bandStart || row >= bandEnd)
+				loadBand(row);
+
+			return band[i - bandStart * width];
+		}
+
+		@Override
+		public void setElem(int bank, int i, int val)
+		{
+			throw new UnsupportedOperationException("The image view is read-only");
+		}
+
+		/*
+		 * Loads the band containing a row, ending at the row if it is above the current band (see FlatteningImage)
+		 */
+		private void loadBand(int row)
+		{
+			int start = row < bandStart ? Math.max(0, row - bandHeight + 1) : row;
+			int rows = Math.min(bandHeight, height - start);
+
+			try
+			{
+				read(0, start, width, rows, band);
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+
+			if (flatten)
+				PixelKernels.flatten(band, rows * width);
+
+			bandStart = start;
+			bandEnd = start + rows;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package jive.java;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.function.BiFunction;
+
+/**
+ * An Operation is a single editing function together with its parameters.
+ * <br><br>
+ * Operations are immutable and don't hold a reference to any image, so the same
+ * Operation can be applied to a snapshot of a Project on a background thread and
+ * the result committed to the Project afterwards.
+ * <br><br>
+ * Operations that can edit an OffHeapImage also hold a version of the function for it (see isOffHeapSupported()).
+ * The parameters of an Operation are relative to the image it was created for, such as the preview proxy of an
+ * OffHeapImage, so coordinates are scaled to the size of the OffHeapImage when it is edited.
+ * For the same reason, operations replayed by a Macro on an image of another size are scaled with scale().
+ *
+ * @author Devon Hunter
+ *
+ */
+public final class Operation
+{
+	private final String name;
+	private final BiFunction<ImageEditor, BufferedImage, BufferedImage> function;
+	private final OffHeapFunction offHeapFunction;
+	private final ScaleFunction scaleFunction;
+
+	/**
+	 * An editing function for OffHeapImages
+	 */
+	@FunctionalInterface
+	interface OffHeapFunction
+	{
+		/**
+		 * @param scaleX - the width of the image divided by the width of the image the Operation was created for
+		 * @param scaleY - the height of the image divided by the height of the image the Operation was created for
+		 */
+		OffHeapImage apply(ImageEditor imageEditor, OffHeapImage image, double scaleX, double scaleY) throws IOException;
+	}
+
+	/**
+	 * Creates the same operation for an image of another size
+	 */
+	@FunctionalInterface
+	private interface ScaleFunction
+	{
+		Operation scale(double scaleX, double scaleY);
+	}
+
+	private Operation(String name, BiFunction<ImageEditor, BufferedImage, BufferedImage> function)
+	{
+		this(name, function, null);
+	}
+
+	private Operation(String name, BiFunction<ImageEditor, BufferedImage, BufferedImage> function, OffHeapFunction offHeapFunction)
+	{
+		this(name, function, offHeapFunction, null);
+	}
+
+	private Operation(String name, BiFunction<ImageEditor, BufferedImage, BufferedImage> function, OffHeapFunction offHeapFunction,
+			ScaleFunction scaleFunction)
+	{
+		this.name = name;
+		this.function = function;
+		this.offHeapFunction = offHeapFunction;
+		this.scaleFunction = scaleFunction;
+	}
+
+	/**
+	 * Applies the operation to a BufferedImage
+	 *
+	 * @param imageEditor - the ImageEditor that performs the edit
+	 * @param bufferedImage - the image to edit, which is not modified
+	 * @return the edited image
+	 */
+	public BufferedImage apply(ImageEditor imageEditor, BufferedImage bufferedImage)
+	{
+		return function.apply(imageEditor, bufferedImage);
+	}
+
+	/**
+	 * Applies the operation to an OffHeapImage
+	 *
+	 * @param imageEditor - the ImageEditor that performs the edit
+	 * @param image - the image to edit, which is not modified
+	 * @param scaleX - the width of the image divided by the width of the image the Operation was created for
+	 * @param scaleY - the height of the image divided by the height of the image the Operation was created for
+	 * @return the edited image
+	 * @throws IOException if either image's file can't be read or written
+	 * @throws UnsupportedOperationException if the operation can't edit OffHeapImages
+	 */
+	public OffHeapImage apply(ImageEditor imageEditor, OffHeapImage image, double scaleX, double scaleY) throws IOException
+	{
+		if (offHeapFunction == null)
+			throw new UnsupportedOperationException(name + " can't edit images this large");
+
+		return offHeapFunction.apply(imageEditor, image, scaleX, scaleY);
+	}
+
+	/**
+	 * Gets the operation for an image of another size than the image it was created for.
+	 * Operations without coordinates, such as rotations and brightness changes, are returned as they are.
+	 *
+	 * @param scaleX - the width of the image divided by the width of the image the Operation was created for
+	 * @param scaleY - the height of the image divided by the height of the image the Operation was created for
+	 * @return the scaled operation
+	 */
+	public Operation scale(double scaleX, double scaleY)
+	{
+		if (scaleFunction == null || scaleX == 1 && scaleY == 1)
+			return this;
+
+		return scaleFunction.scale(scaleX, scaleY);
+	}
+
+	/**
+	 * @return true if the operation can edit OffHeapImages
+	 */
+	public boolean isOffHeapSupported()
+	{
+		return offHeapFunction != null;
+	}
+
+	/**
+	 * @return a short description of the operation for display in the GUI
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+
+	/**
+	 * @see ImageEditor#rotateRight(BufferedImage)
+	 */
+	public static Operation rotateRight()
+	{
+		return new Operation("Rotate Right", (editor, image) -> editor.rotateRight(image),
+				(editor, image, scaleX, scaleY) -> editor.rotateRight(image));
+	}
+
+	/**
+	 * @see ImageEditor#rotateLeft(BufferedImage)
+	 */
+	public static Operation rotateLeft()
+	{
+		return new Operation("Rotate Left", (editor, image) -> editor.rotateLeft(image),
+				(editor, image, scaleX, scaleY) -> editor.rotateLeft(image));
+	}
+
+	/**
+	 * @see ImageEditor#rotate(BufferedImage, double, boolean)
+	 */
+	public static Operation rotate(double degrees, boolean autoCrop)
+	{
+		return new Operation("Straighten " + degrees + "\u00B0", (editor, image) -> editor.rotate(image, degrees, autoCrop));
+	}
+
+	/**
+	 * @see ImageEditor#flipHorizontal(BufferedImage)
+	 */
+	public static Operation flipHorizontal()
+	{
+		return new Operation("Flip Horizontal", (editor, image) -> editor.flipHorizontal(image),
+				(editor, image, scaleX, scaleY) -> editor.flipHorizontal(image));
+	}
+
+	/**
+	 * @see ImageEditor#flipVertical(BufferedImage)
+	 */
+	public static Operation flipVertical()
+	{
+		return new Operation("Flip Vertical", (editor, image) -> editor.flipVertical(image),
+				(editor, image, scaleX, scaleY) -> editor.flipVertical(image));
+	}
+
+	/**
+	 * @see ImageEditor#crop(BufferedImage, int, int, int, int)
+	 */
+	public static Operation crop(int x, int y, int width, int height)
+	{
+		return new Operation("Crop " + width + " x " + height, (editor, image) -> editor.crop(image, x, y, width, height), (editor, image, scaleX, scaleY) ->
+		{
+			Rectangle region = scaleRegion(x, y, width, height, scaleX, scaleY, image.getWidth(), image.getHeight());
+			return editor.crop(image, region.x, region.y, region.width, region.height);
+		}, (scaleX, scaleY) -> scaledCrop(x, y, width, height, scaleX, scaleY));
+	}
+
+	/*
+	 * A crop of the same part of an image of another size
+	 */
+	private static Operation scaledCrop(int x, int y, int width, int height, double scaleX, double scaleY)
+	{
+		return new Operation("Crop " + Math.round(width * scaleX) + " x " + Math.round(height * scaleY), (editor, image) ->
+		{
+			Rectangle region = scaleRegion(x, y, width, height, scaleX, scaleY, image.getWidth(), image.getHeight());
+			return editor.crop(image, region.x, region.y, region.width, region.height);
+		}, (editor, image, offHeapScaleX, offHeapScaleY) ->
+		{
+			Rectangle region = scaleRegion(x, y, width, height, scaleX * offHeapScaleX, scaleY * offHeapScaleY, image.getWidth(), image.getHeight());
+			return editor.crop(image, region.x, region.y, region.width, region.height);
+		}, (otherScaleX, otherScaleY) -> scaledCrop(x, y, width, height, scaleX * otherScaleX, scaleY * otherScaleY));
+	}
+
+	/*
+	 * Scales a region and clips it to the image, keeping at least one pixel
+	 */
+	private static Rectangle scaleRegion(int x, int y, int width, int height, double scaleX, double scaleY, int imageWidth, int imageHeight)
+	{
+		int left = Math.min(imageWidth - 1, (int) Math.round(x * scaleX));
+		int top = Math.min(imageHeight - 1, (int) Math.round(y * scaleY));
+		int right = Math.max(left + 1, Math.min(imageWidth, (int) Math.round((x + width) * scaleX)));
+		int bottom = Math.max(top + 1, Math.min(imageHeight, (int) Math.round((y + height) * scaleY)));
+		return new Rectangle(left, top, right - left, bottom - top);
+	}
+
+	/**
+	 * @see ImageEditor#resize(BufferedImage, double)
+	 */
+	public static Operation resize(double scaleFactor)
+	{
+		return new Operation("Resize " + Math.round(scaleFactor * 100) + "%", (editor, image) -> editor.resize(image, scaleFactor));
+	}
+
+	/**
+	 * @see ImageEditor#gaussianBlur(BufferedImage, double)
+	 */
+	public static Operation gaussianBlur(double radius)
+	{
+		return new Operation("Blur " + radius + " px", (editor, image) -> editor.gaussianBlur(image, radius));
+	}
+
+	/**
+	 * @see ImageEditor#sharpen(BufferedImage, double)
+	 */
+	public static Operation sharpen(double amount)
+	{
+		return new Operation("Sharpen " + Math.round(amount * 100) + "%", (editor, image) -> editor.sharpen(image, amount));
+	}
+
+	/**
+	 * @see ImageEditor#unsharpMask(BufferedImage, double, double, int)
+	 */
+	public static Operation unsharpMask(double radius, double amount, int threshold)
+	{
+		return new Operation("Unsharp Mask " + Math.round(amount * 100) + "%, " + radius + " px",
+				(editor, image) -> editor.unsharpMask(image, radius, amount, threshold));
+	}
+
+	/**
+	 * @see ImageEditor#adjustBrightnessContrast(BufferedImage, double, double)
+	 */
+	public static Operation adjustBrightnessContrast(double brightnessAdjustment, double contrastAdjustment)
+	{
+		return new Operation("Brightness/Contrast", (editor, image) -> editor.adjustBrightnessContrast(image, brightnessAdjustment, contrastAdjustment),
+				(editor, image, scaleX, scaleY) -> editor.adjustBrightnessContrast(image, brightnessAdjustment, contrastAdjustment));
+	}
+
+	/**
+	 * @see Macro#apply(ImageEditor, BufferedImage)
+	 */
+	public static Operation macro(Macro macro)
+	{
+		return new Operation("Macro (" + macro.size() + (macro.size() == 1 ? " edit)" : " edits)"), (editor, image) -> macro.apply(editor, image));
+	}
+}
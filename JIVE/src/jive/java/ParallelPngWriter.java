@@ -0,0 +1,533 @@
+package jive.java;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * ParallelPngWriter writes 8-bit RGB and RGBA PNG files, compressing the image on all cores.
+ * Images with an IndexColorModel of up to 256 colors, such as the output of ColorQuantizer, are written
+ * as palette PNGs, packing 2, 4 or 8 pixels into each byte when the palette is small enough.
+ * <br><br>
+ * The filtered rows of the image are split into blocks of about BLOCK_BYTES that are filtered and deflated
+ * in parallel, the way pigz compresses a gzip file. Each block is deflated on its own, primed with the last
+ * WINDOW_SIZE bytes before it as a preset dictionary so matches across the block boundary aren't lost, and
+ * ends on a byte boundary with a sync flush. The blocks are then simply concatenated into one zlib stream,
+ * which is written as one IDAT chunk per block. The Adler-32 checksum of the whole stream is combined from
+ * the checksums of the blocks.
+ * <br><br>
+ * Rows are filtered with the PNG filter that gives the smallest sum of absolute differences, the heuristic
+ * libpng uses, which suits photographs. Flat graphics such as screenshots often compress better unfiltered,
+ * so a few sample blocks are compressed both ways first and the image is left unfiltered if that is smaller.
+ * The choice is made for the whole image because each block is primed with the rows before it as they
+ * appear in the stream. Only a few batches of blocks are held in memory at a time,
+ * and the image is read a block of rows at a time, so OffHeapImages can be written too.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class ParallelPngWriter
+{
+	static final int BLOCK_BYTES = 256 << 10;
+	static final int WINDOW_SIZE = 32 << 10;
+	static final int DEFAULT_LEVEL = 6;
+	static final int SAMPLE_BLOCKS = 4;
+
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	private static final int HEADER_BYTES = 2;		//The zlib header before the first block
+	private static final int TRAILER_BYTES = 4;		//The Adler-32 checksum after the last block
+	private static final int ADLER_BASE = 65521;
+
+	/**
+	 * Writes an image to a PNG file
+	 *
+	 * @param image - the image to write, with or without an alpha channel or a palette
+	 * @param imageFile - the file to write
+	 * @param level - the deflate compression level, from 0 (none) to 9 (smallest)
+	 * @throws IOException if the file can't be written or the image can't be read
+	 */
+	public static void write(RenderedImage image, File imageFile, int level) throws IOException
+	{
+		try (OutputStream output = new BufferedOutputStream(new FileOutputStream(imageFile), 1 << 16))
+		{
+			write(image, output, level);
+		}
+	}
+
+	/**
+	 * Writes an image as PNG to a stream, which is left open
+	 *
+	 * @param image - the image to write, with or without an alpha channel or a palette
+	 * @param output - the stream to write to
+	 * @param level - the deflate compression level, from 0 (none) to 9 (smallest)
+	 * @throws IOException if the stream can't be written or the image can't be read
+	 */
+	public static void write(RenderedImage image, OutputStream output, int level) throws IOException
+	{
+		if (level < 0 || level > 9)
+			throw new IllegalArgumentException("The compression level must be between 0 and 9: " + level);
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		ColorModel colorModel = image.getColorModel();
+		IndexColorModel palette = null;
+
+		if (colorModel instanceof IndexColorModel && ((IndexColorModel) colorModel).getMapSize() <= 256)
+			palette = (IndexColorModel) colorModel;
+
+		boolean hasAlpha = colorModel.hasAlpha();
+		int channels = palette != null ? 1 : hasAlpha ? 4 : 3;
+		int bitDepth = palette == null ? 8 : getBitDepth(palette.getMapSize());
+
+		if ((long) width * channels + 1 > Integer.MAX_VALUE / 4)
+			throw new IOException("The image is too wide to be written as PNG: " + width);
+
+		int rowBytes = (int) (((long) width * channels * bitDepth + 7) / 8) + 1;
+		int blockRows = Math.max(1, BLOCK_BYTES / rowBytes);
+		int primeRows = (WINDOW_SIZE + rowBytes - 1) / rowBytes;
+		int blocks = (height + blockRows - 1) / blockRows;
+		int batchSize = 2 * Math.max(1, ForkJoinPool.getCommonPoolParallelism());
+
+		DataOutputStream out = new DataOutputStream(output);
+		out.write(SIGNATURE);
+
+		byte[] header = new byte[13];
+		writeInt(header, 0, width);
+		writeInt(header, 4, height);
+		header[8] = (byte) bitDepth;
+		header[9] = (byte) (palette != null ? 3 : hasAlpha ? 6 : 2);	//Color type: palette, RGBA or RGB
+		writeChunk(out, "IHDR", header, 0, header.length);
+
+		if (palette != null)
+			writePalette(out, palette);
+
+		Layout layout = new Layout(image, width, height, channels, bitDepth, rowBytes, blockRows, primeRows, blocks, level);
+		long adler = 1;
+
+		try
+		{
+			layout.adaptive = level > 0 && isAdaptiveSmaller(layout);
+
+			for (int first = 0; first < blocks; first += batchSize)
+			{
+				Block[] batch = IntStream.range(first, Math.min(blocks, first + batchSize)).parallel()
+						.mapToObj(index -> new Block(layout, index)).toArray(Block[]::new);
+
+				for (Block block : batch)
+				{
+					int start = HEADER_BYTES;
+					int end = HEADER_BYTES + block.compressedLength;
+					adler = combineAdler(adler, block.adler, block.inputLength);
+
+					if (block.index == 0)
+					{
+						start = 0;
+						block.data[0] = 0x78;
+						block.data[1] = (byte) (level < 2 ? 0x01 : level < 6 ? 0x5E : level == 6 ? 0x9C : 0xDA);
+					}
+
+					if (block.index == blocks - 1)
+					{
+						writeInt(block.data, end, (int) adler);
+						end += TRAILER_BYTES;
+					}
+
+					writeChunk(out, "IDAT", block.data, start, end - start);
+				}
+			}
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+
+		writeChunk(out, "IEND", new byte[0], 0, 0);
+		out.flush();
+	}
+
+	/**
+	 * Combines the Adler-32 checksums of two pieces of data into the checksum of both, as zlib's adler32_combine() does
+	 *
+	 * @param first - the checksum of the first piece
+	 * @param second - the checksum of the second piece
+	 * @param secondLength - the length of the second piece
+	 * @return the checksum of the first piece followed by the second
+	 */
+	static long combineAdler(long first, long second, long secondLength)
+	{
+		long remainder = secondLength % ADLER_BASE;
+		long sum1 = first & 0xFFFF;
+		long sum2 = (remainder * sum1) % ADLER_BASE;
+
+		sum1 += (second & 0xFFFF) + ADLER_BASE - 1;
+		sum2 += ((first >> 16) & 0xFFFF) + ((second >> 16) & 0xFFFF) + ADLER_BASE - remainder;
+
+		if (sum1 >= ADLER_BASE)
+			sum1 -= ADLER_BASE;
+		if (sum1 >= ADLER_BASE)
+			sum1 -= ADLER_BASE;
+		if (sum2 >= 2L * ADLER_BASE)
+			sum2 -= 2L * ADLER_BASE;
+		if (sum2 >= ADLER_BASE)
+			sum2 -= ADLER_BASE;
+
+		return sum1 | (sum2 << 16);
+	}
+
+	/*
+	 * Compresses evenly spaced sample blocks with adaptive filters and unfiltered,
+	 * at the level the image is written with, and checks which is smaller in total
+	 */
+	private static boolean isAdaptiveSmaller(Layout layout)
+	{
+		int samples = Math.min(SAMPLE_BLOCKS, layout.blocks);
+
+		long[] sizes = IntStream.range(0, 2 * samples).parallel().mapToLong(sample ->
+		{
+			int firstRow = sample / 2 * layout.blocks / samples * layout.blockRows;
+			byte[] filtered = filterRows(layout, firstRow, Math.min(layout.height, firstRow + layout.blockRows), sample % 2 == 0);
+			Deflater deflater = new Deflater(layout.level, true);
+			byte[] output = new byte[64 << 10];
+			long size = 0;
+
+			deflater.setInput(filtered);
+			deflater.finish();
+
+			while (!deflater.finished())
+				size += deflater.deflate(output);
+
+			deflater.end();
+			return sample % 2 == 0 ? size : -size;
+		}).toArray();
+
+		return Arrays.stream(sizes).sum() <= 0;
+	}
+
+	/*
+	 * Reads rows of the image and converts them to filtered PNG scanlines, each starting with its filter type.
+	 * Unless startRow is 0, the row before it is read too, since filters predict from the row above.
+	 */
+	private static byte[] filterRows(Layout layout, int startRow, int endRow, boolean adaptive)
+	{
+		int readRow = Math.max(0, startRow - 1);
+		int[] pixels = layout.channels == 1 ? readIndices(layout.image, readRow, endRow - readRow)
+				: PixelFormats.readRGB(layout.image, readRow, endRow - readRow);
+
+		byte[] filtered = new byte[(endRow - startRow) * layout.rowBytes];
+		byte[] previous = new byte[layout.rowBytes - 1];
+		byte[] current = new byte[layout.rowBytes - 1];
+
+		if (startRow > 0)
+			toBytes(pixels, 0, layout, previous);
+
+		for (int row = startRow; row < endRow; ++row)
+		{
+			toBytes(pixels, (row - readRow) * layout.width, layout, current);
+			int offset = (row - startRow) * layout.rowBytes;
+
+			if (adaptive)
+				filterRow(current, previous, layout.channels, filtered, offset);
+			else
+				System.arraycopy(current, 0, filtered, offset + 1, current.length);
+
+			byte[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+
+		return filtered;
+	}
+
+	private static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length) throws IOException
+	{
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, offset, length);
+
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, offset, length);
+		out.writeInt((int) crc.getValue());
+	}
+
+	/*
+	 * Writes the colors of the palette, followed by their alpha values if any of them aren't opaque
+	 */
+	private static void writePalette(DataOutputStream out, IndexColorModel palette) throws IOException
+	{
+		int size = palette.getMapSize();
+		byte[] colors = new byte[size * 3];
+		byte[] alphas = new byte[size];
+		int alphaLength = 0;
+
+		for (int i = 0; i < size; ++i)
+		{
+			int color = palette.getRGB(i);
+			colors[i * 3] = (byte) (color >> 16);
+			colors[i * 3 + 1] = (byte) (color >> 8);
+			colors[i * 3 + 2] = (byte) color;
+			alphas[i] = (byte) (color >>> 24);
+
+			//Entries after the last translucent one are opaque by default
+			if (color >>> 24 != 0xFF)
+				alphaLength = i + 1;
+		}
+
+		writeChunk(out, "PLTE", colors, 0, colors.length);
+
+		if (alphaLength > 0)
+			writeChunk(out, "tRNS", alphas, 0, alphaLength);
+	}
+
+	/*
+	 * Finds the smallest bit depth PNG allows that can hold an index into a palette
+	 */
+	private static int getBitDepth(int paletteSize)
+	{
+		return paletteSize <= 2 ? 1 : paletteSize <= 4 ? 2 : paletteSize <= 16 ? 4 : 8;
+	}
+
+	private static void writeInt(byte[] bytes, int offset, int value)
+	{
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	/*
+	 * Reads rows of palette indices from an image with an IndexColorModel
+	 */
+	private static int[] readIndices(RenderedImage image, int y, int rows)
+	{
+		Rectangle region = new Rectangle(image.getMinX(), image.getMinY() + y, image.getWidth(), rows);
+		Raster raster = image instanceof BufferedImage ? ((BufferedImage) image).getRaster() : image.getData(region);
+		return raster.getSamples(region.x, region.y, region.width, region.height, 0, (int[]) null);
+	}
+
+	/*
+	 * Converts a row of ARGB pixels to RGB or RGBA bytes, or packs a row of palette indices at the bit depth of the image
+	 */
+	private static void toBytes(int[] pixels, int offset, Layout layout, byte[] row)
+	{
+		int width = layout.width;
+
+		if (layout.channels == 1)
+		{
+			int bitDepth = layout.bitDepth;
+			int perByte = 8 / bitDepth;
+			Arrays.fill(row, (byte) 0);
+
+			//The first pixel of each byte goes in its highest bits
+			for (int x = 0; x < width; ++x)
+				row[x / perByte] |= pixels[offset + x] << (8 - bitDepth * (x % perByte + 1));
+
+			return;
+		}
+
+		for (int x = 0, i = 0; x < width; ++x)
+		{
+			int pixel = pixels[offset + x];
+			row[i++] = (byte) (pixel >> 16);
+			row[i++] = (byte) (pixel >> 8);
+			row[i++] = (byte) pixel;
+
+			if (layout.channels == 4)
+				row[i++] = (byte) (pixel >>> 24);
+		}
+	}
+
+	/*
+	 * Writes the filter type and the filtered row, choosing the filter with the smallest sum of absolute differences
+	 */
+	private static void filterRow(byte[] row, byte[] previous, int bytesPerPixel, byte[] output, int offset)
+	{
+		long[] sums = new long[5];
+
+		for (int i = 0; i < row.length; ++i)
+		{
+			int x = row[i] & 0xFF;
+			int a = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+			int b = previous[i] & 0xFF;
+			int c = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+
+			sums[0] += Math.abs((byte) x);
+			sums[1] += Math.abs((byte) (x - a));
+			sums[2] += Math.abs((byte) (x - b));
+			sums[3] += Math.abs((byte) (x - ((a + b) >>> 1)));
+			sums[4] += Math.abs((byte) (x - paeth(a, b, c)));
+		}
+
+		int filter = 0;
+		for (int i = 1; i < sums.length; ++i)
+		{
+			if (sums[i] < sums[filter])
+				filter = i;
+		}
+
+		output[offset] = (byte) filter;
+
+		for (int i = 0; i < row.length; ++i)
+		{
+			int x = row[i] & 0xFF;
+			int a = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+			int b = previous[i] & 0xFF;
+			int c = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+			int predictor;
+
+			switch (filter)
+			{
+				case 1: predictor = a; break;
+				case 2: predictor = b; break;
+				case 3: predictor = (a + b) >>> 1; break;
+				case 4: predictor = paeth(a, b, c); break;
+				default: predictor = 0;
+			}
+
+			output[offset + 1 + i] = (byte) (x - predictor);
+		}
+	}
+
+	private static int paeth(int a, int b, int c)
+	{
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+
+		if (pa <= pb && pa <= pc)
+			return a;
+
+		return pb <= pc ? b : c;
+	}
+
+	/**
+	 * The dimensions shared by all blocks of an image
+	 */
+	private static final class Layout
+	{
+		final RenderedImage image;
+		final int width;
+		final int height;
+		final int channels;
+		final int bitDepth;
+		final int rowBytes;
+		final int blockRows;
+		final int primeRows;
+		final int blocks;
+		final int level;
+		boolean adaptive;
+
+		Layout(RenderedImage image, int width, int height, int channels, int bitDepth, int rowBytes, int blockRows,
+				int primeRows, int blocks, int level)
+		{
+			this.image = image;
+			this.width = width;
+			this.height = height;
+			this.channels = channels;
+			this.bitDepth = bitDepth;
+			this.rowBytes = rowBytes;
+			this.blockRows = blockRows;
+			this.primeRows = primeRows;
+			this.blocks = blocks;
+			this.level = level;
+		}
+	}
+
+	/**
+	 * A block of rows, filtered and deflated on its own.
+	 * The compressed data starts after room for the zlib header and is followed by room for the checksum.
+	 */
+	private static final class Block
+	{
+		final int index;
+		final int inputLength;
+		final long adler;
+		byte[] data;
+		int compressedLength;
+
+		Block(Layout layout, int index)
+		{
+			this.index = index;
+			int rowBytes = layout.rowBytes;
+			int firstRow = index * layout.blockRows;
+			int endRow = Math.min(layout.height, firstRow + layout.blockRows);
+
+			//The rows before the block are filtered again to prime the deflater's window with them
+			int primeRows = Math.min(firstRow, layout.primeRows);
+			byte[] filtered = filterRows(layout, firstRow - primeRows, endRow, layout.adaptive);
+
+			int primeLength = primeRows * rowBytes;
+			inputLength = filtered.length - primeLength;
+
+			Adler32 checksum = new Adler32();
+			checksum.update(filtered, primeLength, inputLength);
+			adler = checksum.getValue();
+
+			Deflater deflater = new Deflater(layout.level, true);
+
+			try
+			{
+				if (primeLength > 0)
+				{
+					int dictionaryLength = Math.min(WINDOW_SIZE, primeLength);
+					deflater.setDictionary(filtered, primeLength - dictionaryLength, dictionaryLength);
+				}
+
+				deflater.setInput(filtered, primeLength, inputLength);
+				deflate(deflater, index == layout.blocks - 1);
+			}
+			finally
+			{
+				deflater.end();
+			}
+		}
+
+		/*
+		 * Deflates the input into data, finishing the stream after the last block and
+		 * flushing to a byte boundary after the others so the next block can follow it
+		 */
+		private void deflate(Deflater deflater, boolean last)
+		{
+			data = new byte[HEADER_BYTES + inputLength / 2 + 64 + TRAILER_BYTES];
+			int length = HEADER_BYTES;
+
+			if (last)
+				deflater.finish();
+
+			while (true)
+			{
+				if (data.length - TRAILER_BYTES - length < 64)
+					data = Arrays.copyOf(data, data.length * 2);
+
+				int space = data.length - TRAILER_BYTES - length;
+				int written = deflater.deflate(data, length, space, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+				length += written;
+
+				//A sync flush is complete once it leaves room in the buffer
+				if (last ? deflater.finished() : written < space)
+					break;
+			}
+
+			compressedLength = length - HEADER_BYTES;
+		}
+	}
+}
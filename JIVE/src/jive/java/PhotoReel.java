@@ -55,6 +55,22 @@ public class PhotoReel
 		}
 	}
 	
+	/**
+	 * @return Every image file on the reel in alphabetical order
+	 */
+	public List<File> getFiles()
+	{
+		return Arrays.asList(directoryImages.clone());
+	}
+	
+	/**
+	 * @return The position of the current image on the reel
+	 */
+	public int getPosition()
+	{
+		return currentPosition;
+	}
+	
 	/**
 	 * Gets the next image in the photo reel and updates the current position.
 	 * (Requirement 1.4.1)
@@ -0,0 +1,249 @@
+package jive.java;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.nio.IntBuffer;
+import java.util.stream.IntStream;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+
+/**
+ * PixelFormats converts images between the pixel layouts used by ImageIO, the ImageEditor and JavaFX.
+ * <br><br>
+ * Images are normalized when they are loaded into one of two canonical layouts: TYPE_INT_RGB for
+ * opaque images and TYPE_INT_ARGB for images with an alpha channel. Editing functions have fast
+ * paths for these layouts that work on the packed pixels directly (see isPacked()), instead of
+ * going through the generic Java2D conversions used for other image types.
+ * <br><br>
+ * toFXImage() converts an image to premultiplied ARGB, the layout JavaFX stores images in,
+ * so JavaFX can copy the pixels without converting them again. Each thread converts its bands in a
+ * buffer that it keeps, and the JavaFX image of a previous conversion can be written into again, so
+ * converting a preview at the same size over and over allocates next to nothing.
+ * <br><br>
+ * Both conversions work on bands of rows in parallel.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class PixelFormats
+{
+	static final int BAND_PIXELS = 1 << 16;
+
+	private static final ThreadLocal<int[]> bandBuffers = ThreadLocal.withInitial(() -> new int[BAND_PIXELS]);
+
+	/**
+	 * @return true if the image is TYPE_INT_RGB or TYPE_INT_ARGB
+	 */
+	public static boolean isCanonical(BufferedImage bufferedImage)
+	{
+		int type = bufferedImage.getType();
+		return type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB;
+	}
+
+	/**
+	 * Checks if an image is in a canonical layout and owns its whole pixel array,
+	 * so getData() holds exactly width * height pixels in row-major order.
+	 * Subimages created by cropping share a larger array and aren't packed.
+	 */
+	public static boolean isPacked(BufferedImage bufferedImage)
+	{
+		return isCanonical(bufferedImage) && bufferedImage.getRaster().getParent() == null
+				&& getData(bufferedImage).length == bufferedImage.getWidth() * bufferedImage.getHeight();
+	}
+
+	/**
+	 * @return the pixel array of an image that isPacked()
+	 */
+	public static int[] getData(BufferedImage bufferedImage)
+	{
+		return ((DataBufferInt) bufferedImage.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * Converts an image to TYPE_INT_RGB, or TYPE_INT_ARGB if it has an alpha channel.
+	 * Images that are already in a canonical layout are returned as-is.
+	 *
+	 * @param bufferedImage - the image to normalize
+	 * @return an image in a canonical layout
+	 */
+	public static BufferedImage normalize(BufferedImage bufferedImage)
+	{
+		if (isCanonical(bufferedImage))
+			return bufferedImage;
+
+		int width = bufferedImage.getWidth();
+		int height = bufferedImage.getHeight();
+		int type = bufferedImage.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		BufferedImage newImage = new BufferedImage(width, height, type);
+		int[] pixels = getData(newImage);
+
+		byte[] bytes = null;
+		int sourceType = bufferedImage.getType();
+		if ((sourceType == BufferedImage.TYPE_3BYTE_BGR || sourceType == BufferedImage.TYPE_4BYTE_ABGR)
+				&& bufferedImage.getRaster().getParent() == null)
+		{
+			bytes = ((DataBufferByte) bufferedImage.getRaster().getDataBuffer()).getData();
+			int pixelStride = sourceType == BufferedImage.TYPE_3BYTE_BGR ? 3 : 4;
+
+			if (bytes.length != width * height * pixelStride)
+				bytes = null;
+		}
+
+		byte[] sourceBytes = bytes;
+		int bandHeight = getBandHeight(width);
+
+		IntStream.range(0, (height + bandHeight - 1) / bandHeight).parallel().forEach(band ->
+		{
+			int start = band * bandHeight * width;
+			int end = Math.min(height, (band + 1) * bandHeight) * width;
+
+			if (sourceBytes == null)
+				bufferedImage.getRGB(0, band * bandHeight, width, end / width - band * bandHeight, pixels, start, width);
+			else if (sourceType == BufferedImage.TYPE_3BYTE_BGR)
+				convertBGR(sourceBytes, pixels, start, end);
+			else
+				convertABGR(sourceBytes, pixels, start, end);
+		});
+
+		return newImage;
+	}
+
+	/**
+	 * Gets an image in a canonical layout that owns its whole pixel array (see isPacked()).
+	 * Packed images are returned as-is, other images are copied.
+	 *
+	 * @param bufferedImage - the image to convert
+	 * @return a packed image with the same pixels
+	 */
+	public static BufferedImage toPacked(BufferedImage bufferedImage)
+	{
+		if (isPacked(bufferedImage))
+			return bufferedImage;
+
+		if (!isCanonical(bufferedImage))
+			return normalize(bufferedImage);
+
+		//Subimages are copied out of the larger array they share
+		BufferedImage newImage = new BufferedImage(bufferedImage.getWidth(), bufferedImage.getHeight(), bufferedImage.getType());
+		newImage.getRaster().setDataElements(0, 0, bufferedImage.getRaster());
+		return newImage;
+	}
+
+	/**
+	 * Converts an image to a JavaFX image.
+	 * Any image type is accepted, but canonical images are converted without Java2D.
+	 *
+	 * @param bufferedImage - the image to convert
+	 * @return a new JavaFX image with the same pixels
+	 */
+	public static WritableImage toFXImage(BufferedImage bufferedImage)
+	{
+		return toFXImage(bufferedImage, null);
+	}
+
+	/**
+	 * Converts an image to a JavaFX image, writing it into an existing JavaFX image if that is the same size
+	 *
+	 * @param bufferedImage - the image to convert
+	 * @param fxImage - the JavaFX image to write into, such as the result of the last conversion, or null
+	 * @return fxImage if it has the same size as the image, otherwise a new JavaFX image with the same pixels
+	 */
+	public static WritableImage toFXImage(BufferedImage bufferedImage, WritableImage fxImage)
+	{
+		int width = bufferedImage.getWidth();
+		int height = bufferedImage.getHeight();
+		boolean hasAlpha = bufferedImage.getColorModel().hasAlpha();
+		int[] pixels = isPacked(bufferedImage) ? getData(bufferedImage) : null;
+
+		if (fxImage == null || (int) fxImage.getWidth() != width || (int) fxImage.getHeight() != height)
+			fxImage = new WritableImage(width, height);
+
+		PixelWriter writer = fxImage.getPixelWriter();
+		PixelFormat<IntBuffer> format = PixelFormat.getIntArgbPreInstance();
+		int bandHeight = getBandHeight(width);
+
+		IntStream.range(0, (height + bandHeight - 1) / bandHeight).parallel().forEach(band ->
+		{
+			int y = band * bandHeight;
+			int rows = Math.min(bandHeight, height - y);
+			int length = rows * width;
+
+			//Only rows wider than a whole band don't fit the thread's buffer
+			int[] buffer = length <= BAND_PIXELS ? bandBuffers.get() : new int[length];
+
+			if (pixels != null)
+				System.arraycopy(pixels, y * width, buffer, 0, length);
+			else
+				bufferedImage.getRGB(0, y, width, rows, buffer, 0, width);
+
+			if (hasAlpha)
+				PixelKernels.premultiply(buffer, length);
+			else
+				PixelKernels.setOpaque(buffer, length);
+
+			//The PixelWriter isn't thread-safe, only the conversion runs in parallel
+			synchronized (writer)
+			{
+				writer.setPixels(0, y, width, rows, format, buffer, 0, width);
+			}
+		});
+
+		return fxImage;
+	}
+
+	/**
+	 * Reads rows of an image as non-premultiplied ARGB pixels.
+	 * Images other than BufferedImages, such as the banded view of an OffHeapImage, are read as a region,
+	 * so only the rows asked for are loaded. Different rows may be read from several threads at once.
+	 *
+	 * @param image - the image to read
+	 * @param y - the first row to read
+	 * @param rows - the number of rows to read
+	 * @return the pixels of the rows, width pixels per row
+	 */
+	static int[] readRGB(RenderedImage image, int y, int rows)
+	{
+		int width = image.getWidth();
+		int[] pixels = new int[rows * width];
+
+		if (image instanceof BufferedImage)
+		{
+			((BufferedImage) image).getRGB(0, y, width, rows, pixels, 0, width);
+			return pixels;
+		}
+
+		Raster region = image.getData(new Rectangle(image.getMinX(), image.getMinY() + y, width, rows));
+		WritableRaster raster = Raster.createWritableRaster(region.getSampleModel(), region.getDataBuffer(), new Point(0, 0));
+		BufferedImage view = new BufferedImage(image.getColorModel(), raster, image.getColorModel().isAlphaPremultiplied(), null);
+		view.getRGB(0, 0, width, rows, pixels, 0, width);
+		return pixels;
+	}
+
+	/**
+	 * @return the number of rows in a band of about BAND_PIXELS pixels
+	 */
+	static int getBandHeight(int width)
+	{
+		return Math.max(1, BAND_PIXELS / Math.max(1, width));
+	}
+
+	private static void convertBGR(byte[] source, int[] pixels, int start, int end)
+	{
+		for (int i = start, s = start * 3; i < end; ++i, s += 3)
+			pixels[i] = (source[s] & 0xFF) | (source[s + 1] & 0xFF) << 8 | (source[s + 2] & 0xFF) << 16;
+	}
+
+	private static void convertABGR(byte[] source, int[] pixels, int start, int end)
+	{
+		for (int i = start, s = start * 4; i < end; ++i, s += 4)
+			pixels[i] = source[s] << 24 | (source[s + 1] & 0xFF) | (source[s + 2] & 0xFF) << 8 | (source[s + 3] & 0xFF) << 16;
+	}
+}
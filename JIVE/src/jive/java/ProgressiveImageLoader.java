@@ -0,0 +1,426 @@
+package jive.java;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.concurrent.Task;
+import javafx.scene.image.Image;
+
+/**
+ * ProgressiveImageLoader decodes an image file on a background thread and
+ * publishes low-resolution previews while the decode is in progress.
+ * <br><br>
+ * The file is read through a MappedImageInputStream, so a file that is already in the page cache is decoded
+ * without reading it from disk again.
+ * <br><br>
+ * The embedded EXIF (or JFIF) thumbnail is published first, followed by each pass of a
+ * progressive JPEG or interlaced PNG and, for baseline images, the partially decoded rows.
+ * Previews are scaled to the size the finished image will be displayed at, so they can be
+ * shown in the ImageViewer as-is.
+ * <br><br>
+ * The fully decoded BufferedImage is the value of the task, converted to sRGB if the file has a color profile
+ * (see ColorManager) and normalized to one of the layouts described in PixelFormats. The previews published
+ * while the image is decoded are shown before this conversion. The matching JavaFX image
+ * is converted off the JavaFX thread and is available from getFXImage() once the task has succeeded.
+ * <br><br>
+ * Images too large for the heap (see OffHeapImage.isNeeded()) are decoded in strips of rows into an OffHeapImage,
+ * which is available from getOffHeapImage(). The value of the task is then a proxy of the image scaled down to
+ * Project.OFF_HEAP_PROXY_SIZE. Readers of formats that can't skip to a row, such as JPEG and PNG, decode the file
+ * from the start for every strip, so strips are made as large as the heap comfortably allows.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class ProgressiveImageLoader extends Task<BufferedImage>
+{
+	private static final long PREVIEW_INTERVAL = 100_000_000;	//Minimum time between row-update previews in nanoseconds
+	private static final int MAX_PREVIEW_SIZE = 2048;
+	private static final long STRIP_BYTES = Runtime.getRuntime().maxMemory() / 16;
+
+	private final File imageFile;
+	private final double viewerWidth;
+	private final double viewerHeight;
+	private final ReadOnlyObjectWrapper<Image> preview = new ReadOnlyObjectWrapper<Image>();
+	private final AtomicReference<Image> pendingPreview = new AtomicReference<Image>();
+
+	private volatile ImageReader reader;
+	private ColorManager.SourceColor color;
+	private int previewWidth;
+	private int previewHeight;
+	private long lastPreviewTime;
+	private volatile Image fxImage;
+	private volatile OffHeapImage offHeapImage;
+
+	/**
+	 * @param imageFile - the file to decode
+	 * @param viewerWidth - the width of the pane the image will be shown in
+	 * @param viewerHeight - the height of the pane the image will be shown in
+	 */
+	public ProgressiveImageLoader(File imageFile, double viewerWidth, double viewerHeight)
+	{
+		this.imageFile = imageFile;
+		this.viewerWidth = viewerWidth;
+		this.viewerHeight = viewerHeight;
+	}
+
+	/**
+	 * The most recent preview of the image being decoded.
+	 * This property is only updated on the JavaFX thread.
+	 *
+	 * @return the preview property
+	 */
+	public ReadOnlyObjectProperty<Image> previewProperty()
+	{
+		return preview.getReadOnlyProperty();
+	}
+
+	/**
+	 * @return the decoded image as a JavaFX Image, or null if decoding hasn't finished
+	 */
+	public Image getFXImage()
+	{
+		return fxImage;
+	}
+
+	/**
+	 * @return the full resolution image if it was too large for the heap and decoding has finished, otherwise null
+	 * @see Project#Project(File, OffHeapImage, BufferedImage)
+	 */
+	public OffHeapImage getOffHeapImage()
+	{
+		return offHeapImage;
+	}
+
+	@Override
+	protected BufferedImage call() throws Exception
+	{
+		try (ImageInputStream stream = new MappedImageInputStream(imageFile))
+		{
+			color = ColorManager.scan(stream);
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext())
+				throw new IOException("No image reader available for " + imageFile);
+
+			reader = readers.next();
+
+			try
+			{
+				reader.setInput(stream, true, true);
+				calculatePreviewSize(reader.getWidth(0), reader.getHeight(0));
+
+				BufferedImage thumbnail = readEmbeddedThumbnail();
+				if (thumbnail != null)
+					publishPreview(thumbnail);
+
+				if (OffHeapImage.isNeeded(reader.getWidth(0), reader.getHeight(0)))
+					return readOffHeap(reader.getWidth(0), reader.getHeight(0));
+
+				reader.addIIOReadUpdateListener(updateListener);
+				BufferedImage bufferedImage = ColorManager.read(reader, null, color);
+
+				if (isCancelled())
+					return null;
+
+				bufferedImage = PixelFormats.normalize(bufferedImage);
+				fxImage = PixelFormats.toFXImage(bufferedImage);
+				return bufferedImage;
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
+	}
+
+	@Override
+	protected void cancelled()
+	{
+		//abort() is safe to call from another thread, the reader checks the flag between rows
+		if (reader != null)
+			reader.abort();
+	}
+
+	/**
+	 * Decodes the image into an OffHeapImage a strip of rows at a time.
+	 * Each strip is drawn into the preview as soon as it has been decoded.
+	 *
+	 * @return the proxy of the image, or null if the task was cancelled
+	 */
+	private BufferedImage readOffHeap(int width, int height) throws IOException
+	{
+		int stripHeight = (int) Math.max(1, Math.min(height, STRIP_BYTES / 4 / width));
+		ImageReadParam param = reader.getDefaultReadParam();
+		BufferedImage canvas = new BufferedImage(previewWidth, previewHeight, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = canvas.createGraphics();
+		OffHeapImage image = null;
+
+		try
+		{
+			for (int y = 0; y < height && !isCancelled(); y += stripHeight)
+			{
+				int rows = Math.min(stripHeight, height - y);
+				param.setSourceRegion(new Rectangle(0, y, width, rows));
+				BufferedImage strip = PixelFormats.toPacked(ColorManager.read(reader, param, color));
+
+				if (image == null)
+					image = new OffHeapImage(width, height, strip.getColorModel().hasAlpha());
+
+				image.write(0, y, width, rows, PixelFormats.getData(strip));
+
+				int top = (int) ((long) y * previewHeight / height);
+				int bottom = (int) ((long) (y + rows) * previewHeight / height);
+				graphics.drawImage(strip, 0, top, previewWidth, Math.max(1, bottom - top), null);
+				publishPreview(canvas);
+			}
+
+			if (isCancelled())
+			{
+				if (image != null)
+					image.close();
+
+				return null;
+			}
+
+			BufferedImage proxy = image.createPreview(Project.OFF_HEAP_PROXY_SIZE, Project.OFF_HEAP_PROXY_SIZE);
+			fxImage = PixelFormats.toFXImage(proxy);
+			offHeapImage = image;
+			return proxy;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			if (image != null)
+				image.close();
+
+			throw e;
+		}
+		finally
+		{
+			graphics.dispose();
+		}
+	}
+
+	/**
+	 * Finds the dimensions that the finished image will be displayed at.
+	 * Images larger than the viewer are fit to it, smaller images are shown true-to-size.
+	 */
+	private void calculatePreviewSize(int imageWidth, int imageHeight)
+	{
+		double maxWidth = viewerWidth > 0 ? viewerWidth : MAX_PREVIEW_SIZE;
+		double maxHeight = viewerHeight > 0 ? viewerHeight : MAX_PREVIEW_SIZE;
+		double scale = Math.min(1.0, Math.min(maxWidth / imageWidth, maxHeight / imageHeight));
+
+		previewWidth = Math.max(1, (int) (imageWidth * scale));
+		previewHeight = Math.max(1, (int) (imageHeight * scale));
+	}
+
+	/**
+	 * Scales an image (or the decoded part of it) to the preview size and
+	 * hands it to the JavaFX thread. Previews that arrive faster than the JavaFX thread
+	 * can show them are coalesced so only the newest one is displayed.
+	 */
+	private void publishPreview(BufferedImage source)
+	{
+		if (isCancelled())
+			return;
+
+		BufferedImage scaled = new BufferedImage(previewWidth, previewHeight, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = scaled.createGraphics();
+		graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+		graphics.drawImage(source, 0, 0, previewWidth, previewHeight, null);
+		graphics.dispose();
+
+		lastPreviewTime = System.nanoTime();
+
+		if (pendingPreview.getAndSet(PixelFormats.toFXImage(scaled)) == null)
+			Platform.runLater(() -> preview.set(pendingPreview.getAndSet(null)));
+	}
+
+	/**
+	 * Reads the thumbnail embedded in the file, if any.
+	 * EXIF thumbnails are read directly from the APP1 segment of JPEG files,
+	 * other formats fall back to the thumbnails exposed by the ImageReader.
+	 *
+	 * @return the thumbnail or null if the file doesn't have one
+	 */
+	private BufferedImage readEmbeddedThumbnail()
+	{
+		try
+		{
+			BufferedImage thumbnail = readExifThumbnail(imageFile);
+
+			if (thumbnail == null && reader.readerSupportsThumbnails() && reader.hasThumbnails(0))
+				thumbnail = reader.readThumbnail(0, 0);
+
+			return thumbnail;
+		}
+		catch (Exception e)
+		{
+			//A broken thumbnail only costs the early preview
+			return null;
+		}
+	}
+
+	/**
+	 * Walks the JPEG marker segments up to the start of scan looking for an EXIF APP1 segment
+	 * and decodes the JPEG thumbnail stored in its second IFD.
+	 *
+	 * @return the EXIF thumbnail or null if there isn't one
+	 */
+	static BufferedImage readExifThumbnail(File file) throws IOException
+	{
+		try (RandomAccessFile input = new RandomAccessFile(file, "r"))
+		{
+			if (input.readUnsignedShort() != 0xFFD8)
+				return null;
+
+			while (true)
+			{
+				int marker = input.readUnsignedShort();
+
+				if ((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA || marker == 0xFFD9)
+					return null;
+
+				int length = input.readUnsignedShort() - 2;
+
+				if (marker != 0xFFE1)
+				{
+					input.skipBytes(length);
+					continue;
+				}
+
+				byte[] segment = new byte[length];
+				input.readFully(segment);
+
+				if (length > 14 && segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i' && segment[3] == 'f' && segment[4] == 0 && segment[5] == 0)
+					return decodeTiffThumbnail(segment, 6);
+			}
+		}
+	}
+
+	/**
+	 * Finds the JPEGInterchangeFormat (0x0201) and JPEGInterchangeFormatLength (0x0202)
+	 * tags of IFD1 in a TIFF structure and decodes the bytes they point to.
+	 */
+	private static BufferedImage decodeTiffThumbnail(byte[] data, int tiffStart)
+	{
+		boolean littleEndian = data[tiffStart] == 'I';
+		int ifd0 = readInt(data, tiffStart + 4, littleEndian);
+		int ifd0Start = tiffStart + ifd0;
+
+		if (ifd0 < 8 || ifd0Start + 2 > data.length)
+			return null;
+
+		int entries = readShort(data, ifd0Start, littleEndian);
+		int nextIfdPosition = ifd0Start + 2 + entries * 12;
+
+		if (nextIfdPosition + 4 > data.length)
+			return null;
+
+		int ifd1Start = tiffStart + readInt(data, nextIfdPosition, littleEndian);
+
+		if (ifd1Start <= tiffStart || ifd1Start + 2 > data.length)
+			return null;
+
+		entries = readShort(data, ifd1Start, littleEndian);
+		int thumbnailOffset = -1;
+		int thumbnailLength = -1;
+
+		for (int i = 0; i < entries; ++i)
+		{
+			int entry = ifd1Start + 2 + i * 12;
+
+			if (entry + 12 > data.length)
+				return null;
+
+			int tag = readShort(data, entry, littleEndian);
+
+			if (tag == 0x0201)
+				thumbnailOffset = readInt(data, entry + 8, littleEndian);
+			else if (tag == 0x0202)
+				thumbnailLength = readInt(data, entry + 8, littleEndian);
+		}
+
+		int thumbnailStart = tiffStart + thumbnailOffset;
+
+		if (thumbnailOffset <= 0 || thumbnailLength <= 0 || thumbnailStart + thumbnailLength > data.length)
+			return null;
+
+		try
+		{
+			return ImageIO.read(new ByteArrayInputStream(data, thumbnailStart, thumbnailLength));
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	private static int readShort(byte[] data, int position, boolean littleEndian)
+	{
+		int b0 = data[position] & 0xFF;
+		int b1 = data[position + 1] & 0xFF;
+		return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+	}
+
+	private static int readInt(byte[] data, int position, boolean littleEndian)
+	{
+		int high = readShort(data, position + (littleEndian ? 2 : 0), littleEndian);
+		int low = readShort(data, position + (littleEndian ? 0 : 2), littleEndian);
+		return (high << 16) | low;
+	}
+
+	/**
+	 * Publishes a preview after every completed pass of a progressive or interlaced image,
+	 * and periodically while the rows of a baseline image are being decoded.
+	 */
+	IIOReadUpdateListener updateListener = new IIOReadUpdateListener()
+	{
+		@Override
+		public void passStarted(ImageReader source, BufferedImage theImage, int pass, int minPass, int maxPass,
+				int minX, int minY, int periodX, int periodY, int[] bands) {}
+
+		@Override
+		public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY,
+				int width, int height, int periodX, int periodY, int[] bands)
+		{
+			if (isCancelled())
+				source.abort();
+			else if (System.nanoTime() - lastPreviewTime > PREVIEW_INTERVAL)
+				publishPreview(theImage);
+		}
+
+		@Override
+		public void passComplete(ImageReader source, BufferedImage theImage)
+		{
+			publishPreview(theImage);
+		}
+
+		@Override
+		public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass, int minPass,
+				int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {}
+
+		@Override
+		public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX, int minY,
+				int width, int height, int periodX, int periodY, int[] bands) {}
+
+		@Override
+		public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {}
+	};
+}
@@ -1,14 +1,24 @@
 package jive.java;
 
-import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+import java.util.function.DoubleConsumer;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 /**
  * Project consists of methods to edit BufferedImage objects and manage editing projects.
@@ -18,9 +28,24 @@ import javax.imageio.ImageIO;
  * <br><br>
  * Images can be saved to file or converted to different raster file formats (JPEG, PNG, BMP, and GIF).
  * <br><br>
- * Undo and redo functionality are implemented using the stateHistory and undoHistory
- * stacks to store BufferedImage objects in memory until a new project is opened or
- * the ImageEditor instance is destroyed.
+ * Undo and redo functionality are implemented using an EditHistory, a journal of
+ * the applied Operations with periodic full-image checkpoints. Any earlier or undone state
+ * can be restored directly by replaying a bounded number of operations.
+ * <br><br>
+ * Images too large for the heap (see OffHeapImage.isNeeded()) are edited at full resolution as OffHeapImages.
+ * The bufferedImage is then a proxy of the current OffHeapImage scaled down to OFF_HEAP_PROXY_SIZE, which is
+ * displayed, previewed and checkpointed in the history like any other image. Each rendered proxy is mapped to
+ * the OffHeapImage it was made from, and OffHeapImages that are no longer current are closed as soon as the
+ * project moves on, so their disk space and file cache are released without waiting for the garbage collector.
+ * States in the history are rebuilt from the original OffHeapImage, or from the current one when it is closer.
+ * Operations that can't edit OffHeapImages aren't available for these projects.
+ * <br><br>
+ * Previews are rendered into images taken from a RasterPool. Once a preview has been shown it should be
+ * handed back with releasePreview(), so the next preview of the same size reuses its pixels.
+ * <br><br>
+ * The operations applied between startRecording() and stopRecording() are returned as a Macro,
+ * together with the size of the image each one was applied to, so they can be replayed on other images.
+ * Operations that are undone while recording are left out.
  * 
  * (Requirement 3.0.0)
  * 
@@ -31,24 +56,85 @@ import javax.imageio.ImageIO;
 public class Project
 {
 	private final List<String> COMPATIBLE_FORMATS = Arrays.asList(".jpg", ".jpeg", ".png", ".bmp", ".gif");
+	static final int OFF_HEAP_PROXY_SIZE = 4096;
 
 	private ImageEditor imageEditor;
+	private final RasterPool previewPool = new RasterPool();
+	private final ImageEditor previewEditor = new ImageEditor(previewPool);
 	private BufferedImage bufferedImage;
 	private File imageFile;
 	private String fileExtension;
-	private Stack<BufferedImage> stateHistory;
-	private Stack<BufferedImage> undoHistory;	
-	private int changesSinceSave;
+	private EditHistory history;
+	private int savedPosition;
+	private final List<Dimension> inputSizes = new ArrayList<Dimension>();
+	private int recordingStart = -1;
+	private BufferedImage previewProxy;
+	private BufferedImage previewProxySource;
+	private BufferedImage originalProxy;
+	private final Map<BufferedImage, OffHeapImage> offHeapImages = new IdentityHashMap<BufferedImage, OffHeapImage>();
+	private volatile EncoderSettings encoderSettings = EncoderSettings.DEFAULT;
 	
 	public Project(File imageFile) throws IOException
+	{
+		this(imageFile, PixelFormats.normalize(readImage(imageFile)));
+	}
+	
+	/**
+	 * Creates a project from an image that has already been decoded,
+	 * so the file doesn't have to be read a second time.
+	 * 
+	 * @param imageFile - the file the image was read from
+	 * @param bufferedImage - the decoded contents of imageFile
+	 * @see ProgressiveImageLoader
+	 */
+	public Project(File imageFile, BufferedImage bufferedImage)
 	{
 		imageEditor = new ImageEditor();
-		bufferedImage = ImageIO.read(imageFile);		
+		this.bufferedImage = bufferedImage;
 		this.imageFile = imageFile;
 		fileExtension = findFileExtension(imageFile);				
-		stateHistory = new Stack<BufferedImage>();
-		undoHistory = new Stack<BufferedImage>();
-		changesSinceSave = 0;
+		history = new EditHistory(bufferedImage);
+		savedPosition = 0;
+	}
+	
+	/**
+	 * Creates a project for an image too large for the heap
+	 * 
+	 * @param imageFile - the file the image was read from
+	 * @param offHeapImage - the full resolution contents of imageFile, which the project takes ownership of
+	 * @param proxy - a copy of offHeapImage scaled down to fit OFF_HEAP_PROXY_SIZE
+	 * @see ProgressiveImageLoader#getOffHeapImage()
+	 */
+	public Project(File imageFile, OffHeapImage offHeapImage, BufferedImage proxy)
+	{
+		this(imageFile, proxy);
+		originalProxy = proxy;
+		offHeapImages.put(proxy, offHeapImage);
+	}
+	
+	/**
+	 * Creates a project for a region read from a file (see RegionReader).
+	 * The region is saved to a new file next to the source, named like photo-region.jpg,
+	 * so saving it never overwrites the full image. It counts as unsaved until then.
+	 * 
+	 * @param sourceFile - the file the region was read from
+	 * @param region - the decoded region
+	 * @return an unsaved project for the region
+	 */
+	public static Project fromRegion(File sourceFile, BufferedImage region)
+	{
+		String name = sourceFile.getName();
+		int extensionIndex = name.lastIndexOf(".");
+		String baseName = extensionIndex < 0 ? name : name.substring(0, extensionIndex);
+		String extension = extensionIndex < 0 ? "" : name.substring(extensionIndex);
+		
+		File regionFile = new File(sourceFile.getParentFile(), baseName + "-region" + extension);
+		for (int copy = 2; regionFile.exists(); ++copy)
+			regionFile = new File(sourceFile.getParentFile(), baseName + "-region-" + copy + extension);
+		
+		Project project = new Project(regionFile, region);
+		project.savedPosition = -1;
+		return project;
 	}
 	
 	/**
@@ -62,8 +148,8 @@ public class Project
 	{
 		try
 		{
-			ImageIO.write(bufferedImage, fileExtension, imageFile);
-			changesSinceSave = 0;
+			write(imageFile, fileExtension);
+			savedPosition = history.getPosition();
 			return true;
 		}
 		catch (Exception e)
@@ -79,6 +165,9 @@ public class Project
 	 * 
 	 * The alpha channel is removed and the image is drawn to
 	 * a white background if the new file type doesn't support transparency.
+	 * The conversion is streamed to the ImageWriter in bands of rows
+	 * (see FlatteningImage), so no flattened copy of the image is made.
+	 * The image is written with the project's EncoderSettings.
 	 * 
 	 * (Requirements 3.1.2/3.2.1)
 	 * 
@@ -88,28 +177,63 @@ public class Project
 	public boolean saveAs(File newFile)
 	{
 		String newFileExtension = findFileExtension(newFile);
-		boolean hasAlphaChannel = bufferedImage.getColorModel().hasAlpha();
 				
 		if (!COMPATIBLE_FORMATS.contains("." + newFileExtension))
 			return false;
 		
 		try
 		{
-			if (hasAlphaChannel && (newFileExtension.equals("jpg") | newFileExtension.equals("bmp") | newFileExtension.equals("jpeg")))
-			{				
-				int width = bufferedImage.getWidth();
-				int height = bufferedImage.getHeight();
-				BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-				newImage.createGraphics().drawImage(bufferedImage, 0, 0, Color.WHITE, null);
-				
-				ImageIO.write(newImage, newFileExtension, newFile);
-				newImage.flush();
-			}
-			else
-			{
-				ImageIO.write(bufferedImage, newFileExtension, newFile);
-			}
-			
+			write(newFile, newFileExtension);
+			return true;
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		return false;
+	}
+	
+	/*
+	 * Writes the image in the given format, flattening it onto white if the format doesn't support transparency
+	 */
+	private void write(File file, String extension) throws IOException
+	{
+		OffHeapImage offHeapImage = getOffHeapImage(bufferedImage);
+		boolean flatten = bufferedImage.getColorModel().hasAlpha() && (extension.equals("jpg") | extension.equals("bmp") | extension.equals("jpeg"));
+		
+		if (offHeapImage != null)
+		{
+			offHeapImage.write(file, extension, flatten, encoderSettings);
+		}
+		else if (flatten)
+		{
+			ImageEncoder.write(FlatteningImage.create(bufferedImage), extension, file, encoderSettings);
+		}
+		else
+		{
+			ImageEncoder.write(bufferedImage, extension, file, encoderSettings);
+		}
+	}
+	
+	/**
+	 * Writes the image as a pyramid of tiles for zoomable web viewers (see TilePyramidWriter).
+	 * Large images are read from their OffHeapImage a band at a time.
+	 * The tiles are encoded with the project's EncoderSettings.
+	 * 
+	 * @param output The directory to write the tiles to, or a zip file if its name ends in .zip
+	 * @param layout How the tiles are named and laid out
+	 * @param format The format of the tiles, jpg or png
+	 * @param progress Receives the fraction of the image that has been written
+	 * @return True if successful, false otherwise.
+	 */
+	public boolean exportTiles(File output, TilePyramidWriter.Layout layout, String format, DoubleConsumer progress)
+	{
+		OffHeapImage offHeapImage = getOffHeapImage(bufferedImage);
+		RenderedImage image = offHeapImage != null ? offHeapImage.asRenderedImage() : bufferedImage;
+		
+		try
+		{
+			TilePyramidWriter.write(image, output, layout, format, encoderSettings, progress);
 			return true;
 		}
 		catch (Exception e)
@@ -119,6 +243,23 @@ public class Project
 		return false;
 	}
 	
+	/**
+	 * @return the options the image is saved with
+	 */
+	public EncoderSettings getEncoderSettings()
+	{
+		return encoderSettings;
+	}
+	
+	/**
+	 * Sets the options the image is saved with, such as the JPEG quality
+	 * @param encoderSettings The new options
+	 */
+	public void setEncoderSettings(EncoderSettings encoderSettings)
+	{
+		this.encoderSettings = encoderSettings;
+	}
+	
 	/**
 	 * Undo the most recent editing function.
 	 * Reverts the bufferedImage to its previous state.
@@ -126,9 +267,7 @@ public class Project
 	 */
 	public void undo()
 	{
-		undoHistory.push(bufferedImage);
-		bufferedImage = stateHistory.pop();
-		--changesSinceSave;
+		jumpTo(history.getPosition() - 1);
 	}
 	
 	/**
@@ -138,9 +277,263 @@ public class Project
 	 */
 	public void redo()
 	{
-		stateHistory.push(bufferedImage);
-		bufferedImage = undoHistory.pop();
-		++changesSinceSave;
+		jumpTo(history.getPosition() + 1);
+	}
+	
+	/**
+	 * Restores the bufferedImage to any state in the editing history.
+	 * States after the new position remain available for redo.
+	 * 
+	 * @param index - the history state to restore, 0 being the image as it was opened
+	 * @see #getHistory()
+	 */
+	public void jumpTo(int index)
+	{
+		jumpTo(index, renderHistoryState(index));
+	}
+	
+	/**
+	 * Rebuilds the image of a state in the editing history without modifying any
+	 * project attributes. This can be called from a background thread while the project
+	 * isn't being edited, and the result passed to jumpTo(int, BufferedImage).
+	 * 
+	 * @param index - the history state to rebuild
+	 * @return the image of the requested state
+	 * @see EditHistory#renderState(int, BufferedImage, ImageEditor)
+	 */
+	public BufferedImage renderHistoryState(int index)
+	{
+		if (isOffHeap())
+			return renderOffHeapState(index);
+		
+		return history.renderState(index, bufferedImage, imageEditor);
+	}
+	
+	/**
+	 * Moves to a state in the editing history using an image rendered with renderHistoryState()
+	 * 
+	 * @param index - the history state to restore
+	 * @param stateImage - the image of that state
+	 */
+	public void jumpTo(int index, BufferedImage stateImage)
+	{
+		history.setPosition(index);
+		bufferedImage = stateImage;
+		releaseOffHeapImages();
+	}
+	
+	/**
+	 * Applies an editing operation to the bufferedImage and updates
+	 * relevant project attributes.
+	 * 
+	 * @param operation - the operation to apply
+	 */
+	public void apply(Operation operation)
+	{
+		commit(operation, render(operation, bufferedImage));
+	}
+	
+	/**
+	 * Applies an editing operation to a snapshot of the bufferedImage without
+	 * modifying any project attributes. This can be called from a background thread
+	 * while the project is in use, as long as the snapshot isn't modified.
+	 * If the snapshot is the proxy of an OffHeapImage, the OffHeapImage is edited
+	 * and the proxy of the result is returned.
+	 * 
+	 * @param operation - the operation to apply
+	 * @param snapshot - the image to apply the operation to, usually the result of getImage()
+	 * @return the edited image
+	 */
+	public BufferedImage render(Operation operation, BufferedImage snapshot)
+	{
+		OffHeapImage offHeapImage = getOffHeapImage(snapshot);
+		
+		if (offHeapImage != null)
+			return renderOffHeap(operation, offHeapImage, snapshot);
+		
+		return operation.apply(imageEditor, snapshot);
+	}
+	
+	/**
+	 * Applies an operation to a preview proxy. Unlike render(), this never edits the OffHeapImage
+	 * of a large project, even if the proxy is the bufferedImage itself.
+	 */
+	private BufferedImage preview(Operation operation, BufferedImage proxy)
+	{
+		return operation.apply(previewEditor, proxy);
+	}
+	
+	/**
+	 * Hands an image returned by one of the preview functions back to be reused by the next preview.
+	 * The image must not be used afterwards.
+	 * 
+	 * @param previewImage - a preview that is no longer shown
+	 */
+	public void releasePreview(BufferedImage previewImage)
+	{
+		previewPool.release(previewImage);
+	}
+	
+	/**
+	 * Applies an operation to an OffHeapImage and maps the proxy of the result to it
+	 * 
+	 * @param proxy - the proxy of the OffHeapImage, which the operation's coordinates are relative to
+	 * @return the proxy of the edited OffHeapImage
+	 */
+	private BufferedImage renderOffHeap(Operation operation, OffHeapImage offHeapImage, BufferedImage proxy)
+	{
+		OffHeapImage editedImage = null;
+		
+		try
+		{
+			editedImage = operation.apply(imageEditor, offHeapImage,
+					(double) offHeapImage.getWidth() / proxy.getWidth(), (double) offHeapImage.getHeight() / proxy.getHeight());
+			BufferedImage editedProxy = editedImage.createPreview(OFF_HEAP_PROXY_SIZE, OFF_HEAP_PROXY_SIZE);
+			
+			synchronized (offHeapImages)
+			{
+				offHeapImages.put(editedProxy, editedImage);
+			}
+			
+			return editedProxy;
+		}
+		catch (IOException e)
+		{
+			if (editedImage != null)
+				editedImage.close();
+			
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Rebuilds a state in the history of a large project by replaying operations on OffHeapImages.
+	 * The images of the states in between are closed as soon as the next one has been rendered.
+	 */
+	private BufferedImage renderOffHeapState(int index)
+	{
+		int start = history.getPosition() <= index ? history.getPosition() : 0;
+		BufferedImage proxy = start == 0 ? originalProxy : bufferedImage;
+		
+		for (int i = start + 1; i <= index; ++i)
+		{
+			BufferedImage previous = proxy;
+			proxy = renderOffHeap(history.getOperation(i), getOffHeapImage(previous), previous);
+			
+			if (i > start + 1)
+				closeOffHeapImage(previous);
+		}
+		
+		return proxy;
+	}
+	
+	/**
+	 * @return the OffHeapImage that a proxy was made from, or null if the image isn't a proxy
+	 */
+	private OffHeapImage getOffHeapImage(BufferedImage proxy)
+	{
+		synchronized (offHeapImages)
+		{
+			return offHeapImages.get(proxy);
+		}
+	}
+	
+	private void closeOffHeapImage(BufferedImage proxy)
+	{
+		synchronized (offHeapImages)
+		{
+			OffHeapImage offHeapImage = offHeapImages.remove(proxy);
+			
+			if (offHeapImage != null)
+				offHeapImage.close();
+		}
+	}
+	
+	/**
+	 * Closes the OffHeapImages of every state except the current one and the original image.
+	 * This includes results rendered by tasks that were cancelled or not committed.
+	 */
+	private void releaseOffHeapImages()
+	{
+		synchronized (offHeapImages)
+		{
+			for (Iterator<Map.Entry<BufferedImage, OffHeapImage>> entries = offHeapImages.entrySet().iterator(); entries.hasNext();)
+			{
+				Map.Entry<BufferedImage, OffHeapImage> entry = entries.next();
+				
+				if (entry.getKey() != bufferedImage && entry.getKey() != originalProxy)
+				{
+					entry.getValue().close();
+					entries.remove();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Stores the result of an operation rendered with render() as the new bufferedImage
+	 * and updates relevant project attributes.
+	 * 
+	 * @param operation - the operation that produced editedImage
+	 * @param editedImage - the new contents of the project
+	 */
+	public void commit(Operation operation, BufferedImage editedImage)
+	{
+		//The saved state can't be reached anymore once the states after the current one are discarded
+		if (savedPosition > history.getPosition())
+			savedPosition = -1;
+		
+		//Operations recorded before the macro started are replaced too
+		if (recordingStart > history.getPosition())
+			recordingStart = history.getPosition();
+		
+		inputSizes.subList(history.getPosition(), inputSizes.size()).clear();
+		inputSizes.add(new Dimension(bufferedImage.getWidth(), bufferedImage.getHeight()));
+		history.record(operation, editedImage);
+		bufferedImage = editedImage;
+		releaseOffHeapImages();
+	}
+	
+	/**
+	 * Starts recording the operations applied to the project as a macro.
+	 * Recording again restarts the macro at the current state.
+	 */
+	public void startRecording()
+	{
+		recordingStart = history.getPosition();
+	}
+	
+	/**
+	 * @return true between startRecording() and stopRecording()
+	 */
+	public boolean isRecording()
+	{
+		return recordingStart >= 0;
+	}
+	
+	/**
+	 * Stops recording and returns the operations that lead from the state recording started at to the current state
+	 * 
+	 * @return the recorded macro, which is empty if nothing was recorded or every recorded operation was undone
+	 */
+	public Macro stopRecording()
+	{
+		int start = isRecording() ? recordingStart : history.getPosition();
+		int end = Math.max(start, history.getPosition());
+		recordingStart = -1;
+		
+		List<Operation> operations = new ArrayList<Operation>();
+		int[] widths = new int[end - start];
+		int[] heights = new int[end - start];
+		
+		for (int i = start + 1; i <= end; ++i)
+		{
+			operations.add(history.getOperation(i));
+			widths[i - start - 1] = inputSizes.get(i - 1).width;
+			heights[i - start - 1] = inputSizes.get(i - 1).height;
+		}
+		
+		return new Macro(operations, widths, heights);
 	}
 	
 	/**
@@ -152,10 +545,7 @@ public class Project
 	 */
 	public void rotateRight()
 	{
-		stateHistory.push(bufferedImage);
-		bufferedImage = imageEditor.rotateRight(bufferedImage);
-		undoHistory.clear();
-		++changesSinceSave;
+		apply(Operation.rotateRight());
 	}
 	
 	/**
@@ -167,10 +557,36 @@ public class Project
 	 */
 	public void rotateLeft()
 	{
-		stateHistory.push(bufferedImage);
-		bufferedImage = imageEditor.rotateLeft(bufferedImage);
-		undoHistory.clear();
-		++changesSinceSave;
+		apply(Operation.rotateLeft());
+	}
+	
+	/**
+	 * Rotates the bufferedImage by an arbitrary angle and updates
+	 * relevant project attributes.
+	 * 
+	 * @param degrees - the angle to rotate by, positive values rotate clockwise
+	 * @param autoCrop - true to crop the result to the largest rectangle inside the rotated image
+	 * @see ImageEditor#rotate(BufferedImage, double, boolean)
+	 */
+	public void rotate(double degrees, boolean autoCrop)
+	{
+		apply(Operation.rotate(degrees, autoCrop));
+	}
+	
+	/**
+	 * Rotates a low resolution copy of the bufferedImage for previewing
+	 * without modifying any project attributes.
+	 * 
+	 * @param degrees - the angle to rotate by, positive values rotate clockwise
+	 * @param autoCrop - true to crop the result to the largest rectangle inside the rotated image
+	 * @param maxWidth - the width of the area the preview will be shown in
+	 * @param maxHeight - the height of the area the preview will be shown in
+	 * @return a rotated copy of the bufferedImage no larger than maxWidth x maxHeight
+	 * @see #getPreviewProxy(double, double)
+	 */
+	public BufferedImage previewRotate(double degrees, boolean autoCrop, double maxWidth, double maxHeight)
+	{
+		return preview(Operation.rotate(degrees, autoCrop), getPreviewProxy(maxWidth, maxHeight));
 	}
 	
 	/**
@@ -182,10 +598,7 @@ public class Project
 	 */
 	public void flipHorizontal()
 	{
-		stateHistory.push(bufferedImage);
-		bufferedImage = imageEditor.flipHorizontal(bufferedImage);
-		undoHistory.clear();
-		++changesSinceSave;
+		apply(Operation.flipHorizontal());
 	}
 	
 	/**
@@ -197,10 +610,7 @@ public class Project
 	 */
 	public void flipVertical()
 	{
-		stateHistory.push(bufferedImage);
-		bufferedImage = imageEditor.flipVertical(bufferedImage);
-		undoHistory.clear();
-		++changesSinceSave;
+		apply(Operation.flipVertical());
 	}
 	
 	/**
@@ -217,10 +627,7 @@ public class Project
 	 */
 	public void crop(int x, int y, int width, int height)
 	{
-		stateHistory.push(bufferedImage);
-		bufferedImage = imageEditor.crop(bufferedImage, x, y, width, height);
-		undoHistory.clear();
-		++changesSinceSave;
+		apply(Operation.crop(x, y, width, height));
 	}
 	
 	/**
@@ -233,10 +640,7 @@ public class Project
 	 */
 	public void resize(double scaleFactor)
 	{
-		stateHistory.push(bufferedImage);
-		bufferedImage = imageEditor.resize(bufferedImage, scaleFactor);
-		undoHistory.clear();
-		++changesSinceSave;
+		apply(Operation.resize(scaleFactor));
 	}
 	
 	/**
@@ -251,54 +655,226 @@ public class Project
 	 * @param contrastAdjustment - the value to scale the pixel by (0.0 to 2.0)
 	 * 
 	 * @see ImageEditor#adjustBrightnessContrast(BufferedImage, double, double)
-	 * @see #previewBrightnessContrast(double, double)
+	 * @see #previewBrightnessContrast(double, double, double, double)
 	 */
 	public void adjustBrightnessContrast(double brightnessAdjustment, double contrastAdjustment)
 	{
-		stateHistory.push(bufferedImage);
-		bufferedImage = imageEditor.adjustBrightnessContrast(bufferedImage, brightnessAdjustment, contrastAdjustment);
-		undoHistory.clear();
-		++changesSinceSave;
+		apply(Operation.adjustBrightnessContrast(brightnessAdjustment, contrastAdjustment));
 	}
 	
 	/**
-	 * Applies brightness and contrast adjustments to the bufferedImage but
-	 * doesn't store the result or modify any project attributes.
+	 * Gets a copy of the bufferedImage scaled down to fit the given area, for use by interactive previews.
+	 * The copy is cached until the bufferedImage or the requested size changes.
+	 * Images that already fit in the area are returned as-is.
+	 * <br><br>
+	 * Scaling the full resolution image is slow, so previews should be rendered off the JavaFX thread.
+	 * The cache isn't synchronized, so they must all be rendered on one thread, in order with the edits.
+	 * 
+	 * @param maxWidth - the width of the area the preview will be shown in
+	 * @param maxHeight - the height of the area the preview will be shown in
+	 * @return the preview proxy of the current bufferedImage
+	 */
+	public BufferedImage getPreviewProxy(double maxWidth, double maxHeight)
+	{
+		double scale = Math.min(maxWidth / bufferedImage.getWidth(), maxHeight / bufferedImage.getHeight());
+		
+		if (!(scale < 1))
+			return bufferedImage;
+		
+		int proxyWidth = Math.max(1, (int) (bufferedImage.getWidth() * scale));
+		int proxyHeight = Math.max(1, (int) (bufferedImage.getHeight() * scale));
+		
+		if (previewProxy == null || previewProxySource != bufferedImage
+				|| previewProxy.getWidth() != proxyWidth || previewProxy.getHeight() != proxyHeight)
+		{
+			int type = bufferedImage.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+			previewProxy = new BufferedImage(proxyWidth, proxyHeight, type);
+			Graphics2D graphics = previewProxy.createGraphics();
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.drawImage(bufferedImage, 0, 0, proxyWidth, proxyHeight, null);
+			graphics.dispose();
+			previewProxySource = bufferedImage;
+		}
+		
+		return previewProxy;
+	}
+	
+	/**
+	 * Applies brightness and contrast adjustments to a low resolution copy of the bufferedImage
+	 * that fits the given area, without modifying any project attributes.
 	 * (Requirement 2.5.3)
 	 * 
 	 * @param brightnessAdjustment - the offset to be applied to each pixel (-100.0 to 100.0)
 	 * @param contrastAdjustment - the value to scale each pixel by (0.0 to 2.0)
-	 * @return the current bufferedImage with brightness and contrast adjustments applied (but not stored)
+	 * @param maxWidth - the width of the area the preview will be shown in
+	 * @param maxHeight - the height of the area the preview will be shown in
+	 * @return an adjusted copy of the bufferedImage no larger than maxWidth x maxHeight
+	 * @see #getPreviewProxy(double, double)
+	 */
+	public BufferedImage previewBrightnessContrast(double brightnessAdjustment, double contrastAdjustment, double maxWidth, double maxHeight)
+	{
+		return preview(Operation.adjustBrightnessContrast(brightnessAdjustment, contrastAdjustment), getPreviewProxy(maxWidth, maxHeight));
+	}
+	
+	/**
+	 * Blurs the bufferedImage and updates relevant project attributes.
 	 * 
-	 * @see ImageEditor#adjustBrightnessContrast(BufferedImage, double, double)
+	 * @param radius - the radius of the blur in pixels
+	 * @see ImageEditor#gaussianBlur(BufferedImage, double)
 	 */
-	public BufferedImage previewBrightnessContrast(double brightnessAdjustment, double contrastAdjustment)
+	public void gaussianBlur(double radius)
 	{
-		BufferedImage previewImage = imageEditor.adjustBrightnessContrast(bufferedImage, brightnessAdjustment, contrastAdjustment);
-		return previewImage;
+		apply(Operation.gaussianBlur(radius));
 	}
 	
+	/**
+	 * Sharpens the bufferedImage and updates relevant project attributes.
+	 * 
+	 * @param amount - the strength of the sharpening, 1.0 is a moderate amount
+	 * @see ImageEditor#sharpen(BufferedImage, double)
+	 */
+	public void sharpen(double amount)
+	{
+		apply(Operation.sharpen(amount));
+	}
 	
 	/**
-	 * Checks if there are BufferedImage objects in the undoHistory stack
+	 * Applies an unsharp mask to the bufferedImage and updates relevant project attributes.
+	 * 
+	 * @param radius - the radius of the blur the image is compared to, in pixels
+	 * @param amount - the strength of the sharpening, 1.0 is a moderate amount
+	 * @param threshold - the smallest difference from the blurred image (0 to 255) that is sharpened
+	 * @see ImageEditor#unsharpMask(BufferedImage, double, double, int)
+	 */
+	public void unsharpMask(double radius, double amount, int threshold)
+	{
+		apply(Operation.unsharpMask(radius, amount, threshold));
+	}
+	
+	/**
+	 * Blurs a low resolution copy of the bufferedImage that fits the given area, without modifying
+	 * any project attributes. The radius is scaled with the copy, so the preview looks like
+	 * the full resolution result does when it is scaled to fit the area.
+	 * 
+	 * @param radius - the radius of the blur in pixels of the full resolution image
+	 * @param maxWidth - the width of the area the preview will be shown in
+	 * @param maxHeight - the height of the area the preview will be shown in
+	 * @return a blurred copy of the bufferedImage no larger than maxWidth x maxHeight
+	 * @see #getPreviewProxy(double, double)
+	 */
+	public BufferedImage previewGaussianBlur(double radius, double maxWidth, double maxHeight)
+	{
+		BufferedImage proxy = getPreviewProxy(maxWidth, maxHeight);
+		return preview(Operation.gaussianBlur(radius * getProxyScale(proxy)), proxy);
+	}
+	
+	/**
+	 * Sharpens a low resolution copy of the bufferedImage that fits the given area, without modifying
+	 * any project attributes. Like the other filter previews, the radius is scaled with the copy.
+	 * 
+	 * @param amount - the strength of the sharpening, 1.0 is a moderate amount
+	 * @param maxWidth - the width of the area the preview will be shown in
+	 * @param maxHeight - the height of the area the preview will be shown in
+	 * @return a sharpened copy of the bufferedImage no larger than maxWidth x maxHeight
+	 * @see #previewGaussianBlur(double, double, double)
+	 */
+	public BufferedImage previewSharpen(double amount, double maxWidth, double maxHeight)
+	{
+		BufferedImage proxy = getPreviewProxy(maxWidth, maxHeight);
+		return preview(Operation.unsharpMask(ImageEditor.SHARPEN_RADIUS * getProxyScale(proxy), amount, 0), proxy);
+	}
+	
+	/**
+	 * Applies an unsharp mask to a low resolution copy of the bufferedImage that fits the given area,
+	 * without modifying any project attributes. Like the other filter previews, the radius is scaled with the copy.
+	 * 
+	 * @param radius - the radius of the blur the image is compared to, in pixels of the full resolution image
+	 * @param amount - the strength of the sharpening, 1.0 is a moderate amount
+	 * @param threshold - the smallest difference from the blurred image (0 to 255) that is sharpened
+	 * @param maxWidth - the width of the area the preview will be shown in
+	 * @param maxHeight - the height of the area the preview will be shown in
+	 * @return a sharpened copy of the bufferedImage no larger than maxWidth x maxHeight
+	 * @see #previewGaussianBlur(double, double, double)
+	 */
+	public BufferedImage previewUnsharpMask(double radius, double amount, int threshold, double maxWidth, double maxHeight)
+	{
+		BufferedImage proxy = getPreviewProxy(maxWidth, maxHeight);
+		return preview(Operation.unsharpMask(radius * getProxyScale(proxy), amount, threshold), proxy);
+	}
+	
+	/**
+	 * @return the size of a preview proxy relative to the bufferedImage
+	 */
+	private double getProxyScale(BufferedImage proxy)
+	{
+		return (double) proxy.getWidth() / bufferedImage.getWidth();
+	}
+	
+	/**
+	 * Checks if there are undone states after the current position in the history
 	 * (Requirement 3.5.1)
 	 * 
-	 * @return True if the stack is empty, false otherwise.
+	 * @return True if redo is available, false otherwise.
 	 */
 	public boolean isRedoAvailable()
 	{
-		return !undoHistory.isEmpty();
+		return history.getPosition() < history.size() - 1;
 	}
 	
 	/**
-	 * Checks if there are BufferedImage objects in the stateHistory stack
+	 * Checks if there are states before the current position in the history
 	 * (Requirement 3.4.1)
 	 * 
-	 * @return True if the stack is empty, false otherwise.
+	 * @return True if undo is available, false otherwise.
 	 */
 	public boolean isUndoAvailable()
 	{
-		return !stateHistory.isEmpty();
+		return history.getPosition() > 0;
+	}
+	
+	/**
+	 * Gets a description of every state in the editing history, starting with the original image
+	 * @return the descriptions in the order the operations were applied
+	 */
+	public List<String> getHistory()
+	{
+		return history.getDescriptions();
+	}
+	
+	/**
+	 * @return the index of the current state in the editing history
+	 */
+	public int getHistoryPosition()
+	{
+		return history.getPosition();
+	}
+	
+	/**
+	 * Releases the resources held by the project's editing history, including the
+	 * history spilled to disk and the OffHeapImages of a large project. This should be
+	 * called when the project is replaced or the application exits, the project can't
+	 * be edited afterwards.
+	 */
+	public void close()
+	{
+		history.close();
+		previewPool.clear();
+		
+		synchronized (offHeapImages)
+		{
+			for (OffHeapImage offHeapImage : offHeapImages.values())
+				offHeapImage.close();
+			
+			offHeapImages.clear();
+		}
+	}
+	
+	/**
+	 * @return true if the project's image is too large for the heap and is edited as an OffHeapImage
+	 */
+	public boolean isOffHeap()
+	{
+		return originalProxy != null;
 	}
 	
 	/**
@@ -307,7 +883,7 @@ public class Project
 	 */
 	public boolean hasUnsavedChanges()
 	{
-		return changesSinceSave != 0;
+		return history.getPosition() != savedPosition;
 	}
 	
 	
@@ -341,20 +917,52 @@ public class Project
 	
 	/**
 	 * (Requirement 1.3.1)
-	 * @return The height of the class's BufferedImage attribute
+	 * @return The height of the class's BufferedImage attribute, or of the full resolution image of a large project
 	 */
 	public int getHeight()
 	{
-		return bufferedImage.getHeight();
+		OffHeapImage offHeapImage = getOffHeapImage(bufferedImage);
+		return offHeapImage != null ? offHeapImage.getHeight() : bufferedImage.getHeight();
 	}
 	
 	/**
 	 * (Requirement 1.3.1)
-	 * @return The width of the class's BufferedImage attribute
+	 * @return The width of the class's BufferedImage attribute, or of the full resolution image of a large project
 	 */
 	public int getWidth()
 	{
-		return bufferedImage.getWidth();
+		OffHeapImage offHeapImage = getOffHeapImage(bufferedImage);
+		return offHeapImage != null ? offHeapImage.getWidth() : bufferedImage.getWidth();
+	}
+	
+	/**
+	 * Decodes an image file through a MappedImageInputStream, converting it to sRGB if it has a color profile
+	 * @param file - the image file
+	 * @return the first image in the file
+	 * @throws IOException if the file can't be read or no reader supports it
+	 */
+	private static BufferedImage readImage(File file) throws IOException
+	{
+		try (ImageInputStream stream = new MappedImageInputStream(file))
+		{
+			ColorManager.SourceColor color = ColorManager.scan(stream);
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			
+			if (!readers.hasNext())
+				throw new IOException("No image reader available for " + file);
+			
+			ImageReader reader = readers.next();
+			
+			try
+			{
+				reader.setInput(stream, true, true);
+				return ColorManager.read(reader, null, color);
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
 	}
 	
 	/**
@@ -369,4 +977,4 @@ public class Project
 		String extension = fileName.substring(extensionIndex + 1).toLowerCase();
 		return extension;
 	}
-}
+}
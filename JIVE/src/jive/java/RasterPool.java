@@ -0,0 +1,220 @@
+package jive.java;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * RasterPool recycles the BufferedImages of work that is thrown away as soon as it is shown,
+ * such as the previews rendered while a slider is dragged, so repeating the same operation at the
+ * same size reuses the same pixel arrays instead of allocating new ones every time.
+ * <br><br>
+ * Images are taken with acquire() and handed back with release(). A released image is kept for
+ * the next acquire() of the same width, height and type. The pool keeps at most maxRetainedBytes
+ * of released images, dropping the images that were released longest ago first.
+ * <br><br>
+ * Only images that were acquired from the pool may be released to it, and only once nothing refers to
+ * their pixels any more. Subimages share the pixels of their parent, so an image that a subimage was
+ * taken from must not be released while the subimage is in use. Images that weren't acquired from the
+ * pool, or were already released, are ignored by release().
+ * <br><br>
+ * Images that are garbage collected without being released are reported as leaks on System.err.
+ * Running with -Djive.traceRasterLeaks=true also records where each image was acquired
+ * and prints it with the report.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class RasterPool
+{
+	static final long DEFAULT_RETAINED_BYTES = Runtime.getRuntime().maxMemory() / 16;
+	static final boolean TRACE_LEAKS = Boolean.getBoolean("jive.traceRasterLeaks");
+
+	private final long maxRetainedBytes;
+	private final ArrayDeque<BufferedImage> released = new ArrayDeque<BufferedImage>();
+	private final List<Lease> leases = new ArrayList<Lease>();
+	private final ReferenceQueue<BufferedImage> collected = new ReferenceQueue<BufferedImage>();
+	private long retainedBytes;
+	private int leaks;
+
+	/**
+	 * Creates a pool that keeps up to a sixteenth of the maximum heap size in released images
+	 */
+	public RasterPool()
+	{
+		this(DEFAULT_RETAINED_BYTES);
+	}
+
+	/**
+	 * @param maxRetainedBytes - the number of bytes of released images to keep for reuse
+	 */
+	public RasterPool(long maxRetainedBytes)
+	{
+		this.maxRetainedBytes = maxRetainedBytes;
+	}
+
+	/**
+	 * Takes an image from the pool, or allocates one if the pool has none of this size and type.
+	 * The pixels of a reused image are left as they were, so the caller must overwrite all of them.
+	 *
+	 * @param width - the width of the image
+	 * @param height - the height of the image
+	 * @param type - one of the predefined BufferedImage types, such as TYPE_INT_ARGB
+	 * @return an image that should be handed back with release() once it is no longer used
+	 */
+	public BufferedImage acquire(int width, int height, int type)
+	{
+		BufferedImage image = null;
+
+		synchronized (this)
+		{
+			pollLeaks();
+
+			//The most recently released images are the most likely to be asked for again
+			Iterator<BufferedImage> iterator = released.descendingIterator();
+			while (iterator.hasNext())
+			{
+				BufferedImage candidate = iterator.next();
+
+				if (candidate.getWidth() == width && candidate.getHeight() == height && candidate.getType() == type)
+				{
+					iterator.remove();
+					retainedBytes -= getBytes(candidate);
+					image = candidate;
+					break;
+				}
+			}
+		}
+
+		if (image == null)
+			image = new BufferedImage(width, height, type);
+
+		synchronized (this)
+		{
+			leases.add(new Lease(image, collected));
+		}
+
+		return image;
+	}
+
+	/**
+	 * Hands an image back to the pool so its pixels can be reused.
+	 * The image must not be used by the caller afterwards.
+	 *
+	 * @param image - an image taken with acquire(), images that weren't are ignored
+	 * @return true if the image was acquired from this pool and hadn't been released yet
+	 */
+	public synchronized boolean release(BufferedImage image)
+	{
+		if (image == null)
+			return false;
+
+		//Only a few images are out at a time, so a linear search is fine
+		for (int i = 0; i < leases.size(); ++i)
+		{
+			Lease lease = leases.get(i);
+
+			if (lease.get() == image)
+			{
+				lease.clear();
+				leases.remove(i);
+				retain(image);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Drops all released images. Images that are still out can be released afterwards as usual.
+	 */
+	public synchronized void clear()
+	{
+		released.clear();
+		retainedBytes = 0;
+	}
+
+	/**
+	 * @return the number of bytes of released images kept for reuse
+	 */
+	public synchronized long getRetainedBytes()
+	{
+		return retainedBytes;
+	}
+
+	/**
+	 * @return the number of images that were garbage collected without being released
+	 */
+	public synchronized int getLeakCount()
+	{
+		pollLeaks();
+		return leaks;
+	}
+
+	private void retain(BufferedImage image)
+	{
+		long bytes = getBytes(image);
+
+		if (bytes > maxRetainedBytes)
+			return;
+
+		released.addLast(image);
+		retainedBytes += bytes;
+
+		while (retainedBytes > maxRetainedBytes)
+			retainedBytes -= getBytes(released.removeFirst());
+	}
+
+	/*
+	 * Reports the leases whose images were garbage collected while they were still out
+	 */
+	private void pollLeaks()
+	{
+		Reference<? extends BufferedImage> reference;
+
+		while ((reference = collected.poll()) != null)
+		{
+			Lease lease = (Lease) reference;
+
+			if (!leases.remove(lease))
+				continue;
+
+			++leaks;
+			String message = "RasterPool: a " + lease.description + " image was garbage collected without being released";
+
+			if (lease.trace != null)
+				new IllegalStateException(message, lease.trace).printStackTrace();
+			else
+				System.err.println(message + " (run with -Djive.traceRasterLeaks=true to see where it was acquired)");
+		}
+	}
+
+	private static long getBytes(BufferedImage image)
+	{
+		DataBuffer buffer = image.getRaster().getDataBuffer();
+		return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+	}
+
+	/**
+	 * Tracks an image that is out of the pool without keeping it from being garbage collected
+	 */
+	private static final class Lease extends WeakReference<BufferedImage>
+	{
+		final String description;
+		final Throwable trace;
+
+		Lease(BufferedImage image, ReferenceQueue<BufferedImage> queue)
+		{
+			super(image, queue);
+			description = image.getWidth() + " x " + image.getHeight();
+			trace = TRACE_LEAKS ? new Throwable("Acquired here") : null;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package jive.java;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * RegionReader decodes part of an image file without decoding the whole image into memory.
+ * <br><br>
+ * readRegion() passes the region to the ImageReader as a source region, so only the pixels
+ * inside it are stored. Readers that support random access (such as tiled TIFF) also skip
+ * decoding the data outside the region. readPreview() reads a subsampled copy of the image
+ * that is small enough to pick a region from. Files are read through a MappedImageInputStream,
+ * and images with a color profile are converted to sRGB by ColorManager.
+ * <br><br>
+ * RegionReader doesn't depend on JavaFX and can be run from the command line:
+ * <br>
+ * <code>java jive.java.RegionReader input x y width height output</code>
+ *
+ * @author Devon Hunter
+ *
+ */
+public class RegionReader
+{
+	/**
+	 * Reads the dimensions of an image from its header
+	 *
+	 * @param imageFile - the image file
+	 * @return the width and height of the first image in the file
+	 * @throws IOException if the file can't be read
+	 */
+	public static Dimension readSize(File imageFile) throws IOException
+	{
+		try (ImageInputStream stream = new MappedImageInputStream(imageFile))
+		{
+			ImageReader reader = createReader(stream, imageFile);
+
+			try
+			{
+				return new Dimension(reader.getWidth(0), reader.getHeight(0));
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Decodes a region of an image.
+	 * The region is clipped to the bounds of the image.
+	 *
+	 * @param imageFile - the image file
+	 * @param region - the region to read in image coordinates
+	 * @return a BufferedImage containing only the region
+	 * @throws IOException if the file can't be read
+	 * @throws IllegalArgumentException if the region is outside of the image
+	 */
+	public static BufferedImage readRegion(File imageFile, Rectangle region) throws IOException
+	{
+		try (ImageInputStream stream = new MappedImageInputStream(imageFile))
+		{
+			ColorManager.SourceColor color = ColorManager.scan(stream);
+			ImageReader reader = createReader(stream, imageFile);
+
+			try
+			{
+				Rectangle clipped = region.intersection(new Rectangle(reader.getWidth(0), reader.getHeight(0)));
+
+				if (clipped.isEmpty())
+					throw new IllegalArgumentException("The region " + region + " is outside of " + imageFile.getName());
+
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(clipped);
+				return ColorManager.read(reader, param, color);
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Decodes a subsampled copy of an image that fits within the given size.
+	 * Only every n-th pixel of every n-th row is stored, so the full image is never held in memory.
+	 *
+	 * @param imageFile - the image file
+	 * @param maxWidth - the maximum width of the preview
+	 * @param maxHeight - the maximum height of the preview
+	 * @return the preview image
+	 * @throws IOException if the file can't be read
+	 */
+	public static BufferedImage readPreview(File imageFile, int maxWidth, int maxHeight) throws IOException
+	{
+		try (ImageInputStream stream = new MappedImageInputStream(imageFile))
+		{
+			ColorManager.SourceColor color = ColorManager.scan(stream);
+			ImageReader reader = createReader(stream, imageFile);
+
+			try
+			{
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+				int step = (int) Math.max(1, Math.ceil(Math.max((double) width / maxWidth, (double) height / maxHeight)));
+
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(step, step, 0, 0);
+				return ColorManager.read(reader, param, color);
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Decodes a subsampled copy of an image for scaling down to fit within the given size.
+	 * The image is subsampled as far as it can be without getting smaller than it will be drawn,
+	 * so the copy is less than twice the size it is scaled down to.
+	 *
+	 * @param imageFile - the image file
+	 * @param width - the width of the box the image will be fitted into
+	 * @param height - the height of the box the image will be fitted into
+	 * @return the subsampled image
+	 * @throws IOException if the file can't be read
+	 */
+	public static BufferedImage readThumbnail(File imageFile, int width, int height) throws IOException
+	{
+		try (ImageInputStream stream = new MappedImageInputStream(imageFile))
+		{
+			ColorManager.SourceColor color = ColorManager.scan(stream);
+			ImageReader reader = createReader(stream, imageFile);
+
+			try
+			{
+				double scale = Math.min((double) width / reader.getWidth(0), (double) height / reader.getHeight(0));
+				int step = (int) Math.max(1, Math.floor(1 / scale));
+
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(step, step, 0, 0);
+				return ColorManager.read(reader, param, color);
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
+	}
+
+	private static ImageReader createReader(ImageInputStream stream, File imageFile) throws IOException
+	{
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+		if (!readers.hasNext())
+			throw new IOException("No image reader available for " + imageFile);
+
+		ImageReader reader = readers.next();
+		reader.setInput(stream, true, true);
+		return reader;
+	}
+
+	/**
+	 * Crops a region out of an image file and writes it to a new file
+	 *
+	 * @param args - input x y width height output
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 6)
+		{
+			System.err.println("Usage: java jive.java.RegionReader input x y width height output");
+			System.exit(1);
+		}
+
+		ImageIO.setUseCache(false);
+		File input = new File(args[0]);
+		File output = new File(args[5]);
+		Rectangle region = new Rectangle(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+
+		Project project = new Project(input, readRegion(input, region));
+
+		if (!project.saveAs(output))
+		{
+			System.err.println("Could not write " + output);
+			System.exit(1);
+		}
+	}
+}
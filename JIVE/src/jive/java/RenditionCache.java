@@ -0,0 +1,185 @@
+package jive.java;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * RenditionCache keeps the encoded images produced by the RenditionServer on disk and in memory,
+ * so a rendition that was requested before is served without decoding and editing the image again.
+ * <br><br>
+ * Renditions are stored under a key that changes whenever the source file or the parameters change,
+ * so entries never have to be invalidated. Both tiers are bounded by size and drop their least recently
+ * used entries first. Renditions larger than an eighth of the memory budget are only kept on disk.
+ * The files in the cache directory are picked up again when a new cache is created on the same directory,
+ * oldest first, so the disk cache survives restarts.
+ * <br><br>
+ * A rendition is written to a file from createTemporaryFile() and moved into place by put(), so a rendition
+ * that is still being written is never served. All methods can be called from several threads at once.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class RenditionCache
+{
+	private static final String TEMPORARY_PREFIX = "partial-";
+
+	private final File directory;
+	private final long diskBudget;
+	private final long memoryBudget;
+	private final Map<String, Long> diskEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private final Map<String, byte[]> memoryEntries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private long diskBytes;
+	private long memoryBytes;
+
+	/**
+	 * @param directory - the directory renditions are stored in, which is created if it doesn't exist
+	 * @param diskBudget - the most bytes of renditions to keep on disk
+	 * @param memoryBudget - the most bytes of renditions to keep in memory
+	 * @throws IOException if the directory can't be created
+	 */
+	public RenditionCache(File directory, long diskBudget, long memoryBudget) throws IOException
+	{
+		this.directory = directory;
+		this.diskBudget = diskBudget;
+		this.memoryBudget = memoryBudget;
+
+		Files.createDirectories(directory.toPath());
+		File[] files = directory.listFiles();
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+
+		for (File file : files)
+		{
+			//Temporary files are left behind by renditions that were interrupted
+			if (file.getName().startsWith(TEMPORARY_PREFIX))
+				Files.deleteIfExists(file.toPath());
+			else if (file.isFile())
+				addDiskEntry(file.getName(), file.length());
+		}
+
+		synchronized (diskEntries)
+		{
+			evictDisk();
+		}
+	}
+
+	/**
+	 * @param key - the key of the rendition
+	 * @param format - the file extension of the rendition
+	 * @return the encoded rendition, or null if it isn't cached
+	 */
+	public byte[] get(String key, String format)
+	{
+		String name = key + "." + format;
+
+		synchronized (memoryEntries)
+		{
+			byte[] bytes = memoryEntries.get(name);
+			if (bytes != null)
+				return bytes;
+		}
+
+		synchronized (diskEntries)
+		{
+			if (diskEntries.get(name) == null)
+				return null;
+		}
+
+		try
+		{
+			byte[] bytes = Files.readAllBytes(new File(directory, name).toPath());
+			addMemoryEntry(name, bytes);
+			return bytes;
+		}
+		catch (IOException e)
+		{
+			//The file was evicted after it was looked up
+			return null;
+		}
+	}
+
+	/**
+	 * @param format - the file extension of the rendition, which the encoder chooses the format by
+	 * @return a new empty file in the cache directory to write a rendition to
+	 * @throws IOException if the file can't be created
+	 */
+	public File createTemporaryFile(String format) throws IOException
+	{
+		return File.createTempFile(TEMPORARY_PREFIX, "." + format, directory);
+	}
+
+	/**
+	 * Moves a rendition written to a temporary file into the cache
+	 *
+	 * @param key - the key of the rendition
+	 * @param format - the file extension of the rendition
+	 * @param temporaryFile - the file from createTemporaryFile() the rendition was written to
+	 * @return the encoded rendition
+	 * @throws IOException if the rendition can't be read or moved
+	 */
+	public byte[] put(String key, String format, File temporaryFile) throws IOException
+	{
+		String name = key + "." + format;
+
+		try
+		{
+			byte[] bytes = Files.readAllBytes(temporaryFile.toPath());
+			Files.move(temporaryFile.toPath(), new File(directory, name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			addDiskEntry(name, bytes.length);
+			addMemoryEntry(name, bytes);
+			return bytes;
+		}
+		finally
+		{
+			Files.deleteIfExists(temporaryFile.toPath());
+		}
+	}
+
+	private void addDiskEntry(String name, long length)
+	{
+		synchronized (diskEntries)
+		{
+			Long previous = diskEntries.put(name, length);
+			diskBytes += length - (previous != null ? previous : 0);
+			evictDisk();
+		}
+	}
+
+	/*
+	 * Deletes the least recently used files until the cache fits its budget. Must hold the lock of diskEntries.
+	 */
+	private void evictDisk()
+	{
+		for (Iterator<Map.Entry<String, Long>> entries = diskEntries.entrySet().iterator(); diskBytes > diskBudget && entries.hasNext();)
+		{
+			Map.Entry<String, Long> entry = entries.next();
+			new File(directory, entry.getKey()).delete();
+			diskBytes -= entry.getValue();
+			entries.remove();
+		}
+	}
+
+	private void addMemoryEntry(String name, byte[] bytes)
+	{
+		if (bytes.length > memoryBudget / 8)
+			return;
+
+		synchronized (memoryEntries)
+		{
+			byte[] previous = memoryEntries.put(name, bytes);
+			memoryBytes += bytes.length - (previous != null ? previous.length : 0);
+
+			for (Iterator<byte[]> entries = memoryEntries.values().iterator(); memoryBytes > memoryBudget && entries.hasNext();)
+			{
+				memoryBytes -= entries.next().length;
+				entries.remove();
+			}
+		}
+	}
+}
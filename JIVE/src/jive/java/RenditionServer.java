@@ -0,0 +1,684 @@
+package jive.java;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * RenditionServer serves edited copies (renditions) of the images in an archive directory over HTTP,
+ * without the JavaFX GUI.
+ * <br><br>
+ * The path of a request is the path of an image in the archive, and its parameters are applied to the image
+ * in the order they appear in the query, through the same Project and ImageEditor code the GUI uses:
+ * <ul>
+ * <li>crop=x,y,width,height</li>
+ * <li>resize=factor, width=pixels or height=pixels, which keep the aspect ratio</li>
+ * <li>rotate=90, 180 or 270, or any other angle to straighten the image and crop off the corners</li>
+ * <li>flip=h or v</li>
+ * <li>brightness=-100 to 100 and contrast=0 to 2</li>
+ * <li>format=jpg, png, gif or bmp and quality=1 to 100, which are applied when the rendition is encoded</li>
+ * </ul>
+ * For example, <code>/2019/beach.jpg?crop=0,0,2000,1500&amp;width=800&amp;format=png</code>.
+ * <br><br>
+ * Renditions are kept in a RenditionCache under a hash of the source file's path, modification time and length
+ * and of the parameters, which is also sent as the ETag. A request whose If-None-Match holds the ETag, or whose
+ * If-Modified-Since is after the source file changed, is answered with 304 Not Modified without touching the cache.
+ * Concurrent requests for the same rendition wait for a single render. Requests are handled on a pool of THREADS
+ * threads. Images too large for the heap (see OffHeapImage.isNeeded()) are refused, and so are requests with more
+ * than MAX_STEPS edits or with an edit that would make an image that large.
+ * <br><br>
+ * RenditionServer can be run from the command line, or with <code>java jive.java.Main --serve</code>:
+ * <br>
+ * <code>java jive.java.RenditionServer archive [port [cacheDirectory [bindAddress]]]</code>
+ * <br>
+ * The server only accepts connections from this computer unless it is given the address to listen on,
+ * such as 0.0.0.0 for every network interface.
+ * <br>
+ * The disk cache holds up to -Djive.renditionCacheMegabytes (1024 by default), and the memory cache up to
+ * an eighth of the maximum heap size.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class RenditionServer
+{
+	static final int DEFAULT_PORT = 8080;
+	static final int THREADS = Runtime.getRuntime().availableProcessors();
+	static final int MAX_STEPS = 16;
+	static final long DISK_CACHE_BYTES = Long.getLong("jive.renditionCacheMegabytes", 1024) << 20;
+	static final long MEMORY_CACHE_BYTES = Runtime.getRuntime().maxMemory() / 8;
+
+	private static final List<String> FORMATS = Arrays.asList("jpg", "png", "gif", "bmp");
+	private static final List<String> COMPATIBLE_FORMATS = Arrays.asList(".jpg", ".jpeg", ".png", ".bmp", ".gif");
+
+	private final File archive;
+	private final RenditionCache cache;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Map<String, CompletableFuture<byte[]>> rendering = new ConcurrentHashMap<String, CompletableFuture<byte[]>>();
+
+	/**
+	 * Creates the Operation of a step once the size of the image it applies to is known
+	 */
+	@FunctionalInterface
+	private interface OperationFactory
+	{
+		Operation create(int width, int height);
+	}
+
+	/**
+	 * Works out the size of the image a step makes from an image of the given size
+	 */
+	@FunctionalInterface
+	private interface SizeFunction
+	{
+		Dimension getSize(int width, int height);
+	}
+
+	private static final SizeFunction SAME_SIZE = Dimension::new;
+
+	/**
+	 * A single edit of a request
+	 */
+	private static final class Step
+	{
+		final OperationFactory operation;
+		final SizeFunction size;
+
+		Step(OperationFactory operation, SizeFunction size)
+		{
+			this.operation = operation;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * The parsed parameters of a request
+	 */
+	private static final class Request
+	{
+		final List<Step> steps = new ArrayList<Step>();
+		final StringBuilder parameters = new StringBuilder();
+		String format;
+		float quality = EncoderSettings.DEFAULT.getJpegQuality();
+	}
+
+	/**
+	 * Creates a server, which is started by start()
+	 *
+	 * @param archive - the directory the images are served from
+	 * @param address - the address to listen on, such as InetAddress.getLoopbackAddress()
+	 * @param port - the port to listen on, or 0 for any free port
+	 * @param cache - the cache to keep renditions in
+	 * @throws IOException if the archive can't be resolved or the port can't be bound
+	 */
+	public RenditionServer(File archive, InetAddress address, int port, RenditionCache cache) throws IOException
+	{
+		this.archive = archive.getCanonicalFile();
+		this.cache = cache;
+
+		executor = Executors.newFixedThreadPool(THREADS, runnable ->
+		{
+			Thread thread = new Thread(runnable, "JIVE rendition server");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		server = HttpServer.create(new InetSocketAddress(address, port), 0);
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+	}
+
+	/**
+	 * Starts accepting requests in the background
+	 */
+	public void start()
+	{
+		server.start();
+	}
+
+	/**
+	 * Stops accepting requests and waits up to a second for the requests being handled
+	 */
+	public void stop()
+	{
+		server.stop(1);
+		executor.shutdown();
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort()
+	{
+		return server.getAddress().getPort();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			String method = exchange.getRequestMethod();
+			boolean head = method.equals("HEAD");
+
+			if (!head && !method.equals("GET"))
+			{
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				sendError(exchange, 405, "Only GET and HEAD are supported");
+				return;
+			}
+
+			File imageFile = resolve(exchange.getRequestURI().getPath());
+
+			if (imageFile == null)
+			{
+				sendError(exchange, 404, "No such image");
+				return;
+			}
+
+			Request request;
+
+			try
+			{
+				request = parse(exchange.getRequestURI().getRawQuery(), imageFile);
+			}
+			catch (IllegalArgumentException e)
+			{
+				sendError(exchange, 400, e.getMessage());
+				return;
+			}
+
+			long lastModified = imageFile.lastModified();
+			String key = hash(imageFile.getPath() + "\n" + lastModified + "\n" + imageFile.length() + "\n" + request.parameters
+					+ "\n" + request.format + "\n" + request.quality);
+			String etag = "\"" + key + "\"";
+
+			exchange.getResponseHeaders().set("ETag", etag);
+			exchange.getResponseHeaders().set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(
+					ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastModified), ZoneOffset.UTC)));
+			exchange.getResponseHeaders().set("Cache-Control", "public, no-cache");
+
+			if (isNotModified(exchange, etag, lastModified))
+			{
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+
+			byte[] rendition;
+
+			try
+			{
+				rendition = getRendition(key, imageFile, request);
+			}
+			catch (CompletionException e)
+			{
+				Throwable cause = e.getCause();
+
+				if (cause instanceof IllegalArgumentException)
+				{
+					sendError(exchange, cause instanceof ImageTooLargeException ? 413 : 400, cause.getMessage());
+					return;
+				}
+
+				throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+			}
+
+			exchange.getResponseHeaders().set("Content-Type", "image/" + (request.format.equals("jpg") ? "jpeg" : request.format));
+
+			if (head)
+			{
+				exchange.getResponseHeaders().set("Content-Length", Integer.toString(rendition.length));
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+
+			exchange.sendResponseHeaders(200, rendition.length);
+
+			try (OutputStream body = exchange.getResponseBody())
+			{
+				body.write(rendition);
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			e.printStackTrace();
+
+			//An error while the body is sent can only be reported by closing the connection
+			if (exchange.getResponseCode() == -1)
+				sendError(exchange, 500, "The rendition could not be created");
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+	/*
+	 * Finds the image a request path refers to, or returns null if it isn't an image inside the archive
+	 */
+	private File resolve(String path) throws IOException
+	{
+		File imageFile = new File(archive, path).getCanonicalFile();
+		String name = imageFile.getName().toLowerCase();
+
+		if (!imageFile.getPath().startsWith(archive.getPath() + File.separator) || !imageFile.isFile())
+			return null;
+
+		for (String format : COMPATIBLE_FORMATS)
+		{
+			if (name.endsWith(format))
+				return imageFile;
+		}
+
+		return null;
+	}
+
+	/*
+	 * Parses the query of a request, throwing IllegalArgumentException for unknown or malformed parameters
+	 */
+	private static Request parse(String query, File imageFile)
+	{
+		Request request = new Request();
+		String name = imageFile.getName();
+		request.format = name.substring(name.lastIndexOf('.') + 1).toLowerCase().replace("jpeg", "jpg");
+
+		if (query == null || query.isEmpty())
+			return request;
+
+		for (String parameter : query.split("&"))
+		{
+			if (parameter.isEmpty())
+				continue;
+
+			int separator = parameter.indexOf('=');
+			String key = decode(separator < 0 ? parameter : parameter.substring(0, separator));
+			String value = separator < 0 ? "" : decode(parameter.substring(separator + 1));
+
+			try
+			{
+				addParameter(request, key, value);
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+			}
+
+			request.parameters.append(key).append('=').append(value).append('&');
+
+			if (request.steps.size() > MAX_STEPS)
+				throw new IllegalArgumentException("A request can have at most " + MAX_STEPS + " edits");
+		}
+
+		return request;
+	}
+
+	private static String decode(String text)
+	{
+		try
+		{
+			return URLDecoder.decode(text, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			//Every JVM supports UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void addParameter(Request request, String key, String value)
+	{
+		switch (key)
+		{
+			case "crop":
+				String[] values = value.split(",");
+				if (values.length != 4)
+					throw new IllegalArgumentException("crop needs x,y,width,height");
+
+				int x = Integer.parseInt(values[0].trim());
+				int y = Integer.parseInt(values[1].trim());
+				int width = Integer.parseInt(values[2].trim());
+				int height = Integer.parseInt(values[3].trim());
+
+				request.steps.add(new Step((imageWidth, imageHeight) ->
+				{
+					if (x < 0 || y < 0 || width < 1 || height < 1 || x + width > imageWidth || y + height > imageHeight)
+						throw new IllegalArgumentException("The crop is outside of the " + imageWidth + " x " + imageHeight + " image");
+
+					return Operation.crop(x, y, width, height);
+				}, (imageWidth, imageHeight) -> new Dimension(width, height)));
+				break;
+
+			case "resize":
+				double factor = Double.parseDouble(value);
+				checkRange(key, factor, 0.01, 4);
+				request.steps.add(new Step((imageWidth, imageHeight) -> Operation.resize(factor),
+						(imageWidth, imageHeight) -> scale(imageWidth, imageHeight, factor)));
+				break;
+
+			case "width":
+				int targetWidth = Integer.parseInt(value);
+				checkRange(key, targetWidth, 1, 65535);
+				request.steps.add(new Step((imageWidth, imageHeight) -> Operation.resize((double) targetWidth / imageWidth),
+						(imageWidth, imageHeight) -> scale(imageWidth, imageHeight, (double) targetWidth / imageWidth)));
+				break;
+
+			case "height":
+				int targetHeight = Integer.parseInt(value);
+				checkRange(key, targetHeight, 1, 65535);
+				request.steps.add(new Step((imageWidth, imageHeight) -> Operation.resize((double) targetHeight / imageHeight),
+						(imageWidth, imageHeight) -> scale(imageWidth, imageHeight, (double) targetHeight / imageHeight)));
+				break;
+
+			case "rotate":
+				double degrees = Double.parseDouble(value);
+				checkRange(key, degrees, -360, 360);
+				addRotation(request, degrees);
+				break;
+
+			case "flip":
+				if (value.equals("h"))
+					request.steps.add(new Step((imageWidth, imageHeight) -> Operation.flipHorizontal(), SAME_SIZE));
+				else if (value.equals("v"))
+					request.steps.add(new Step((imageWidth, imageHeight) -> Operation.flipVertical(), SAME_SIZE));
+				else
+					throw new IllegalArgumentException("flip must be h or v");
+				break;
+
+			case "brightness":
+				double brightness = Double.parseDouble(value);
+				checkRange(key, brightness, -100, 100);
+				request.steps.add(new Step((imageWidth, imageHeight) -> Operation.adjustBrightnessContrast(brightness, 1), SAME_SIZE));
+				break;
+
+			case "contrast":
+				double contrast = Double.parseDouble(value);
+				checkRange(key, contrast, 0, 2);
+				request.steps.add(new Step((imageWidth, imageHeight) -> Operation.adjustBrightnessContrast(0, contrast), SAME_SIZE));
+				break;
+
+			case "format":
+				String format = value.toLowerCase().replace("jpeg", "jpg");
+				if (!FORMATS.contains(format))
+					throw new IllegalArgumentException("format must be one of " + FORMATS);
+
+				request.format = format;
+				break;
+
+			case "quality":
+				int quality = Integer.parseInt(value);
+				checkRange(key, quality, 1, 100);
+				request.quality = quality / 100f;
+				break;
+
+			default:
+				throw new IllegalArgumentException("Unknown parameter " + key);
+		}
+	}
+
+	/*
+	 * Right angles are rotated without resampling, other angles are straightened
+	 */
+	private static void addRotation(Request request, double degrees)
+	{
+		double clockwise = ((degrees % 360) + 360) % 360;
+
+		SizeFunction swapped = (imageWidth, imageHeight) -> new Dimension(imageHeight, imageWidth);
+
+		if (clockwise == 90)
+			request.steps.add(new Step((imageWidth, imageHeight) -> Operation.rotateRight(), swapped));
+		else if (clockwise == 270)
+			request.steps.add(new Step((imageWidth, imageHeight) -> Operation.rotateLeft(), swapped));
+		else if (clockwise == 180)
+		{
+			request.steps.add(new Step((imageWidth, imageHeight) -> Operation.flipHorizontal(), SAME_SIZE));
+			request.steps.add(new Step((imageWidth, imageHeight) -> Operation.flipVertical(), SAME_SIZE));
+		}
+		else if (clockwise != 0)
+		{
+			//Straightened images are cropped to within the original size
+			request.steps.add(new Step((imageWidth, imageHeight) -> Operation.rotate(degrees, true), SAME_SIZE));
+		}
+	}
+
+	/*
+	 * The size ImageEditor.resize() makes, refusing sizes that don't fit in an int before they overflow
+	 */
+	private static Dimension scale(int width, int height, double factor)
+	{
+		double scaledWidth = Math.floor(width * factor);
+		double scaledHeight = Math.floor(height * factor);
+
+		if (scaledWidth * scaledHeight > Integer.MAX_VALUE)
+			throw new ImageTooLargeException("The resized image would be too large to render");
+		if (scaledWidth < 1 || scaledHeight < 1)
+			throw new IllegalArgumentException("The resized image would be empty");
+
+		return new Dimension((int) scaledWidth, (int) scaledHeight);
+	}
+
+	private static void checkRange(String key, double value, double min, double max)
+	{
+		if (!(value >= min && value <= max))
+			throw new IllegalArgumentException(key + " must be between " + min + " and " + max);
+	}
+
+	/*
+	 * Checks the conditional headers of a request. If-None-Match takes precedence over If-Modified-Since.
+	 */
+	private static boolean isNotModified(HttpExchange exchange, String etag, long lastModified)
+	{
+		String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+
+		if (ifNoneMatch != null)
+		{
+			for (String tag : ifNoneMatch.split(","))
+			{
+				tag = tag.trim();
+				if (tag.startsWith("W/"))
+					tag = tag.substring(2);
+
+				if (tag.equals(etag) || tag.equals("*"))
+					return true;
+			}
+
+			return false;
+		}
+
+		String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+
+		if (ifModifiedSince != null)
+		{
+			try
+			{
+				long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+				return lastModified / 1000 <= since / 1000;
+			}
+			catch (DateTimeParseException e)
+			{
+				return false;
+			}
+		}
+
+		return false;
+	}
+
+	/*
+	 * Gets a rendition from the cache, or renders it. Requests for a rendition that is being rendered
+	 * wait for that render instead of starting their own.
+	 */
+	private byte[] getRendition(String key, File imageFile, Request request)
+	{
+		byte[] cached = cache.get(key, request.format);
+		if (cached != null)
+			return cached;
+
+		CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		CompletableFuture<byte[]> running = rendering.putIfAbsent(key, future);
+
+		if (running != null)
+			return running.join();
+
+		try
+		{
+			//Another request may have finished the render between the lookup and putIfAbsent()
+			cached = cache.get(key, request.format);
+			future.complete(cached != null ? cached : render(key, imageFile, request));
+		}
+		catch (Throwable e)
+		{
+			//Errors such as OutOfMemoryError must reach the requests waiting on the render too, or they would wait forever
+			future.completeExceptionally(e);
+		}
+		finally
+		{
+			rendering.remove(key);
+		}
+
+		return future.join();
+	}
+
+	private byte[] render(String key, File imageFile, Request request) throws IOException
+	{
+		Dimension size = RegionReader.readSize(imageFile);
+
+		if (OffHeapImage.isNeeded(size.width, size.height))
+			throw new ImageTooLargeException(imageFile.getName() + " is too large to render");
+
+		//Every edit is checked before any is rendered, so a request can't make an image too large for the heap
+		for (Step step : request.steps)
+		{
+			size = step.size.getSize(size.width, size.height);
+
+			if (OffHeapImage.isNeeded(size.width, size.height))
+				throw new ImageTooLargeException("The edits would make " + imageFile.getName() + " too large to render");
+		}
+
+		Project project = new Project(imageFile);
+
+		try
+		{
+			for (Step step : request.steps)
+				project.apply(step.operation.create(project.getWidth(), project.getHeight()));
+
+			project.setEncoderSettings(EncoderSettings.DEFAULT.withJpegQuality(request.quality));
+			File temporaryFile = cache.createTemporaryFile(request.format);
+
+			if (!project.saveAs(temporaryFile))
+			{
+				temporaryFile.delete();
+				throw new IOException("Could not encode " + imageFile.getName() + " as " + request.format);
+			}
+
+			return cache.put(key, request.format, temporaryFile);
+		}
+		finally
+		{
+			project.close();
+		}
+	}
+
+	private static String hash(String text)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+
+			//128 bits are plenty to tell renditions apart and keep the ETags short
+			for (int i = 0; i < 16; ++i)
+				hex.append(String.format("%02x", digest[i]));
+
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException
+	{
+		byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.getResponseHeaders().remove("ETag");
+		exchange.sendResponseHeaders(status, body.length);
+
+		try (OutputStream output = exchange.getResponseBody())
+		{
+			output.write(body);
+		}
+	}
+
+	/**
+	 * Thrown for images that are too large to render, which is reported as 413
+	 */
+	private static class ImageTooLargeException extends IllegalArgumentException
+	{
+		private static final long serialVersionUID = 1L;
+
+		ImageTooLargeException(String message)
+		{
+			super(message);
+		}
+	}
+
+	/**
+	 * Serves the images in a directory until the process is stopped
+	 *
+	 * @param args - archive [port [cacheDirectory [bindAddress]]]
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1 || args.length > 4)
+		{
+			System.err.println("Usage: java jive.java.RenditionServer archive [port [cacheDirectory [bindAddress]]]");
+			System.exit(1);
+		}
+
+		System.setProperty("java.awt.headless", "true");
+		ImageIO.setUseCache(false);
+
+		File archive = new File(args[0]);
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+		File cacheDirectory = args.length > 2 ? new File(args[2])
+				: new File(System.getProperty("user.home"), ".jive" + File.separator + "renditions");
+		InetAddress address = args.length > 3 ? InetAddress.getByName(args[3]) : InetAddress.getLoopbackAddress();
+
+		if (!archive.isDirectory())
+		{
+			System.err.println(archive + " is not a directory");
+			System.exit(1);
+		}
+
+		RenditionServer server = new RenditionServer(archive, address, port, new RenditionCache(cacheDirectory, DISK_CACHE_BYTES, MEMORY_CACHE_BYTES));
+		server.start();
+		System.out.println("Serving " + archive + " on " + address.getHostAddress() + ":" + server.getPort());
+	}
+}
@@ -0,0 +1,290 @@
+package jive.java;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.stream.IntStream;
+
+/**
+ * Resampler implements geometric transforms that can't be expressed as 90 degree steps.
+ * <br><br>
+ * Output images are divided into square tiles that are rendered in parallel. Every output pixel
+ * is mapped back into the source image and reconstructed with a bicubic (Catmull-Rom) filter,
+ * so only the pixels that end up in the result are ever computed.
+ * <br><br>
+ * Interpolation is done on premultiplied colors so transparent pixels don't bleed into their
+ * neighbors. Pixels that fall outside of the source image are transparent for images with an
+ * alpha channel and white for opaque images, with the edges anti-aliased.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class Resampler
+{
+	static final int TILE_SIZE = 64;
+
+	/**
+	 * Rotates a BufferedImage by an arbitrary angle around its center.
+	 *
+	 * @param bufferedImage - the image to rotate
+	 * @param degrees - the angle to rotate by, positive values rotate clockwise
+	 * @param autoCrop - true to crop the result to the largest upright rectangle that contains
+	 * only image pixels, false to expand the result to the bounding box of the rotated image
+	 * @return A rotated BufferedImage of TYPE_INT_ARGB or TYPE_INT_RGB
+	 */
+	public static BufferedImage rotate(BufferedImage bufferedImage, double degrees, boolean autoCrop)
+	{
+		return rotate(bufferedImage, degrees, autoCrop, null);
+	}
+
+	/**
+	 * Rotates a BufferedImage by an arbitrary angle around its center into an image taken from a pool
+	 *
+	 * @param rasterPool - the pool to take the result from, or null to allocate it
+	 * @see #rotate(BufferedImage, double, boolean)
+	 */
+	static BufferedImage rotate(BufferedImage bufferedImage, double degrees, boolean autoCrop, RasterPool rasterPool)
+	{
+		int width = bufferedImage.getWidth();
+		int height = bufferedImage.getHeight();
+		double radians = Math.toRadians(degrees);
+		double sin = Math.sin(radians);
+		double cos = Math.cos(radians);
+
+		int newWidth;
+		int newHeight;
+
+		if (autoCrop)
+		{
+			double[] inscribed = largestInscribedRectangle(width, height, radians);
+			newWidth = Math.max(1, (int) Math.floor(inscribed[0] + 1e-6));
+			newHeight = Math.max(1, (int) Math.floor(inscribed[1] + 1e-6));
+		}
+		else
+		{
+			newWidth = (int) Math.ceil(Math.abs(width * cos) + Math.abs(height * sin) - 1e-6);
+			newHeight = (int) Math.ceil(Math.abs(width * sin) + Math.abs(height * cos) - 1e-6);
+		}
+
+		boolean hasAlpha = bufferedImage.getColorModel().hasAlpha();
+		int[] source = getPixels(bufferedImage);
+		int type = hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		BufferedImage newImage = rasterPool != null ? rasterPool.acquire(newWidth, newHeight, type) : new BufferedImage(newWidth, newHeight, type);
+		int[] destination = ((DataBufferInt) newImage.getRaster().getDataBuffer()).getData();
+
+		//Inverse mapping: the center of the output maps to the center of the source
+		RotationSampler sampler = new RotationSampler(source, width, height, destination, newWidth, newHeight, sin, cos, hasAlpha);
+		int tilesAcross = (newWidth + TILE_SIZE - 1) / TILE_SIZE;
+		int tilesDown = (newHeight + TILE_SIZE - 1) / TILE_SIZE;
+
+		IntStream.range(0, tilesAcross * tilesDown).parallel().forEach(tile ->
+		{
+			int tileX = (tile % tilesAcross) * TILE_SIZE;
+			int tileY = (tile / tilesAcross) * TILE_SIZE;
+			sampler.renderTile(tileX, tileY, Math.min(tileX + TILE_SIZE, newWidth), Math.min(tileY + TILE_SIZE, newHeight));
+		});
+
+		return newImage;
+	}
+
+	/**
+	 * Finds the dimensions of the largest axis-aligned rectangle that fits inside
+	 * a width x height rectangle rotated by the given angle.
+	 *
+	 * @return an array containing the width and height of the inscribed rectangle
+	 */
+	static double[] largestInscribedRectangle(int width, int height, double radians)
+	{
+		boolean widthIsLonger = width >= height;
+		double longSide = widthIsLonger ? width : height;
+		double shortSide = widthIsLonger ? height : width;
+		double sin = Math.abs(Math.sin(radians));
+		double cos = Math.abs(Math.cos(radians));
+
+		if (shortSide <= 2 * sin * cos * longSide || Math.abs(sin - cos) < 1e-10)
+		{
+			//Half constrained: two corners of the rectangle touch the longer side
+			double x = 0.5 * shortSide;
+			if (widthIsLonger)
+				return new double[] {x / sin, x / cos};
+			else
+				return new double[] {x / cos, x / sin};
+		}
+
+		//Fully constrained: all four corners touch the sides of the rotated image
+		double cos2a = cos * cos - sin * sin;
+		return new double[] {(width * cos - height * sin) / cos2a, (height * cos - width * sin) / cos2a};
+	}
+
+	/**
+	 * Gets the pixels of a BufferedImage as packed ARGB integers in row-major order.
+	 * The backing array is used directly for unshared TYPE_INT_ARGB and TYPE_INT_RGB images.
+	 */
+	static int[] getPixels(BufferedImage bufferedImage)
+	{
+		int width = bufferedImage.getWidth();
+		int height = bufferedImage.getHeight();
+		int type = bufferedImage.getType();
+
+		if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB)
+				&& bufferedImage.getRaster().getParent() == null)
+		{
+			int[] data = ((DataBufferInt) bufferedImage.getRaster().getDataBuffer()).getData();
+
+			//The alpha byte of TYPE_INT_RGB pixels is undefined, but it is never read for opaque images
+			if (data.length == width * height)
+				return data;
+		}
+
+		return bufferedImage.getRGB(0, 0, width, height, null, 0, width);
+	}
+
+	/**
+	 * Catmull-Rom cubic convolution weight for a tap at the given distance from the sample position
+	 */
+	static double cubicWeight(double distance)
+	{
+		double t = Math.abs(distance);
+
+		if (t <= 1)
+			return (1.5 * t - 2.5) * t * t + 1;
+		else if (t < 2)
+			return ((-0.5 * t + 2.5) * t - 4) * t + 2;
+		else
+			return 0;
+	}
+
+	/**
+	 * Renders rotated output pixels from a source pixel array
+	 */
+	private static class RotationSampler
+	{
+		private final int[] source;
+		private final int width;
+		private final int height;
+		private final int[] destination;
+		private final int newWidth;
+		private final double sin;
+		private final double cos;
+		private final double offsetX;
+		private final double offsetY;
+		private final boolean hasAlpha;
+
+		RotationSampler(int[] source, int width, int height, int[] destination, int newWidth, int newHeight,
+				double sin, double cos, boolean hasAlpha)
+		{
+			this.source = source;
+			this.width = width;
+			this.height = height;
+			this.destination = destination;
+			this.newWidth = newWidth;
+			this.sin = sin;
+			this.cos = cos;
+			this.hasAlpha = hasAlpha;
+			offsetX = newWidth / 2.0;
+			offsetY = newHeight / 2.0;
+		}
+
+		void renderTile(int minX, int minY, int maxX, int maxY)
+		{
+			double[] weightsX = new double[4];
+			double[] weightsY = new double[4];
+
+			for (int y = minY; y < maxY; ++y)
+			{
+				double dy = y + 0.5 - offsetY;
+				int row = y * newWidth;
+
+				for (int x = minX; x < maxX; ++x)
+				{
+					double dx = x + 0.5 - offsetX;
+
+					//Continuous source coordinates, pixel centers are at n + 0.5
+					double sourceX = cos * dx + sin * dy + width / 2.0;
+					double sourceY = -sin * dx + cos * dy + height / 2.0;
+
+					double coverage = edgeCoverage(sourceX, width) * edgeCoverage(sourceY, height);
+
+					if (coverage <= 0)
+					{
+						destination[row + x] = hasAlpha ? 0 : 0xFFFFFFFF;
+						continue;
+					}
+
+					double fx = sourceX - 0.5;
+					double fy = sourceY - 0.5;
+					int ix = (int) Math.floor(fx);
+					int iy = (int) Math.floor(fy);
+					double tx = fx - ix;
+					double ty = fy - iy;
+
+					for (int i = 0; i < 4; ++i)
+					{
+						weightsX[i] = cubicWeight(tx + 1 - i);
+						weightsY[i] = cubicWeight(ty + 1 - i);
+					}
+
+					double a = 0, r = 0, g = 0, b = 0;
+
+					for (int j = 0; j < 4; ++j)
+					{
+						int sampleRow = Math.min(Math.max(iy - 1 + j, 0), height - 1) * width;
+						double weightY = weightsY[j];
+
+						for (int i = 0; i < 4; ++i)
+						{
+							int pixel = source[sampleRow + Math.min(Math.max(ix - 1 + i, 0), width - 1)];
+							double weight = weightsX[i] * weightY;
+							double alpha = hasAlpha ? (pixel >>> 24) / 255.0 : 1.0;
+
+							a += weight * alpha;
+							r += weight * alpha * ((pixel >> 16) & 0xFF);
+							g += weight * alpha * ((pixel >> 8) & 0xFF);
+							b += weight * alpha * (pixel & 0xFF);
+						}
+					}
+
+					destination[row + x] = composite(a, r, g, b, coverage);
+				}
+			}
+		}
+
+		/**
+		 * Converts an interpolated premultiplied color back to a packed pixel,
+		 * fading it out (or to white) over the last half pixel of the source edges
+		 */
+		private int composite(double a, double r, double g, double b, double coverage)
+		{
+			a = Math.min(Math.max(a, 0), 1);
+
+			if (a <= 0)
+				return hasAlpha ? 0 : 0xFFFFFFFF;
+
+			r = clamp(r / a);
+			g = clamp(g / a);
+			b = clamp(b / a);
+
+			if (hasAlpha)
+			{
+				int alpha = (int) (a * coverage * 255 + 0.5);
+				return (alpha << 24) | ((int) (r + 0.5) << 16) | ((int) (g + 0.5) << 8) | (int) (b + 0.5);
+			}
+
+			double background = 255 * (1 - coverage);
+			int red = (int) (r * coverage + background + 0.5);
+			int green = (int) (g * coverage + background + 0.5);
+			int blue = (int) (b * coverage + background + 0.5);
+			return 0xFF000000 | (red << 16) | (green << 8) | blue;
+		}
+
+		private static double edgeCoverage(double position, int size)
+		{
+			double distance = Math.min(position, size - position);
+			return Math.min(Math.max(distance + 0.5, 0), 1);
+		}
+
+		private static double clamp(double value)
+		{
+			return Math.min(Math.max(value, 0), 255);
+		}
+	}
+}
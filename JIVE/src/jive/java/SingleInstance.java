@@ -0,0 +1,285 @@
+package jive.java;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * SingleInstance makes sure only one JIVE process runs per user. Files opened from the command
+ * line while JIVE is running are handed to the running process, which opens them in its window.
+ * <br><br>
+ * The first instance holds a lock on ~/.jive/instance.lock and listens on a socket bound to the
+ * loopback address. The port and a random token are written to ~/.jive/instance.port, which later
+ * launches read to connect and send their files. A later launch only needs the JVM and this class,
+ * so it can exit long before JavaFX would have started. The token keeps other local programs from
+ * sending files to JIVE, since the port file can only be read by the user who started it.
+ * <br><br>
+ * The lock is released by the operating system if JIVE crashes, so a stale port file never stops
+ * a new instance from starting. Multiple instances can be allowed with -Djive.multipleInstances=true.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class SingleInstance
+{
+	private static final int CONNECT_TIMEOUT = 500;
+	private static final int READ_TIMEOUT = 2000;
+	private static final int PORT_FILE_ATTEMPTS = 40;
+	private static final int PORT_FILE_DELAY = 50;
+
+	private static final File DIRECTORY = new File(System.getProperty("user.home"), ".jive");
+	private static final File LOCK_FILE = new File(DIRECTORY, "instance.lock");
+	private static final File PORT_FILE = new File(DIRECTORY, "instance.port");
+
+	private static FileChannel lockChannel;
+	private static FileLock lock;
+	private static ServerSocket serverSocket;
+	private static String token;
+	private static Consumer<List<File>> handler;
+	private static final List<File> pendingFiles = new ArrayList<File>();
+
+	/**
+	 * Hands files to a running instance of JIVE, or makes this process the running instance if there isn't one.
+	 *
+	 * @param paths - the paths given on the command line, relative paths are resolved against the working directory
+	 * @return true if a running instance accepted the files and this process should exit,
+	 * false if this process should start JIVE
+	 */
+	public static synchronized boolean handOff(String[] paths)
+	{
+		if (Boolean.getBoolean("jive.multipleInstances"))
+			return false;
+
+		try
+		{
+			Files.createDirectories(DIRECTORY.toPath());
+			lockChannel = new RandomAccessFile(LOCK_FILE, "rw").getChannel();
+			lock = lockChannel.tryLock();
+
+			if (lock != null)
+			{
+				listen();
+				return false;
+			}
+
+			lockChannel.close();
+			lockChannel = null;
+		}
+		catch (IOException e)
+		{
+			//Without the lock file JIVE still works, it just can't share a window
+			e.printStackTrace();
+			release();
+			return false;
+		}
+
+		List<String> absolutePaths = new ArrayList<String>();
+		for (String path : paths)
+			absolutePaths.add(new File(path).getAbsolutePath());
+
+		//The running instance may have taken the lock but not written its port yet
+		for (int attempt = 0; attempt < PORT_FILE_ATTEMPTS; ++attempt)
+		{
+			if (send(absolutePaths))
+				return true;
+
+			try
+			{
+				Thread.sleep(PORT_FILE_DELAY);
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Sets the handler that opens files received from later launches. It is called on the listener thread,
+	 * so it is responsible for moving to the JavaFX application thread. Files received before
+	 * a handler was set are passed to it immediately.
+	 *
+	 * @param fileHandler - the handler of received files
+	 */
+	public static synchronized void setHandler(Consumer<List<File>> fileHandler)
+	{
+		handler = fileHandler;
+
+		if (!pendingFiles.isEmpty())
+		{
+			handler.accept(new ArrayList<File>(pendingFiles));
+			pendingFiles.clear();
+		}
+	}
+
+	/**
+	 * Stops listening and releases the lock so the next launch becomes the running instance.
+	 * This is called by the Main class when the application exits.
+	 */
+	public static synchronized void release()
+	{
+		try
+		{
+			if (serverSocket != null)
+			{
+				serverSocket.close();
+				Files.deleteIfExists(PORT_FILE.toPath());
+			}
+
+			if (lock != null)
+				lock.release();
+
+			if (lockChannel != null)
+				lockChannel.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+
+		serverSocket = null;
+		lock = null;
+		lockChannel = null;
+	}
+
+	/*
+	 * Opens the server socket, publishes its port and starts accepting connections on a daemon thread
+	 */
+	private static void listen() throws IOException
+	{
+		token = Long.toHexString(new SecureRandom().nextLong());
+		serverSocket = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+
+		//The port file is replaced in one step so a launch never reads half of it
+		Path temporaryFile = createPrivateFile(new File(DIRECTORY, "instance.port.tmp").toPath());
+		Files.write(temporaryFile, (serverSocket.getLocalPort() + " " + token).getBytes(StandardCharsets.UTF_8));
+		Files.move(temporaryFile, PORT_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		ServerSocket socket = serverSocket;
+		Thread listenerThread = new Thread(() ->
+		{
+			while (!socket.isClosed())
+			{
+				try (Socket connection = socket.accept())
+				{
+					receive(connection);
+				}
+				catch (IOException e)
+				{
+					//A failed connection only affects the launch that made it
+				}
+			}
+		}, "JIVE instance listener");
+		listenerThread.setDaemon(true);
+		listenerThread.start();
+	}
+
+	/*
+	 * Creates an empty file that only the current user can read, so other users can't read the token.
+	 * The permissions are set as the file is created where the file system supports POSIX permissions.
+	 */
+	private static Path createPrivateFile(Path file) throws IOException
+	{
+		Files.deleteIfExists(file);
+
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+			return Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+
+		Files.createFile(file);
+		File created = file.toFile();
+		created.setReadable(false, false);
+		created.setWritable(false, false);
+		created.setReadable(true, true);
+		created.setWritable(true, true);
+		return file;
+	}
+
+	/*
+	 * Reads the files sent by a later launch and acknowledges them once they have been queued
+	 */
+	private static void receive(Socket connection) throws IOException
+	{
+		connection.setSoTimeout(READ_TIMEOUT);
+		DataInputStream input = new DataInputStream(connection.getInputStream());
+
+		if (!token.equals(input.readUTF()))
+			return;
+
+		List<File> files = new ArrayList<File>();
+		int count = input.readInt();
+		for (int i = 0; i < count; ++i)
+			files.add(new File(input.readUTF()));
+
+		synchronized (SingleInstance.class)
+		{
+			if (handler != null)
+				handler.accept(files);
+			else
+				pendingFiles.addAll(files);
+		}
+
+		DataOutputStream output = new DataOutputStream(connection.getOutputStream());
+		output.writeBoolean(true);
+		output.flush();
+	}
+
+	/*
+	 * Sends files to the instance named in the port file
+	 * @return true if the instance acknowledged them
+	 */
+	private static boolean send(List<String> paths)
+	{
+		String[] portAndToken;
+
+		try
+		{
+			portAndToken = new String(Files.readAllBytes(PORT_FILE.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+
+		if (portAndToken.length != 2)
+			return false;
+
+		try (Socket socket = new Socket())
+		{
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(portAndToken[0])), CONNECT_TIMEOUT);
+			socket.setSoTimeout(READ_TIMEOUT);
+
+			DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+			output.writeUTF(portAndToken[1]);
+			output.writeInt(paths.size());
+			for (String path : paths)
+				output.writeUTF(path);
+			output.flush();
+
+			return new DataInputStream(socket.getInputStream()).readBoolean();
+		}
+		catch (IOException | NumberFormatException e)
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package jive.java;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+/**
+ * SlideDecoder decodes the images of a slideshow on a background thread ahead of playback.
+ * <br><br>
+ * Decoded slides are stored in a ring buffer of a fixed number of screen-sized images that are
+ * allocated once and reused, so playback never waits for a file to be read and memory use doesn't
+ * depend on the size of the files. Each image is scaled to fit the screen and centered on black.
+ * <br><br>
+ * Slides are taken from the buffer in order with poll() and handed back with release() once they are
+ * no longer on screen. The slots in the ring are, in order: slides taken by the slideshow, decoded
+ * slides waiting to be shown, and free slots. The decoder waits while there are no free slots.
+ * <br><br>
+ * The files are played in a loop. Files that can't be read are skipped.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class SlideDecoder implements Runnable
+{
+	//Up to three slides are taken at once (the previous, current and incoming slide), the rest are decoded ahead
+	static final int CAPACITY = 5;
+
+	private final List<File> files;
+	private final int width;
+	private final int height;
+	private final WritableImage[] slots = new WritableImage[CAPACITY];
+	private int nextFile;
+	private int start;
+	private int taken;
+	private int decoded;
+	private volatile boolean stopped;
+
+	/**
+	 * @param files - the files to show, in order
+	 * @param firstFile - the index of the file to start with
+	 * @param width - the width of the screen
+	 * @param height - the height of the screen
+	 */
+	public SlideDecoder(List<File> files, int firstFile, int width, int height)
+	{
+		this.files = new ArrayList<File>(files);
+		this.nextFile = firstFile;
+		this.width = width;
+		this.height = height;
+
+		for (int i = 0; i < CAPACITY; ++i)
+			slots[i] = new WritableImage(width, height);
+	}
+
+	/**
+	 * Takes the next decoded slide from the buffer without waiting
+	 *
+	 * @return the next slide, or null if it hasn't been decoded yet
+	 */
+	public synchronized WritableImage poll()
+	{
+		if (decoded == 0)
+			return null;
+
+		WritableImage slide = slots[(start + taken) % CAPACITY];
+		++taken;
+		--decoded;
+		return slide;
+	}
+
+	/**
+	 * Hands the oldest slide taken with poll() back to the decoder to be reused
+	 */
+	public synchronized void release()
+	{
+		if (taken == 0)
+			return;
+
+		start = (start + 1) % CAPACITY;
+		--taken;
+		notifyAll();
+	}
+
+	/**
+	 * Stops decoding. The decoder thread finishes the slide it is working on and exits.
+	 */
+	public synchronized void stop()
+	{
+		stopped = true;
+		notifyAll();
+	}
+
+	@Override
+	public void run()
+	{
+		BufferedImage canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		int[] pixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+		int failures = 0;
+
+		while (!stopped && failures < files.size())
+		{
+			File imageFile = files.get(nextFile);
+			nextFile = (nextFile + 1) % files.size();
+
+			try
+			{
+				draw(imageFile, canvas);
+				failures = 0;
+			}
+			catch (IOException | RuntimeException e)
+			{
+				++failures;
+				continue;
+			}
+
+			int slot = awaitFreeSlot();
+			if (slot < 0)
+				return;
+
+			//Free slots aren't on screen, so they can be written outside the JavaFX thread
+			slots[slot].getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbPreInstance(), pixels, 0, width);
+
+			synchronized (this)
+			{
+				++decoded;
+			}
+		}
+	}
+
+	/**
+	 * Waits until there is a free slot in the ring
+	 *
+	 * @return the index of the slot, or -1 if the decoder was stopped
+	 */
+	private synchronized int awaitFreeSlot()
+	{
+		while (!stopped && taken + decoded == CAPACITY)
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException e)
+			{
+				return -1;
+			}
+		}
+
+		return stopped ? -1 : (start + taken + decoded) % CAPACITY;
+	}
+
+	/**
+	 * Draws an image file onto the canvas, scaled to fit and centered on black.
+	 * Files are read subsampled to no more than twice the screen size and then filtered down.
+	 */
+	private void draw(File imageFile, BufferedImage canvas) throws IOException
+	{
+		BufferedImage image = RegionReader.readPreview(imageFile, width * 2, height * 2);
+		double scale = Math.min((double) width / image.getWidth(), (double) height / image.getHeight());
+		int scaledWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+		int scaledHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+		Graphics2D graphics = canvas.createGraphics();
+		graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+		graphics.setColor(Color.BLACK);
+		graphics.fillRect(0, 0, width, height);
+		graphics.drawImage(image, (width - scaledWidth) / 2, (height - scaledHeight) / 2, scaledWidth, scaledHeight, null);
+		graphics.dispose();
+	}
+}
@@ -0,0 +1,219 @@
+package jive.java;
+
+import java.io.File;
+import java.util.List;
+
+import javafx.animation.AnimationTimer;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Cursor;
+import javafx.scene.Scene;
+import javafx.scene.image.ImageView;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyCombination;
+import javafx.scene.layout.StackPane;
+import javafx.scene.paint.Color;
+import javafx.stage.Screen;
+import javafx.stage.Stage;
+import javafx.stage.Window;
+
+/**
+ * Slideshow shows the images of a directory full-screen, one after another, in a loop.
+ * <br><br>
+ * Images are decoded ahead of time by a SlideDecoder. Slide changes and transitions are driven by an
+ * AnimationTimer and timed by the pulse they are drawn in, so they stay smooth however long a file takes
+ * to read. If the next slide isn't decoded when it is due, the current slide simply stays on screen
+ * and the next one is shown on the first frame after it is ready.
+ * <br><br>
+ * Space pauses and resumes the slideshow, the right arrow key skips to the next slide and Escape closes it.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class Slideshow
+{
+	static final long TRANSITION_TIME = 800_000_000;	//Length of a transition in nanoseconds
+
+	/**
+	 * The ways of changing from one slide to the next
+	 */
+	public enum Transition
+	{
+		NONE("None"), FADE("Fade"), SLIDE("Slide");
+
+		private final String name;
+
+		private Transition(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	private final Stage stage = new Stage();
+	private final SlideDecoder decoder;
+	private final long interval;
+	private final Transition transition;
+	private final double width;
+	private ImageView front = new ImageView();
+	private ImageView back = new ImageView();
+	private long nextSlideTime;
+	private long transitionStart = -1;
+	private boolean paused;
+	private boolean releasePending;
+
+	private final AnimationTimer timer = new AnimationTimer()
+	{
+		@Override
+		public void handle(long now)
+		{
+			showFrame(now);
+		}
+	};
+
+	/**
+	 * @param files - the files to show
+	 * @param firstFile - the index of the file to start with
+	 * @param seconds - the number of seconds each slide is shown for
+	 * @param transition - the transition between slides
+	 * @param owner - the window the slideshow is started from, it is shown on the same screen
+	 */
+	public Slideshow(List<File> files, int firstFile, double seconds, Transition transition, Window owner)
+	{
+		this.interval = (long) (seconds * 1_000_000_000);
+		this.transition = transition;
+
+		List<Screen> screens = Screen.getScreensForRectangle(owner.getX(), owner.getY(), owner.getWidth(), owner.getHeight());
+		Rectangle2D bounds = (screens.isEmpty() ? Screen.getPrimary() : screens.get(0)).getBounds();
+		width = bounds.getWidth();
+		decoder = new SlideDecoder(files, firstFile, (int) bounds.getWidth(), (int) bounds.getHeight());
+
+		StackPane pane = new StackPane(front, back);
+		pane.setStyle("-fx-background-color: black;");
+		Scene scene = new Scene(pane, bounds.getWidth(), bounds.getHeight(), Color.BLACK);
+		scene.setCursor(Cursor.NONE);
+
+		scene.setOnKeyPressed(event ->
+		{
+			if (event.getCode() == KeyCode.ESCAPE)
+				stage.close();
+			else if (event.getCode() == KeyCode.SPACE)
+			{
+				paused = !paused;
+				nextSlideTime = System.nanoTime() + interval;
+			}
+			else if (event.getCode() == KeyCode.RIGHT)
+				nextSlideTime = 0;
+		});
+
+		stage.setScene(scene);
+		stage.setX(bounds.getMinX());
+		stage.setY(bounds.getMinY());
+		stage.setTitle("JIVE - Slideshow");
+		stage.setFullScreenExitHint("");
+		stage.setFullScreenExitKeyCombination(KeyCombination.NO_MATCH);
+		stage.setFullScreen(true);
+		stage.setOnHidden(event ->
+		{
+			timer.stop();
+			decoder.stop();
+		});
+	}
+
+	/**
+	 * Shows the slideshow and starts decoding
+	 */
+	public void show()
+	{
+		Thread decoderThread = new Thread(decoder, "JIVE slideshow decoder");
+		decoderThread.setDaemon(true);
+		decoderThread.start();
+
+		stage.show();
+		timer.start();
+	}
+
+	/*
+	 * Advances the slideshow to the given pulse time. This never blocks,
+	 * slides that aren't decoded yet are looked for again on the next frame.
+	 */
+	private void showFrame(long now)
+	{
+		if (transitionStart >= 0)
+		{
+			double progress = Math.min(1, (double) (now - transitionStart) / TRANSITION_TIME);
+			setTransitionProgress(progress);
+
+			if (progress == 1)
+				finishTransition(now);
+
+			return;
+		}
+
+		if (paused || now < nextSlideTime)
+			return;
+
+		if (releasePending)
+		{
+			//The previous slide left the screen at least one interval ago, so it is no longer being drawn
+			decoder.release();
+			releasePending = false;
+		}
+
+		back.setImage(decoder.poll());
+
+		if (back.getImage() == null)
+			return;
+
+		back.toFront();
+
+		if (front.getImage() == null || transition == Transition.NONE)
+			finishTransition(now);
+		else
+		{
+			transitionStart = now;
+			setTransitionProgress(0);
+		}
+	}
+
+	private void setTransitionProgress(double progress)
+	{
+		if (transition == Transition.FADE)
+			back.setOpacity(progress);
+		else if (transition == Transition.SLIDE)
+		{
+			//Eases in and out so the slide doesn't start or stop abruptly
+			double offset = (1 - Math.cos(progress * Math.PI)) / 2;
+			back.setTranslateX(width * (1 - offset));
+			front.setTranslateX(-width * offset);
+		}
+	}
+
+	/*
+	 * Makes the incoming slide the current one. The outgoing slide is released
+	 * when the next slide is shown.
+	 */
+	private void finishTransition(long now)
+	{
+		if (front.getImage() != null)
+		{
+			front.setImage(null);
+			releasePending = true;
+		}
+
+		front.setTranslateX(0);
+		back.setTranslateX(0);
+		back.setOpacity(1);
+
+		ImageView incoming = back;
+		back = front;
+		front = incoming;
+
+		transitionStart = -1;
+		nextSlideTime = now + interval;
+	}
+}
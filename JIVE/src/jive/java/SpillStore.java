@@ -0,0 +1,274 @@
+package jive.java;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * SpillStore keeps compressed BufferedImages in a temporary file so they don't take up heap space.
+ * <br><br>
+ * Images are compressed on a background thread and appended to the file with asynchronous NIO writes,
+ * so spilling never blocks the caller. Reading an image back decompresses it into a new BufferedImage
+ * of the same type. The raster data is stored row by row, so images of any standard type (including
+ * subimages that share a larger raster) are stored without conversion. Indexed and custom images are
+ * stored as TYPE_INT_ARGB.
+ * <br><br>
+ * The file is created when the first image is written and deleted by close(), or when the JVM exits.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class SpillStore implements Closeable
+{
+	private final ExecutorService compressor = Executors.newSingleThreadExecutor(runnable ->
+	{
+		Thread thread = new Thread(runnable, "JIVE history spill");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+
+	private final AtomicLong endOfFile = new AtomicLong();
+	private Path file;
+	private AsynchronousFileChannel channel;
+	private volatile boolean closed;
+
+	/**
+	 * The location of a spilled image in the store
+	 */
+	public static final class Handle
+	{
+		private final long position;
+		private final int length;
+
+		private Handle(long position, int length)
+		{
+			this.position = position;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Compresses an image and writes it to the store in the background.
+	 * The image must not be modified until the returned future completes.
+	 *
+	 * @param image - the image to spill
+	 * @return a future that completes with the handle needed to read the image back
+	 */
+	public CompletableFuture<Handle> write(BufferedImage image)
+	{
+		CompletableFuture<Handle> result = new CompletableFuture<Handle>();
+
+		compressor.execute(() ->
+		{
+			try
+			{
+				byte[] data = compress(image);
+				long position = endOfFile.getAndAdd(data.length);
+				getChannel().write(ByteBuffer.wrap(data), position, result, new CompletionHandler<Integer, CompletableFuture<Handle>>()
+				{
+					@Override
+					public void completed(Integer written, CompletableFuture<Handle> future)
+					{
+						if (written == data.length)
+							future.complete(new Handle(position, data.length));
+						else
+							future.completeExceptionally(new IOException("Incomplete write to " + file));
+					}
+
+					@Override
+					public void failed(Throwable exception, CompletableFuture<Handle> future)
+					{
+						future.completeExceptionally(exception);
+					}
+				});
+			}
+			catch (Exception e)
+			{
+				result.completeExceptionally(e);
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Reads a spilled image back from the store
+	 *
+	 * @param handle - the handle returned when the image was written
+	 * @return a new BufferedImage with the contents of the spilled image
+	 * @throws IOException if the store has been closed or can't be read
+	 */
+	public BufferedImage read(Handle handle) throws IOException
+	{
+		if (closed)
+			throw new IOException("The spill store has been closed");
+
+		ByteBuffer buffer = ByteBuffer.allocate(handle.length);
+
+		try
+		{
+			while (buffer.hasRemaining())
+			{
+				int read = channel.read(buffer, handle.position + buffer.position()).get();
+				if (read < 0)
+					throw new IOException("Unexpected end of " + file);
+			}
+		}
+		catch (InterruptedException | ExecutionException e)
+		{
+			throw new IOException("Could not read from " + file, e);
+		}
+
+		return decompress(buffer.array());
+	}
+
+	/**
+	 * Deletes the store and everything in it. Pending writes are discarded.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		closed = true;
+		compressor.shutdownNow();
+
+		try
+		{
+			if (channel != null)
+				channel.close();
+			if (file != null)
+				Files.deleteIfExists(file);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private synchronized AsynchronousFileChannel getChannel() throws IOException
+	{
+		if (closed)
+			throw new IOException("The spill store has been closed");
+
+		if (channel == null)
+		{
+			file = Files.createTempFile("jive-history", ".spill");
+			file.toFile().deleteOnExit();
+			channel = AsynchronousFileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+
+		return channel;
+	}
+
+	private static byte[] compress(BufferedImage image) throws IOException
+	{
+		int type = image.getType();
+
+		if (type == BufferedImage.TYPE_CUSTOM || type == BufferedImage.TYPE_BYTE_INDEXED || type == BufferedImage.TYPE_BYTE_BINARY)
+		{
+			BufferedImage argbImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+			argbImage.createGraphics().drawImage(image, 0, 0, null);
+			image = argbImage;
+			type = BufferedImage.TYPE_INT_ARGB;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+		try (DataOutputStream output = new DataOutputStream(new DeflaterOutputStream(bytes, deflater, 1 << 16)))
+		{
+			int width = image.getWidth();
+			int height = image.getHeight();
+			WritableRaster raster = image.getRaster();
+
+			output.writeInt(type);
+			output.writeInt(width);
+			output.writeInt(height);
+
+			Object row = null;
+			ByteBuffer rowBytes = null;
+			for (int y = 0; y < height; ++y)
+			{
+				row = raster.getDataElements(0, y, width, 1, row);
+
+				if (row instanceof byte[])
+				{
+					output.write((byte[]) row);
+					continue;
+				}
+
+				if (rowBytes == null)
+					rowBytes = ByteBuffer.allocate(row instanceof short[] ? ((short[]) row).length * 2 : ((int[]) row).length * 4);
+
+				rowBytes.clear();
+				if (row instanceof short[])
+					rowBytes.asShortBuffer().put((short[]) row);
+				else
+					rowBytes.asIntBuffer().put((int[]) row);
+				output.write(rowBytes.array());
+			}
+		}
+		finally
+		{
+			deflater.end();
+		}
+
+		return bytes.toByteArray();
+	}
+
+	private static BufferedImage decompress(byte[] data) throws IOException
+	{
+		Inflater inflater = new Inflater();
+
+		try (DataInputStream input = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data), inflater, 1 << 16)))
+		{
+			int type = input.readInt();
+			int width = input.readInt();
+			int height = input.readInt();
+			BufferedImage image = new BufferedImage(width, height, type);
+			WritableRaster raster = image.getRaster();
+
+			Object row = raster.getDataElements(0, 0, width, 1, null);
+			byte[] rowBytes = row instanceof byte[] ? (byte[]) row
+					: new byte[row instanceof short[] ? ((short[]) row).length * 2 : ((int[]) row).length * 4];
+
+			for (int y = 0; y < height; ++y)
+			{
+				input.readFully(rowBytes);
+
+				if (row instanceof short[])
+					ByteBuffer.wrap(rowBytes).asShortBuffer().get((short[]) row);
+				else if (row instanceof int[])
+					ByteBuffer.wrap(rowBytes).asIntBuffer().get((int[]) row);
+
+				raster.setDataElements(0, y, width, 1, row);
+			}
+
+			return image;
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package jive.java;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * StartupTimer records how long each phase of JIVE's startup takes, measured from the start of the JVM.
+ * <br><br>
+ * Timing is enabled with -Djive.startupTiming=true, in which case report() prints the breakdown
+ * to standard error. A budget in milliseconds can be set with -Djive.startupBudget, and the report
+ * says whether the first window was shown within it. When timing is disabled mark() and report()
+ * do nothing, so they don't slow down startup themselves.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class StartupTimer
+{
+	private static final boolean ENABLED = Boolean.getBoolean("jive.startupTiming");
+	private static final long BUDGET = Long.getLong("jive.startupBudget", 0);
+	private static final List<String> phases = new ArrayList<String>();
+	private static final List<Long> times = new ArrayList<Long>();
+
+	/**
+	 * Marks the end of a startup phase
+	 *
+	 * @param phase - a description of the phase that just finished
+	 */
+	public static synchronized void mark(String phase)
+	{
+		if (!ENABLED)
+			return;
+
+		phases.add(phase);
+		times.add(ManagementFactory.getRuntimeMXBean().getUptime());
+	}
+
+	/**
+	 * Prints the time taken by each phase and the total time since the JVM started
+	 */
+	public static synchronized void report()
+	{
+		if (!ENABLED || times.isEmpty())
+			return;
+
+		long previous = 0;
+		for (int i = 0; i < phases.size(); ++i)
+		{
+			System.err.printf("%-24s %6d ms%n", phases.get(i), times.get(i) - previous);
+			previous = times.get(i);
+		}
+
+		System.err.printf("%-24s %6d ms%n", "Total", previous);
+
+		if (BUDGET > 0)
+			System.err.println(previous <= BUDGET ? "Within the startup budget of " + BUDGET + " ms"
+					: "Over the startup budget of " + BUDGET + " ms by " + (previous - BUDGET) + " ms");
+	}
+}
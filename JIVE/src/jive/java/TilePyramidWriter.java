@@ -0,0 +1,433 @@
+package jive.java;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.function.DoubleConsumer;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * TilePyramidWriter cuts an image into a pyramid of tiles for web viewers that load only the tiles
+ * they show, such as OpenSeadragon (Deep Zoom) and Leaflet or OpenLayers (XYZ).
+ * <br><br>
+ * Each level of the pyramid is half the size of the level above, down to a single pixel for Deep Zoom
+ * and to a single tile for XYZ. The pyramid is built in one pass over the image: rows are read from the image
+ * a band at a time and handed to the top level, and every level passes each pair of rows it receives on to the
+ * level below, averaged over 2 x 2 pixels (a box filter). A level keeps only the rows of the row of tiles it is
+ * filling, plus the overlap, and encodes that row of tiles in parallel as soon as it is complete. Memory is
+ * bounded by about one row of tiles per level rather than by the size of the image, so images edited as
+ * OffHeapImages can be exported as well.
+ * <br><br>
+ * Deep Zoom pyramids are written as name.dzi and name_files/level/column_row.format, XYZ pyramids as
+ * zoom/x/y.format with every tile padded to the full tile size. The pyramid is written to a directory, or to a
+ * single zip file if the output's name ends in .zip. Tiles are stored in the zip without compressing them again.
+ *
+ * @author Devon Hunter
+ *
+ */
+public class TilePyramidWriter
+{
+	static final int DEEP_ZOOM_TILE_SIZE = 254;
+	static final int DEEP_ZOOM_OVERLAP = 1;
+	static final int XYZ_TILE_SIZE = 256;
+
+	/**
+	 * How the tiles are named and laid out
+	 */
+	public enum Layout
+	{
+		/** A Deep Zoom Image, with a .dzi descriptor and tiles that overlap by a pixel */
+		DEEP_ZOOM("Deep Zoom"),
+		/** Tiles named zoom/x/y, as used by map viewers */
+		XYZ("XYZ");
+
+		private final String name;
+
+		Layout(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	private final Layout layout;
+	private final String format;
+	private final EncoderSettings settings;
+	private final String name;
+	private final int tileSize;
+	private final int overlap;
+	private final boolean hasAlpha;
+	private final TileOutput output;
+
+	private TilePyramidWriter(RenderedImage image, File output, Layout layout, String format, EncoderSettings settings) throws IOException
+	{
+		this.layout = layout;
+		this.format = format;
+		this.settings = settings;
+
+		String fileName = output.getName();
+		name = fileName.contains(".") ? fileName.substring(0, fileName.lastIndexOf('.')) : fileName;
+		tileSize = layout == Layout.DEEP_ZOOM ? DEEP_ZOOM_TILE_SIZE : XYZ_TILE_SIZE;
+		overlap = layout == Layout.DEEP_ZOOM ? DEEP_ZOOM_OVERLAP : 0;
+
+		//Formats without transparency get tiles flattened onto white, as when the image is saved
+		hasAlpha = image.getColorModel().hasAlpha() && !format.equals("jpg") && !format.equals("bmp");
+		this.output = fileName.toLowerCase().endsWith(".zip") ? new ZipOutput(output) : new DirectoryOutput(output);
+	}
+
+	/**
+	 * Writes the tile pyramid of an image
+	 *
+	 * @param image - the image to cut into tiles
+	 * @param output - the directory to write to, or a zip file to write to if its name ends in .zip
+	 * @param layout - how the tiles are named and laid out
+	 * @param format - the format of the tiles, jpg or png
+	 * @param settings - the options to encode the tiles with
+	 * @param progress - receives the fraction of the image that has been written, from 0 to 1, or null
+	 * @throws IOException if the image can't be read or the tiles can't be written
+	 */
+	public static void write(RenderedImage image, File output, Layout layout, String format, EncoderSettings settings, DoubleConsumer progress)
+			throws IOException
+	{
+		format = format.toLowerCase().replace("jpeg", "jpg");
+		if (!format.equals("jpg") && !format.equals("png"))
+			throw new IllegalArgumentException("Tiles must be jpg or png: " + format);
+
+		TilePyramidWriter writer = new TilePyramidWriter(image, output, layout, format, settings);
+
+		try
+		{
+			writer.write(image, progress);
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+		finally
+		{
+			writer.output.close();
+		}
+	}
+
+	private void write(RenderedImage image, DoubleConsumer progress) throws IOException
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int largest = Math.max(width, height);
+
+		//Deep Zoom levels go down to a single pixel, XYZ levels to the first level that fits a tile
+		int topLevel = 0;
+		while ((layout == Layout.DEEP_ZOOM ? 1 : tileSize) << topLevel < largest)
+			++topLevel;
+
+		Level first = new Level(topLevel, width, height);
+		for (Level level = first; level.index > 0; level = level.next)
+			level.next = new Level(level.index - 1, (level.width + 1) / 2, (level.height + 1) / 2);
+
+		int bandHeight = PixelFormats.getBandHeight(width);
+
+		for (int y = 0; y < height; y += bandHeight)
+		{
+			int rows = Math.min(bandHeight, height - y);
+			int[] pixels = PixelFormats.readRGB(image, y, rows);
+
+			for (int row = 0; row < rows; ++row)
+			{
+				int[] line = new int[width];
+				System.arraycopy(pixels, row * width, line, 0, width);
+				first.add(line);
+			}
+
+			if (progress != null)
+				progress.accept((double) (y + rows) / height);
+		}
+
+		first.finish();
+
+		if (layout == Layout.DEEP_ZOOM)
+		{
+			String descriptor = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+					+ "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"" + format + "\" Overlap=\"" + overlap
+					+ "\" TileSize=\"" + tileSize + "\">\n"
+					+ "  <Size Width=\"" + width + "\" Height=\"" + height + "\"/>\n"
+					+ "</Image>\n";
+			output.write(name + ".dzi", descriptor.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * A level of the pyramid, which receives its rows from the level above
+	 * and keeps the rows of the row of tiles it is filling
+	 */
+	private final class Level
+	{
+		final int index;
+		final int width;
+		final int height;
+		final int columns;
+		final int tileRows;
+		final ArrayDeque<int[]> rows = new ArrayDeque<int[]>();
+		Level next;
+		int firstRow;			//The row of the image the first kept row is
+		int received;
+		int tileRow;
+		int[] pendingRow;		//The first row of a pair to average for the next level
+
+		Level(int index, int width, int height)
+		{
+			this.index = index;
+			this.width = width;
+			this.height = height;
+			columns = (width + tileSize - 1) / tileSize;
+			tileRows = (height + tileSize - 1) / tileSize;
+		}
+
+		void add(int[] row)
+		{
+			rows.addLast(row);
+			++received;
+
+			if (next != null)
+			{
+				if (pendingRow == null)
+				{
+					pendingRow = row;
+				}
+				else
+				{
+					next.add(downsample(pendingRow, row));
+					pendingRow = null;
+				}
+			}
+
+			//A row of tiles is complete once the overlap below it has arrived
+			while (tileRow < tileRows && received >= Math.min(height, (tileRow + 1) * tileSize + overlap))
+			{
+				writeTileRow(tileRow++);
+
+				int keepFrom = Math.min(received, tileRow * tileSize - overlap);
+				while (firstRow < keepFrom)
+				{
+					rows.removeFirst();
+					++firstRow;
+				}
+			}
+		}
+
+		/*
+		 * Passes an unpaired last row on to the level below, which averages it with itself
+		 */
+		void finish()
+		{
+			if (next == null)
+				return;
+
+			if (pendingRow != null)
+			{
+				next.add(downsample(pendingRow, pendingRow));
+				pendingRow = null;
+			}
+
+			next.finish();
+		}
+
+		private int[] downsample(int[] upper, int[] lower)
+		{
+			int[] row = new int[(width + 1) / 2];
+
+			for (int x = 0; x < row.length; ++x)
+			{
+				int left = x * 2;
+				int right = Math.min(width - 1, left + 1);
+				row[x] = average(upper[left], upper[right], lower[left], lower[right]);
+			}
+
+			return row;
+		}
+
+		private void writeTileRow(int tileRow)
+		{
+			int top = Math.max(0, tileRow * tileSize - overlap);
+			int bottom = Math.min(height, (tileRow + 1) * tileSize + overlap);
+			int[][] tileRows = new int[bottom - top][];
+
+			int i = 0;
+			for (int[] row : rows)
+			{
+				int y = firstRow + i;
+				if (y >= top && y < bottom)
+					tileRows[y - top] = row;
+				if (++i >= bottom - firstRow)
+					break;
+			}
+
+			IntStream.range(0, columns).parallel().forEach(column ->
+			{
+				int left = Math.max(0, column * tileSize - overlap);
+				int right = Math.min(width, (column + 1) * tileSize + overlap);
+				BufferedImage tile = createTile(tileRows, left, right);
+
+				String path = layout == Layout.DEEP_ZOOM ? name + "_files/" + index + "/" + column + "_" + tileRow + "." + format
+						: index + "/" + column + "/" + tileRow + "." + format;
+
+				try
+				{
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					ImageEncoder.write(tile, format, bytes, settings);
+					output.write(path, bytes.toByteArray());
+				}
+				catch (IOException e)
+				{
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+
+		/*
+		 * Copies the pixels of a tile out of the rows, padded to the full tile size for XYZ
+		 */
+		private BufferedImage createTile(int[][] tileRows, int left, int right)
+		{
+			int tileWidth = layout == Layout.XYZ ? tileSize : right - left;
+			int tileHeight = layout == Layout.XYZ ? tileSize : tileRows.length;
+			BufferedImage tile = new BufferedImage(tileWidth, tileHeight, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+			int[] pixels = PixelFormats.getData(tile);
+
+			if (!hasAlpha)
+				Arrays.fill(pixels, 0xFFFFFFFF);
+
+			for (int y = 0; y < tileRows.length; ++y)
+			{
+				int[] row = tileRows[y];
+
+				if (hasAlpha)
+				{
+					System.arraycopy(row, left, pixels, y * tileWidth, right - left);
+					continue;
+				}
+
+				for (int x = left; x < right; ++x)
+					pixels[y * tileWidth + x - left] = flatten(row[x]);
+			}
+
+			return tile;
+		}
+	}
+
+	/*
+	 * Averages four ARGB pixels, weighting the colors by their alpha so transparent pixels don't darken the edges
+	 */
+	private static int average(int a, int b, int c, int d)
+	{
+		int alphaA = a >>> 24, alphaB = b >>> 24, alphaC = c >>> 24, alphaD = d >>> 24;
+		int alpha = alphaA + alphaB + alphaC + alphaD;
+
+		if (alpha == 0)
+			return 0;
+
+		int red = ((a >> 16) & 0xFF) * alphaA + ((b >> 16) & 0xFF) * alphaB + ((c >> 16) & 0xFF) * alphaC + ((d >> 16) & 0xFF) * alphaD;
+		int green = ((a >> 8) & 0xFF) * alphaA + ((b >> 8) & 0xFF) * alphaB + ((c >> 8) & 0xFF) * alphaC + ((d >> 8) & 0xFF) * alphaD;
+		int blue = (a & 0xFF) * alphaA + (b & 0xFF) * alphaB + (c & 0xFF) * alphaC + (d & 0xFF) * alphaD;
+		int half = alpha / 2;
+
+		return (alpha + 2) / 4 << 24 | (red + half) / alpha << 16 | (green + half) / alpha << 8 | (blue + half) / alpha;
+	}
+
+	/*
+	 * Blends a pixel onto white
+	 */
+	private static int flatten(int pixel)
+	{
+		int alpha = pixel >>> 24;
+		if (alpha == 0xFF)
+			return pixel;
+
+		int white = (255 - alpha) * 255;
+		int red = (((pixel >> 16) & 0xFF) * alpha + white + 127) / 255;
+		int green = (((pixel >> 8) & 0xFF) * alpha + white + 127) / 255;
+		int blue = ((pixel & 0xFF) * alpha + white + 127) / 255;
+		return 0xFF000000 | red << 16 | green << 8 | blue;
+	}
+
+	/**
+	 * Where the tiles are written to. write() may be called from several threads at once.
+	 */
+	private interface TileOutput extends Closeable
+	{
+		void write(String path, byte[] bytes) throws IOException;
+	}
+
+	private static final class DirectoryOutput implements TileOutput
+	{
+		private final File directory;
+
+		DirectoryOutput(File directory) throws IOException
+		{
+			this.directory = directory;
+			Files.createDirectories(directory.toPath());
+		}
+
+		@Override
+		public void write(String path, byte[] bytes) throws IOException
+		{
+			File file = new File(directory, path);
+			Files.createDirectories(file.getParentFile().toPath());
+			Files.write(file.toPath(), bytes);
+		}
+
+		@Override
+		public void close() {}
+	}
+
+	private static final class ZipOutput implements TileOutput
+	{
+		private final ZipOutputStream zip;
+
+		ZipOutput(File zipFile) throws IOException
+		{
+			zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile), 1 << 16));
+		}
+
+		@Override
+		public synchronized void write(String path, byte[] bytes) throws IOException
+		{
+			//Tiles are compressed already, so they are stored as they are
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+
+			ZipEntry entry = new ZipEntry(path);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(bytes.length);
+			entry.setCompressedSize(bytes.length);
+			entry.setCrc(crc.getValue());
+
+			zip.putNextEntry(entry);
+			zip.write(bytes);
+			zip.closeEntry();
+		}
+
+		@Override
+		public synchronized void close() throws IOException
+		{
+			zip.close();
+		}
+	}
+}